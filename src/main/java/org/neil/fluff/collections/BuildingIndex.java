@@ -0,0 +1,161 @@
+package org.neil.fluff.collections;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * Stands in for an index which is being built in the background from a copy of the entries of a collection, while
+ * that collection goes on changing. Every change since the copy was taken is recorded, and once the index has been
+ * built the changes are {@link #replayOnto(Index) replayed} onto it, so that it can take the place of this one.
+ * Consecutive additions are replayed as a single bulk load.
+ * <p/>
+ * Uniqueness can only be checked against the built index, so an entry which violates the uniqueness constraint of
+ * the index is only rejected by the replay, which means that the index cannot be added.
+ * <p/>
+ * Anything which must query this index before it is ready, such as a {@link IndexedCollection#snapshot() snapshot},
+ * can {@link #buildIfStale(Collection) build} a fallback index from its own entries, just as a {@link LazyIndex} does.
+ *
+ * @param <T> the type of entries in the index.
+ *
+ * @author Neil Mc Erlean
+ */
+class BuildingIndex<T> extends Index<T> {
+    private static final long serialVersionUID = 1L;
+    
+    /** Identifies the build for which this index, and each copy of it, is standing in. */
+    private final Object build;
+    
+    /** The changes since the build began, apart from those in {@link #pendingAdds}, in order. */
+    private final transient List<Consumer<Index<T>>> changes;
+    
+    /** The entries added since the last change in {@link #changes}, which are replayed as a single batch. */
+    private final transient List<T> pendingAdds;
+    
+    /** An index built from all the entries since the last change, or {@code null} if there is none. */
+    private transient volatile Index<T> fallbackIndex;
+    
+    BuildingIndex(IndexedField<T> indexedField) {
+        this(indexedField, new Object());
+        
+        // Creating an empty index of the configured type checks that it can be built.
+        Index.create(indexedField);
+    }
+    
+    private BuildingIndex(IndexedField<T> indexedField, Object build) {
+        super(indexedField);
+        this.build       = build;
+        this.changes     = new ArrayList<>();
+        this.pendingAdds = new ArrayList<>();
+    }
+    
+    private BuildingIndex(BuildingIndex<T> source) {
+        super(source.indexedField);
+        this.build         = source.build;
+        this.changes       = new ArrayList<>(source.changes);
+        this.pendingAdds   = new ArrayList<>(source.pendingAdds);
+        this.fallbackIndex = source.fallbackIndex;
+    }
+    
+    /** Is this index (or a copy of it) standing in for the same build as the provided one? */
+    boolean isStandingInFor(BuildingIndex<T> other) { return this.build == other.build; }
+    
+    /**
+     * Applies the changes recorded here to the provided index, which was built from the entries as they were when
+     * the build began, so that it holds the entries as they are now.
+     *
+     * @return the provided index.
+     * @throws IllegalArgumentException if any entry added since the build began violates a uniqueness constraint.
+     */
+    Index<T> replayOnto(Index<T> builtIndex) {
+        for (Consumer<Index<T>> change : changes) {
+            change.accept(builtIndex);
+        }
+        if ( !pendingAdds.isEmpty()) {
+            builtIndex.prepareAddAll(new ArrayList<>(pendingAdds)).run();
+        }
+        return builtIndex;
+    }
+    
+    private void recordChange(Consumer<Index<T>> change) {
+        if ( !pendingAdds.isEmpty()) {
+            final List<T> batch = new ArrayList<>(pendingAdds);
+            changes.add(index -> index.prepareAddAll(batch).run());
+            pendingAdds.clear();
+        }
+        changes.add(change);
+        this.fallbackIndex = null;
+    }
+    
+    /** Builds a fallback index from the provided entries, which are all those in the collection, if there is none. */
+    @Override void buildIfStale(Collection<T> entries) {
+        if (fallbackIndex != null) { return; }
+        
+        synchronized (this) {
+            if (fallbackIndex == null) {
+                this.fallbackIndex = Index.build(indexedField, new ArrayList<>(entries));
+            }
+        }
+    }
+    
+    private Index<T> fallbackIndex() {
+        final Index<T> index = fallbackIndex;
+        if (index == null) {
+            throw new IllegalStateException("The index '" + indexedField.getFieldName() + "' is still being built.");
+        }
+        return index;
+    }
+    
+    @Override List<T> find(Object key) { return fallbackIndex().find(key); }
+    
+    @Override List<T> findRange(KeyRange range) { return fallbackIndex().findRange(range); }
+    
+    /** Uniqueness is checked when the changes are replayed, unless there is an up to date fallback index. */
+    @Override boolean containsKey(Object key) {
+        final Index<T> index = fallbackIndex;
+        return index != null && index.containsKey(key);
+    }
+    
+    @Override Iterator<T> sortedIterator() { return fallbackIndex().sortedIterator(); }
+    
+    @Override void add(T entry) {
+        pendingAdds.add(entry);
+        this.fallbackIndex = null;
+    }
+    
+    @Override Runnable prepareAddAll(List<T> batch) {
+        return () -> {
+            pendingAdds.addAll(batch);
+            this.fallbackIndex = null;
+        };
+    }
+    
+    @Override boolean remove(T entry) {
+        recordChange(index -> index.remove(entry));
+        return true;
+    }
+    
+    @Override void removeAll(Set<T> removedEntries) { recordChange(index -> index.removeAll(removedEntries)); }
+    
+    @Override void clear() {
+        changes.clear();
+        pendingAdds.clear();
+        recordChange(Index::clear);
+    }
+    
+    @Override BuildingIndex<T> copy() { return new BuildingIndex<>(this); }
+    
+    /** Stands in for the same build, with a single change which clears the built index, rather than copying them all. */
+    @Override BuildingIndex<T> emptyCopy() {
+        final BuildingIndex<T> copy = new BuildingIndex<>(indexedField, build);
+        copy.recordChange(Index::clear);
+        return copy;
+    }
+    
+    @Override Index<T> freeze() { return fallbackIndex().freeze(); }
+}
@@ -0,0 +1,593 @@
+package org.neil.fluff.collections;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * A thread-safe variant of {@link IndexedCollection}, with the same indexes and queries.
+ * <p/>
+ * Mutations take an exclusive lock of a {@link StampedLock}, and queries a shared read lock. A query walks
+ * structures, such as hash tables and trees, which a writer changes in place, so it must not overlap with a write.
+ * Only {@link #size()} and {@link #isEmpty()}, which read a single field, first try an optimistic read, which does
+ * not block writers or other readers, and retry under the read lock if a write intervened.
+ * <p/>
+ * A query of a stale {@link IndexedField#lazy() lazy} index is run under the read lock, so that the entries cannot
+ * change while it is rebuilt. Several readers may wait for the same rebuild, but it happens just once.
+ * <p/>
+ * Indexes can be {@link #addIndex(IndexedField) added} while the collection is in use. A new index is built in the
+ * background without holding any lock, so writes carry on meanwhile, and queries of it wait until it is ready.
+ * <p/>
+ * Unlike those of an {@code IndexedCollection}, the lists returned by queries are copies, which are safe to use
+ * after the call returns, and the iterators are over copies, which do not support {@link Iterator#remove()}.
+ * <p/>
+ * A collection can be {@link #openJournaled(Path, IndexedField...) journaled}, so that its changes survive a crash.
+ * Each change is then appended to a write-ahead {@link Journal} under the write lock, and the writer waits until it
+ * is durable after releasing the lock, so that concurrent writers share each force of the journal to disk.
+ *
+ * @param <T> the type of entries in this collection.
+ *
+ * @author Neil Mc Erlean
+ */
+public class ConcurrentIndexedCollection<T extends Serializable>
+                                        implements Collection<T>, Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    /** The underlying, unsynchronised collection, which is only ever accessed under {@link #lock}. */
+    private final IndexedCollection<T> collection;
+    
+    private transient StampedLock lock = new StampedLock();
+    
+    /** The indexes which are being built in the background, each with a future which completes when it is ready. */
+    private transient Map<String, CompletableFuture<Void>> buildingIndexes = new ConcurrentHashMap<>();
+    
+    /** The default time for which the writer which forces the journal waits for others to join it. */
+    public static final long DEFAULT_COMMIT_WINDOW_NANOS = 0L;
+    
+    /** The default length beyond which the journal is checkpointed, which bounds the time taken to recover. */
+    public static final long DEFAULT_MAX_JOURNAL_LENGTH = 64L << 20;
+    
+    /** Stands for the record of a change to a collection which is not journaled. */
+    private static final byte[] UNJOURNALED = new byte[0];
+    
+    /** The journal of the changes to this collection, or {@code null} if it is not journaled (as no copy of it is). */
+    private final transient Journal journal;
+    
+    @SafeVarargs
+    public ConcurrentIndexedCollection(IndexedField<T>... indexedFields) {
+        this(new IndexedCollection<>(indexedFields), null);
+    }
+    
+    ConcurrentIndexedCollection(IndexedCollection<T> collection, Journal journal) {
+        this.collection = collection;
+        this.collection.disableBuildingStaleIndexesOnQuery();
+        this.journal = journal;
+    }
+    
+    /**
+     * Opens a collection whose changes are journaled in the specified directory, with the default commit window and
+     * maximum journal length.
+     *
+     * @see #openJournaled(Path, long, long, IndexedField...)
+     */
+    @SafeVarargs
+    public static <T extends Serializable> ConcurrentIndexedCollection<T> openJournaled(Path directory, IndexedField<T>... indexedFields)
+                                                                                       throws IOException, ClassNotFoundException {
+        return openJournaled(directory, DEFAULT_COMMIT_WINDOW_NANOS, DEFAULT_MAX_JOURNAL_LENGTH, indexedFields);
+    }
+    
+    /**
+     * Opens a collection whose changes are journaled in the specified directory, which is created if need be. The
+     * collection is recovered from the latest snapshot in the directory, if there is one, and the journal of the
+     * changes since, which is then appended to. Every change returns once it is durable, or throws an
+     * {@link UncheckedIOException} if it was applied, but could not be made durable.
+     * <p/>
+     * Once the journal has grown beyond the maximum length, a snapshot of the collection is written in the background,
+     * and the journal is started afresh, so that recovery never has to replay much more than that length. Indexes
+     * which are {@link #addIndex(IndexedField) added} or {@link #dropIndex(String) dropped} are not journaled, so the
+     * collection must be reopened with the indexes it should have.
+     *
+     * @param commitWindowNanos how long the writer which forces the journal waits first for others to join it, which
+     *                          trades the latency of each change for fewer forces. Writers which change the collection
+     *                          while the journal is being forced share the next force regardless.
+     * @param maxJournalLength the length, in bytes, beyond which the journal is checkpointed.
+     * @throws java.io.StreamCorruptedException if a snapshot in the directory is corrupt, or a journal other than the
+     *                                          last is. An incomplete record at the end of the last journal is discarded.
+     */
+    @SafeVarargs
+    public static <T extends Serializable> ConcurrentIndexedCollection<T> openJournaled(Path directory, long commitWindowNanos,
+                                                                                       long maxJournalLength,
+                                                                                       IndexedField<T>... indexedFields)
+                                                                                       throws IOException, ClassNotFoundException {
+        final IndexedCollection<T> collection = Journal.recover(directory, indexedFields);
+        return new ConcurrentIndexedCollection<>(collection, Journal.open(directory, commitWindowNanos, maxJournalLength));
+    }
+    
+    /**
+     * Runs the provided query under a read lock. The query must not change any state and must copy anything it
+     * returns out of the underlying collection.
+     */
+    private <R> R read(Supplier<R> query) {
+        final long stamp = lock.readLock();
+        try {
+            return query.get();
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    
+    /**
+     * Runs the provided query of the named index as {@link #read(Supplier)} does, except that if the index is
+     * stale it is first rebuilt, under the same read lock, so that the entries cannot change meanwhile.
+     */
+    private <R> R read(String fieldName, Supplier<R> query) {
+        awaitIndex(fieldName);
+        
+        final long stamp = lock.readLock();
+        try {
+            collection.buildIndexIfStale(fieldName);
+            return query.get();
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    
+    /**
+     * Reads a single {@code int} field of the underlying collection optimistically, and then, if a write
+     * intervened, under a read lock. This is only safe for a read which does not walk any structure, as a writer
+     * may be halfway through changing one, so that a torn read of it could loop or fail in any way.
+     */
+    private int readField(IntSupplier field) {
+        final long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            final int value = field.getAsInt();
+            if (lock.validate(stamp)) { return value; }
+        }
+        return read(field::getAsInt);
+    }
+    
+    /** Waits until the named index is ready, if it is being built. If it cannot be built, the query will fail. */
+    private void awaitIndex(String fieldName) {
+        final CompletableFuture<Void> isBuilt = buildingIndexes.get(fieldName);
+        if (isBuilt != null) {
+            try {
+                isBuilt.join();
+            }
+            catch (CompletionException e) {
+                // The index has been dropped, so the query will find that it does not exist.
+            }
+        }
+    }
+    
+    private <R> R write(Supplier<R> update) {
+        final long stamp = lock.writeLock();
+        try {
+            return update.get();
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Applies the provided change under the write lock, as {@link #write(Supplier)} does. If this collection is
+     * journaled, the record of the change is appended to the journal before the lock is released, and then this
+     * waits until it is durable.
+     *
+     * @param change applies the change, and returns its record, or {@code null} if nothing changed.
+     * @return {@code true} if anything changed.
+     * @throws IllegalStateException if the journal has been closed, in which case nothing is changed.
+     * @throws UncheckedIOException if the change was applied, but could not be made durable.
+     */
+    private boolean writeJournaled(Supplier<byte[]> change) {
+        final long journalPosition;
+        final long stamp = lock.writeLock();
+        try {
+            checkJournalIsOpen();
+            final byte[] record = change.get();
+            if (record == null) { return false; }
+            
+            journalPosition = appendToJournal(record);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+        awaitJournal(journalPosition);
+        return true;
+    }
+    
+    /**
+     * Encodes the record of a change to this collection, which is empty if it is not journaled.
+     *
+     * @throws UncheckedIOException if any of the entries cannot be serialized.
+     */
+    byte[] recordOf(Journal.Op op, Collection<?> entries) { return journal == null ? UNJOURNALED : Journal.encode(op, entries); }
+    
+    /** @throws IllegalStateException if this collection is journaled, and the journal has been closed. */
+    void checkJournalIsOpen() {
+        if (journal != null) { journal.checkIsOpen(); }
+    }
+    
+    /**
+     * Appends the record of a change, which has just been applied under the write lock, to the journal.
+     *
+     * @return the position to which the journal must be {@link #awaitJournal(long) forced} for the change to be durable.
+     */
+    long appendToJournal(byte[] record) { return record == UNJOURNALED ? 0L : journal.append(record); }
+    
+    /**
+     * Waits until the journal has been forced up to the provided position, and then checkpoints it in the background
+     * if it has grown too long. This must not be called under the write lock, which would hold up other writers.
+     *
+     * @throws UncheckedIOException if the journal could not be forced.
+     */
+    void awaitJournal(long journalPosition) {
+        if (journal == null) { return; }
+        
+        try {
+            journal.force(journalPosition);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("A change was applied, but could not be made durable.", e);
+        }
+        if (journal.isDueForCheckpoint()) {
+            CompletableFuture.runAsync(() -> journal.checkpointInBackground(this::snapshotForNextGeneration));
+        }
+    }
+    
+    /** Takes a snapshot of this collection, and starts the next generation of the journal, under the write lock. */
+    private IndexedCollection<T> snapshotForNextGeneration() {
+        return write(() -> {
+            final IndexedCollection<T> snapshot = collection.snapshot();
+            journal.startNextGeneration();
+            return snapshot;
+        });
+    }
+    
+    private Journal journal() {
+        if (journal == null) { throw new IllegalStateException("This collection is not journaled."); }
+        return journal;
+    }
+    
+    /** Is this collection {@link #openJournaled(Path, IndexedField...) journaled}? */
+    public boolean isJournaled() { return journal != null; }
+    
+    /** Gets the journal of this collection, or {@code null} if it is not journaled. */
+    Journal getJournal() { return this.journal; }
+    
+    /**
+     * Writes a snapshot of this collection to its journal directory, and starts the journal afresh, so that the
+     * journal written so far is no longer needed for recovery. This happens in the background whenever the journal
+     * grows beyond its maximum length, but could also be done, for example, before a planned shutdown. Writers are
+     * held up only while the snapshot is taken, rather than while it is written.
+     *
+     * @throws IOException if this checkpoint fails, or if the last one which happened in the background failed.
+     * @throws IllegalStateException if this collection is not journaled, or its journal has been closed.
+     */
+    public void checkpoint() throws IOException { journal().checkpoint(this::snapshotForNextGeneration); }
+    
+    /**
+     * Forces the journal to disk and closes it, after which this collection can be queried, but not changed.
+     *
+     * @throws IllegalStateException if this collection is not journaled.
+     */
+    public void closeJournal() throws IOException {
+        final Journal journal = journal();
+        final long stamp = lock.writeLock();
+        try {
+            journal.close();
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    private static <E> List<E> copyOf(Collection<E> entries) {
+        return entries.isEmpty() ? Collections.<E>emptyList() : Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+    
+    /**
+     * Gets a read-only, point-in-time view of this collection, which can be queried without any locking at all
+     * while writers continue to change this collection.
+     *
+     * @see IndexedCollection#snapshot()
+     */
+    public IndexedCollection<T> snapshot() { return write(collection::snapshot); }
+    
+    /**
+     * Gets a frozen copy of this collection, which, like a {@link #snapshot() snapshot}, can be queried without locking.
+     *
+     * @see IndexedCollection#freeze()
+     */
+    public IndexedCollection<T> freeze() { return write(collection::freeze); }
+    
+    /**
+     * Adds an index to this collection, which is built in the background from a copy of the entries, so that writes
+     * are not held up while it is built. The changes made meanwhile are then applied to it under the write lock,
+     * after which it can be queried. Until then, queries of it wait for it. Any
+     * {@link #snapshot() snapshot} taken meanwhile builds the index itself if it is queried.
+     * <p/>
+     * If the index cannot be applied to an entry, or the entries violate its uniqueness constraint, the index is
+     * dropped and the returned future completes exceptionally. An entry which is added while the index is being
+     * built is only checked against its uniqueness constraint once it has been built, so it is the index rather
+     * than the entry which is rejected.
+     *
+     * @return a future which completes when the index is ready to be queried.
+     * @throws IllegalArgumentException if there is already an index with the same name.
+     * @see IndexedCollection#addIndex(IndexedField)
+     */
+    public CompletableFuture<Void> addIndex(IndexedField<T> indexedField) {
+        final String fieldName = indexedField.getFieldName();
+        final CompletableFuture<Void> isBuilt = new CompletableFuture<>();
+        final List<T> entriesToIndex = new ArrayList<>();
+        final BuildingIndex<T> buildingIndex = write(() -> {
+            final BuildingIndex<T> index = collection.startBuildingIndex(indexedField);
+            entriesToIndex.addAll(collection);
+            buildingIndexes.put(fieldName, isBuilt);
+            return index;
+        });
+        
+        CompletableFuture.supplyAsync(() -> Index.build(indexedField, entriesToIndex))
+                         .whenComplete((builtIndex, failure) -> finishAddingIndex(buildingIndex, builtIndex, failure, isBuilt));
+        return isBuilt;
+    }
+    
+    /**
+     * Puts the index which has been built in the background in place of the provided {@link BuildingIndex}, or
+     * drops it if the index could not be built, and then completes the provided future.
+     */
+    private void finishAddingIndex(BuildingIndex<T> buildingIndex, Index<T> builtIndex, Throwable failure,
+                                   CompletableFuture<Void> isBuilt) {
+        try {
+            write(() -> {
+                buildingIndexes.remove(buildingIndex.getIndexedField().getFieldName(), isBuilt);
+                if (failure == null) { collection.finishBuildingIndex(buildingIndex, builtIndex); }
+                else                 { collection.abandonBuildingIndex(buildingIndex); }
+                return null;
+            });
+        }
+        catch (RuntimeException e) {
+            isBuilt.completeExceptionally(e);
+            return;
+        }
+        
+        if (failure == null) { isBuilt.complete(null); }
+        else                 { isBuilt.completeExceptionally(failure instanceof CompletionException ? failure.getCause() : failure); }
+    }
+    
+    /**
+     * Removes the named index from this collection. If it is still being built, its build is abandoned.
+     *
+     * @see IndexedCollection#dropIndex(String)
+     */
+    public boolean dropIndex(String fieldName) { return write(() -> collection.dropIndex(fieldName)); }
+    
+    /**
+     * Writes a {@link #snapshot() snapshot} of this collection to the specified file, so that writers are held up
+     * only while the snapshot is taken, rather than while it is written.
+     *
+     * @see IndexedCollection#writeSnapshot(Path)
+     */
+    public void writeSnapshot(Path path) throws IOException { snapshot().writeSnapshot(path); }
+    
+    /**
+     * Writes a {@link #snapshot() snapshot} of this collection to the specified file, which can be mapped into memory.
+     *
+     * @see IndexedCollection#writeMappableSnapshot(Path)
+     */
+    public void writeMappableSnapshot(Path path) throws IOException { snapshot().writeMappableSnapshot(path); }
+    
+    /**
+     * Reads a collection from a file written by {@link #writeSnapshot(Path)}, with the provided indexes.
+     *
+     * @see IndexedCollection#readSnapshot(Path, IndexedField...)
+     */
+    @SafeVarargs
+    public static <T extends Serializable> ConcurrentIndexedCollection<T> readSnapshot(Path path, IndexedField<T>... indexedFields)
+                                                                                            throws IOException, ClassNotFoundException {
+        final IndexedCollection<T> collection = IndexedCollection.readSnapshot(path, indexedFields);
+        if (collection.isFrozen()) {
+            throw new IllegalArgumentException(path + " holds a frozen collection, which cannot be changed.");
+        }
+        return new ConcurrentIndexedCollection<>(collection, null);
+    }
+    
+    /** @see IndexedCollection#findOne(String, Object) */
+    public T findOne(String fieldName, Object fieldValue) { return read(fieldName, () -> collection.findOne(fieldName, fieldValue)); }
+    
+    /** @see IndexedCollection#find(String, Object) */
+    public List<T> find(String fieldName, Object fieldValue) {
+        return read(fieldName, () -> copyOf(collection.find(fieldName, fieldValue)));
+    }
+    
+    /** @see IndexedCollection#findRange(String, Object, boolean, Object, boolean) */
+    public List<T> findRange(String fieldName, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        return read(fieldName, () -> copyOf(collection.findRange(fieldName, from, fromInclusive, to, toInclusive)));
+    }
+    
+    /** @see IndexedCollection#findGreaterThan(String, Object, boolean) */
+    public List<T> findGreaterThan(String fieldName, Object from, boolean inclusive) {
+        return read(fieldName, () -> copyOf(collection.findGreaterThan(fieldName, from, inclusive)));
+    }
+    
+    /** @see IndexedCollection#findLessThan(String, Object, boolean) */
+    public List<T> findLessThan(String fieldName, Object to, boolean inclusive) {
+        return read(fieldName, () -> copyOf(collection.findLessThan(fieldName, to, inclusive)));
+    }
+    
+    /** @see IndexedCollection#findByPrefix(String, String) */
+    public List<T> findByPrefix(String fieldName, String prefix) {
+        return read(fieldName, () -> copyOf(collection.findByPrefix(fieldName, prefix)));
+    }
+    
+    /**
+     * Gets an iterator over a copy of the values in this collection, sorted by the values of the specified field name.
+     *
+     * @see IndexedCollection#iteratorSortedBy(String)
+     */
+    public Iterator<T> iteratorSortedBy(String fieldName) {
+        return read(fieldName, () -> {
+            final List<T> sortedEntries = new ArrayList<>(collection.size());
+            collection.iteratorSortedBy(fieldName).forEachRemaining(sortedEntries::add);
+            return Collections.unmodifiableList(sortedEntries);
+        }).iterator();
+    }
+    
+    /**
+     * Rebuilds any stale lazy indexes under the read lock, so that queries can go on meanwhile but writers must wait.
+     *
+     * @see IndexedCollection#buildStaleIndexes()
+     */
+    public void buildStaleIndexes() {
+        final long stamp = lock.readLock();
+        try {
+            collection.buildStaleIndexes();
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    
+    /** @see IndexedCollection#getIndexBuildCounts() */
+    public Map<String, Long> getIndexBuildCounts() { return read(collection::getIndexBuildCounts); }
+    
+    /** {@inheritDoc} */
+    @Override public int size()                 { return readField(collection::size); }
+    
+    /** {@inheritDoc} */
+    @Override public boolean isEmpty()          { return readField(collection::size) == 0; }
+    
+    /** {@inheritDoc} */
+    @Override public boolean contains(Object o) { return read(() -> collection.contains(o)); }
+    
+    /** Gets an iterator over a copy of the values in this collection, in insertion order. */
+    @Override public Iterator<T> iterator()     { return read(() -> copyOf(collection)).iterator(); }
+    
+    /** {@inheritDoc} */
+    @Override public Object[] toArray()         { return read(collection::toArray); }
+    
+    /** {@inheritDoc} */
+    @Override public <AT> AT[] toArray(AT[] a)  { return read(() -> collection.toArray(a)); }
+    
+    /** {@inheritDoc} */
+    @Override public boolean containsAll(Collection<?> items) { return read(() -> collection.containsAll(items)); }
+    
+    /** @see IndexedCollection#add(Serializable) */
+    @Override public boolean add(T item) {
+        final byte[] record = recordOf(Journal.Op.ADD, Collections.singletonList(item));
+        return writeJournaled(() -> collection.add(item) ? record : null);
+    }
+    
+    /** {@inheritDoc} */
+    @Override public boolean remove(Object o) {
+        final byte[] record = recordOf(Journal.Op.REMOVE, Collections.singletonList(o));
+        return writeJournaled(() -> collection.remove(o) ? record : null);
+    }
+    
+    /** @see IndexedCollection#addAll(Collection) */
+    @Override public boolean addAll(Collection<? extends T> c) {
+        final byte[] record = recordOf(Journal.Op.ADD, c);
+        return writeJournaled(() -> collection.addAll(c) ? record : null);
+    }
+    
+    /** {@inheritDoc} */
+    @Override public boolean removeAll(Collection<?> c) {
+        final byte[] record = recordOf(Journal.Op.REMOVE_ALL, c);
+        return writeJournaled(() -> collection.removeAll(c) ? record : null);
+    }
+    
+    /** {@inheritDoc} */
+    @Override public boolean retainAll(Collection<?> c) {
+        final Collection<?> toRetain = c instanceof Set ? c : new HashSet<>(c);
+        return removeIf(entry -> !toRetain.contains(entry));
+    }
+    
+    /**
+     * If this collection is journaled, the entries removed are journaled rather than the filter. So if the filter
+     * removes some, but not all, of several equal entries, recovery removes the earliest of them, which leaves equal
+     * entries, but perhaps in a different order.
+     *
+     * @see IndexedCollection#removeIf(Predicate)
+     */
+    @Override public boolean removeIf(Predicate<? super T> filter) {
+        return writeJournaled(() -> {
+            if (journal == null) { return collection.removeIf(filter) ? UNJOURNALED : null; }
+            
+            // The entries which are removed are recorded, as the filter itself cannot be.
+            final List<T> removedEntries = new ArrayList<>();
+            return collection.removeIf(entry -> filter.test(entry) && removedEntries.add(entry)) ?
+                   recordOf(Journal.Op.REMOVE, removedEntries) : null;
+        });
+    }
+    
+    /** {@inheritDoc} */
+    @Override public void clear() {
+        final byte[] record = recordOf(Journal.Op.CLEAR, Collections.emptyList());
+        writeJournaled(() -> {
+            collection.clear();
+            return record;
+        });
+    }
+    
+    /**
+     * Applies the provided update to the underlying collection under the write lock, for a caller which needs to
+     * make several changes at once.
+     */
+    <R> R applyUnderWriteLock(Function<IndexedCollection<T>, R> update) { return write(() -> update.apply(collection)); }
+    
+    /**
+     * Takes the write lock of this collection, for a caller which must hold the locks of several collections at once.
+     *
+     * @return the stamp with which to {@link #unlockWrite(long) unlock} it.
+     */
+    long writeLock()             { return lock.writeLock(); }
+    
+    void unlockWrite(long stamp) { lock.unlockWrite(stamp); }
+    
+    /**
+     * Validates a batch of items as {@link #addAll(Collection)} does, without changing this collection.
+     * The caller must hold the {@link #writeLock() write lock} until it has run the returned action.
+     *
+     * @see IndexedCollection#prepareAddAll(Collection)
+     */
+    Runnable prepareAddAll(Collection<? extends T> c) { return collection.prepareAddAll(c); }
+    
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        final long stamp = lock.readLock();
+        try {
+            out.defaultWriteObject();
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.lock            = new StampedLock();
+        this.buildingIndexes = new ConcurrentHashMap<>();
+    }
+}
@@ -0,0 +1,75 @@
+package org.neil.fluff.collections;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+
+/**
+ * Encodes the entries of an {@link OffHeapIndexedCollection} as bytes, and decodes them again whenever they are
+ * got. Each entry is encoded on its own, so it must be decodable without any of the others.
+ * <p/>
+ * The {@link #serializing() serializing} codec works for any {@link Serializable} entry, but Java serialization
+ * writes a description of the entry's class into every entry, which can take up more space than the entry's own
+ * fields. A codec which writes just the fields, such as
+ * <pre>
+ *     new EntryCodec&lt;Item&gt;() {
+ *         public void encode(Item item, DataOutput out) throws IOException {
+ *             out.writeInt(item.getInteger());
+ *             out.writeUTF(item.getString());
+ *         }
+ *         public Item decode(DataInput in) throws IOException { return new Item(in.readInt(), in.readUTF()); }
+ *     };
+ * </pre>
+ * is usually several times more compact, and faster to decode.
+ *
+ * @param <T> the type of entries encoded.
+ *
+ * @author Neil Mc Erlean
+ */
+public interface EntryCodec<T> {
+    /** Writes the provided entry, which is never {@code null}. */
+    void encode(T entry, DataOutput out) throws IOException;
+    
+    /** Reads an entry written by {@link #encode(Object, DataOutput)}, which must be equal to the entry written. */
+    T decode(DataInput in) throws IOException;
+    
+    /**
+     * Gets a codec which writes each entry with Java serialization. It can only decode entries from a
+     * {@code DataInput} which is also an {@code InputStream}, as the collection's always is.
+     */
+    static <T extends Serializable> EntryCodec<T> serializing() {
+        return new EntryCodec<T>() {
+            @Override public void encode(T entry, DataOutput out) throws IOException {
+                final OutputStream stream = out instanceof OutputStream ? (OutputStream) out : new OutputStream() {
+                    @Override public void write(int b)                         throws IOException { out.write(b); }
+                    @Override public void write(byte[] b, int off, int length) throws IOException { out.write(b, off, length); }
+                };
+                // Closing the ObjectOutputStream would close the caller's stream, so we only flush it.
+                final ObjectOutputStream objectOut = new ObjectOutputStream(stream);
+                objectOut.writeObject(entry);
+                objectOut.flush();
+            }
+            
+            @SuppressWarnings("unchecked")
+            @Override public T decode(DataInput in) throws IOException {
+                if ( !(in instanceof InputStream)) {
+                    throw new IllegalArgumentException("Cannot deserialize an entry from a DataInput which is not an InputStream.");
+                }
+                try {
+                    return (T) new ObjectInputStream((InputStream) in).readObject();
+                }
+                catch (ClassNotFoundException e) {
+                    final StreamCorruptedException corrupt = new StreamCorruptedException("Cannot decode an entry of an unknown class.");
+                    corrupt.initCause(e);
+                    throw corrupt;
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,253 @@
+package org.neil.fluff.collections;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The raw entries of an {@link IndexedCollection}, held in insertion order. Like a {@code List} this may hold
+ * several equal entries, but it can also find an entry by {@code equals} in constant time, which a {@code List}
+ * can only do with a linear scan.
+ * <p/>
+ * The entries are held in a doubly-linked list, alongside a hash table which maps each distinct value to the
+ * earliest of the entries equal to it. Those entries are themselves chained together in insertion order. So
+ * {@link #contains(Object)} and {@link #removeEqual(Object)} take constant time, and the latter removes the
+ * earliest equal entry, just as {@link java.util.List#remove(Object)} would.
+ * <p/>
+ * As with a {@link java.util.HashSet}, an entry which is changed in a way which affects its {@code equals} or
+ * {@code hashCode} while it is held here can no longer be found by them, although it can still be removed
+ * by an {@link #iterator() iterator}.
+ *
+ * @param <T> the type of entries in the table.
+ *
+ * @author Neil Mc Erlean
+ */
+class EntryTable<T> extends AbstractCollection<T> implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private static final class Node<T> {
+        final T entry;
+        
+        /** The neighbouring nodes in insertion order. */
+        Node<T> previous, next;
+        
+        /** The next node whose entry is equal to this one's, in insertion order. */
+        Node<T> nextEqual;
+        
+        /** The last node whose entry is equal to this one's, which is only maintained on the first such node. */
+        Node<T> lastEqual;
+        
+        Node(T entry) {
+            this.entry     = entry;
+            this.lastEqual = this;
+        }
+    }
+    
+    /** The first node for each distinct value, keyed by the entry it holds. */
+    private transient Map<Object, Node<T>> firstEqualNodes;
+    
+    private transient Node<T> head, tail;
+    private transient int     size;
+    
+    /** The number of structural changes, which allows iterators to fail fast. */
+    private transient int modCount;
+    
+    EntryTable() { this.firstEqualNodes = new HashMap<>(); }
+    
+    /** Creates a table holding the provided entries, in the iteration order of that collection. */
+    EntryTable(Collection<? extends T> entries) {
+        this.firstEqualNodes = new HashMap<>(Math.max(16, (int) (entries.size() / .75f) + 1));
+        addAll(entries);
+    }
+    
+    @Override public int size() { return this.size; }
+    
+    @Override public boolean contains(Object o) { return firstEqualNodes.containsKey(o); }
+    
+    /** Adds the provided entry after all the existing entries. */
+    @Override public boolean add(T entry) {
+        final Node<T> node = new Node<>(entry);
+        
+        final Node<T> firstEqualNode = firstEqualNodes.putIfAbsent(entry, node);
+        if (firstEqualNode != null) {
+            firstEqualNode.lastEqual.nextEqual = node;
+            firstEqualNode.lastEqual = node;
+        }
+        
+        if (tail == null) { head = node; }
+        else              { tail.next = node; node.previous = tail; }
+        tail = node;
+        
+        size++;
+        modCount++;
+        return true;
+    }
+    
+    /** Removes the earliest entry which is equal to the provided object, if there is one. */
+    @Override public boolean remove(Object o) {
+        final Node<T> firstEqualNode = firstEqualNodes.get(o);
+        if (firstEqualNode == null) { return false; }
+        
+        unlink(firstEqualNode);
+        return true;
+    }
+    
+    /**
+     * Removes the earliest entry which is equal to the provided object, if there is one.
+     *
+     * @return the entry which was removed, which is not necessarily the same object reference as the one
+     *         provided, or {@code null} if there was none.
+     */
+    T removeEqual(Object o) {
+        final Node<T> firstEqualNode = firstEqualNodes.get(o);
+        if (firstEqualNode == null) { return null; }
+        
+        unlink(firstEqualNode);
+        return firstEqualNode.entry;
+    }
+    
+    /**
+     * Removes all the entries which are equal to the provided object, adding them to the provided collection.
+     *
+     * @return the number of entries removed.
+     */
+    int removeAllEqual(Object o, Collection<? super T> removedEntries) {
+        int removedCount = 0;
+        for (Node<T> node = firstEqualNodes.get(o); node != null; node = node.nextEqual) {
+            unlink(node);
+            removedEntries.add(node.entry);
+            removedCount++;
+        }
+        return removedCount;
+    }
+    
+    /** Counts the entries which are equal to the provided object, by following their chain. */
+    int countEqual(Object o) {
+        int count = 0;
+        for (Node<T> node = firstEqualNodes.get(o); node != null; node = node.nextEqual) {
+            count++;
+        }
+        return count;
+    }
+    
+    @Override public void clear() {
+        firstEqualNodes.clear();
+        head = tail = null;
+        size = 0;
+        modCount++;
+    }
+    
+    /** Removes the provided node from both the insertion order and the chain of nodes with equal entries. */
+    private void unlink(Node<T> node) {
+        if (node.previous == null) { head = node.next; }
+        else                       { node.previous.next = node.next; }
+        if (node.next == null)     { tail = node.previous; }
+        else                       { node.next.previous = node.previous; }
+        
+        // We must replace the key as well as the value of a first node, or the map would still refer to its entry.
+        if (firstEqualNodes.remove(node.entry, node)) {
+            promoteNextEqual(node);
+        }
+        else if ( !unlinkFromChain(firstEqualNodes.get(node.entry), node)) {
+            // The entry has been changed since it was added, so it is not filed under its current value.
+            // We'll have to look for it the hard way.
+            for (Iterator<Node<T>> iter = firstEqualNodes.values().iterator(); iter.hasNext(); ) {
+                final Node<T> firstEqualNode = iter.next();
+                if (firstEqualNode == node) {
+                    iter.remove();
+                    promoteNextEqual(node);
+                    break;
+                }
+                else if (unlinkFromChain(firstEqualNode, node)) {
+                    break;
+                }
+            }
+        }
+        
+        size--;
+        modCount++;
+    }
+    
+    /** Makes the node after the provided (removed) first node the first of the nodes with equal entries. */
+    private void promoteNextEqual(Node<T> removedFirstNode) {
+        final Node<T> nextEqual = removedFirstNode.nextEqual;
+        if (nextEqual != null) {
+            nextEqual.lastEqual = removedFirstNode.lastEqual;
+            firstEqualNodes.put(nextEqual.entry, nextEqual);
+        }
+    }
+    
+    /**
+     * Removes the provided node from the chain after the provided first node, if it is there.
+     *
+     * @return {@code true} if the node was found and removed, else {@code false}.
+     */
+    private boolean unlinkFromChain(Node<T> firstEqualNode, Node<T> node) {
+        if (firstEqualNode == null) { return false; }
+        
+        for (Node<T> previousEqual = firstEqualNode; previousEqual.nextEqual != null; previousEqual = previousEqual.nextEqual) {
+            if (previousEqual.nextEqual == node) {
+                previousEqual.nextEqual = node.nextEqual;
+                if (firstEqualNode.lastEqual == node) { firstEqualNode.lastEqual = previousEqual; }
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /** Gets an iterator over the entries in insertion order, which supports {@link Iterator#remove()}. */
+    @Override public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private Node<T> nextNode = head;
+            private Node<T> lastReturned;
+            private int     expectedModCount = modCount;
+            
+            @Override public boolean hasNext() { return nextNode != null; }
+            
+            @Override public T next() {
+                if (modCount != expectedModCount) { throw new ConcurrentModificationException(); }
+                if (nextNode == null)             { throw new NoSuchElementException(); }
+                
+                lastReturned = nextNode;
+                nextNode     = nextNode.next;
+                return lastReturned.entry;
+            }
+            
+            @Override public void remove() {
+                if (lastReturned == null)         { throw new IllegalStateException(); }
+                if (modCount != expectedModCount) { throw new ConcurrentModificationException(); }
+                
+                unlink(lastReturned);
+                lastReturned     = null;
+                expectedModCount = modCount;
+            }
+        };
+    }
+    
+    /** Writes the entries in order, rather than the linked nodes, which could overflow the stack. */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (Node<T> node = head; node != null; node = node.next) {
+            out.writeObject(node.entry);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        final int entryCount = in.readInt();
+        this.firstEqualNodes = new HashMap<>(Math.max(16, (int) (entryCount / .75f) + 1));
+        for (int i = 0; i < entryCount; i++) {
+            add((T) in.readObject());
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.neil.fluff.collections;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@code FieldAccessor} reads the value of a single declared field from objects of a single class.
+ * The field is looked up reflectively only once and is then read via a {@link MethodHandle}, which the JIT
+ * can optimise far better than {@link Field#get(Object)}. Accessors are cached per class and per field name.
+ * <p/>
+ * Fields of type {@code int}, {@code long} and {@code double} are read and compared without boxing their
+ * values. Other primitive fields are supported, but their values are boxed.
+ *
+ * @author Neil Mc Erlean
+ */
+abstract class FieldAccessor {
+    private static final ClassValue<ConcurrentMap<String, FieldAccessor>> ACCESSORS =
+            new ClassValue<ConcurrentMap<String, FieldAccessor>>() {
+                @Override protected ConcurrentMap<String, FieldAccessor> computeValue(Class<?> type) {
+                    return new ConcurrentHashMap<>();
+                }
+            };
+    
+    private final String fieldName;
+    
+    private FieldAccessor(String fieldName) { this.fieldName = fieldName; }
+    
+    /**
+     * Gets the accessor for the specified field declared on the specified class.
+     *
+     * @throws IllegalArgumentException if the class has no such declared field or it cannot be accessed.
+     * @throws ClassCastException if the field is neither primitive nor of a type which implements Comparable.
+     */
+    static FieldAccessor of(Class<?> declaringClass, String fieldName) {
+        final ConcurrentMap<String, FieldAccessor> accessors = ACCESSORS.get(declaringClass);
+        
+        FieldAccessor accessor = accessors.get(fieldName);
+        if (accessor == null) {
+            accessor = createAccessor(declaringClass, fieldName);
+            accessors.putIfAbsent(fieldName, accessor);
+        }
+        return accessor;
+    }
+    
+    /** Gets the accessor for the specified field of the provided object. @see #of(Class, String) */
+    static FieldAccessor of(Object object, String fieldName) { return of(object.getClass(), fieldName); }
+    
+    private static FieldAccessor createAccessor(Class<?> declaringClass, String fieldName) {
+        final Field field;
+        try {
+            field = declaringClass.getDeclaredField(fieldName);
+        }
+        catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("Entry of type " + declaringClass.getSimpleName() +
+                                               " does not have declared field named " + fieldName, e);
+        } catch (SecurityException e)
+        {
+            throw new IllegalArgumentException("Error accessing fields of class", e);
+        }
+        
+        // The indexers use a sorted list view of the entries to provide efficient searching.
+        // Therefore all indexed fields in the entries must be Comparable (or primitive, which we'll box if necessary).
+        final Class<?> fieldClass = field.getType();
+        if ( !fieldClass.isPrimitive() && !Comparable.class.isAssignableFrom(fieldClass)) {
+            throw new ClassCastException("Field " + fieldName + " does not implement Comparable.");
+        }
+        
+        final MethodHandle getter;
+        try {
+            field.setAccessible(true);
+            getter = MethodHandles.lookup().unreflectGetter(field);
+        }
+        catch (IllegalAccessException | SecurityException e) {
+            throw new IllegalArgumentException("Illegal access to field.", e);
+        }
+        
+        if      (fieldClass == int.class)    { return new IntFieldAccessor(fieldName, getter); }
+        else if (fieldClass == long.class)   { return new LongFieldAccessor(fieldName, getter); }
+        else if (fieldClass == double.class) { return new DoubleFieldAccessor(fieldName, getter); }
+        else                                 { return new ObjectFieldAccessor(fieldName, getter); }
+    }
+    
+    String getFieldName() { return this.fieldName; }
+    
+    /** Gets the (possibly boxed) value of this field in the provided object. */
+    @SuppressWarnings("rawtypes")
+    abstract Comparable get(Object object);
+    
+    /** Compares the values of this field in the two provided objects, with {@code null} values sorting first. */
+    abstract int compare(Object object1, Object object2);
+    
+    /** Compares the value of this field in the provided object with the provided value, {@code null}s sorting first. */
+    @SuppressWarnings("rawtypes")
+    abstract int compareTo(Object object, Comparable value);
+    
+    /** Is this an {@code int} or {@code long} field, whose value can be read by {@link #getLong(Object)}? */
+    boolean isIntegral()      { return false; }
+    
+    /** Is this a {@code double} field, whose value can be read by {@link #getDouble(Object)}? */
+    boolean isFloatingPoint() { return false; }
+    
+    /** Gets the value of this field in the provided object without boxing it, if it {@link #isIntegral() is integral}. */
+    long getLong(Object object) {
+        throw new UnsupportedOperationException("Field " + fieldName + " is not of type int or long.");
+    }
+    
+    /** Gets the value of this field in the provided object without boxing it, if it {@link #isFloatingPoint() is a double}. */
+    double getDouble(Object object) {
+        throw new UnsupportedOperationException("Field " + fieldName + " is not of type double.");
+    }
+    
+    /** Compares two field values by their natural order, with {@code null} values sorting first. */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    static int compareValues(Comparable fieldValue1, Comparable fieldValue2) {
+        // Special handling for null-valued fields.
+        if (fieldValue1 == null && fieldValue2 == null) {
+            return 0;
+        }
+        else if (fieldValue1 == null) {
+            return -1;
+        }
+        else if (fieldValue2 == null) {
+            return 1;
+        }
+        else {
+            return fieldValue1.compareTo(fieldValue2);
+        }
+    }
+    
+    /** Method handles throw {@link Throwable}, but field getters should only ever throw unchecked exceptions. */
+    static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) { throw (RuntimeException) t; }
+        if (t instanceof Error)            { throw (Error) t; }
+        throw new IllegalArgumentException("Error reading field value.", t);
+    }
+    
+    private static final class ObjectFieldAccessor extends FieldAccessor {
+        private final MethodHandle getter;
+        
+        ObjectFieldAccessor(String fieldName, MethodHandle getter) {
+            super(fieldName);
+            this.getter = getter.asType(MethodType.methodType(Comparable.class, Object.class));
+        }
+        
+        @SuppressWarnings("rawtypes")
+        @Override Comparable get(Object object) {
+            try                 { return (Comparable) getter.invokeExact(object); }
+            catch (Throwable t) { throw rethrow(t); }
+        }
+        
+        @Override int compare(Object object1, Object object2) { return compareValues(get(object1), get(object2)); }
+        
+        @SuppressWarnings("rawtypes")
+        @Override int compareTo(Object object, Comparable value) { return compareValues(get(object), value); }
+    }
+    
+    private static final class IntFieldAccessor extends FieldAccessor {
+        private final MethodHandle getter;
+        
+        IntFieldAccessor(String fieldName, MethodHandle getter) {
+            super(fieldName);
+            this.getter = getter.asType(MethodType.methodType(int.class, Object.class));
+        }
+        
+        int getInt(Object object) {
+            try                 { return (int) getter.invokeExact(object); }
+            catch (Throwable t) { throw rethrow(t); }
+        }
+        
+        @Override boolean isIntegral()        { return true; }
+        
+        @Override long getLong(Object object) { return getInt(object); }
+        
+        @SuppressWarnings("rawtypes")
+        @Override Comparable get(Object object) { return getInt(object); }
+        
+        @Override int compare(Object object1, Object object2) { return Integer.compare(getInt(object1), getInt(object2)); }
+        
+        @SuppressWarnings("rawtypes")
+        @Override int compareTo(Object object, Comparable value) {
+            return value instanceof Integer ? Integer.compare(getInt(object), (Integer) value) : compareValues(get(object), value);
+        }
+    }
+    
+    private static final class LongFieldAccessor extends FieldAccessor {
+        private final MethodHandle getter;
+        
+        LongFieldAccessor(String fieldName, MethodHandle getter) {
+            super(fieldName);
+            this.getter = getter.asType(MethodType.methodType(long.class, Object.class));
+        }
+        
+        @Override boolean isIntegral() { return true; }
+        
+        @Override long getLong(Object object) {
+            try                 { return (long) getter.invokeExact(object); }
+            catch (Throwable t) { throw rethrow(t); }
+        }
+        
+        @SuppressWarnings("rawtypes")
+        @Override Comparable get(Object object) { return getLong(object); }
+        
+        @Override int compare(Object object1, Object object2) { return Long.compare(getLong(object1), getLong(object2)); }
+        
+        @SuppressWarnings("rawtypes")
+        @Override int compareTo(Object object, Comparable value) {
+            return value instanceof Long ? Long.compare(getLong(object), (Long) value) : compareValues(get(object), value);
+        }
+    }
+    
+    private static final class DoubleFieldAccessor extends FieldAccessor {
+        private final MethodHandle getter;
+        
+        DoubleFieldAccessor(String fieldName, MethodHandle getter) {
+            super(fieldName);
+            this.getter = getter.asType(MethodType.methodType(double.class, Object.class));
+        }
+        
+        @Override boolean isFloatingPoint() { return true; }
+        
+        @Override double getDouble(Object object) {
+            try                 { return (double) getter.invokeExact(object); }
+            catch (Throwable t) { throw rethrow(t); }
+        }
+        
+        @SuppressWarnings("rawtypes")
+        @Override Comparable get(Object object) { return getDouble(object); }
+        
+        @Override int compare(Object object1, Object object2) { return Double.compare(getDouble(object1), getDouble(object2)); }
+        
+        @SuppressWarnings("rawtypes")
+        @Override int compareTo(Object object, Comparable value) {
+            return value instanceof Double ? Double.compare(getDouble(object), (Double) value) : compareValues(get(object), value);
+        }
+    }
+}
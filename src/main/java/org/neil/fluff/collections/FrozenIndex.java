@@ -0,0 +1,310 @@
+package org.neil.fluff.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+import org.neil.fluff.collections.PrimitiveIndex.KeyKind;
+
+/**
+ * A read-only {@link Index} of entries sorted by key, as used by a {@link IndexedCollection#freeze() frozen}
+ * collection. It cannot be changed, which allows its keys to be laid out for searching rather than for insertion.
+ * <p/>
+ * A binary search of a sorted array touches a different cache line at almost every probe, and each probe of a
+ * {@link SortedIndex} must also read the key from the entry it finds. Here the keys are copied out of the entries,
+ * in key order, and a static B+-tree is built over them: each level above those sorted keys holds the last key of
+ * each node of {@value #NODE_SIZE} keys in the level below it. A search scans one node at each level, which is a
+ * single run of contiguous memory, so it reads only a handful of cache lines, and it reads only the keys. The keys
+ * of a {@link IndexedCollection.IndexType#PRIMITIVE primitive} index are held as encoded {@code long}s, so those
+ * searches never leave the key arrays at all.
+ * <p/>
+ * The lowest level of the tree is the sorted keys themselves, so the position a search ends at is also the position
+ * of the entry in key order, and the entries can be held in key order alongside the keys. So a range of them can be
+ * returned without copying, and the end of a range is found by galloping forward from its start rather than by
+ * another search from the root.
+ *
+ * @param <T> the type of entries in the index.
+ *
+ * @author Neil Mc Erlean
+ */
+class FrozenIndex<T> extends Index<T> {
+    private static final long serialVersionUID = 1L;
+    
+    /** The number of keys in each node of the tree. Sixteen {@code long}s fill two cache lines. */
+    static final int NODE_SIZE = 16;
+    
+    /** The entries, sorted by key. Any with {@code null} keys come first. */
+    private final List<T> sortedEntries;
+    
+    /**
+     * The levels of the tree of keys, from the root (which is a single node) down to the keys of the entries
+     * themselves, in the same order as the entries. This is {@code null} if the keys are held as {@link #encodedKeyLevels}.
+     */
+    private final Object[][] keyLevels;
+    
+    /**
+     * The levels of the tree of the encoded keys of a primitive index, which are those of the entries with non-null
+     * keys, or {@code null} if the keys are held as {@link #keyLevels}.
+     */
+    private final long[][] encodedKeyLevels;
+    
+    /** The kind of the encoded keys, or {@code null} if they have no kind because there are none. */
+    private final KeyKind keyKind;
+    
+    /** The number of entries with {@code null} keys, which are not in the tree if the keys are encoded. */
+    private final int nullKeyCount;
+    
+    private FrozenIndex(IndexedField<T> indexedField, List<T> sortedEntries, Object[][] keyLevels,
+                        long[][] encodedKeyLevels, KeyKind keyKind, int nullKeyCount) {
+        super(indexedField);
+        this.sortedEntries    = sortedEntries;
+        this.keyLevels        = keyLevels;
+        this.encodedKeyLevels = encodedKeyLevels;
+        this.keyKind          = keyKind;
+        this.nullKeyCount     = nullKeyCount;
+    }
+    
+    /** Creates a frozen index of the provided entries, which must already be sorted by key. */
+    @SuppressWarnings("unchecked")
+    static <T> FrozenIndex<T> of(IndexedField<T> indexedField, List<T> sortedEntries) {
+        final Object[] entries = sortedEntries.toArray();
+        final Object[] keys = new Object[entries.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = indexedField.getKey((T) entries[i]);
+        }
+        
+        final List<Object[]> levels = new ArrayList<>();
+        for (Object[] level = keys; ; ) {
+            levels.add(0, level);
+            if (level.length <= NODE_SIZE) { break; }
+            
+            final Object[] parentLevel = new Object[nodeCount(level.length)];
+            for (int node = 0; node < parentLevel.length; node++) {
+                parentLevel[node] = level[lastKeyOfNode(node, level.length)];
+            }
+            level = parentLevel;
+        }
+        return new FrozenIndex<>(indexedField, unmodifiableListOf(entries), levels.toArray(new Object[levels.size()][]),
+                                 null, null, 0);
+    }
+    
+    /**
+     * Creates a frozen index of the entries of a {@link PrimitiveIndex}.
+     *
+     * @param nullKeyEntries the entries with {@code null} keys.
+     * @param keys the encoded keys of the other entries, sorted.
+     * @param entries the other entries, in the same order as their keys.
+     * @param size the number of keys and entries.
+     */
+    static <T> FrozenIndex<T> ofEncodedKeys(IndexedField<T> indexedField, KeyKind keyKind, List<T> nullKeyEntries,
+                                            long[] keys, Object[] entries, int size) {
+        final int nullKeyCount = nullKeyEntries.size();
+        final Object[] sortedEntries = new Object[nullKeyCount + size];
+        System.arraycopy(nullKeyEntries.toArray(), 0, sortedEntries, 0, nullKeyCount);
+        System.arraycopy(entries, 0, sortedEntries, nullKeyCount, size);
+        
+        final List<long[]> levels = new ArrayList<>();
+        for (long[] level = Arrays.copyOf(keys, size); ; ) {
+            levels.add(0, level);
+            if (level.length <= NODE_SIZE) { break; }
+            
+            final long[] parentLevel = new long[nodeCount(level.length)];
+            for (int node = 0; node < parentLevel.length; node++) {
+                parentLevel[node] = level[lastKeyOfNode(node, level.length)];
+            }
+            level = parentLevel;
+        }
+        return new FrozenIndex<>(indexedField, unmodifiableListOf(sortedEntries), null,
+                                 levels.toArray(new long[levels.size()][]), keyKind, nullKeyCount);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> unmodifiableListOf(Object[] entries) {
+        return Collections.unmodifiableList(Arrays.asList((T[]) entries));
+    }
+    
+    private static int nodeCount(int levelLength) { return (levelLength + NODE_SIZE - 1) / NODE_SIZE; }
+    
+    /** Gets the position of the last key of the specified node, in a level of the specified length. */
+    private static int lastKeyOfNode(int node, int levelLength) { return Math.min((node + 1) * NODE_SIZE, levelLength) - 1; }
+    
+    @Override List<T> find(Object key) { return findRange(KeyRange.equalTo(key)); }
+    
+    @Override List<T> findRange(KeyRange range) {
+        final int fromPosition;
+        final int toPosition;
+        if (encodedKeyLevels != null) {
+            // These positions are those of the encoded keys, which follow the null keys.
+            boolean includesNullKeys = false;
+            int from = 0;
+            if (range.hasLowerBound()) {
+                if (range.getLowerBound() == null) {
+                    includesNullKeys = range.isLowerBoundInclusive();
+                }
+                else {
+                    from = search(encodeQueryKey(range.getLowerBound()), !range.isLowerBoundInclusive());
+                }
+            }
+            
+            int to = sortedEntries.size() - nullKeyCount;
+            if (range.hasUpperBound()) {
+                if (range.getUpperBound() == null) {
+                    includesNullKeys &= range.isUpperBoundInclusive();
+                    to = 0;
+                }
+                else {
+                    to = gallop(from, encodeQueryKey(range.getUpperBound()), range.isUpperBoundInclusive());
+                }
+            }
+            
+            // The null keys come just before the lowest of the others, so they and the range are contiguous.
+            fromPosition = includesNullKeys ? 0 : nullKeyCount + from;
+            toPosition   = nullKeyCount + to;
+        }
+        else {
+            // Skip over any null keys, which sort first, unless the range is bounded below.
+            fromPosition = range.hasLowerBound() ? search(range.getLowerBound(), !range.isLowerBoundInclusive()) :
+                                                   search(null, true);
+            toPosition   = range.hasUpperBound() ? gallop(fromPosition, range.getUpperBound(), range.isUpperBoundInclusive()) :
+                                                   sortedEntries.size();
+        }
+        
+        return fromPosition >= toPosition ? Collections.<T>emptyList() : sortedEntries.subList(fromPosition, toPosition);
+    }
+    
+    @Override boolean containsKey(Object key) {
+        if (encodedKeyLevels != null) {
+            if (key == null) { return nullKeyCount > 0; }
+            
+            final long encodedKey = encodeQueryKey(key);
+            final long[] keys = encodedKeyLevels[encodedKeyLevels.length - 1];
+            final int position = search(encodedKey, false);
+            return position < keys.length && keys[position] == encodedKey;
+        }
+        final Object[] keys = keyLevels[keyLevels.length - 1];
+        final int position = search(key, false);
+        return position < keys.length && indexedField.compareKeys(keys[position], key) == 0;
+    }
+    
+    private long encodeQueryKey(Object key) { return PrimitiveIndex.encodeQueryKey(key, keyKind, indexedField); }
+    
+    /**
+     * Descends the tree to the position of the first key which is greater than the provided key, or is not less
+     * than it if {@code isAfterEqualKeys} is {@code false}.
+     *
+     * @return that position, or the number of keys if there is none.
+     */
+    private int search(Object key, boolean isAfterEqualKeys) {
+        int position = 0;
+        for (int depth = 0; ; depth++) {
+            final Object[] level = keyLevels[depth];
+            final int endOfNode = Math.min(position + NODE_SIZE, level.length);
+            while (position < endOfNode && isBefore(level[position], key, isAfterEqualKeys)) { position++; }
+            
+            // The key we're looking for is in the node below the first key here which is not before it.
+            if (depth == keyLevels.length - 1) { return Math.min(position, level.length); }
+            position *= NODE_SIZE;
+        }
+    }
+    
+    /** The equivalent of {@link #search(Object, boolean)} for encoded keys. */
+    private int search(long encodedKey, boolean isAfterEqualKeys) {
+        int position = 0;
+        for (int depth = 0; ; depth++) {
+            final long[] level = encodedKeyLevels[depth];
+            final int endOfNode = Math.min(position + NODE_SIZE, level.length);
+            while (position < endOfNode && isBefore(level[position], encodedKey, isAfterEqualKeys)) { position++; }
+            
+            if (depth == encodedKeyLevels.length - 1) { return Math.min(position, level.length); }
+            position *= NODE_SIZE;
+        }
+    }
+    
+    /**
+     * Finds the position of the first key which is greater than the provided key, or is not less than it if
+     * {@code isAfterEqualKeys} is {@code false}, given that it is not before the specified position. This gallops
+     * forward from that position, doubling its stride, and then binary searches the last stride, so it stays close
+     * to that position when the key is close to it, as the end of a range of equal keys usually is.
+     */
+    private int gallop(int fromPosition, Object key, boolean isAfterEqualKeys) {
+        final Object[] keys = keyLevels[keyLevels.length - 1];
+        int lowLimit = fromPosition;
+        int highLimit = fromPosition;
+        for (int stride = 1; highLimit < keys.length && isBefore(keys[highLimit], key, isAfterEqualKeys); stride <<= 1) {
+            lowLimit = highLimit + 1;
+            highLimit += stride;
+        }
+        highLimit = Math.min(highLimit, keys.length);
+        
+        while (lowLimit < highLimit) {
+            int middle = (lowLimit + highLimit) >>> 1;
+            if (isBefore(keys[middle], key, isAfterEqualKeys)) {
+                lowLimit = middle + 1;
+            }
+            else {
+                highLimit = middle;
+            }
+        }
+        return lowLimit;
+    }
+    
+    /** The equivalent of {@link #gallop(int, Object, boolean)} for encoded keys. */
+    private int gallop(int fromPosition, long encodedKey, boolean isAfterEqualKeys) {
+        final long[] keys = encodedKeyLevels[encodedKeyLevels.length - 1];
+        int lowLimit = fromPosition;
+        int highLimit = fromPosition;
+        for (int stride = 1; highLimit < keys.length && isBefore(keys[highLimit], encodedKey, isAfterEqualKeys); stride <<= 1) {
+            lowLimit = highLimit + 1;
+            highLimit += stride;
+        }
+        highLimit = Math.min(highLimit, keys.length);
+        
+        while (lowLimit < highLimit) {
+            int middle = (lowLimit + highLimit) >>> 1;
+            if (isBefore(keys[middle], encodedKey, isAfterEqualKeys)) {
+                lowLimit = middle + 1;
+            }
+            else {
+                highLimit = middle;
+            }
+        }
+        return lowLimit;
+    }
+    
+    /** Does the provided key from the tree come before the provided key, or before or level with it? */
+    private boolean isBefore(Object treeKey, Object key, boolean isAfterEqualKeys) {
+        final int comparison = indexedField.compareKeys(treeKey, key);
+        return comparison < 0 || (isAfterEqualKeys && comparison == 0);
+    }
+    
+    private static boolean isBefore(long treeKey, long encodedKey, boolean isAfterEqualKeys) {
+        return treeKey < encodedKey || (isAfterEqualKeys && treeKey == encodedKey);
+    }
+    
+    @Override boolean isSorted() { return true; }
+    
+    @Override void add(T entry) { throw frozen(); }
+    
+    @Override Runnable prepareAddAll(List<T> batch) { throw frozen(); }
+    
+    @Override boolean remove(T entry) { throw frozen(); }
+    
+    @Override void removeAll(Set<T> removedEntries) { throw frozen(); }
+    
+    @Override void clear() { throw frozen(); }
+    
+    private UnsupportedOperationException frozen() {
+        return new UnsupportedOperationException("Cannot change the frozen index of '" + indexedField.getFieldName() + "'.");
+    }
+    
+    @Override Iterator<T> sortedIterator() { return sortedEntries.iterator(); }
+    
+    /** As this index can never change, it can be shared rather than copied. */
+    @Override FrozenIndex<T> copy() { return this; }
+    
+    @Override FrozenIndex<T> freeze() { return this; }
+}
@@ -0,0 +1,134 @@
+package org.neil.fluff.collections;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * An {@link Index} which holds the entries in buckets keyed by their keys. Equality queries and uniqueness checks
+ * take constant time, but the index cannot be iterated in key order or used for anything but equality queries.
+ * <p/>
+ * Note that keys are matched using their {@code equals} and {@code hashCode} methods, rather than by any
+ * {@link java.util.Comparator} configured on the {@link IndexedField}.
+ *
+ * @param <T> the type of entries in the index.
+ *
+ * @author Neil Mc Erlean
+ */
+class HashIndex<T> extends Index<T> {
+    private static final long serialVersionUID = 1L;
+    
+    /** The buckets of entries, each of which is in insertion order. */
+    private final Map<Object, List<T>> buckets = new HashMap<>();
+    
+    HashIndex(IndexedField<T> indexedField) { super(indexedField); }
+    
+    @Override List<T> find(Object key) {
+        final List<T> bucket = buckets.get(key);
+        return bucket == null ? Collections.<T>emptyList() : Collections.unmodifiableList(bucket);
+    }
+    
+    @Override boolean containsKey(Object key) { return buckets.containsKey(key); }
+    
+    @Override void add(T entry) {
+        buckets.computeIfAbsent(indexedField.getKey(entry), k -> new ArrayList<>(1)).add(entry);
+    }
+    
+    @Override Runnable prepareAddAll(List<T> batch) {
+        if (indexedField.isValueUnique()) {
+            final Map<Object, T> batchEntriesByKey = new HashMap<>();
+            for (T entry : batch) {
+                final Object key = indexedField.getKey(entry);
+                
+                if (buckets.containsKey(key)) { throw uniquenessViolation(entry, key); }
+                
+                final T otherEntry = batchEntriesByKey.putIfAbsent(key, entry);
+                if (otherEntry != null) { throw uniquenessViolationInBatch(entry, otherEntry, key); }
+            }
+        }
+        return () -> {
+            for (T entry : batch) {
+                add(entry);
+            }
+        };
+    }
+    
+    @Override boolean remove(T entry) {
+        final Object key = indexedField.getKey(entry);
+        if (removeFromBucket(key, buckets.get(key), entry)) { return true; }
+        
+        // The entry may have been mutated since it was added, in which case it is no longer in the bucket
+        // for its current key. We'll have to look for it the hard way.
+        for (Map.Entry<Object, List<T>> bucket : buckets.entrySet()) {
+            if (removeFromBucket(bucket.getKey(), bucket.getValue(), entry)) { return true; }
+        }
+        return false;
+    }
+    
+    private boolean removeFromBucket(Object key, List<T> bucket, T entry) {
+        if (bucket == null) { return false; }
+        
+        for (Iterator<T> iter = bucket.iterator(); iter.hasNext(); ) {
+            if (iter.next() == entry) {
+                iter.remove();
+                if (bucket.isEmpty()) { buckets.remove(key); }
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Filters the bucket of each entry in a single pass, so that an entry which was added more than once is removed
+     * every time it occurs. This takes time in proportion to the sizes of those buckets.
+     */
+    @Override void removeAll(Set<T> removedEntries) {
+        final Set<Object> keys = new HashSet<>();
+        boolean isAnyMislaid = false;
+        for (T entry : removedEntries) {
+            final Object key = indexedField.getKey(entry);
+            keys.add(key);
+            isAnyMislaid |= !containsReference(buckets.get(key), entry);
+        }
+        
+        // An entry which has been mutated since it was added is no longer in the bucket for its current key,
+        // in which case we'll have to filter every bucket.
+        for (Object key : isAnyMislaid ? new ArrayList<>(buckets.keySet()) : keys) {
+            final List<T> bucket = buckets.get(key);
+            if (bucket != null && bucket.removeIf(removedEntries::contains) && bucket.isEmpty()) {
+                buckets.remove(key);
+            }
+        }
+    }
+    
+    private static <T> boolean containsReference(List<T> bucket, T entry) {
+        if (bucket == null) { return false; }
+        
+        for (T bucketEntry : bucket) {
+            if (bucketEntry == entry) { return true; }
+        }
+        return false;
+    }
+    
+    @Override void clear() { buckets.clear(); }
+    
+    @Override HashIndex<T> copy() {
+        final HashIndex<T> copy = new HashIndex<>(indexedField);
+        for (Map.Entry<Object, List<T>> bucket : buckets.entrySet()) {
+            copy.buckets.put(bucket.getKey(), new ArrayList<>(bucket.getValue()));
+        }
+        return copy;
+    }
+    
+    @Override Iterator<T> sortedIterator() {
+        throw new IllegalArgumentException("Cannot iterate in order of '" + indexedField.getFieldName() +
+                                           "' as it has a hash index.");
+    }
+}
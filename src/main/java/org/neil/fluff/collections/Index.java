@@ -0,0 +1,281 @@
+package org.neil.fluff.collections;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * An {@code Index} holds the entries of an {@link IndexedCollection} organised by the keys of a single
+ * {@link IndexedField} in order to support efficient retrieval. Each {@link IndexedCollection.IndexType type}
+ * of index has its own implementation.
+ * <p/>
+ * Indexes hold the same object references as the collection itself and identify entries by reference,
+ * not by {@code equals}, so that equal but distinct entries can be indexed separately.
+ *
+ * @param <T> the type of entries in the index.
+ *
+ * @author Neil Mc Erlean
+ */
+abstract class Index<T> implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * The smallest batch which is sorted, or prepared for several indexes, in parallel on the common
+     * {@link java.util.concurrent.ForkJoinPool}. Smaller batches are handled on the caller's thread, as splitting
+     * them up would cost more than it saves.
+     */
+    static final int MIN_PARALLEL_BATCH_SIZE = 8_192;
+    
+    protected final IndexedField<T> indexedField;
+    
+    protected Index(IndexedField<T> indexedField) { this.indexedField = indexedField; }
+    
+    /** Creates a new, empty index of the appropriate type for the provided {@link IndexedField}. */
+    static <T> Index<T> create(IndexedField<T> indexedField) {
+        if (indexedField.isLazy()) { return new LazyIndex<>(indexedField); }
+        
+        switch (indexedField.getIndexType()) {
+            case HASH:   return new HashIndex<>(indexedField);
+            case SORTED: return new SortedIndex<>(indexedField);
+            case LOG_STRUCTURED: return new LogStructuredIndex<>(indexedField);
+            case PRIMITIVE:
+                if ( !indexedField.isNaturallyOrdered()) {
+                    throw new IllegalArgumentException("Cannot create a " + indexedField.getIndexType() + " index for '" +
+                                                       indexedField.getFieldName() + "' as it is not in natural order.");
+                }
+                return new PrimitiveIndex<>(indexedField);
+            default:     throw new IllegalArgumentException("Unsupported index type " + indexedField.getIndexType());
+        }
+    }
+    
+    /**
+     * Creates an index for the provided field holding the provided entries, in a single bulk load.
+     *
+     * @throws IllegalArgumentException if the index cannot be applied to any of the entries, or they violate its
+     *                                  uniqueness constraint.
+     * @throws ClassCastException if any entry's key is of a type the index cannot hold.
+     */
+    static <T> Index<T> build(IndexedField<T> indexedField, List<T> entries) {
+        final Index<T> index = create(indexedField);
+        for (T entry : entries) {
+            index.validate(entry);
+        }
+        index.prepareAddAll(entries).run();
+        return index;
+    }
+    
+    IndexedField<T> getIndexedField() { return this.indexedField; }
+    
+    /**
+     * Ensures that this index can be applied to the provided entry, without regard to any uniqueness constraint.
+     *
+     * @throws IllegalArgumentException if the index cannot be applied.
+     * @throws ClassCastException if the entry's key is of a type this index cannot hold.
+     */
+    void validate(T entry) { indexedField.validate(entry); }
+    
+    /** Gets an unmodifiable list of all the entries with the provided key, in insertion order. */
+    abstract List<T> find(Object key);
+    
+    /**
+     * Gets an unmodifiable list of all the entries whose keys are in the provided range, in key order.
+     *
+     * @throws IllegalArgumentException if this type of index does not support range queries.
+     */
+    List<T> findRange(KeyRange range) {
+        throw new IllegalArgumentException("Cannot query a range of '" + indexedField.getFieldName() +
+                                           "' as it has a " + indexedField.getIndexType() + " index.");
+    }
+    
+    /** Does this index contain any entry with the provided key? */
+    boolean containsKey(Object key) { return !find(key).isEmpty(); }
+    
+    /** Adds the provided entry to this index. */
+    abstract void add(T entry);
+    
+    /**
+     * Prepares to add a batch of entries to this index, validating the {@link IndexedField#isValueUnique()
+     * uniqueness constraint} (if any) both within the batch and against existing entries, without changing
+     * this index.
+     *
+     * @return an action which will add the batch to this index when run.
+     * @throws IllegalArgumentException if any of the entries would violate a uniqueness constraint.
+     */
+    abstract Runnable prepareAddAll(List<T> batch);
+    
+    /**
+     * Gets a copy of the provided batch, sorted by key with a stable sort. A {@link #MIN_PARALLEL_BATCH_SIZE large}
+     * batch is sorted by {@link Arrays#parallelSort(Object[], java.util.Comparator) parallel merge sort}, and the key
+     * of each entry is read just once beforehand, rather than at every comparison.
+     */
+    List<T> sortedByKey(List<T> batch) {
+        final List<T> sortedBatch = new ArrayList<>(batch);
+        if (batch.size() < MIN_PARALLEL_BATCH_SIZE) {
+            Collections.sort(sortedBatch, indexedField::compare);
+            return sortedBatch;
+        }
+        
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        final KeyedEntry<T>[] keyedEntries = new KeyedEntry[sortedBatch.size()];
+        Arrays.parallelSetAll(keyedEntries, i -> new KeyedEntry<>(indexedField.getKey(sortedBatch.get(i)), sortedBatch.get(i)));
+        Arrays.parallelSort(keyedEntries, (entry1, entry2) -> indexedField.compareKeys(entry1.key, entry2.key));
+        for (int i = 0; i < keyedEntries.length; i++) {
+            sortedBatch.set(i, keyedEntries[i].entry);
+        }
+        return sortedBatch;
+    }
+    
+    /** An entry paired with its key, so that it can be sorted without reading the key more than once. */
+    private static final class KeyedEntry<T> {
+        final Object key;
+        final T      entry;
+        
+        KeyedEntry(Object key, T entry) {
+            this.key   = key;
+            this.entry = entry;
+        }
+    }
+    
+    /**
+     * Removes the provided entry (by reference) from this index.
+     *
+     * @return {@code true} if the entry was found and removed, else {@code false}.
+     */
+    abstract boolean remove(T entry);
+    
+    /**
+     * Removes all of the provided entries (by reference) from this index, leaving the remaining entries in the
+     * same order. This is considerably cheaper than removing a large number of entries one at a time.
+     *
+     * @param removedEntries an identity-based set of the entries to remove, all of which are in this index.
+     */
+    abstract void removeAll(Set<T> removedEntries);
+    
+    /** Removes all entries from this index. */
+    abstract void clear();
+    
+    /**
+     * Gets a read-only form of this index, laid out for the fastest possible queries, which will never be changed.
+     * An index with no such form returns itself, and must then not be changed either.
+     */
+    Index<T> freeze() { return this; }
+    
+    /**
+     * Does this index hold its entries in key order, so that a {@link SnapshotFile snapshot file} can record that
+     * order and {@link #loadSorted(List) load} them without sorting them again?
+     */
+    boolean isSorted() { return false; }
+    
+    /**
+     * Adds the provided entries to this empty index. If this index {@link #isSorted() is sorted}, they should already
+     * be in key order, which a sorted index need only check, rather than sort them. Otherwise, or if they are
+     * not in key order after all, they are added as a batch.
+     */
+    void loadSorted(List<T> sortedEntries) { prepareAddAll(sortedEntries).run(); }
+    
+    /** Are the provided entries in key order, with no equal keys if they must be unique? This is a single pass. */
+    boolean isInKeyOrder(List<T> entries) {
+        final int minComparison = indexedField.isValueUnique() ? 1 : 0;
+        T previousEntry = null;
+        for (T entry : entries) {
+            if (previousEntry != null && indexedField.compare(entry, previousEntry) < minComparison) { return false; }
+            previousEntry = entry;
+        }
+        return true;
+    }
+    
+    /**
+     * Rebuilds this index from the provided entries, which are all those in the collection, if it is stale.
+     * Only a lazy index is ever stale.
+     */
+    void buildIfStale(Collection<T> entries) { }
+    
+    /**
+     * Gets an iterator over the entries in this index, sorted by their keys.
+     *
+     * @throws IllegalArgumentException if this type of index does not support sorted iteration.
+     */
+    abstract Iterator<T> sortedIterator();
+    
+    /** Creates a copy of this index, which holds the same entries but can be changed independently of it. */
+    abstract Index<T> copy();
+    
+    /** Creates an empty index of the same kind as this one, as it would be if this index were copied and cleared. */
+    Index<T> emptyCopy() { return create(indexedField); }
+    
+    /**
+     * A range of keys, each end of which may be inclusive, exclusive or unbounded. An unbounded range does not
+     * include any {@code null} keys, which sort before all other keys, unless {@code null} is given as a bound.
+     */
+    static final class KeyRange {
+        private final boolean hasLowerBound;
+        private final Object  lowerBound;
+        private final boolean isLowerBoundInclusive;
+        private final boolean hasUpperBound;
+        private final Object  upperBound;
+        private final boolean isUpperBoundInclusive;
+        
+        private KeyRange(boolean hasLowerBound, Object lowerBound, boolean isLowerBoundInclusive,
+                         boolean hasUpperBound, Object upperBound, boolean isUpperBoundInclusive) {
+            this.hasLowerBound         = hasLowerBound;
+            this.lowerBound            = lowerBound;
+            this.isLowerBoundInclusive = isLowerBoundInclusive;
+            this.hasUpperBound         = hasUpperBound;
+            this.upperBound            = upperBound;
+            this.isUpperBoundInclusive = isUpperBoundInclusive;
+        }
+        
+        static KeyRange equalTo(Object key) { return new KeyRange(true, key, true, true, key, true); }
+        
+        static KeyRange between(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+            return new KeyRange(true, from, fromInclusive, true, to, toInclusive);
+        }
+        
+        static KeyRange greaterThan(Object from, boolean inclusive) { return new KeyRange(true, from, inclusive, false, null, false); }
+        
+        static KeyRange lessThan(Object to, boolean inclusive)      { return new KeyRange(false, null, false, true, to, inclusive); }
+        
+        /** Gets the range of all strings which start with the provided prefix. */
+        static KeyRange startingWith(String prefix) {
+            // The first string after all those with the prefix is the prefix with its last character incremented,
+            // unless that character is already the greatest possible one, in which case we'll try the previous one.
+            final StringBuilder successor = new StringBuilder(prefix);
+            while (successor.length() > 0) {
+                final int lastIndex = successor.length() - 1;
+                final char lastChar = successor.charAt(lastIndex);
+                if (lastChar < Character.MAX_VALUE) {
+                    successor.setCharAt(lastIndex, (char) (lastChar + 1));
+                    return between(prefix, true, successor.toString(), false);
+                }
+                successor.setLength(lastIndex);
+            }
+            return greaterThan(prefix, true);
+        }
+        
+        boolean hasLowerBound()         { return this.hasLowerBound; }
+        Object  getLowerBound()         { return this.lowerBound; }
+        boolean isLowerBoundInclusive() { return this.isLowerBoundInclusive; }
+        boolean hasUpperBound()         { return this.hasUpperBound; }
+        Object  getUpperBound()         { return this.upperBound; }
+        boolean isUpperBoundInclusive() { return this.isUpperBoundInclusive; }
+    }
+    
+    /** Creates the exception thrown when a uniqueness constraint would be violated. */
+    protected IllegalArgumentException uniquenessViolation(T entry, Object key) {
+        return new IllegalArgumentException("Cannot add element " + entry + " as there is already an entry with " +
+                                            indexedField.getFieldName() + " = " + key);
+    }
+    
+    /** Creates the exception thrown when a uniqueness constraint would be violated within a batch. */
+    protected IllegalArgumentException uniquenessViolationInBatch(T entry, T otherEntry, Object key) {
+        return new IllegalArgumentException("Cannot add element " + entry + " as element " + otherEntry +
+                                            " in the same batch has " + indexedField.getFieldName() + " = " + key);
+    }
+}
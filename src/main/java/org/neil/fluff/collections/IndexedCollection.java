@@ -1,16 +1,27 @@
 package org.neil.fluff.collections;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.lang.reflect.Field;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 /**
  * This class is a naive in-memory data store for objects with support for very basic querying and some very basic
@@ -22,58 +33,505 @@ import java.util.Map;
  */
 public class IndexedCollection<T extends Serializable>
                               implements Collection<T>, Serializable {
-    private static final long serialVersionUID = 1L;
+    /** Version 1 held its entries in a List, beside a sorted view of them for each index, and cannot be read. */
+    private static final long serialVersionUID = 2L;
     
     /**
-     * Using a List to store the entries allows us to maintain insertion order.
-     * These are the raw data of this collection.
+     * These are the raw data of this collection, held in insertion order. Unlike a List, an {@link EntryTable}
+     * can find an entry by {@code equals} in constant time, which makes {@link #contains(Object)} and
+     * {@link #remove(Object)} cheap however large the collection is.
      */
-    private List<T> entries = new ArrayList<>();
+    private EntryTable<T> entries = new EntryTable<>();
     
     /**
-     * These sorted views are lists of the same object references that are stored in
-     * {@link #entries} but each one will be sorted based on the natural order of a field
-     * defined on the class {@code <T>} in order to support efficient retrieval.
+     * This map holds an {@link Index} for each of the configured {@link IndexedField} objects, which define the
+     * class fields (or other keys) which are to be 'indexed' and those whose values must be unique. The indexes
+     * hold the same object references that are stored in {@link #entries}, organised by key in order to support
+     * efficient retrieval. They are stored by field name, using a LinkedHashMap to retain configuration order.
      */
-    private Map<IndexedField<T>, List<T>> sortedViews = new HashMap<>();
+    private Map<String, Index<T>> indexes = new LinkedHashMap<>();
+    
+    /** Is this collection a read-only {@link #snapshot() snapshot} of another? */
+    private final boolean isSnapshot;
+    
+    /** Is this collection a read-only {@link #freeze() frozen} copy of another? */
+    private final boolean isFrozen;
+    
+    /**
+     * Are the {@link #entries} and {@link #indexes} of this collection shared with a {@link #snapshot() snapshot}?
+     * If so, they must be copied before they are changed.
+     */
+    private transient boolean isSharedWithSnapshot;
     
     /**
-     * This map holds the set of {@link IndexedField} objects, which define the class
-     * fields which are to be 'indexed' and those fields whose values must be unique.
+     * Are {@link IndexedField#lazy() lazy} indexes rebuilt by the query which finds them stale? A caller which cannot
+     * guarantee that the entries will not change during a query, such as {@link ConcurrentIndexedCollection} while
+     * it holds only an optimistic read, must instead {@link #buildIndexIfStale(String) rebuild} them itself.
      */
-    private Map<String, IndexedField<T>> indexedFields;
+    private boolean isBuildingStaleIndexesOnQuery = true;
+    
+    /** The types of index which can be configured for an {@link IndexedField}. */
+    public enum IndexType {
+        /**
+         * The entries are held sorted by key, which supports equality queries in logarithmic time
+         * and {@link IndexedCollection#iteratorSortedBy(String) iteration} in key order.
+         */
+        SORTED,
+        
+        /**
+         * The entries are held in a hash table by key, which supports equality queries and uniqueness checks in
+         * constant time, but not iteration in key order. Keys are matched by {@code equals} and {@code hashCode}.
+         */
+        HASH,
+        
+        /**
+         * Like {@link #SORTED}, but for keys which are {@code int}, {@code long} or {@code double} values (or their
+         * boxed equivalents) in their natural order. The keys are held in a primitive array alongside the entries,
+         * so that searches run over contiguous memory without unboxing or dereferencing any keys.
+         */
+        PRIMITIVE,
+        
+        /**
+         * Like {@link #SORTED}, but for write-heavy use. New entries go into a small sorted tree, which is merged
+         * into a large immutable sorted array once it passes a threshold, and removals are recorded as tombstones.
+         * So adding or removing an entry takes amortised logarithmic time, rather than shifting half of a large
+         * array, at some cost to queries, which must merge the two.
+         */
+        LOG_STRUCTURED
+    }
     
     /**
-     * This class represents the name of a field declared in {@code <T>} along with an indication
-     * of whether that field should have a unique value within this collection.
+     * This class represents a key by which entries in the collection are indexed, along with an indication
+     * of whether that key should have a unique value within this collection.
+     * <p/>
+     * The key is usually the value of a named field declared in {@code <T>}, which is read reflectively.
+     * Alternatively an index can be built on {@link #of(String, Function) any function} of the entries, such as
+     * a getter, an inherited field or a computed value, optionally ordered by a provided {@link Comparator}.
+     * In either case, {@code null} keys sort before all other keys.
+     * <p/>
+     * A {@link #composite(String, IndexedField...) composite} index has keys made up of the keys of several other
+     * {@code IndexedField}s, in lexicographic order. These keys are queried as {@link List}s of component values,
+     * which can be a leading prefix of the components. So for example an index on {@code (tenantId, timestamp)}
+     * can be queried for an exact tenantId and timestamp, for all of a tenant's entries in timestamp order, or
+     * for a range of timestamps within a tenant.
+     * <p/>
+     * Each index is by default a {@link IndexType#SORTED sorted} index, but can be {@link #withType(IndexType)
+     * configured} as a {@link IndexType#HASH hash} index if it will only be used for equality queries.
+     * <p/>
+     * An index can also be made {@link #lazy() lazy}, in which case changes to the collection just mark it as stale,
+     * and it is rebuilt when it is next queried.
+     * <p/>
+     * Note that if the collection is to be serialized, any key extractor and comparator must also be Serializable.
      */
     public static class IndexedField<T> implements Serializable {
-        private static final long serialVersionUID = 1L;
+        /** Version 1 held only the field name and uniqueness, and cannot be read. */
+        private static final long serialVersionUID = 2L;
+        
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        private static final Comparator<Object> NATURAL_ORDER = Comparator.nullsFirst((Comparator) Comparator.naturalOrder());
         
-        private final String  fieldNameToIndex;
-        private final boolean isValueUnique;
+        private final String                  fieldNameToIndex;
+        private final boolean                 isValueUnique;
+        private final IndexType               indexType;
+        private final boolean                 isFieldBased;
+        private final Function<? super T, ?>  keyExtractor;
+        /** The order of the keys, or {@code null} for their natural order. */
+        private final Comparator<Object>      keyComparator;
+        /** The components of a composite key, or {@code null} if this is not a composite index. */
+        private final List<IndexedField<T>>   components;
+        /** Is this index rebuilt when it is queried, rather than kept up to date as the collection changes? */
+        private final boolean                 isLazy;
         
         public IndexedField(String fieldName, boolean isValueUnique) {
-            this.fieldNameToIndex = fieldName;
-            this.isValueUnique = isValueUnique;
+            this(fieldName, isValueUnique, IndexType.SORTED);
+        }
+        
+        public IndexedField(String fieldName, boolean isValueUnique, IndexType indexType) {
+            this(fieldName, isValueUnique, indexType, true, new FieldValue<T>(fieldName), null, null, false);
+        }
+        
+        private IndexedField(String name, boolean isValueUnique, IndexType indexType, boolean isFieldBased,
+                             Function<? super T, ?> keyExtractor, Comparator<Object> keyComparator,
+                             List<IndexedField<T>> components, boolean isLazy) {
+            this.fieldNameToIndex = name;
+            this.isValueUnique    = isValueUnique;
+            this.indexType        = indexType;
+            this.isFieldBased     = isFieldBased;
+            this.keyExtractor     = keyExtractor;
+            this.keyComparator    = keyComparator;
+            this.components       = components;
+            this.isLazy           = isLazy;
+        }
+        
+        /**
+         * Creates a (non-unique) index whose keys are computed from each entry by the provided function.
+         * 
+         * @param name the name by which this index will be queried.
+         * @param keyExtractor a function which gets the (naturally ordered) key for an entry.
+         */
+        public static <T, K extends Comparable<? super K>> IndexedField<T> of(String name,
+                                                                             Function<? super T, ? extends K> keyExtractor) {
+            return new IndexedField<T>(name, false, IndexType.SORTED, false, keyExtractor, null, null, false);
+        }
+        
+        /**
+         * Creates a (non-unique) index whose keys are computed from each entry by the provided function and
+         * ordered by the provided comparator.
+         * 
+         * @param name the name by which this index will be queried.
+         * @param keyExtractor a function which gets the key for an entry.
+         * @param keyComparator the order of the keys.
+         */
+        @SuppressWarnings("unchecked")
+        public static <T, K> IndexedField<T> of(String name, Function<? super T, ? extends K> keyExtractor,
+                                                Comparator<? super K> keyComparator) {
+            return new IndexedField<T>(name, false, IndexType.SORTED, false, keyExtractor,
+                                       (Comparator<Object>) Comparator.nullsFirst(keyComparator), null, false);
+        }
+        
+        /**
+         * Creates a (non-unique) composite index whose keys are made up of the keys of the provided
+         * {@code IndexedField}s, in that order. The uniqueness and type of the components are ignored.
+         * 
+         * @param name the name by which this index will be queried.
+         * @param components the components of the key, most significant first.
+         */
+        @SafeVarargs
+        public static <T> IndexedField<T> composite(String name, IndexedField<T>... components) {
+            return composite(name, Arrays.asList(components));
+        }
+        
+        /**
+         * Creates a (non-unique) composite index whose keys are made up of the values of the named fields declared
+         * in {@code <T>}, in that order.
+         * 
+         * @param name the name by which this index will be queried.
+         * @param fieldNames the names of the fields which make up the key, most significant first.
+         */
+        public static <T> IndexedField<T> composite(String name, String... fieldNames) {
+            final List<IndexedField<T>> components = new ArrayList<>(fieldNames.length);
+            for (String fieldName : fieldNames) {
+                components.add(new IndexedField<T>(fieldName, false));
+            }
+            return composite(name, components);
+        }
+        
+        private static <T> IndexedField<T> composite(String name, List<IndexedField<T>> components) {
+            if (components.isEmpty()) { throw new IllegalArgumentException("A composite index needs at least one component."); }
+            
+            final List<IndexedField<T>> componentList = Collections.unmodifiableList(new ArrayList<>(components));
+            return new IndexedField<T>(name, false, IndexType.SORTED, false, new CompositeKey<T>(componentList), null,
+                                       componentList, false);
+        }
+        
+        /** Gets an otherwise identical index whose keys must be unique within the collection. */
+        public IndexedField<T> unique() {
+            return new IndexedField<T>(fieldNameToIndex, true, indexType, isFieldBased, keyExtractor, keyComparator, components,
+                                       isLazy);
+        }
+        
+        /** Gets an otherwise identical index of the specified type. */
+        public IndexedField<T> withType(IndexType indexType) {
+            return new IndexedField<T>(fieldNameToIndex, isValueUnique, indexType, isFieldBased, keyExtractor, keyComparator,
+                                       components, isLazy);
+        }
+        
+        /**
+         * Gets an otherwise identical index which is not kept up to date as the collection changes, but is instead
+         * rebuilt, in a single bulk load, when it is first queried after a change. This suits an index which is
+         * queried rarely compared to how often the collection changes. A lazy index cannot be unique.
+         */
+        public IndexedField<T> lazy() {
+            return new IndexedField<T>(fieldNameToIndex, isValueUnique, indexType, isFieldBased, keyExtractor, keyComparator,
+                                       components, true);
+        }
+        
+        /** Gets an otherwise identical index which is kept up to date as the collection changes. */
+        IndexedField<T> eager() {
+            return new IndexedField<T>(fieldNameToIndex, isValueUnique, indexType, isFieldBased, keyExtractor, keyComparator,
+                                       components, false);
+        }
+        
+        public String    getFieldName()  { return this.fieldNameToIndex; }
+        public boolean   isValueUnique() { return this.isValueUnique; }
+        public IndexType getIndexType()  { return this.indexType; }
+        public boolean   isLazy()        { return this.isLazy; }
+        
+        /** Are the keys of this index the values of a named field, rather than computed by a key extractor? */
+        boolean isFieldBased() { return this.isFieldBased; }
+        
+        /** Gets the key for the provided entry. */
+        Object getKey(T entry) {
+            return isFieldBased ? FieldAccessor.of(entry, fieldNameToIndex).get(entry) : keyExtractor.apply(entry);
+        }
+        
+        /** Compares the keys of the two provided entries. */
+        int compare(T entry1, T entry2) {
+            if (components != null) {
+                for (IndexedField<T> component : components) {
+                    final int comparison = component.compare(entry1, entry2);
+                    if (comparison != 0) { return comparison; }
+                }
+                return 0;
+            }
+            
+            // Named fields can be compared without boxing their values if they're primitive.
+            return isFieldBased ? FieldAccessor.of(entry1, fieldNameToIndex).compare(entry1, entry2) :
+                                  keyComparator().compare(keyExtractor.apply(entry1), keyExtractor.apply(entry2));
+        }
+        
+        /**
+         * Compares the key of the provided entry with the provided key. For a composite index, the provided key is
+         * a List of component values which may be shorter than the full key, in which case only that leading prefix
+         * of the entry's key is compared.
+         */
+        @SuppressWarnings("rawtypes")
+        int compareKeyTo(T entry, Object key) {
+            if (components != null) { return compareCompositeKeyTo(entry, key); }
+            
+            if (isFieldBased && (key == null || key instanceof Comparable)) {
+                return FieldAccessor.of(entry, fieldNameToIndex).compareTo(entry, (Comparable) key);
+            }
+            return keyComparator().compare(getKey(entry), key);
+        }
+        
+        private int compareCompositeKeyTo(T entry, Object key) {
+            // Null keys sort first, and no entry has one.
+            if (key == null) { return 1; }
+            
+            final List<?> keyComponents = keyComponentsOf(key);
+            for (int i = 0; i < keyComponents.size(); i++) {
+                final int comparison = components.get(i).compareKeyTo(entry, keyComponents.get(i));
+                if (comparison != 0) { return comparison; }
+            }
+            return 0;
         }
         
-        public String  getFieldName()  { return this.fieldNameToIndex; }
-        public boolean isValueUnique() { return this.isValueUnique; }
+        /**
+         * Compares a key previously {@link #getKey(Object) got} from an entry with the provided key, exactly as
+         * {@link #compareKeyTo(Object, Object)} would compare that entry with it, but without reading the entry.
+         */
+        int compareKeys(Object entryKey, Object key) {
+            if (components == null) { return keyComparator().compare(entryKey, key); }
+            
+            if (key == null) { return 1; }
+            
+            final List<?> entryKeyComponents = (List<?>) entryKey;
+            final List<?> keyComponents = keyComponentsOf(key);
+            for (int i = 0; i < keyComponents.size(); i++) {
+                final int comparison = components.get(i).compareKeys(entryKeyComponents.get(i), keyComponents.get(i));
+                if (comparison != 0) { return comparison; }
+            }
+            return 0;
+        }
+        
+        /** Gets the components of a key provided in a query of a composite index. */
+        private List<?> keyComponentsOf(Object key) {
+            if ( !(key instanceof List)) {
+                throw new IllegalArgumentException("The composite index '" + fieldNameToIndex + "' must be queried with a List of values.");
+            }
+            final List<?> keyComponents = (List<?>) key;
+            if (keyComponents.size() > components.size()) {
+                throw new IllegalArgumentException("The composite index '" + fieldNameToIndex + "' has only " +
+                                                   components.size() + " components.");
+            }
+            return keyComponents;
+        }
+        
+        private Comparator<Object> keyComparator() { return keyComparator == null ? NATURAL_ORDER : keyComparator; }
+        
+        /** Are the keys of this index in their natural order (rather than that of a provided Comparator)? */
+        boolean isNaturallyOrdered() { return keyComparator == null && components == null; }
+        
+        /**
+         * This method ensures that this index can be applied to the provided entry.
+         * 
+         * @throws IllegalArgumentException if a named field does not exist in the entry.
+         * @throws ClassCastException if a named field does not implement Comparable.
+         */
+        void validate(T entry) {
+            if (components != null) {
+                for (IndexedField<T> component : components) {
+                    component.validate(entry);
+                }
+            }
+            else if (isFieldBased) {
+                // Resolving the accessor for the Java field validates the field, as long as the accessor
+                // is not already cached, in which case the field has already been validated.
+                FieldAccessor.of(entry, fieldNameToIndex);
+            }
+        }
+    }
+    
+    /** A (serializable) function which gets the value of a named field. */
+    private static final class FieldValue<T> implements Function<T, Object>, Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        private final String fieldName;
+        
+        FieldValue(String fieldName) { this.fieldName = fieldName; }
+        
+        @Override public Object apply(T entry) { return FieldAccessor.of(entry, fieldName).get(entry); }
+    }
+    
+    /** A (serializable) function which gets the key of a composite index, as a List of component keys. */
+    private static final class CompositeKey<T> implements Function<T, Object>, Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        private final List<IndexedField<T>> components;
+        
+        CompositeKey(List<IndexedField<T>> components) { this.components = components; }
+        
+        @Override public Object apply(T entry) {
+            final List<Object> key = new ArrayList<>(components.size());
+            for (IndexedField<T> component : components) {
+                key.add(component.getKey(entry));
+            }
+            return key;
+        }
     }
     
     /** Constructs a new, empty collection configured with the provided index configurations. */
     @SafeVarargs
     public IndexedCollection(IndexedField<T>... indexedFields) {
-        // Use a LinkedHashMap to retain insertion order and also to allow later retrieval by field name.
-        this.indexedFields = new LinkedHashMap<String, IndexedField<T>>();
-        
+        this.isSnapshot = false;
+        this.isFrozen   = false;
         for (IndexedField<T> indexedField : indexedFields) {
-            // Store the indexers by field name, which is by definition unique for a single class.
-            this.indexedFields.put(indexedField.getFieldName(), indexedField);
-            
-            // Create a List in which we'll store a sorted view of the entries in this collection.
-            this.sortedViews.put(indexedField, new ArrayList<T>());
+            // Store the indexes by field name, which is by definition unique for a single class.
+            this.indexes.put(indexedField.getFieldName(), Index.create(indexedField));
+        }
+    }
+    
+    /** Constructs a collection holding the provided entries, in that order, and the provided indexes of them. */
+    IndexedCollection(List<T> entries, Map<String, Index<T>> indexes) {
+        this.isSnapshot = false;
+        this.isFrozen   = false;
+        this.entries    = new EntryTable<>(entries);
+        this.indexes    = indexes;
+    }
+    
+    /** Constructs a snapshot which shares the entries and indexes of the provided collection. */
+    private IndexedCollection(IndexedCollection<T> source) {
+        this(source, source.indexes, false);
+    }
+    
+    /** Constructs a snapshot which shares the entries of the provided collection, with the provided indexes. */
+    private IndexedCollection(IndexedCollection<T> source, Map<String, Index<T>> indexes, boolean isFrozen) {
+        this.isSnapshot = true;
+        this.isFrozen   = isFrozen;
+        this.entries    = source.entries;
+        this.indexes    = indexes;
+    }
+    
+    /**
+     * Gets a read-only, point-in-time view of this collection and all of its indexes, which is not affected by any
+     * later changes to this collection. Taking a snapshot costs only a few allocations, as it shares the entries and
+     * indexes of this collection. The next change to this collection copies them first (copy-on-write), so that
+     * the snapshot never changes.
+     * <p/>
+     * As nothing in a snapshot ever changes, it can be queried by any number of threads without locking, and the
+     * lists returned by its queries are stable. Any attempt to change a snapshot throws an
+     * {@link UnsupportedOperationException}.
+     * 
+     * @return a snapshot of this collection, or this collection if it is itself a snapshot.
+     */
+    public IndexedCollection<T> snapshot() {
+        if (isSnapshot) { return this; }
+        
+        this.isSharedWithSnapshot = true;
+        return new IndexedCollection<>(this);
+    }
+    
+    /** Is this collection a read-only {@link #snapshot() snapshot}? */
+    public boolean isSnapshot() { return this.isSnapshot; }
+    
+    /** Are the entries and indexes of this collection still shared with a snapshot, so that a change must copy them? */
+    boolean isSharedWithSnapshot() { return this.isSharedWithSnapshot; }
+    
+    /**
+     * Gets a read-only, point-in-time copy of this collection whose indexes are laid out for the fastest possible
+     * queries, at the cost of ever changing them. This suits reference data which is rebuilt from time to time and
+     * queried heavily in between, and which can be frozen once it has been built.
+     * <p/>
+     * A frozen collection is a {@link #snapshot() snapshot}, and shares the entries of this collection in the same
+     * way, but its sorted indexes are copied into a {@link FrozenIndex static B+-tree}, whose keys are held in
+     * contiguous arrays rather than read from the entries. So freezing a collection takes linear time, and the
+     * frozen indexes take more memory than those they were copied from. {@link IndexType#HASH Hash} indexes are
+     * already as fast as they can be, and are shared.
+     * 
+     * @return a frozen copy of this collection, or this collection if it is already frozen.
+     */
+    public IndexedCollection<T> freeze() {
+        if (isFrozen) { return this; }
+        
+        final Map<String, Index<T>> frozenIndexes = new LinkedHashMap<>();
+        for (Map.Entry<String, Index<T>> index : indexes.entrySet()) {
+            index.getValue().buildIfStale(entries);
+            frozenIndexes.put(index.getKey(), index.getValue().freeze());
+        }
+        if ( !isSnapshot) { this.isSharedWithSnapshot = true; }
+        return new IndexedCollection<>(this, frozenIndexes, true);
+    }
+    
+    /** Is this collection a read-only {@link #freeze() frozen} copy? */
+    public boolean isFrozen() { return this.isFrozen; }
+    
+    /**
+     * Writes this collection to the specified file in a compact binary {@link SnapshotFile format}, which can be
+     * {@link #readSnapshot(Path, IndexedField...) read} far more quickly than its Java serialized form. The entries
+     * are written once, and each sorted index as the order of the entries within it, so that reading it does not
+     * sort them again. Other indexes are rebuilt when the file is read, as are {@link IndexedField#lazy() lazy}
+     * indexes when they are next queried.
+     * <p/>
+     * The entries must be Serializable, but unlike Java serialization, the indexes' key extractors need not be.
+     * Writing a {@link #snapshot() snapshot} leaves this collection free to change meanwhile.
+     */
+    public void writeSnapshot(Path path) throws IOException { SnapshotFile.write(this, path, false); }
+    
+    /**
+     * Writes this collection to the specified file in the same way as {@link #writeSnapshot(Path)}, but laid out so
+     * that it can be {@link MappedIndexedCollection#open(Path, IndexedField...) mapped} into memory and queried in
+     * place. Each entry is written separately, so that it can be decoded on its own, which makes the file larger, and
+     * the keys of {@link IndexType#PRIMITIVE primitive} indexes are written alongside them. Only the sorted indexes
+     * which are up to date are written, so any {@link IndexedField#lazy() lazy} index must be
+     * {@link #buildStaleIndexes() built} first if it is to be mapped.
+     */
+    public void writeMappableSnapshot(Path path) throws IOException { SnapshotFile.write(this, path, true); }
+    
+    /**
+     * Reads a collection from a file written by {@link #writeSnapshot(Path)} (or by
+     * {@link #writeMappableSnapshot(Path)}), with the provided indexes, which would
+     * usually be those of the collection which was written. An index which was written is matched by name, and
+     * loaded in the order in which it was written, once that has been checked in a single pass. Any other index is
+     * built from the entries.
+     *
+     * @return a collection holding the entries in the file, which is {@link #isFrozen() frozen} if the written one was.
+     * @throws java.io.StreamCorruptedException if the file is not such a snapshot, or is corrupt.
+     * @throws IllegalArgumentException if any of the indexes cannot be applied to the entries.
+     */
+    @SafeVarargs
+    public static <T extends Serializable> IndexedCollection<T> readSnapshot(Path path, IndexedField<T>... indexedFields)
+                                                                                  throws IOException, ClassNotFoundException {
+        return SnapshotFile.read(path, indexedFields);
+    }
+    
+    /**
+     * Ensures that the entries and indexes of this collection can be changed, copying them if they are shared
+     * with a {@link #snapshot() snapshot}.
+     * 
+     * @throws UnsupportedOperationException if this collection is itself a snapshot.
+     */
+    private void prepareForWrite() {
+        if (isSnapshot) { throw new UnsupportedOperationException("Cannot change a snapshot of an IndexedCollection."); }
+        
+        if (isSharedWithSnapshot) {
+            final Map<String, Index<T>> copiedIndexes = new LinkedHashMap<>();
+            for (Map.Entry<String, Index<T>> index : indexes.entrySet()) {
+                copiedIndexes.put(index.getKey(), index.getValue().copy());
+            }
+            this.entries = new EntryTable<>(entries);
+            this.indexes = copiedIndexes;
+            this.isSharedWithSnapshot = false;
         }
     }
     
@@ -81,12 +539,12 @@ public class IndexedCollection<T extends Serializable>
      * This method queries for a single entry object having a field with the specified name and value.
      * If there are more than one matching entries, it is not defined which will be returned.
      * 
-     * @param fieldName the Java field name to look for.
-     * @param fieldValue the value that that Java field must have.
+     * @param fieldName the Java field name (or index name) to look for.
+     * @param fieldValue the value that that Java field (or index key) must have.
      * @return the 'first' matching entry if there is one, else {@code null}.
      * @throws IllegalArgumentException if the specified fieldName is not configured for indexing.
      */
-    public T findOne(String fieldName, @SuppressWarnings("rawtypes") Comparable fieldValue) {
+    public T findOne(String fieldName, Object fieldValue) {
         List<T> list = this.find(fieldName, fieldValue);
         
         return list.isEmpty() ? null : list.get(0);
@@ -95,102 +553,243 @@ public class IndexedCollection<T extends Serializable>
     /**
      * This method queries for all entry objects having a field with the specified name and value.
      * 
-     * @param fieldName the Java field name to look for.
-     * @param fieldValue the value that that Java field must have.
-     * @return A list of all those entries having the specified field and value.
+     * @param fieldName the Java field name (or index name) to look for.
+     * @param fieldValue the value that that Java field (or index key) must have.
+     * @return An unmodifiable list of all those entries having the specified field and value.
      * @throws IllegalArgumentException if the specified fieldName is not indexed.
      */
-    public List<T> find(String fieldName, @SuppressWarnings("rawtypes") Comparable fieldValue) {
-        IndexedField<T> indexer = this.indexedFields.get(fieldName);
+    public List<T> find(String fieldName, Object fieldValue) {
+        return getIndex(fieldName).find(fieldValue);
+    }
+    
+    /**
+     * This method queries for all entry objects whose values for the specified field are within the specified range.
+     * Entries whose value is {@code null} are only included if {@code null} is given as one of the bounds.
+     * 
+     * @param fieldName the Java field name (or index name) to look for.
+     * @param from the lowest value in the range.
+     * @param fromInclusive {@code true} if entries whose value is {@code from} should be included.
+     * @param to the highest value in the range.
+     * @param toInclusive {@code true} if entries whose value is {@code to} should be included.
+     * @return An unmodifiable list of all those entries within the range, sorted by value.
+     * @throws IllegalArgumentException if the specified fieldName is not indexed, or has a {@link IndexType#HASH hash} index.
+     */
+    public List<T> findRange(String fieldName, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        return getIndex(fieldName).findRange(Index.KeyRange.between(from, fromInclusive, to, toInclusive));
+    }
+    
+    /**
+     * This method queries for all entry objects whose values for the specified field are greater than the specified
+     * value. Entries whose value is {@code null} are not included.
+     * 
+     * @param fieldName the Java field name (or index name) to look for.
+     * @param from the value which the entries' values must be greater than.
+     * @param inclusive {@code true} if entries whose value is {@code from} should be included.
+     * @return An unmodifiable list of all those entries within the range, sorted by value.
+     * @throws IllegalArgumentException if the specified fieldName is not indexed, or has a {@link IndexType#HASH hash} index.
+     */
+    public List<T> findGreaterThan(String fieldName, Object from, boolean inclusive) {
+        return getIndex(fieldName).findRange(Index.KeyRange.greaterThan(from, inclusive));
+    }
+    
+    /**
+     * This method queries for all entry objects whose values for the specified field are less than the specified
+     * value. Entries whose value is {@code null} are not included.
+     * 
+     * @param fieldName the Java field name (or index name) to look for.
+     * @param to the value which the entries' values must be less than.
+     * @param inclusive {@code true} if entries whose value is {@code to} should be included.
+     * @return An unmodifiable list of all those entries within the range, sorted by value.
+     * @throws IllegalArgumentException if the specified fieldName is not indexed, or has a {@link IndexType#HASH hash} index.
+     */
+    public List<T> findLessThan(String fieldName, Object to, boolean inclusive) {
+        return getIndex(fieldName).findRange(Index.KeyRange.lessThan(to, inclusive));
+    }
+    
+    /**
+     * This method queries for all entry objects whose String values for the specified field start with the
+     * specified prefix.
+     * 
+     * @param fieldName the Java field name (or index name) to look for.
+     * @param prefix the prefix which the entries' values must start with.
+     * @return An unmodifiable list of all those entries whose values start with the prefix, sorted by value.
+     * @throws IllegalArgumentException if the specified fieldName is not indexed, has a {@link IndexType#HASH hash}
+     *                                  index or is ordered by a Comparator rather than the natural order of Strings.
+     */
+    public List<T> findByPrefix(String fieldName, String prefix) {
+        final Index<T> index = getIndex(fieldName);
+        if ( !index.getIndexedField().isNaturallyOrdered()) {
+            throw new IllegalArgumentException("Cannot query '" + fieldName + "' by prefix as it is not in natural order.");
+        }
+        return index.findRange(Index.KeyRange.startingWith(prefix));
+    }
+    
+    private Index<T> getIndex(String fieldName) {
+        Index<T> index = this.indexes.get(fieldName);
         
-        if (indexer == null) { throw new IllegalArgumentException("No indexer defined for a field called " + fieldName); }
+        if (index == null) { throw new IllegalArgumentException("No indexer defined for a field called " + fieldName); }
         
-        List<T> sortedView = sortedViews.get(indexer);
+        if (isBuildingStaleIndexesOnQuery) { index.buildIfStale(entries); }
+        return index;
+    }
+    
+    /**
+     * Rebuilds any {@link IndexedField#lazy() lazy} indexes which have changed since they were last built, so that
+     * the next query of each does not have to. This could be scheduled to run when the collection is quiet.
+     */
+    public void buildStaleIndexes() {
+        for (Index<T> index : indexes.values()) {
+            index.buildIfStale(entries);
+        }
+    }
+    
+    /**
+     * Gets the number of times that each {@link IndexedField#lazy() lazy} index has been built, including by any
+     * {@link #snapshot() snapshot} sharing it, in configuration order.
+     */
+    public Map<String, Long> getIndexBuildCounts() {
+        final Map<String, Long> buildCounts = new LinkedHashMap<>();
+        for (Map.Entry<String, Index<T>> index : indexes.entrySet()) {
+            if (index.getValue() instanceof LazyIndex) {
+                buildCounts.put(index.getKey(), ((LazyIndex<T>) index.getValue()).getBuildCount());
+            }
+        }
+        return buildCounts;
+    }
+    
+    /** Rebuilds the named index if it is stale. */
+    void buildIndexIfStale(String fieldName) {
+        final Index<T> index = indexes.get(fieldName);
+        if (index != null) { index.buildIfStale(entries); }
+    }
+    
+    /**
+     * Adds an index to this collection, holding all of its entries. The index is built in a single bulk load, and
+     * can then be queried just like those configured when this collection was constructed. Any
+     * {@link #snapshot() snapshots} are unaffected.
+     *
+     * @throws IllegalArgumentException if there is already an index with the same name, if the index cannot be
+     *                                  applied to any of the entries, or if they violate its uniqueness constraint,
+     *                                  in which case this collection is unchanged.
+     * @throws ClassCastException if any index operates on a field which does not implement Comparable.
+     * @see ConcurrentIndexedCollection#addIndex(IndexedField)
+     */
+    public void addIndex(IndexedField<T> indexedField) {
+        if (isSnapshot) { throw new UnsupportedOperationException("Cannot change a snapshot of an IndexedCollection."); }
+        checkIsNotIndexed(indexedField);
         
-        int indexOfMatchingObject = binarySearch(sortedView, fieldName, fieldValue);
-        return indexOfMatchingObject == -1 ? Collections.<T>emptyList() :
-                                             expandToList(sortedView, fieldName, indexOfMatchingObject);
+        final Index<T> index = Index.build(indexedField, new ArrayList<>(entries));
+        prepareForWrite();
+        this.indexes.put(indexedField.getFieldName(), index);
     }
     
-    @SuppressWarnings({ "unchecked", "rawtypes" })
-    private int binarySearch(List<T> sortedView, String fieldName, Comparable requiredFieldValue) {
-        if (sortedView.isEmpty())        { return -1; }
+    /**
+     * Removes the named index from this collection. Any {@link #snapshot() snapshots} are unaffected.
+     *
+     * @return {@code true} if there was such an index, else {@code false}.
+     */
+    public boolean dropIndex(String fieldName) {
+        if (isSnapshot) { throw new UnsupportedOperationException("Cannot change a snapshot of an IndexedCollection."); }
+        if ( !indexes.containsKey(fieldName)) { return false; }
         
-        int lowLimit = 0;
-        int highLimit = sortedView.size() - 1;
-        while (lowLimit <= highLimit) {
-            int middle = (lowLimit + highLimit) / 2;
-            // Are we above or below or at our result?
-            final T objectAtMiddle = sortedView.get(middle);
-            Comparable fieldValueAtMiddle = getFieldValue(fieldName, objectAtMiddle);
-            
-            if (fieldValueAtMiddle.compareTo(requiredFieldValue) < 0) {
-                lowLimit = middle + 1;
-            }
-            else if (fieldValueAtMiddle.compareTo(requiredFieldValue) > 0) {
-                highLimit = middle - 1;
-            }
-            else {
-                return middle;
-            }
+        prepareForWrite();
+        this.indexes.remove(fieldName);
+        return true;
+    }
+    
+    private void checkIsNotIndexed(IndexedField<T> indexedField) {
+        if (indexes.containsKey(indexedField.getFieldName())) {
+            throw new IllegalArgumentException("There is already an index called " + indexedField.getFieldName());
         }
-        // Not found.
-        return -1;
     }
     
-    @SuppressWarnings({ "rawtypes" })
-    private List<T> expandToList(List<T> sortedView, String fieldName, int indexOfMatch) {
-        int indexOfFirstMatch = indexOfMatch;
-        int indexOfLastMatch = indexOfMatch;
-        final Comparable valueToMatch = getFieldValue(fieldName, sortedView.get(indexOfMatch));
+    /**
+     * Adds a {@link BuildingIndex} for the provided field, which records every change until the index which is
+     * being built from the current entries can {@link #finishBuildingIndex take its place}.
+     */
+    BuildingIndex<T> startBuildingIndex(IndexedField<T> indexedField) {
+        checkIsNotIndexed(indexedField);
         
-        while (indexOfFirstMatch > 0) {
-            T previousEntry = sortedView.get(indexOfFirstMatch - 1);
-            final Comparable previousFieldValue = getFieldValue(fieldName, previousEntry);
-            if (previousFieldValue.equals(valueToMatch)) {
-                indexOfFirstMatch = indexOfFirstMatch - 1;
-            }
-            else {
-                break;
-            }
+        final BuildingIndex<T> buildingIndex = new BuildingIndex<>(indexedField);
+        prepareForWrite();
+        this.indexes.put(indexedField.getFieldName(), buildingIndex);
+        return buildingIndex;
+    }
+    
+    /**
+     * Replaces the provided {@link BuildingIndex} with the provided index, which was built from the entries as they
+     * were when it was {@link #startBuildingIndex started}, once the changes since then have been applied to it.
+     * If the index has been dropped in the meantime, nothing happens.
+     *
+     * @throws IllegalArgumentException if any of those changes violates a uniqueness constraint, in which case the
+     *                                  index is dropped.
+     */
+    void finishBuildingIndex(BuildingIndex<T> buildingIndex, Index<T> builtIndex) {
+        if (findBuildingIndex(buildingIndex) == null) { return; }
+        
+        prepareForWrite();
+        final String fieldName = buildingIndex.getIndexedField().getFieldName();
+        try {
+            this.indexes.put(fieldName, findBuildingIndex(buildingIndex).replayOnto(builtIndex));
         }
-        while (indexOfLastMatch < sortedView.size() - 1) {
-            T nextEntry = sortedView.get(indexOfLastMatch + 1);
-            if (getFieldValue(fieldName, nextEntry).equals(valueToMatch)) {
-                indexOfLastMatch = indexOfLastMatch + 1;
-            }
-            else {
-                break;
-            }
+        catch (RuntimeException e) {
+            this.indexes.remove(fieldName);
+            throw e;
         }
-        return sortedView.subList(indexOfFirstMatch, indexOfLastMatch + 1);
     }
     
+    /** Drops the provided {@link BuildingIndex}, whose index could not be built. */
+    void abandonBuildingIndex(BuildingIndex<T> buildingIndex) {
+        if (findBuildingIndex(buildingIndex) == null) { return; }
+        
+        prepareForWrite();
+        this.indexes.remove(buildingIndex.getIndexedField().getFieldName());
+    }
+    
+    /** Gets the current copy of the provided {@link BuildingIndex}, or {@code null} if it has been dropped. */
+    private BuildingIndex<T> findBuildingIndex(BuildingIndex<T> buildingIndex) {
+        final Index<T> index = indexes.get(buildingIndex.getIndexedField().getFieldName());
+        return index instanceof BuildingIndex && ((BuildingIndex<T>) index).isStandingInFor(buildingIndex)
+               ? (BuildingIndex<T>) index : null;
+    }
+    
+    /** Gets the indexes of this collection by name, in configuration order. */
+    Map<String, Index<T>> getIndexes() { return Collections.unmodifiableMap(indexes); }
+    
+    /** Leaves stale indexes for the caller to {@link #buildIndexIfStale(String) rebuild}, rather than each query. */
+    void disableBuildingStaleIndexesOnQuery() { this.isBuildingStaleIndexesOnQuery = false; }
+    
     /** {@inheritDoc} */
     @Override public int size()                 { return entries.size(); }
     
     /** {@inheritDoc} */
     @Override public boolean isEmpty()          { return entries.isEmpty(); }
     
-    /** {@inheritDoc} */
+    /** {@inheritDoc} This takes constant time. */
     @Override public boolean contains(Object o) { return entries.contains(o); }
     
-    /** {@inheritDoc} */
-    @Override public Iterator<T> iterator()     { return entries.iterator(); }
+    /** Counts the entries which are equal to the provided object. */
+    int countEqual(Object o)                    { return entries.countEqual(o); }
+    
+    /**
+     * Gets an iterator over the values in this collection, in insertion order. It does not support
+     * {@link Iterator#remove()}, which would leave the indexes out of step with the entries.
+     */
+    @Override public Iterator<T> iterator()     { return Collections.unmodifiableCollection(entries).iterator(); }
     
     /** Get an iterator over the values in this collection, sorted by the values of the specified field name.
      *
      * @param fieldName the name of the field in the Java object {@code <T>} by whose values the sort is required.
      * @return a sorted set of collection entries.
-     * @throws IllegalArgumentException if the specified fieldName is not indexed.
+     * @throws IllegalArgumentException if the specified fieldName is not indexed, or has a {@link IndexType#HASH hash} index.
      */
     public Iterator<T> iteratorSortedBy(String fieldName) {
-        final IndexedField<T> indexedField = indexedFields.get(fieldName);
-        if (indexedField == null) { throw new IllegalArgumentException("Cannot get an iterator sorted by '" +
-                                                                       fieldName + "' as it is not indexed."); }
+        final Index<T> index = indexes.get(fieldName);
+        if (index == null) { throw new IllegalArgumentException("Cannot get an iterator sorted by '" +
+                                                                fieldName + "' as it is not indexed."); }
         
-        final List<T> sortedList = sortedViews.get(indexedField);
-        return sortedList.iterator();
+        if (isBuildingStaleIndexesOnQuery) { index.buildIfStale(entries); }
+        return index.sortedIterator();
     }
     
     /** {@inheritDoc} */
@@ -202,34 +801,18 @@ public class IndexedCollection<T extends Serializable>
     /** {@inheritDoc} */
     @Override public boolean add(T item) {
         validateEntry(item);
+        prepareForWrite();
         
         // Add the item and update the indexes.
         this.entries.add(item);
-        reindex();
+        for (Index<T> index : indexes.values()) {
+            index.add(item);
+        }
         
         // We always accept the item and therefore always change the collection.
         return true;
     }
     
-    @SuppressWarnings("unchecked")
-    private void reindex() {
-        for (IndexedField<T> indexField : indexedFields.values()) {
-            final String fieldName = indexField.getFieldName();
-            
-            // The easiest way to make this work is to clear the list every time. TODO Better alternative?
-            final List<T> view = sortedViews.get(indexField);
-            view.clear();
-            
-            // Add every entry to the list
-            for (T entry : entries) {
-                view.add(entry);
-            }
-            
-            // and sort the view by the appropriate algorithm
-            Collections.sort(view, new FieldBasedComparator(fieldName));
-        }
-    }
-    
     /**
      * This method ensures that the configured indexers can all be applied to the provided object.
      * 
@@ -238,55 +821,54 @@ public class IndexedCollection<T extends Serializable>
      * @throws ClassCastException if any index operates on a field which does not implement Comparable.
      */
     private void validateEntry(T item) {
-        Class<?> itemClass = item.getClass();
+        validateEntryFields(item);
         
-        for (IndexedField<T> indexedField : indexedFields.values()) {
-            // What Java field does this index use?
-            final String fieldName = indexedField.getFieldName();
-            
-            // What is the type of that field?
-            final Field field = getDeclaredField(itemClass, fieldName);
-            
-            final Class<?> fieldClass = field.getType();
+        for (Index<T> index : indexes.values()) {
+            final IndexedField<T> indexedField = index.getIndexedField();
             
-            // The indexers use a sorted list view of the entries to provide efficient searching.
-            // Therefore all indexed fields in the entries must be Comparable.
-            // TODO Could add support for Comparators.
-            if ( !Comparable.class.isAssignableFrom(fieldClass)) {
-                throw new ClassCastException("Field " + fieldName + " does not implement Comparable.");
-            }
-            
-            if (indexedField.isValueUnique) {
+            if (indexedField.isValueUnique()) {
+                final Object fieldValue = indexedField.getKey(item);
+                
                 // Does the collection already contain any entry with a matching value for this field?
-                if (findOne(fieldName, getFieldValue(fieldName, item)) != null)
+                if (index.containsKey(fieldValue))
                 {
-                    throw new IllegalArgumentException("Cannot add element " + item + " as there is already an entry with " +
-                                                       fieldName + " = " + getFieldValue(fieldName, item));
+                    throw index.uniquenessViolation(item, fieldValue);
                 }
             }
         }
     }
     
-    private Field getDeclaredField(Class<?> itemClass, final String fieldName) {
-        final Field field;
-        try {
-            field = itemClass.getDeclaredField(fieldName);
-        }
-        catch (NoSuchFieldException e) {
-            throw new IllegalArgumentException("Entry of type " + itemClass.getSimpleName() +
-                                               " does not have declared field named " + fieldName, e);
-        } catch (SecurityException e)
-        {
-            throw new IllegalArgumentException("Error accessing fields of class", e);
+    /**
+     * This method ensures that the configured indexers can all be applied to the provided object,
+     * without regard to any uniqueness constraints.
+     * 
+     * @throws IllegalArgumentException if any indexer cannot be applied.
+     * @throws ClassCastException if any index operates on a field which does not implement Comparable.
+     */
+    private void validateEntryFields(T item) {
+        for (Index<T> index : indexes.values()) {
+            index.validate(item);
         }
-        return field;
     }
     
-    /** {@inheritDoc} */
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The entry is found in constant time, and is then removed from each index, which takes logarithmic time to
+     * find it there. As with a {@link java.util.HashSet}, an entry which has been changed in a way which affects its
+     * {@code equals} or {@code hashCode} since it was added can no longer be found.
+     */
     @Override public boolean remove(Object o) {
-        boolean result = this.entries.remove(o);
-        reindex();
-        return result;
+        if (isSnapshot) { throw new UnsupportedOperationException("Cannot change a snapshot of an IndexedCollection."); }
+        if ( !this.entries.contains(o)) { return false; }
+        
+        prepareForWrite();
+        // Remove the object reference we actually hold, which may not be the same as the one provided.
+        final T removedEntry = this.entries.removeEqual(o);
+        for (Index<T> index : indexes.values()) {
+            index.remove(removedEntry);
+        }
+        return true;
     }
     
     /** {@inheritDoc} */
@@ -299,87 +881,218 @@ public class IndexedCollection<T extends Serializable>
         return true;
     }
     
-    /** {@inheritDoc} */
+    /**
+     * Adds all of the provided items to this collection as a single bulk load. The whole batch is validated,
+     * including any uniqueness constraints both within the batch and against existing entries, before the
+     * collection is changed. So if this method throws an exception, none of the items will have been added.
+     * <p/>
+     * Each index is then updated once, which is considerably cheaper than adding the items one at a time.
+     * A sorted index sorts the batch and merges it into the existing sorted view. A batch which is already
+     * sorted by an indexed field is recognised as such by the (stable) sort and costs only a linear pass.
+     * <p/>
+     * A large batch is sorted by a parallel merge sort, and the indexes are prepared and updated in parallel with
+     * each other, on the common {@link ForkJoinPool}. So loading a large collection with several indexes, such as
+     * at startup, scales with the number of cores.
+     * 
+     * @throws IllegalArgumentException if any indexer cannot be applied to any of the items.
+     * @throws IllegalArgumentException if any of the items would violate any uniqueness constraint.
+     * @throws ClassCastException if any index operates on a field which does not implement Comparable.
+     */
     @Override public boolean addAll(Collection<? extends T> c) {
-        for (T entry : c) {
-            // TODO This will lead to a reindexing on every add(). It would be better to prevent that.
-            add(entry);
+        if (c.isEmpty()) { return false; }
+        
+        prepareAddAll(c).run();
+        return true;
+    }
+    
+    /**
+     * Validates a batch of items as {@link #addAll(Collection)} does, without changing the contents of this
+     * collection, so that several collections can validate their batches before any of them is changed.
+     * 
+     * @return an action which will add the batch to this collection when run, provided that nothing else
+     *         changes this collection in the meantime.
+     * @see #addAll(Collection)
+     */
+    Runnable prepareAddAll(Collection<? extends T> c) {
+        // The index updates prepared below are bound to the current indexes, so we must copy them first if need be.
+        prepareForWrite();
+        
+        final List<T> batch = new ArrayList<>(c);
+        for (T item : batch) {
+            validateEntryFields(item);
+        }
+        
+        // Prepare each index for the batch, checking the uniqueness constraints as we go.
+        final List<Supplier<Runnable>> indexPreparations = new ArrayList<>(indexes.size());
+        for (Index<T> index : indexes.values()) {
+            indexPreparations.add(() -> index.prepareAddAll(batch));
         }
-        return !c.isEmpty();
+        final boolean isParallel = batch.size() >= Index.MIN_PARALLEL_BATCH_SIZE && indexes.size() > 1;
+        final List<Runnable> indexUpdates = isParallel ? runInParallel(indexPreparations) : run(indexPreparations);
+        
+        // The batch is valid, so now we can add it.
+        return () -> {
+            if (isParallel) {
+                final List<Supplier<Void>> updates = new ArrayList<>(indexUpdates.size() + 1);
+                updates.add(() -> { this.entries.addAll(batch); return null; });
+                for (Runnable indexUpdate : indexUpdates) {
+                    updates.add(() -> { indexUpdate.run(); return null; });
+                }
+                runInParallel(updates);
+            }
+            else {
+                this.entries.addAll(batch);
+                for (Runnable indexUpdate : indexUpdates) {
+                    indexUpdate.run();
+                }
+            }
+        };
     }
     
-    /** {@inheritDoc} */
-    @Override public boolean retainAll(Collection<?> c) {
-        boolean result = this.entries.retainAll(c);
-        reindex();
-        return result;
+    private static <R> List<R> run(List<Supplier<R>> tasks) {
+        final List<R> results = new ArrayList<>(tasks.size());
+        for (Supplier<R> task : tasks) {
+            results.add(task.get());
+        }
+        return results;
     }
     
-    /** {@inheritDoc} */
-    @Override public boolean removeAll(Collection<?> c) {
-        boolean result = false;
-        for (Object entry : c) {
-            if (remove(entry)) { result = true; };
+    /**
+     * Runs the provided tasks in parallel on the common {@link ForkJoinPool}, which is safe for tasks which each
+     * read or change a different index. If any of them fail, the exception from the first of them is rethrown once
+     * they have all finished, just as if they had been run in order on this thread.
+     * 
+     * @return the results of the tasks, in order.
+     */
+    private static <R> List<R> runInParallel(List<Supplier<R>> tasks) {
+        final List<CompletableFuture<R>> futures = new ArrayList<>(tasks.size());
+        for (Supplier<R> task : tasks) {
+            futures.add(CompletableFuture.supplyAsync(task, ForkJoinPool.commonPool()));
         }
-        return result;
+        
+        final List<R> results = new ArrayList<>(tasks.size());
+        RuntimeException firstFailure = null;
+        for (CompletableFuture<R> future : futures) {
+            try {
+                results.add(future.join());
+            }
+            catch (CompletionException e) {
+                if (firstFailure == null) {
+                    firstFailure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                }
+            }
+        }
+        if (firstFailure != null) { throw firstFailure; }
+        return results;
     }
     
-    /** {@inheritDoc} */
-    @Override public void clear() {
-        this.entries.clear();
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The provided collection is hashed once, unless it is already a {@code Set}, and the entries are then
+     * filtered in a single pass. Each index is filtered in a single pass too, which retains its order.
+     */
+    @Override public boolean retainAll(Collection<?> c) {
+        final Collection<?> toRetain = c instanceof Set ? c : new HashSet<>(c);
+        return removeIf(entry -> !toRetain.contains(entry));
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Every entry equal to any of the provided objects is found in constant time, and then each index is filtered
+     * in a single pass, which retains its order. This is considerably cheaper than removing them one at a time.
+     */
+    @Override public boolean removeAll(Collection<?> c) {
+        if (isSnapshot) { throw new UnsupportedOperationException("Cannot change a snapshot of an IndexedCollection."); }
         
-        // Let's retain the Maps for each of the indexers, but just clear out the data in the sorted views.
-        for (Map.Entry<IndexedField<T>, List<T>> sortedView : sortedViews.entrySet()) {
-            sortedView.getValue().clear();
+        final Set<T> removedEntries = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Object o : c) {
+            // Entries shared with a snapshot are only copied once we know that one of them will be removed.
+            if (removedEntries.isEmpty() && this.entries.contains(o)) { prepareForWrite(); }
+            this.entries.removeAllEqual(o, removedEntries);
         }
+        return unindex(removedEntries);
     }
     
-    @SuppressWarnings("rawtypes")
-    private Comparable getFieldValue(String fieldName, Object object) {
-        final Field declaredField = getDeclaredField(object.getClass(), fieldName);
-        declaredField.setAccessible(true);
+    /**
+     * Removes all of the entries which satisfy the provided predicate, with a single pass over the entries and
+     * over each index. If the predicate throws an exception, none of the entries will have been removed.
+     */
+    @Override public boolean removeIf(Predicate<? super T> filter) {
+        if (isSnapshot) { throw new UnsupportedOperationException("Cannot change a snapshot of an IndexedCollection."); }
         
-        Object fieldValue;
-        try
-        {
-            fieldValue = declaredField.get(object);
-        } catch (IllegalAccessException e)
-        {
-            throw new IllegalArgumentException("Illegal access to field.", e);
+        final Set<T> removedEntries = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (T entry : this.entries) {
+            if (filter.test(entry)) { removedEntries.add(entry); }
         }
+        if (removedEntries.isEmpty()) { return false; }
         
-        return (Comparable) fieldValue;
+        prepareForWrite();
+        this.entries.removeIf(removedEntries::contains);
+        return unindex(removedEntries);
     }
     
-    @SuppressWarnings("rawtypes")
-    private class FieldBasedComparator implements Comparator {
-        private final String fieldName;
+    /**
+     * Removes the provided entries, which have already been removed from {@link #entries}, from each index.
+     * 
+     * @return {@code true} if there were any such entries.
+     */
+    private boolean unindex(Set<T> removedEntries) {
+        if (removedEntries.isEmpty()) { return false; }
         
-        public FieldBasedComparator(String fieldName) { this.fieldName = fieldName; }
+        for (Index<T> index : indexes.values()) {
+            index.removeAll(removedEntries);
+        }
+        return true;
+    }
+    
+    /** {@inheritDoc} */
+    /**
+     * Removes all entries, retaining the indexes. If the entries and indexes are still shared with a snapshot,
+     * they are replaced with empty ones, rather than copied first only to be cleared.
+     */
+    @Override public void clear() {
+        if (isSnapshot) { throw new UnsupportedOperationException("Cannot change a snapshot of an IndexedCollection."); }
         
-        @SuppressWarnings("unchecked")
-        @Override public int compare(Object o1, Object o2) {
-            if (o1 == null || o2 == null) { throw new NullPointerException("Cannot compare a null value."); }
-            
-            if ( !o1.getClass().equals(o2.getClass())) { throw new ClassCastException("Cannot compare two objects of different classes."); }
-            
-            // Now to get the field values and compare them...
-            final Comparable fieldValue1 = getFieldValue(fieldName, o1);
-            final Comparable fieldValue2 = getFieldValue(fieldName, o2);
-            
-            // Special handling for null-valued fields.
-            if (fieldValue1 == null && fieldValue2 == null) {
-                return 0;
-            }
-            else if (fieldValue1 == null) {
-                return -1;
-            }
-            else if (fieldValue2 == null) {
-                return 1;
+        if (isSharedWithSnapshot) {
+            final Map<String, Index<T>> emptyIndexes = new LinkedHashMap<>();
+            for (Map.Entry<String, Index<T>> index : indexes.entrySet()) {
+                emptyIndexes.put(index.getKey(), index.getValue().emptyCopy());
             }
-            else {
-                return fieldValue1.compareTo(fieldValue2);
+            this.entries = new EntryTable<>();
+            this.indexes = emptyIndexes;
+            this.isSharedWithSnapshot = false;
+            return;
+        }
+        
+        this.entries.clear();
+        
+        // Let's retain the indexes, but just clear out their data.
+        for (Index<T> index : indexes.values()) {
+            index.clear();
+        }
+    }
+    
+    /**
+     * Writes this collection, replacing any index which is still {@link BuildingIndex being built} in the
+     * background with one built from the entries being written, as the changes it records cannot be written.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        Map<String, Index<T>> indexesToWrite = this.indexes;
+        for (Map.Entry<String, Index<T>> index : indexes.entrySet()) {
+            if (index.getValue() instanceof BuildingIndex) {
+                if (indexesToWrite == this.indexes) { indexesToWrite = new LinkedHashMap<>(indexes); }
+                indexesToWrite.put(index.getKey(), Index.build(index.getValue().getIndexedField(), new ArrayList<>(entries)));
             }
         }
+        
+        final ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("entries",                       entries);
+        fields.put("indexes",                       indexesToWrite);
+        fields.put("isSnapshot",                    isSnapshot);
+        fields.put("isFrozen",                      isFrozen);
+        fields.put("isBuildingStaleIndexesOnQuery", isBuildingStaleIndexesOnQuery);
+        out.writeFields();
     }
 }
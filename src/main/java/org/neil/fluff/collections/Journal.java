@@ -0,0 +1,579 @@
+package org.neil.fluff.collections;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * A write-ahead journal of the changes to a {@link ConcurrentIndexedCollection}, which makes them durable without
+ * writing out the whole collection. Each change is appended as a single binary record, and the writer waits until
+ * that record has been forced to disk. Records are appended under the write lock of the collection, so they are in
+ * the same order as the changes, but forced after it has been released.
+ * <p/>
+ * Forcing is a <em>group commit</em>: one writer forces every record which has been appended so far, and any
+ * writers which append records meanwhile wait for it and then share the next force. So a single force can make
+ * the changes of many writers durable, and the more writers there are, the fewer forces each one needs. The
+ * writer which forces can also wait for a short <em>commit window</em> first, so that more records join it.
+ * <p/>
+ * The journal is kept in a directory, in <em>generations</em>. The snapshot of a generation holds the collection as
+ * it was when the journal of that generation began, and is written by a {@link #checkpoint(Supplier) checkpoint}
+ * once the journal has grown beyond a maximum length, at which point the files of the older generations are
+ * deleted. The collection is {@link #recover(Path, IndexedField[]) recovered} from the latest snapshot and the
+ * journals written since, so recovery never has to replay much more than the maximum length of a journal.
+ * <p/>
+ * Each record is made up of the length of its body, a CRC-32 checksum of the body, and the body itself: the
+ * {@link Op operation}, the number of entries and then the entries, as a Java serialization stream. A crash can
+ * leave the last record of the journal incomplete, in which case recovery discards it, as its change was never
+ * acknowledged.
+ *
+ * @author Neil Mc Erlean
+ */
+final class Journal implements Closeable {
+    /** The operations which are recorded in the journal, each of which is replayed by the same change. */
+    enum Op { ADD, REMOVE, REMOVE_ALL, CLEAR }
+    
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private static final String JOURNAL_PREFIX  = "journal-";
+    private static final String JOURNAL_SUFFIX  = ".log";
+    
+    /** The size of the length and the checksum which precede the body of each record. */
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+    
+    /**
+     * The size of the shortest possible body, which is the op and the header of a serialization stream. A crash
+     * often leaves zeros at the end of a file, which look like a record with an empty body whose checksum matches.
+     */
+    private static final int MIN_BODY_LENGTH = 1 + 4;
+    
+    private final Path directory;
+    private final long commitWindowNanos;
+    private final long maxLength;
+    
+    /** The records which have been appended but not yet written to the channel. Guarded by this. */
+    private final ByteArrayOutputStream unwrittenRecords = new ByteArrayOutputStream();
+    
+    /** The journal of the current generation, which is only written or forced by the thread which {@link #isForcing}. */
+    private FileChannel channel;
+    
+    private int generation;
+    
+    /** The length of the journal of the current generation, including unwritten records. Guarded by this. */
+    private long length;
+    
+    /**
+     * The position after the last record appended, counting the records of every generation since this journal
+     * was opened, so that it only ever increases. Guarded by this.
+     */
+    private long appendedPosition;
+    
+    /** The position up to which every record is known to have been forced. */
+    private volatile long forcedPosition;
+    
+    /** Guards {@link #isForcing}, and signals {@link #forceFinished} whenever a thread finishes forcing. */
+    private final ReentrantLock forceLock      = new ReentrantLock();
+    private final Condition     forceFinished  = forceLock.newCondition();
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    
+    /**
+     * Is a thread writing or forcing the channel, which only one may do at a time? Threads which are waiting for
+     * that thread do not hold a lock meanwhile, so that every one whose record it forces can return as soon as it
+     * finishes, rather than some of them queueing behind the next thread to force. Guarded by forceLock.
+     */
+    private boolean isForcing;
+    
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong forceCount  = new AtomicLong();
+    
+    /** The failure of the last automatic checkpoint, which is thrown by the next explicit one. Guarded by checkpointLock. */
+    private IOException checkpointFailure;
+    
+    private boolean isClosed;
+    
+    /**
+     * The failure to write or force records, which may have lost them, so that no later change can be acknowledged
+     * as durable. Guarded by this.
+     */
+    private IOException writeFailure;
+    
+    private Journal(Path directory, long commitWindowNanos, long maxLength, int generation, FileChannel channel,
+                    long length) {
+        this.directory         = directory;
+        this.commitWindowNanos = commitWindowNanos;
+        this.maxLength         = maxLength;
+        this.generation        = generation;
+        this.channel           = channel;
+        this.length            = length;
+    }
+    
+    /**
+     * Opens the journal in the specified directory, which must already have been {@link #recover(Path, IndexedField[])
+     * recovered}, to append records after those which it already holds.
+     *
+     * @param commitWindowNanos how long the writer which forces the journal waits first for others to join it.
+     * @param maxLength the length beyond which the journal is due to be {@link #checkpoint(Supplier) checkpointed}.
+     */
+    static Journal open(Path directory, long commitWindowNanos, long maxLength) throws IOException {
+        if (commitWindowNanos < 0) { throw new IllegalArgumentException("Illegal commit window: " + commitWindowNanos); }
+        if (maxLength < 1)         { throw new IllegalArgumentException("Illegal maximum journal length: " + maxLength); }
+        
+        final TreeMap<Integer, Path> journals  = generationsOf(directory, JOURNAL_PREFIX, JOURNAL_SUFFIX);
+        final TreeMap<Integer, Path> snapshots = generationsOf(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        final int generation = Math.max(journals.isEmpty()  ? 0 : journals.lastKey(),
+                                        snapshots.isEmpty() ? 0 : snapshots.lastKey());
+        final FileChannel channel = openChannel(directory, generation);
+        return new Journal(directory, commitWindowNanos, maxLength, generation, channel, channel.size());
+    }
+    
+    private static FileChannel openChannel(Path directory, int generation) throws IOException {
+        final FileChannel channel = FileChannel.open(directory.resolve(JOURNAL_PREFIX + generation + JOURNAL_SUFFIX),
+                                                     StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return channel;
+    }
+    
+    /** Gets the files of the specified kind in the directory, by generation. */
+    private static TreeMap<Integer, Path> generationsOf(Path directory, String prefix, String suffix) throws IOException {
+        final TreeMap<Integer, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path path : paths) {
+                final String name = path.getFileName().toString();
+                try {
+                    files.put(Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length())), path);
+                }
+                catch (NumberFormatException e) {
+                    // This is not one of ours.
+                }
+            }
+        }
+        return files;
+    }
+    
+    /**
+     * Recovers a collection with the provided indexes from the specified directory, by reading its latest snapshot,
+     * if there is one, and then replaying the journals written since, as a {@link JournalReplay}. An incomplete
+     * record at the end of the last journal is discarded, and the journal truncated before it, so that new records
+     * can follow those replayed.
+     *
+     * @throws StreamCorruptedException if a snapshot is corrupt, or a journal other than the last holds a bad record.
+     */
+    static <T extends Serializable> IndexedCollection<T> recover(Path directory, IndexedField<T>[] indexedFields)
+                                                                               throws IOException, ClassNotFoundException {
+        Files.createDirectories(directory);
+        final TreeMap<Integer, Path> snapshots = generationsOf(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        final int generation = snapshots.isEmpty() ? 0 : snapshots.lastKey();
+        final JournalReplay<T> replay = new JournalReplay<>(snapshots.isEmpty() ? null : snapshots.lastEntry().getValue(),
+                                                            indexedFields);
+        
+        final TreeMap<Integer, Path> journals = generationsOf(directory, JOURNAL_PREFIX, JOURNAL_SUFFIX);
+        for (Map.Entry<Integer, Path> journal : journals.tailMap(generation, true).entrySet()) {
+            replay(journal.getValue(), replay, journal.getKey().equals(journals.lastKey()));
+        }
+        final IndexedCollection<T> collection = replay.finish();
+        
+        // Anything older than the latest snapshot was left behind by a checkpoint which did not finish deleting it.
+        deleteGenerationsBefore(directory, generation);
+        return collection;
+    }
+    
+    private static void replay(Path path, JournalReplay<?> replay, boolean isLast) throws IOException, ClassNotFoundException {
+        long position = 0L;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            final long size = Files.size(path);
+            while (position < size) {
+                final byte[] body = readRecord(in, size - position);
+                if (body == null) {
+                    if ( !isLast) { throw new StreamCorruptedException(path + " holds a corrupt record at " + position); }
+                    break;
+                }
+                replay.add(body);
+                position += RECORD_HEADER_SIZE + body.length;
+            }
+        }
+        if (isLast && position < Files.size(path)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(position);
+                channel.force(false);
+            }
+        }
+    }
+    
+    /**
+     * Reads the body of the next record, which must fit in the specified number of remaining bytes.
+     *
+     * @return the body, or {@code null} if the record is incomplete or its checksum does not match.
+     */
+    private static byte[] readRecord(DataInputStream in, long remaining) throws IOException {
+        if (remaining < RECORD_HEADER_SIZE) { return null; }
+        
+        final int bodyLength = in.readInt();
+        final int checksum   = in.readInt();
+        if (bodyLength < MIN_BODY_LENGTH || bodyLength > remaining - RECORD_HEADER_SIZE) { return null; }
+        
+        final byte[] body = new byte[bodyLength];
+        try {
+            in.readFully(body);
+        }
+        catch (EOFException e) {
+            return null;
+        }
+        return checksumOf(body, bodyLength) == checksum ? body : null;
+    }
+    
+    private static int checksumOf(byte[] bytes, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+    
+    /** A change to the collection, as decoded from the body of a record. */
+    static final class Change<T> {
+        final Op      op;
+        final List<T> entries;
+        
+        Change(Op op, List<T> entries) {
+            this.op      = op;
+            this.entries = entries;
+        }
+    }
+    
+    /** Decodes the body of a record, which has been checked against its checksum. */
+    @SuppressWarnings("unchecked")
+    static <T> Change<T> decode(byte[] body) throws IOException, ClassNotFoundException {
+        if (body[0] < 0 || body[0] >= Op.values().length) { throw new StreamCorruptedException("Unknown op " + body[0]); }
+        
+        final Op op = Op.values()[body[0]];
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(body, 1, body.length - 1))) {
+            final int count = in.readInt();
+            final List<T> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add((T) in.readObject());
+            }
+            return new Change<>(op, entries);
+        }
+    }
+    
+    /**
+     * Encodes the record of a change, which can be done before the change is applied, and without any lock.
+     *
+     * @param entries the entries added or removed, or those whose equal entries are all removed.
+     * @throws UncheckedIOException if any of the entries cannot be serialized.
+     */
+    static byte[] encode(Op op, Collection<?> entries) {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(op.ordinal());
+        try {
+            try (ObjectOutputStream out = new ObjectOutputStream(body)) {
+                out.writeInt(entries.size());
+                for (Object entry : entries) {
+                    out.writeObject(entry);
+                }
+            }
+            final byte[] bodyBytes = body.toByteArray();
+            final ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_HEADER_SIZE + bodyBytes.length);
+            final DataOutputStream out = new DataOutputStream(record);
+            out.writeInt(bodyBytes.length);
+            out.writeInt(checksumOf(bodyBytes, bodyBytes.length));
+            out.write(bodyBytes);
+            return record.toByteArray();
+        }
+        catch (IOException e) {
+            // Writing to an array cannot fail, but serializing an entry can.
+            throw new UncheckedIOException("Cannot journal " + op + " of " + entries, e);
+        }
+    }
+    
+    /**
+     * Appends the {@link #encode(Op, Collection) record} of a change, which has just been applied to the collection.
+     * The caller must hold the write lock of the collection, so that the records are in the same order as the changes.
+     *
+     * @return the position to which the journal must be {@link #force(long) forced} for the change to be durable.
+     * @throws IllegalStateException if this journal has been closed.
+     */
+    synchronized long append(byte[] record) {
+        checkIsOpen();
+        
+        unwrittenRecords.write(record, 0, record.length);
+        this.length           += record.length;
+        this.appendedPosition += record.length;
+        recordCount.incrementAndGet();
+        return appendedPosition;
+    }
+    
+    /**
+     * Waits until every record up to the specified position has been forced to disk. If no other writer is forcing
+     * the journal, this one writes and forces every record appended so far, including those of other writers.
+     * Otherwise it waits for that writer, whose force may already include its record.
+     *
+     * @throws IOException if the records could not be forced, including when another writer failed to force them,
+     *                     or the journal was closed without them.
+     */
+    void force(long position) throws IOException {
+        if (forcedPosition >= position || !startForcing(position)) { return; }
+        
+        try {
+            if (commitWindowNanos > 0) { LockSupport.parkNanos(commitWindowNanos); }
+            final byte[] records;
+            final long recordsPosition;
+            synchronized (this) {
+                if (writeFailure != null) {
+                    throw new IOException("The journal in " + directory + " could not be forced, so its later records were lost.",
+                                          writeFailure);
+                }
+                if (isClosed) { throw new IOException("The journal in " + directory + " was closed before its records were forced."); }
+                
+                records         = unwrittenRecords.toByteArray();
+                recordsPosition = appendedPosition;
+                unwrittenRecords.reset();
+            }
+            try {
+                writeFully(channel, ByteBuffer.wrap(records));
+                channel.force(false);
+            }
+            catch (IOException e) {
+                synchronized (this) { this.writeFailure = e; }
+                throw e;
+            }
+            forceCount.incrementAndGet();
+            this.forcedPosition = recordsPosition;
+        }
+        finally {
+            finishForcing();
+        }
+    }
+    
+    /**
+     * Waits until no other thread is forcing the channel and then starts to, unless every record up to the specified
+     * position has been forced meanwhile.
+     *
+     * @return {@code true} if this thread must now write and force the channel, and then {@link #finishForcing()}.
+     */
+    private boolean startForcing(long position) {
+        forceLock.lock();
+        try {
+            while (isForcing && forcedPosition < position) {
+                forceFinished.awaitUninterruptibly();
+            }
+            if (forcedPosition >= position) { return false; }
+            
+            this.isForcing = true;
+            return true;
+        }
+        finally {
+            forceLock.unlock();
+        }
+    }
+    
+    private void finishForcing() {
+        forceLock.lock();
+        try {
+            this.isForcing = false;
+            forceFinished.signalAll();
+        }
+        finally {
+            forceLock.unlock();
+        }
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    /** Has the journal of the current generation grown beyond the maximum length, so that it is due a checkpoint? */
+    synchronized boolean isDueForCheckpoint() { return length > maxLength; }
+    
+    /**
+     * Forces every record appended so far, and then starts the next generation of the journal. The caller must
+     * hold the write lock of the collection, and must then write a snapshot of the collection as it is now, which
+     * is the start of the new generation, by way of {@link #checkpoint(Supplier)}.
+     *
+     * @throws UncheckedIOException if the journal cannot be forced, or the new journal cannot be created.
+     */
+    void startNextGeneration() {
+        startForcing(Long.MAX_VALUE);
+        try {
+            synchronized (this) {
+                checkIsOpen();
+                try {
+                    final byte[] records = unwrittenRecords.toByteArray();
+                    unwrittenRecords.reset();
+                    writeFully(channel, ByteBuffer.wrap(records));
+                    channel.force(false);
+                    channel.close();
+                    this.forcedPosition = appendedPosition;
+                    
+                    this.channel = openChannel(directory, generation + 1);
+                    this.generation++;
+                    this.length = 0L;
+                    forceDirectory(directory);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+        finally {
+            finishForcing();
+        }
+    }
+    
+    /**
+     * Writes a snapshot of the collection for the next generation of the journal, and then deletes the files of the
+     * older generations, which it supersedes. Only one checkpoint runs at a time.
+     *
+     * @param snapshotter takes a snapshot of the collection and {@link #startNextGeneration() starts} the next
+     *                    generation of the journal, holding the write lock of the collection throughout.
+     */
+    void checkpoint(Supplier<IndexedCollection<?>> snapshotter) throws IOException {
+        checkpointLock.lock();
+        try {
+            final IOException failure = checkpointFailure;
+            this.checkpointFailure = null;
+            if (failure != null) { throw failure; }
+            
+            writeCheckpoint(snapshotter);
+        }
+        finally {
+            checkpointLock.unlock();
+        }
+    }
+    
+    /**
+     * Checkpoints the journal as {@link #checkpoint(Supplier)} does, unless another checkpoint is running. Any
+     * failure is kept, to be thrown by the next call to {@code checkpoint}, as the caller is not waiting for this one.
+     */
+    void checkpointInBackground(Supplier<IndexedCollection<?>> snapshotter) {
+        if ( !checkpointLock.tryLock()) { return; }
+        try {
+            if (isDueForCheckpoint()) { writeCheckpoint(snapshotter); }
+        }
+        catch (IOException e) {
+            this.checkpointFailure = e;
+        }
+        catch (UncheckedIOException e) {
+            this.checkpointFailure = e.getCause();
+        }
+        finally {
+            checkpointLock.unlock();
+        }
+    }
+    
+    private void writeCheckpoint(Supplier<IndexedCollection<?>> snapshotter) throws IOException {
+        final IndexedCollection<?> snapshot;
+        final int snapshotGeneration;
+        try {
+            snapshot = snapshotter.get();
+            synchronized (this) { snapshotGeneration = generation; }
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        
+        // The snapshot only replaces those of older generations once it is completely on disk.
+        final Path snapshotPath = directory.resolve(SNAPSHOT_PREFIX + snapshotGeneration + SNAPSHOT_SUFFIX);
+        final Path partialPath  = directory.resolve(SNAPSHOT_PREFIX + snapshotGeneration + SNAPSHOT_SUFFIX + ".partial");
+        snapshot.writeSnapshot(partialPath);
+        try (FileChannel partial = FileChannel.open(partialPath, StandardOpenOption.WRITE)) {
+            partial.force(true);
+        }
+        Files.move(partialPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(directory);
+        deleteGenerationsBefore(directory, snapshotGeneration);
+    }
+    
+    /**
+     * Forces the creation or renaming of a file in the directory to disk, where the platform allows a directory to
+     * be opened, as Linux does. Elsewhere this is left to the file system.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            // Directories cannot be opened on this platform.
+        }
+    }
+    
+    private static void deleteGenerationsBefore(Path directory, int generation) throws IOException {
+        for (Path path : generationsOf(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(generation).values()) {
+            Files.delete(path);
+        }
+        for (Path path : generationsOf(directory, JOURNAL_PREFIX, JOURNAL_SUFFIX).headMap(generation).values()) {
+            Files.delete(path);
+        }
+    }
+    
+    /** Gets the number of records which have been appended since this journal was opened. */
+    long getRecordCount() { return recordCount.get(); }
+    
+    /** Gets the number of times this journal has been forced to disk since it was opened. */
+    long getForceCount() { return forceCount.get(); }
+    
+    /** @throws IllegalStateException if this journal has been closed, or has failed to force records. */
+    synchronized void checkIsOpen() {
+        if (isClosed)             { throw new IllegalStateException("The journal in " + directory + " has been closed."); }
+        if (writeFailure != null) {
+            throw new IllegalStateException("The journal in " + directory + " could not be forced, so it can record no more changes.",
+                                            writeFailure);
+        }
+    }
+    
+    /** Forces every record appended so far, and closes the journal, after which no more changes can be recorded. */
+    @Override public void close() throws IOException {
+        startForcing(Long.MAX_VALUE);
+        try {
+            synchronized (this) {
+                if (isClosed) { return; }
+                
+                this.isClosed = true;
+                try {
+                    // Records which follow a failed write are not forced, so their writers learn that they were lost.
+                    if (writeFailure == null) {
+                        writeFully(channel, ByteBuffer.wrap(unwrittenRecords.toByteArray()));
+                        unwrittenRecords.reset();
+                        channel.force(false);
+                        this.forcedPosition = appendedPosition;
+                    }
+                }
+                finally {
+                    channel.close();
+                }
+            }
+        }
+        finally {
+            finishForcing();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package org.neil.fluff.collections;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+import org.neil.fluff.collections.Journal.Change;
+
+/**
+ * Replays the records of a {@link Journal} on top of its latest snapshot, as part of
+ * {@link Journal#recover(Path, IndexedField[]) recovery}. Decoding the records is most of the cost of replaying
+ * them, so they are gathered into <em>segments</em> of about a megabyte, each of which is decoded on the common
+ * {@link ForkJoinPool} while the journal is still being read. The snapshot is read in parallel too.
+ * <p/>
+ * The decoded changes are then <em>folded</em>, in order, into their net effect, which is applied to the snapshot
+ * just once at the end. The entries added are held in an {@link EntryTable}, so an entry which is added and later
+ * removed simply cancels out. Removals of entries in the snapshot are counted, and then removed in a single pass.
+ * The remaining entries are then added as a single batch, which builds or merges each index just once, rather than
+ * once per record. The result is the same, entries in the same order, as replaying each change in turn, since a
+ * removal takes the earliest equal entry, which is in the snapshot if there is one left there.
+ *
+ * @param <T> the type of entries in the collection.
+ *
+ * @author Neil Mc Erlean
+ */
+final class JournalReplay<T extends Serializable> {
+    /** The length of the records gathered into a segment before it is decoded. */
+    private static final int SEGMENT_LENGTH = 1 << 20;
+    
+    /** The maximum number of segments being decoded at once, which bounds the memory they take up. */
+    private static final int MAX_DECODING_SEGMENTS = 2 * ForkJoinPool.getCommonPoolParallelism() + 1;
+    
+    private final CompletableFuture<IndexedCollection<T>> snapshot;
+    
+    /** The segments being decoded, in journal order. */
+    private final ArrayDeque<CompletableFuture<List<Change<T>>>> decodingSegments = new ArrayDeque<>();
+    
+    private List<byte[]> segment = new ArrayList<>();
+    private int          segmentLength;
+    
+    /** Has the collection been cleared, so that none of the entries in the snapshot are left? */
+    private boolean isSnapshotCleared;
+    
+    /** The number of entries equal to each value which have been removed from the snapshot. */
+    private final Map<Object, Integer> snapshotRemovals = new HashMap<>();
+    
+    /** The entries which have been added, and not since removed, in the order in which they were added. */
+    private final EntryTable<T> additions = new EntryTable<>();
+    
+    /**
+     * @param snapshotPath the latest snapshot, which is read in the background, or {@code null} if there is none.
+     */
+    JournalReplay(Path snapshotPath, IndexedField<T>[] indexedFields) {
+        this.snapshot = snapshotPath == null ? CompletableFuture.completedFuture(new IndexedCollection<>(indexedFields)) :
+                        inBackground(() -> {
+                            try {
+                                return IndexedCollection.readSnapshot(snapshotPath, indexedFields);
+                            }
+                            catch (IOException | ClassNotFoundException e) {
+                                throw new CompletionException(e);
+                            }
+                        });
+    }
+    
+    private static <R> CompletableFuture<R> inBackground(Supplier<R> task) {
+        return CompletableFuture.supplyAsync(task, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Adds the body of the next record in the journal, which has been checked against its checksum. This may fold
+     * the changes which have already been decoded, in which case it throws any failure to decode them.
+     */
+    void add(byte[] body) throws IOException, ClassNotFoundException {
+        segment.add(body);
+        segmentLength += body.length;
+        if (segmentLength >= SEGMENT_LENGTH) {
+            startDecodingSegment();
+            while (decodingSegments.size() > MAX_DECODING_SEGMENTS) {
+                foldChanges(join(decodingSegments.poll()));
+            }
+        }
+    }
+    
+    private void startDecodingSegment() {
+        final List<byte[]> bodies = this.segment;
+        decodingSegments.add(inBackground(() -> {
+            final List<Change<T>> changes = new ArrayList<>(bodies.size());
+            try {
+                for (byte[] body : bodies) {
+                    changes.add(Journal.<T>decode(body));
+                }
+            }
+            catch (IOException | ClassNotFoundException e) {
+                throw new CompletionException(e);
+            }
+            return changes;
+        }));
+        this.segment       = new ArrayList<>();
+        this.segmentLength = 0;
+    }
+    
+    /**
+     * Folds the changes in the rest of the journal, and then applies their net effect to the snapshot.
+     *
+     * @return the recovered collection.
+     */
+    IndexedCollection<T> finish() throws IOException, ClassNotFoundException {
+        if ( !segment.isEmpty()) { startDecodingSegment(); }
+        while ( !decodingSegments.isEmpty()) {
+            foldChanges(join(decodingSegments.poll()));
+        }
+        
+        final IndexedCollection<T> collection = join(snapshot);
+        if (isSnapshotCleared) {
+            collection.clear();
+        }
+        else if ( !snapshotRemovals.isEmpty()) {
+            // Remove the earliest equal entries, just as IndexedCollection.remove would have.
+            collection.removeIf(entry -> {
+                final Integer count = snapshotRemovals.get(entry);
+                if (count == null) { return false; }
+                
+                if (count == 1) { snapshotRemovals.remove(entry); }
+                else            { snapshotRemovals.put(entry, count - 1); }
+                return true;
+            });
+        }
+        collection.addAll(additions);
+        return collection;
+    }
+    
+    private void foldChanges(List<Change<T>> changes) throws IOException, ClassNotFoundException {
+        for (Change<T> change : changes) {
+            switch (change.op) {
+                case ADD:
+                    additions.addAll(change.entries);
+                    break;
+                case REMOVE:
+                    for (T entry : change.entries) {
+                        if (countInSnapshot(entry) > 0) { snapshotRemovals.merge(entry, 1, Integer::sum); }
+                        else                            { additions.remove(entry); }
+                    }
+                    break;
+                case REMOVE_ALL:
+                    final List<T> cancelledAdditions = new ArrayList<>();
+                    for (T entry : change.entries) {
+                        final int count = countInSnapshot(entry);
+                        if (count > 0) { snapshotRemovals.merge(entry, count, Integer::sum); }
+                        additions.removeAllEqual(entry, cancelledAdditions);
+                    }
+                    break;
+                case CLEAR:
+                    isSnapshotCleared = true;
+                    snapshotRemovals.clear();
+                    additions.clear();
+                    break;
+            }
+        }
+    }
+    
+    /** Counts the entries equal to the provided one which are left in the snapshot, waiting for it if need be. */
+    private int countInSnapshot(Object entry) throws IOException, ClassNotFoundException {
+        if (isSnapshotCleared) { return 0; }
+        
+        return join(snapshot).countEqual(entry) - snapshotRemovals.getOrDefault(entry, 0);
+    }
+    
+    /** Waits for a task in the background, rethrowing its failure just as if it had been run on this thread. */
+    private static <R> R join(CompletableFuture<R> future) throws IOException, ClassNotFoundException {
+        try {
+            return future.join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof IOException)            { throw (IOException) e.getCause(); }
+            if (e.getCause() instanceof ClassNotFoundException) { throw (ClassNotFoundException) e.getCause(); }
+            if (e.getCause() instanceof RuntimeException)       { throw (RuntimeException) e.getCause(); }
+            throw e;
+        }
+    }
+}
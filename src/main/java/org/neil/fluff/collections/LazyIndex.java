@@ -0,0 +1,118 @@
+package org.neil.fluff.collections;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * An {@link Index} for a {@link IndexedField#lazy() lazy} {@link IndexedField}, which is not kept up to date as the
+ * collection changes. Instead, any change simply marks it as stale, and it is rebuilt from all the entries in a
+ * single bulk load when it is next queried. So a burst of changes costs next to nothing for an index which is rarely
+ * queried, and the index which is queried pays for them just once.
+ * <p/>
+ * The index which is built is of the configured {@link IndexedCollection.IndexType type}, and it is never changed
+ * once it has been built, so it can be shared by copies of this index, such as those of a
+ * {@link IndexedCollection#snapshot() snapshot}. Concurrent attempts to build it are synchronised, so that a snapshot
+ * which is queried by several threads at once builds it only once.
+ * <p/>
+ * As the index is not built when entries are added, an entry which it cannot hold, such as one whose key is of a
+ * different kind from the others in a {@link IndexedCollection.IndexType#PRIMITIVE primitive} index, is only
+ * rejected by the query which rebuilds it.
+ *
+ * @param <T> the type of entries in the index.
+ *
+ * @author Neil Mc Erlean
+ */
+class LazyIndex<T> extends Index<T> {
+    private static final long serialVersionUID = 1L;
+    
+    /** The index as of the last time it was built, or {@code null} if it has changed since then. */
+    private transient volatile Index<T> builtIndex;
+    
+    /** The number of times this index has been built, which is shared with its copies. */
+    private final AtomicLong buildCount;
+    
+    LazyIndex(IndexedField<T> indexedField) {
+        super(indexedField);
+        if (indexedField.isValueUnique()) {
+            throw new IllegalArgumentException("Cannot create a lazy index for '" + indexedField.getFieldName() +
+                                               "' as its values must be unique, which must be checked on every change.");
+        }
+        
+        // Creating an empty index of the configured type checks that it can be built.
+        this.builtIndex = Index.create(indexedField.eager());
+        this.buildCount = new AtomicLong();
+    }
+    
+    private LazyIndex(LazyIndex<T> source) {
+        super(source.indexedField);
+        this.builtIndex = source.builtIndex;
+        this.buildCount = source.buildCount;
+    }
+    
+    /** Rebuilds this index from the provided entries, in a single bulk load, if it has changed since it was last built. */
+    @Override void buildIfStale(Collection<T> entries) {
+        if (builtIndex != null) { return; }
+        
+        synchronized (this) {
+            if (builtIndex == null) {
+                final Index<T> index = Index.create(indexedField.eager());
+                index.prepareAddAll(new ArrayList<>(entries)).run();
+                this.builtIndex = index;
+                buildCount.incrementAndGet();
+            }
+        }
+    }
+    
+    /** Gets the number of times this index (or any copy of it) has been built. */
+    long getBuildCount() { return buildCount.get(); }
+    
+    /**
+     * Gets the index as of the last time it was built.
+     *
+     * @throws IllegalStateException if it has changed since then, in which case it must be rebuilt first.
+     */
+    private Index<T> builtIndex() {
+        final Index<T> index = builtIndex;
+        if (index == null) {
+            throw new IllegalStateException("The lazy index '" + indexedField.getFieldName() + "' must be rebuilt before it is queried.");
+        }
+        return index;
+    }
+    
+    @Override List<T> find(Object key) { return builtIndex().find(key); }
+    
+    @Override List<T> findRange(KeyRange range) { return builtIndex().findRange(range); }
+    
+    @Override boolean containsKey(Object key) { return builtIndex().containsKey(key); }
+    
+    @Override Iterator<T> sortedIterator() { return builtIndex().sortedIterator(); }
+    
+    /** The index can only be written in order while it is up to date. */
+    @Override boolean isSorted() {
+        final Index<T> index = builtIndex;
+        return index != null && index.isSorted();
+    }
+    
+    @Override void add(T entry) { this.builtIndex = null; }
+    
+    @Override Runnable prepareAddAll(List<T> batch) { return () -> this.builtIndex = null; }
+    
+    @Override boolean remove(T entry) {
+        this.builtIndex = null;
+        return true;
+    }
+    
+    @Override void removeAll(Set<T> removedEntries) { this.builtIndex = null; }
+    
+    @Override void clear() { this.builtIndex = null; }
+    
+    @Override LazyIndex<T> copy() { return new LazyIndex<>(this); }
+    
+    @Override Index<T> freeze() { return builtIndex().freeze(); }
+}
@@ -0,0 +1,478 @@
+package org.neil.fluff.collections;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * An {@link Index} for write-heavy use, made up of a large, immutable sorted <em>base</em> and a small, mutable sorted
+ * <em>delta</em>, in the style of a log-structured merge tree. New entries go into the delta, which is a balanced tree,
+ * so that adding one takes logarithmic time, rather than shifting on average half of a large sorted array as a
+ * {@link SortedIndex} does. Removing an entry from the base just marks it with a tombstone.
+ * <p/>
+ * Once the delta and tombstones pass a threshold proportional to the size of the base, they are merged into a new
+ * base in a single pass. So the cost of merging is shared by many changes, and each change takes amortised
+ * logarithmic time. Queries merge the results from the base and the delta, skipping any tombstones.
+ * <p/>
+ * Like a {@code SortedIndex}, entries with equal keys are held in insertion order. Every entry in the base was
+ * added before every entry in the delta, so the base's entries come first.
+ *
+ * @param <T> the type of entries in the index.
+ *
+ * @author Neil Mc Erlean
+ */
+class LogStructuredIndex<T> extends Index<T> {
+    private static final long serialVersionUID = 1L;
+    
+    /** The smallest number of changes which will be held in the delta and tombstones before they are merged. */
+    static final int MIN_MERGE_THRESHOLD = 1_024;
+    
+    /** The delta and tombstones are merged once they would be this fraction of the size of the base. */
+    private static final int MERGE_RATIO = 8;
+    
+    private static final Object[] EMPTY_BASE = new Object[0];
+    
+    /** An entry in the delta, with a sequence number which orders it after any earlier entries with an equal key. */
+    private static final class DeltaEntry<T> implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        final T    entry;
+        final long sequence;
+        
+        DeltaEntry(T entry, long sequence) {
+            this.entry    = entry;
+            this.sequence = sequence;
+        }
+    }
+    
+    /** A bound used to search the delta, which sorts either before or after all the entries with an equal key. */
+    private static final class KeyBound {
+        final Object  key;
+        final boolean isAfterEqualKeys;
+        
+        KeyBound(Object key, boolean isAfterEqualKeys) {
+            this.key              = key;
+            this.isAfterEqualKeys = isAfterEqualKeys;
+        }
+    }
+    
+    /**
+     * The order of {@link DeltaEntry delta entries}, by key and then by sequence number. {@link KeyBound}s can be
+     * compared with entries, but not with other bounds, as the index can only compare an entry's key with a key.
+     */
+    private static final class DeltaOrder<T> implements Comparator<Object>, Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        private final IndexedField<T> indexedField;
+        
+        DeltaOrder(IndexedField<T> indexedField) { this.indexedField = indexedField; }
+        
+        @Override @SuppressWarnings("unchecked") public int compare(Object o1, Object o2) {
+            // A TreeSet compares a bound with itself, to check its type, when creating a view bounded by it.
+            if (o1 == o2)               { return 0; }
+            if (o1 instanceof KeyBound) { return -compare(o2, o1); }
+            
+            final DeltaEntry<T> deltaEntry = (DeltaEntry<T>) o1;
+            if (o2 instanceof KeyBound) {
+                final KeyBound bound = (KeyBound) o2;
+                final int comparison = indexedField.compareKeyTo(deltaEntry.entry, bound.key);
+                return comparison != 0 ? comparison : bound.isAfterEqualKeys ? -1 : 1;
+            }
+            
+            final DeltaEntry<T> otherDeltaEntry = (DeltaEntry<T>) o2;
+            final int comparison = indexedField.compare(deltaEntry.entry, otherDeltaEntry.entry);
+            return comparison != 0 ? comparison : Long.compare(deltaEntry.sequence, otherDeltaEntry.sequence);
+        }
+    }
+    
+    /** The same object references that are stored in the collection, sorted by their keys. This is never changed. */
+    private Object[] base = EMPTY_BASE;
+    
+    /** The positions in the {@link #base} of entries which have been removed. */
+    private BitSet tombstones = new BitSet();
+    private int    tombstoneCount;
+    
+    /** The {@link DeltaEntry entries} which have been added since the base was last merged, sorted by key. */
+    private NavigableSet<Object> delta;
+    private long                 nextSequence;
+    
+    LogStructuredIndex(IndexedField<T> indexedField) {
+        super(indexedField);
+        this.delta = new TreeSet<>(new DeltaOrder<>(indexedField));
+    }
+    
+    @Override List<T> find(Object key) { return findRange(KeyRange.equalTo(key)); }
+    
+    /** Finds the entries in the range from the base with a binary search for each end, and merges those from the delta. */
+    @Override List<T> findRange(KeyRange range) {
+        final int fromIndex;
+        final KeyBound deltaFrom;
+        if (range.hasLowerBound()) {
+            fromIndex = range.isLowerBoundInclusive() ? lowerBound(range.getLowerBound(), 0) :
+                                                        upperBound(range.getLowerBound(), 0);
+            deltaFrom = new KeyBound(range.getLowerBound(), !range.isLowerBoundInclusive());
+        }
+        else {
+            // Skip over any null keys, which sort first.
+            fromIndex = upperBound(null, 0);
+            deltaFrom = new KeyBound(null, true);
+        }
+        
+        final int toIndex;
+        if (range.hasUpperBound()) {
+            toIndex = range.isUpperBoundInclusive() ? upperBound(range.getUpperBound(), fromIndex) :
+                                                      lowerBound(range.getUpperBound(), fromIndex);
+        }
+        else {
+            toIndex = base.length;
+        }
+        
+        final List<T> result = merge(fromIndex, toIndex, delta.tailSet(deltaFrom, false).iterator(), range);
+        return result.isEmpty() ? Collections.<T>emptyList() : Collections.unmodifiableList(result);
+    }
+    
+    /**
+     * Merges the live entries of the base between the specified indexes with the entries from the provided delta
+     * iterator, until the latter pass the upper bound (if any) of the provided range.
+     */
+    @SuppressWarnings("unchecked")
+    private List<T> merge(int fromIndex, int toIndex, Iterator<Object> deltaEntries, KeyRange range) {
+        final List<T> result = new ArrayList<>(Math.max(0, toIndex - fromIndex));
+        
+        T nextDeltaEntry = nextInRange(deltaEntries, range);
+        for (int i = fromIndex; i < toIndex; i++) {
+            if (tombstones.get(i)) { continue; }
+            
+            final T baseEntry = (T) base[i];
+            // Base entries go first when keys are equal, as they were added first.
+            while (nextDeltaEntry != null && indexedField.compare(nextDeltaEntry, baseEntry) < 0) {
+                result.add(nextDeltaEntry);
+                nextDeltaEntry = nextInRange(deltaEntries, range);
+            }
+            result.add(baseEntry);
+        }
+        while (nextDeltaEntry != null) {
+            result.add(nextDeltaEntry);
+            nextDeltaEntry = nextInRange(deltaEntries, range);
+        }
+        return result;
+    }
+    
+    /** Gets the next entry from the provided delta iterator, or {@code null} if there are none left within the range. */
+    @SuppressWarnings("unchecked")
+    private T nextInRange(Iterator<Object> deltaEntries, KeyRange range) {
+        if ( !deltaEntries.hasNext()) { return null; }
+        
+        final T entry = ((DeltaEntry<T>) deltaEntries.next()).entry;
+        if (range != null && range.hasUpperBound()) {
+            final int comparison = indexedField.compareKeyTo(entry, range.getUpperBound());
+            if (comparison > 0 || (comparison == 0 && !range.isUpperBoundInclusive())) { return null; }
+        }
+        return entry;
+    }
+    
+    @Override @SuppressWarnings("unchecked") boolean containsKey(Object key) {
+        final Object firstDeltaMatch = delta.ceiling(new KeyBound(key, false));
+        if (firstDeltaMatch != null && indexedField.compareKeyTo(((DeltaEntry<T>) firstDeltaMatch).entry, key) == 0) {
+            return true;
+        }
+        
+        for (int i = lowerBound(key, 0); i < base.length && indexedField.compareKeyTo((T) base[i], key) == 0; i++) {
+            if ( !tombstones.get(i)) { return true; }
+        }
+        return false;
+    }
+    
+    @Override void add(T entry) {
+        delta.add(new DeltaEntry<>(entry, nextSequence++));
+        mergeIfNeeded();
+    }
+    
+    /**
+     * Sorts the batch by key, checking the uniqueness constraints if there are any, and returns an action which
+     * will add it to the delta or, if the batch is large, merge it directly into a new base along with the delta.
+     */
+    @Override Runnable prepareAddAll(List<T> batch) {
+        final List<T> sortedBatch = sortedByKey(batch);
+        
+        if (indexedField.isValueUnique()) {
+            T previousEntry = null;
+            for (T entry : sortedBatch) {
+                final Object key = indexedField.getKey(entry);
+                if (previousEntry != null && indexedField.compare(previousEntry, entry) == 0) {
+                    throw uniquenessViolationInBatch(entry, previousEntry, key);
+                }
+                if (containsKey(key)) { throw uniquenessViolation(entry, key); }
+                previousEntry = entry;
+            }
+        }
+        
+        return () -> {
+            if (batch.size() < mergeThreshold()) {
+                for (T entry : batch) {
+                    delta.add(new DeltaEntry<>(entry, nextSequence++));
+                }
+                mergeIfNeeded();
+            }
+            else {
+                mergeIntoBase(mergeWithDelta(sortedBatch));
+            }
+        };
+    }
+    
+    /** Merges the provided sorted batch with the entries in the delta, which go first when keys are equal. */
+    @SuppressWarnings("unchecked")
+    private List<T> mergeWithDelta(List<T> sortedBatch) {
+        final List<T> merged = new ArrayList<>(delta.size() + sortedBatch.size());
+        final Iterator<T> batchEntries = sortedBatch.iterator();
+        T nextBatchEntry = batchEntries.hasNext() ? batchEntries.next() : null;
+        for (Object deltaEntry : delta) {
+            final T entry = ((DeltaEntry<T>) deltaEntry).entry;
+            while (nextBatchEntry != null && indexedField.compare(nextBatchEntry, entry) < 0) {
+                merged.add(nextBatchEntry);
+                nextBatchEntry = batchEntries.hasNext() ? batchEntries.next() : null;
+            }
+            merged.add(entry);
+        }
+        while (nextBatchEntry != null) {
+            merged.add(nextBatchEntry);
+            nextBatchEntry = batchEntries.hasNext() ? batchEntries.next() : null;
+        }
+        return merged;
+    }
+    
+    @Override @SuppressWarnings("unchecked") boolean remove(T entry) {
+        final Object key = indexedField.getKey(entry);
+        for (Iterator<Object> iter = delta.tailSet(new KeyBound(key, false), false).iterator(); iter.hasNext(); ) {
+            final DeltaEntry<T> deltaEntry = (DeltaEntry<T>) iter.next();
+            if (indexedField.compareKeyTo(deltaEntry.entry, key) != 0) { break; }
+            if (deltaEntry.entry == entry) {
+                iter.remove();
+                return true;
+            }
+        }
+        
+        final int upperBound = upperBound(key, 0);
+        for (int i = lowerBound(key, 0); i < upperBound; i++) {
+            if (base[i] == entry && !tombstones.get(i)) {
+                addTombstone(i);
+                return true;
+            }
+        }
+        
+        // The entry may have been mutated since it was added, in which case it is no longer where its
+        // current key says it should be. We'll have to look for it the hard way.
+        for (Iterator<Object> iter = delta.iterator(); iter.hasNext(); ) {
+            if (((DeltaEntry<T>) iter.next()).entry == entry) {
+                iter.remove();
+                return true;
+            }
+        }
+        for (int i = 0; i < base.length; i++) {
+            if (base[i] == entry && !tombstones.get(i)) {
+                addTombstone(i);
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Removes each entry individually if there are only a few of them, as that takes logarithmic time for each,
+     * or otherwise marks them all with tombstones in a single pass over the base. Either way, an entry which was
+     * added more than once is removed every time it occurs.
+     */
+    @Override @SuppressWarnings("unchecked") void removeAll(Set<T> removedEntries) {
+        if (removedEntries.size() < base.length / MERGE_RATIO) {
+            for (T entry : removedEntries) {
+                removeEveryOccurrence(entry);
+            }
+            mergeIfNeeded();
+            return;
+        }
+        
+        delta.removeIf(deltaEntry -> removedEntries.contains(((DeltaEntry<T>) deltaEntry).entry));
+        for (int i = tombstones.nextClearBit(0); i < base.length; i = tombstones.nextClearBit(i + 1)) {
+            if (removedEntries.contains(base[i])) {
+                tombstones.set(i);
+                tombstoneCount++;
+            }
+        }
+        mergeIfNeeded();
+    }
+    
+    /** Removes every occurrence of the provided entry from the delta and the base, leaving any merge to the caller. */
+    @SuppressWarnings("unchecked")
+    private void removeEveryOccurrence(T entry) {
+        boolean isFound = false;
+        final Object key = indexedField.getKey(entry);
+        for (Iterator<Object> iter = delta.tailSet(new KeyBound(key, false), false).iterator(); iter.hasNext(); ) {
+            final DeltaEntry<T> deltaEntry = (DeltaEntry<T>) iter.next();
+            if (indexedField.compareKeyTo(deltaEntry.entry, key) != 0) { break; }
+            if (deltaEntry.entry == entry) {
+                iter.remove();
+                isFound = true;
+            }
+        }
+        
+        final int upperBound = upperBound(key, 0);
+        for (int i = lowerBound(key, 0); i < upperBound; i++) {
+            if (base[i] == entry && !tombstones.get(i)) {
+                tombstones.set(i);
+                tombstoneCount++;
+                isFound = true;
+            }
+        }
+        if (isFound) { return; }
+        
+        // The entry may have been mutated since it was added, as in remove(T).
+        delta.removeIf(deltaEntry -> ((DeltaEntry<T>) deltaEntry).entry == entry);
+        for (int i = tombstones.nextClearBit(0); i < base.length; i = tombstones.nextClearBit(i + 1)) {
+            if (base[i] == entry) {
+                tombstones.set(i);
+                tombstoneCount++;
+            }
+        }
+    }
+    
+    private void addTombstone(int index) {
+        tombstones.set(index);
+        tombstoneCount++;
+        mergeIfNeeded();
+    }
+    
+    @Override boolean isSorted() { return true; }
+    
+    /** Takes entries which are in key order as the base, as they are. */
+    @Override void loadSorted(List<T> sortedEntries) {
+        if (isInKeyOrder(sortedEntries)) { this.base = sortedEntries.toArray(); }
+        else                             { super.loadSorted(sortedEntries); }
+    }
+    
+    @Override void clear() {
+        this.base           = EMPTY_BASE;
+        this.tombstones     = new BitSet();
+        this.tombstoneCount = 0;
+        this.delta.clear();
+    }
+    
+    /** Creates a copy which shares the (immutable) base with this index, so that it costs only a copy of the delta. */
+    @Override LogStructuredIndex<T> copy() {
+        final LogStructuredIndex<T> copy = new LogStructuredIndex<>(indexedField);
+        copy.base           = this.base;
+        copy.tombstones     = (BitSet) this.tombstones.clone();
+        copy.tombstoneCount = this.tombstoneCount;
+        copy.delta          = new TreeSet<>((TreeSet<Object>) this.delta);
+        copy.nextSequence   = this.nextSequence;
+        return copy;
+    }
+    
+    /** Gets an iterator over a merged copy of the base and delta, as the index changes in place. */
+    @Override Iterator<T> sortedIterator() {
+        return Collections.unmodifiableList(merge(0, base.length, delta.iterator(), null)).iterator();
+    }
+    
+    @Override FrozenIndex<T> freeze() { return FrozenIndex.of(indexedField, merge(0, base.length, delta.iterator(), null)); }
+    
+    /** The number of changes which the delta and tombstones can hold before they are merged into the base. */
+    private int mergeThreshold() { return Math.max(MIN_MERGE_THRESHOLD, (base.length - tombstoneCount) / MERGE_RATIO); }
+    
+    private void mergeIfNeeded() {
+        if (delta.size() + tombstoneCount >= mergeThreshold()) {
+            mergeIntoBase(mergeWithDelta(Collections.<T>emptyList()));
+        }
+    }
+    
+    /**
+     * Replaces the base with one which holds its live entries merged with the provided sorted entries, which
+     * must include all those in the delta, and then empties the delta. Rather than comparing every pair of
+     * entries, this binary searches for the position of each new entry and copies across the runs of live entries
+     * in the base between those positions.
+     */
+    private void mergeIntoBase(List<T> sortedEntries) {
+        final Object[] mergedBase = new Object[base.length - tombstoneCount + sortedEntries.size()];
+        
+        int mergedSize = 0;
+        int copiedUpTo = 0;
+        for (T entry : sortedEntries) {
+            // Equal keys go after those in the base, just as they would if the entries had been added to it.
+            final int insertionPoint = upperBound(indexedField.getKey(entry), copiedUpTo);
+            mergedSize = copyLiveEntries(copiedUpTo, insertionPoint, mergedBase, mergedSize);
+            mergedBase[mergedSize++] = entry;
+            copiedUpTo = insertionPoint;
+        }
+        copyLiveEntries(copiedUpTo, base.length, mergedBase, mergedSize);
+        
+        this.base           = mergedBase;
+        this.tombstones     = new BitSet();
+        this.tombstoneCount = 0;
+        this.delta.clear();
+    }
+    
+    /**
+     * Copies the entries of the base between the specified indexes which do not have tombstones into the provided
+     * array, a run at a time.
+     *
+     * @return the position in the provided array after the last entry copied.
+     */
+    private int copyLiveEntries(int fromIndex, int toIndex, Object[] destination, int destinationIndex) {
+        int runStart = tombstones.nextClearBit(fromIndex);
+        while (runStart < toIndex) {
+            final int nextTombstone = tombstones.nextSetBit(runStart);
+            final int runEnd = nextTombstone < 0 ? toIndex : Math.min(toIndex, nextTombstone);
+            System.arraycopy(base, runStart, destination, destinationIndex, runEnd - runStart);
+            destinationIndex += runEnd - runStart;
+            runStart = tombstones.nextClearBit(runEnd);
+        }
+        return destinationIndex;
+    }
+    
+    /**
+     * Gets the index of the first entry in the base whose key is not less than the provided value,
+     * searching only from the specified index onwards.
+     */
+    @SuppressWarnings("unchecked")
+    private int lowerBound(Object key, int fromIndex) {
+        int lowLimit = fromIndex;
+        int highLimit = base.length;
+        while (lowLimit < highLimit) {
+            int middle = (lowLimit + highLimit) >>> 1;
+            if (indexedField.compareKeyTo((T) base[middle], key) < 0) {
+                lowLimit = middle + 1;
+            }
+            else {
+                highLimit = middle;
+            }
+        }
+        return lowLimit;
+    }
+    
+    /**
+     * Gets the index of the first entry in the base whose key is greater than the provided value,
+     * searching only from the specified index onwards.
+     */
+    @SuppressWarnings("unchecked")
+    private int upperBound(Object key, int fromIndex) {
+        int lowLimit = fromIndex;
+        int highLimit = base.length;
+        while (lowLimit < highLimit) {
+            int middle = (lowLimit + highLimit) >>> 1;
+            if (indexedField.compareKeyTo((T) base[middle], key) <= 0) {
+                lowLimit = middle + 1;
+            }
+            else {
+                highLimit = middle;
+            }
+        }
+        return lowLimit;
+    }
+}
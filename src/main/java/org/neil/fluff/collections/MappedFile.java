@@ -0,0 +1,88 @@
+package org.neil.fluff.collections;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only file which is mapped into memory, in regions of up to a gigabyte each, as a single
+ * {@link java.nio.MappedByteBuffer} cannot be larger than 2GB. Mapping the file reads none of it: each page is read
+ * when it is first touched, into the operating system's page cache, which is shared by every process that maps
+ * the same file.
+ * <p/>
+ * The mapping outlives the channel through which it was made, and is released when this object is garbage collected.
+ *
+ * @author Neil Mc Erlean
+ */
+final class MappedFile {
+    private static final int REGION_SHIFT = 30;
+    private static final int REGION_SIZE  = 1 << REGION_SHIFT;
+    
+    private final Path         path;
+    private final ByteBuffer[] regions;
+    private final long         size;
+    
+    private MappedFile(Path path, ByteBuffer[] regions, long size) {
+        this.path    = path;
+        this.regions = regions;
+        this.size    = size;
+    }
+    
+    /** Maps the whole of the specified file, which must not change while it is mapped. */
+    static MappedFile map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final ByteBuffer[] regions = new ByteBuffer[(int) ((size + REGION_SIZE - 1) >>> REGION_SHIFT)];
+            for (int i = 0; i < regions.length; i++) {
+                final long position = (long) i << REGION_SHIFT;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, size - position));
+            }
+            return new MappedFile(path, regions, size);
+        }
+    }
+    
+    Path getPath() { return this.path; }
+    
+    long size() { return this.size; }
+    
+    int getInt(long position) {
+        final ByteBuffer region = regionOf(position, 4);
+        final int offset = offsetOf(position);
+        if (offset <= region.limit() - 4) { return region.getInt(offset); }
+        
+        return ByteBuffer.wrap(getBytes(position, 4)).getInt();
+    }
+    
+    long getLong(long position) {
+        final ByteBuffer region = regionOf(position, 8);
+        final int offset = offsetOf(position);
+        if (offset <= region.limit() - 8) { return region.getLong(offset); }
+        
+        return ByteBuffer.wrap(getBytes(position, 8)).getLong();
+    }
+    
+    /** Copies the specified number of bytes, which may span several regions, out of the file. */
+    byte[] getBytes(long position, int length) {
+        final byte[] bytes = new byte[length];
+        for (int copied = 0; copied < length; ) {
+            final ByteBuffer region = regionOf(position + copied, length - copied).duplicate();
+            region.position(offsetOf(position + copied));
+            final int count = Math.min(length - copied, region.remaining());
+            region.get(bytes, copied, count);
+            copied += count;
+        }
+        return bytes;
+    }
+    
+    private ByteBuffer regionOf(long position, int length) {
+        if (position < 0 || position > size - length) {
+            throw new IndexOutOfBoundsException("Cannot read " + length + " bytes at " + position + " of " + path +
+                                                ", which has only " + size + ".");
+        }
+        return regions[(int) (position >>> REGION_SHIFT)];
+    }
+    
+    private static int offsetOf(long position) { return (int) (position & (REGION_SIZE - 1)); }
+}
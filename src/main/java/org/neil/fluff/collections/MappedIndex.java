@@ -0,0 +1,164 @@
+package org.neil.fluff.collections;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.neil.fluff.collections.Index.KeyRange;
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+import org.neil.fluff.collections.PrimitiveIndex.KeyKind;
+import org.neil.fluff.collections.SnapshotFile.MappedEntries;
+
+/**
+ * An index of a {@link MappedIndexedCollection}, which is queried in place in a mapped {@link SnapshotFile}. It is
+ * the permutation of the entries' ordinals which was written for a sorted index, and it is binary searched just as
+ * a {@link FrozenIndex} is. The keys of a primitive index were written alongside its ordinals, so its searches read
+ * nothing but them. Otherwise the search decodes the entry at each position it visits, which is a few dozen entries
+ * however many there are.
+ * <p/>
+ * The lists returned by queries are views of a range of the permutation, which decode each entry when it is got.
+ *
+ * @param <T> the type of entries in the index.
+ *
+ * @author Neil Mc Erlean
+ */
+final class MappedIndex<T> {
+    private final IndexedField<T>  indexedField;
+    private final MappedEntries<T> entries;
+    private final MappedFile       file;
+    
+    /** The position in the file of the ordinals of the entries, in key order. */
+    private final long ordinalsPosition;
+    
+    /** The position in the file of the encoded keys, which follow the null keys, or -1 if they were not written. */
+    private final long keysPosition;
+    
+    private final int nullKeyCount;
+    
+    /** The kind of the encoded keys, or {@code null} if there are none. */
+    private final KeyKind keyKind;
+    
+    MappedIndex(IndexedField<T> indexedField, MappedEntries<T> entries, long ordinalsPosition) {
+        this(indexedField, entries, ordinalsPosition, -1, 0, null);
+    }
+    
+    MappedIndex(IndexedField<T> indexedField, MappedEntries<T> entries, long ordinalsPosition,
+                long keysPosition, int nullKeyCount, KeyKind keyKind) {
+        this.indexedField     = indexedField;
+        this.entries          = entries;
+        this.file             = entries.getFile();
+        this.ordinalsPosition = ordinalsPosition;
+        this.keysPosition     = keysPosition;
+        this.nullKeyCount     = nullKeyCount;
+        this.keyKind          = keyKind;
+    }
+    
+    IndexedField<T> getIndexedField() { return this.indexedField; }
+    
+    List<T> find(Object key) { return findRange(KeyRange.equalTo(key)); }
+    
+    List<T> findRange(KeyRange range) {
+        final int fromPosition;
+        final int toPosition;
+        if (keysPosition >= 0) {
+            // These positions are those of the encoded keys, which follow the null keys.
+            boolean includesNullKeys = false;
+            int from = 0;
+            if (range.hasLowerBound()) {
+                if (range.getLowerBound() == null) {
+                    includesNullKeys = range.isLowerBoundInclusive();
+                }
+                else {
+                    from = search(encodeQueryKey(range.getLowerBound()), !range.isLowerBoundInclusive());
+                }
+            }
+            
+            int to = entries.size() - nullKeyCount;
+            if (range.hasUpperBound()) {
+                if (range.getUpperBound() == null) {
+                    includesNullKeys &= range.isUpperBoundInclusive();
+                    to = 0;
+                }
+                else {
+                    to = search(encodeQueryKey(range.getUpperBound()), range.isUpperBoundInclusive());
+                }
+            }
+            
+            // The null keys come just before the lowest of the others, so they and the range are contiguous.
+            fromPosition = includesNullKeys ? 0 : nullKeyCount + from;
+            toPosition   = nullKeyCount + to;
+        }
+        else {
+            // Skip over any null keys, which sort first, unless the range is bounded below.
+            fromPosition = range.hasLowerBound() ? search(range.getLowerBound(), !range.isLowerBoundInclusive()) :
+                                                   search(null, true);
+            toPosition   = range.hasUpperBound() ? search(range.getUpperBound(), range.isUpperBoundInclusive()) :
+                                                   entries.size();
+        }
+        
+        return fromPosition >= toPosition ? Collections.<T>emptyList() : new EntryList(fromPosition, toPosition);
+    }
+    
+    Iterator<T> sortedIterator() { return new EntryList(0, entries.size()).iterator(); }
+    
+    private long encodeQueryKey(Object key) { return PrimitiveIndex.encodeQueryKey(key, keyKind, indexedField); }
+    
+    private int ordinalAt(int position) { return file.getInt(ordinalsPosition + 4L * position); }
+    
+    /**
+     * Finds the position of the first encoded key which is greater than the provided key, or is not less than it
+     * if {@code isAfterEqualKeys} is {@code false}.
+     *
+     * @return that position, or the number of encoded keys if there is none.
+     */
+    private int search(long key, boolean isAfterEqualKeys) {
+        int low  = 0;
+        int high = entries.size() - nullKeyCount;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            final long middleKey = file.getLong(keysPosition + 8L * middle);
+            if (middleKey < key || (isAfterEqualKeys && middleKey == key)) { low  = middle + 1; }
+            else                                                           { high = middle; }
+        }
+        return low;
+    }
+    
+    /**
+     * Finds the position of the first entry whose key is greater than the provided key, or is not less than it if
+     * {@code isAfterEqualKeys} is {@code false}, decoding each entry which it compares.
+     *
+     * @return that position, or the number of entries if there is none.
+     */
+    private int search(Object key, boolean isAfterEqualKeys) {
+        int low  = 0;
+        int high = entries.size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = indexedField.compareKeyTo(entries.get(ordinalAt(middle)), key);
+            if (comparison < 0 || (isAfterEqualKeys && comparison == 0)) { low  = middle + 1; }
+            else                                                         { high = middle; }
+        }
+        return low;
+    }
+    
+    /** The entries between two positions of this index, each of which is decoded when it is got. */
+    private final class EntryList extends AbstractList<T> implements RandomAccess {
+        private final int fromPosition;
+        private final int toPosition;
+        
+        EntryList(int fromPosition, int toPosition) {
+            this.fromPosition = fromPosition;
+            this.toPosition   = toPosition;
+        }
+        
+        @Override public int size() { return toPosition - fromPosition; }
+        
+        @Override public T get(int index) {
+            if (index < 0 || index >= size()) { throw new IndexOutOfBoundsException("Index " + index + ", size " + size()); }
+            
+            return entries.get(ordinalAt(fromPosition + index));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.neil.fluff.collections;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+import org.neil.fluff.collections.SnapshotFile.MappedEntries;
+
+/**
+ * A read-only variant of {@link IndexedCollection} for very large reference data, which is queried in place in a
+ * file written by {@link IndexedCollection#writeMappableSnapshot(Path)}, rather than read into memory. The file is
+ * memory-mapped, and only its header is read when it is {@link #open(Path, IndexedField...) opened}, so that
+ * opening it takes the same time however many entries it holds.
+ * <p/>
+ * Each index is the order of the entries which was written for it, and is binary searched in the file. The keys of
+ * {@link IndexedCollection.IndexType#PRIMITIVE primitive} indexes are written too, so their searches decode no
+ * entries at all, but those of any other index decode the entry at each position which they visit. An entry is
+ * decoded from the file every time it is got from the results of a query, or from an iterator. So the entries take
+ * up no memory between queries, but those got by different queries are equal, rather than the same, objects.
+ * <p/>
+ * The pages of the file are read on demand into the operating system's page cache, which is shared by every JVM on
+ * the host which maps the same file. The file must not be changed while it is mapped.
+ * <p/>
+ * Like a {@link IndexedCollection#snapshot() snapshot}, a mapped collection can be queried by any number of threads
+ * without locking, and any attempt to change it throws an {@link UnsupportedOperationException}.
+ *
+ * @param <T> the type of entries in this collection.
+ *
+ * @author Neil Mc Erlean
+ */
+public class MappedIndexedCollection<T extends Serializable> implements Collection<T> {
+    private final MappedEntries<T> entries;
+    
+    /** The configured indexes, by field name, in configuration order. */
+    private final Map<String, MappedIndex<T>> indexes;
+    
+    MappedIndexedCollection(MappedEntries<T> entries, Map<String, MappedIndex<T>> indexes) {
+        this.entries = entries;
+        this.indexes = indexes;
+    }
+    
+    /**
+     * Maps a file written by {@link IndexedCollection#writeMappableSnapshot(Path)} into memory, with the provided
+     * indexes, each of which must be a sorted index which was written to the file. These would usually be the same
+     * as those of the collection which was written.
+     *
+     * @throws java.io.StreamCorruptedException if the file is not such a snapshot, or is corrupt.
+     * @throws IllegalArgumentException if the file is a snapshot which cannot be mapped, or any of the indexes is not in it.
+     */
+    @SafeVarargs
+    public static <T extends Serializable> MappedIndexedCollection<T> open(Path path, IndexedField<T>... indexedFields)
+                                                                                                  throws IOException {
+        return SnapshotFile.map(path, indexedFields);
+    }
+    
+    /** @see IndexedCollection#findOne(String, Object) */
+    public T findOne(String fieldName, Object fieldValue) {
+        List<T> list = this.find(fieldName, fieldValue);
+        
+        return list.isEmpty() ? null : list.get(0);
+    }
+    
+    /**
+     * Finds all entries with the specified key, in the order in which they were written.
+     *
+     * @return An unmodifiable list of those entries, which decodes each one when it is got.
+     * @see IndexedCollection#find(String, Object)
+     */
+    public List<T> find(String fieldName, Object fieldValue) {
+        return getIndex(fieldName).find(fieldValue);
+    }
+    
+    /** @see IndexedCollection#findRange(String, Object, boolean, Object, boolean) */
+    public List<T> findRange(String fieldName, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        return getIndex(fieldName).findRange(Index.KeyRange.between(from, fromInclusive, to, toInclusive));
+    }
+    
+    /** @see IndexedCollection#findGreaterThan(String, Object, boolean) */
+    public List<T> findGreaterThan(String fieldName, Object from, boolean inclusive) {
+        return getIndex(fieldName).findRange(Index.KeyRange.greaterThan(from, inclusive));
+    }
+    
+    /** @see IndexedCollection#findLessThan(String, Object, boolean) */
+    public List<T> findLessThan(String fieldName, Object to, boolean inclusive) {
+        return getIndex(fieldName).findRange(Index.KeyRange.lessThan(to, inclusive));
+    }
+    
+    /** @see IndexedCollection#findByPrefix(String, String) */
+    public List<T> findByPrefix(String fieldName, String prefix) {
+        final MappedIndex<T> index = getIndex(fieldName);
+        if ( !index.getIndexedField().isNaturallyOrdered()) {
+            throw new IllegalArgumentException("Cannot query '" + fieldName + "' by prefix as it is not in natural order.");
+        }
+        return index.findRange(Index.KeyRange.startingWith(prefix));
+    }
+    
+    /** @see IndexedCollection#iteratorSortedBy(String) */
+    public Iterator<T> iteratorSortedBy(String fieldName) { return getIndex(fieldName).sortedIterator(); }
+    
+    private MappedIndex<T> getIndex(String fieldName) {
+        final MappedIndex<T> index = this.indexes.get(fieldName);
+        
+        if (index == null) { throw new IllegalArgumentException("No indexer defined for a field called " + fieldName); }
+        return index;
+    }
+    
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("Cannot change a MappedIndexedCollection.");
+    }
+    
+    /** {@inheritDoc} */
+    @Override public int size()                 { return entries.size(); }
+    
+    /** {@inheritDoc} */
+    @Override public boolean isEmpty()          { return entries.isEmpty(); }
+    
+    /** Is there an entry equal to the provided object? This decodes every entry until one is found. */
+    @Override public boolean contains(Object o) { return entries.contains(o); }
+    
+    /** Gets an iterator over the entries in the order in which they were written, which decodes each in turn. */
+    @Override public Iterator<T> iterator()     { return Collections.unmodifiableList(entries).iterator(); }
+    
+    /** {@inheritDoc} */
+    @Override public Object[] toArray()         { return entries.toArray(); }
+    
+    /** {@inheritDoc} */
+    @Override public <AT> AT[] toArray(AT[] a)  { return entries.toArray(a); }
+    
+    /** {@inheritDoc} */
+    @Override public boolean containsAll(Collection<?> items) { return entries.containsAll(items); }
+    
+    @Override public boolean add(T item)                        { throw readOnly(); }
+    
+    @Override public boolean remove(Object o)                   { throw readOnly(); }
+    
+    @Override public boolean addAll(Collection<? extends T> c)  { throw readOnly(); }
+    
+    @Override public boolean removeAll(Collection<?> c)         { throw readOnly(); }
+    
+    @Override public boolean retainAll(Collection<?> c)         { throw readOnly(); }
+    
+    @Override public boolean removeIf(Predicate<? super T> filter) { throw readOnly(); }
+    
+    @Override public void clear()                               { throw readOnly(); }
+}
@@ -0,0 +1,87 @@
+package org.neil.fluff.collections;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A bounded, lock-free queue for many producer threads and a single consumer thread, held in a ring buffer.
+ * <p/>
+ * Producers claim a slot by advancing the shared tail sequence with a compare-and-set, and then publish their
+ * element into that slot. The consumer takes elements from the head in sequence, waiting briefly for any slot
+ * which has been claimed but whose element has not been published yet.
+ *
+ * @param <E> the type of elements in the queue.
+ *
+ * @author Neil Mc Erlean
+ */
+class MpscRingBuffer<E> {
+    private final AtomicReferenceArray<E> slots;
+    private final int                     mask;
+    
+    /** The sequence number of the next slot to be claimed by a producer. */
+    private final AtomicLong tail = new AtomicLong();
+    
+    /** The sequence number of the next slot to be consumed, which is only ever written by the consumer. */
+    private final AtomicLong head = new AtomicLong();
+    
+    /**
+     * @param capacity the maximum number of elements in the queue, which is rounded up to a power of two.
+     */
+    MpscRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) { throw new IllegalArgumentException("Illegal capacity: " + capacity); }
+        
+        final int roundedCapacity = Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(Math.max(1, roundedCapacity));
+        this.mask  = slots.length() - 1;
+    }
+    
+    int capacity() { return slots.length(); }
+    
+    /**
+     * Adds the provided element to the tail of the queue, if there is room. This may be called by any thread.
+     *
+     * @return {@code true} if the element was added, or {@code false} if the queue was full.
+     */
+    boolean offer(E element) {
+        if (element == null) { throw new NullPointerException(); }
+        
+        while (true) {
+            final long sequence = tail.get();
+            if (sequence - head.get() >= slots.length()) { return false; }
+            
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                slots.lazySet((int) sequence & mask, element);
+                return true;
+            }
+        }
+    }
+    
+    /** Is the queue empty? This may be called by any thread, but the answer may be out of date when it returns. */
+    boolean isEmpty() { return head.get() == tail.get(); }
+    
+    /**
+     * Removes up to the specified number of elements from the head of the queue, passing each in turn to the
+     * provided consumer. This must only be called by the single consumer thread.
+     *
+     * @return the number of elements removed.
+     */
+    int drain(Consumer<? super E> consumer, int limit) {
+        final long first = head.get();
+        final long available = Math.min(tail.get() - first, limit);
+        
+        for (long sequence = first; sequence < first + available; sequence++) {
+            final int index = (int) sequence & mask;
+            
+            // The producer which claimed this slot may not have published its element into it yet.
+            E element;
+            while ((element = slots.get(index)) == null) {
+                Thread.yield();
+            }
+            slots.lazySet(index, null);
+            head.lazySet(sequence + 1);
+            consumer.accept(element);
+        }
+        return (int) available;
+    }
+}
@@ -0,0 +1,187 @@
+package org.neil.fluff.collections;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The encoded entries of an {@link OffHeapIndexedCollection}, which are held outside the Java heap in direct
+ * {@link ByteBuffer}s, called <em>slabs</em>, of a fixed size. Each entry is written after the last, as its length
+ * and then its bytes, and a new slab is allocated whenever the last is full.
+ * <p/>
+ * Each entry is given an <em>ordinal</em> in insertion order, and removing an entry just marks it with a tombstone,
+ * so the ordinals of the other entries do not change. The only thing held on the heap for each entry is its
+ * position, as the number of its slab and its offset in that slab, packed into a {@code long}. So the heap holds a
+ * single array however many entries there are, which the garbage collector never has to look inside.
+ * <p/>
+ * The space of removed entries is reclaimed by {@link #compact() compaction}, which copies the remaining entries
+ * into new slabs, and gives them new ordinals in the same order. The old slabs are freed once they are garbage
+ * collected, as direct buffers are. The total size of the slabs is limited by {@code -XX:MaxDirectMemorySize}.
+ *
+ * @author Neil Mc Erlean
+ */
+final class OffHeapEntryStore {
+    private static final int INITIAL_CAPACITY = 16;
+    
+    /** The size of the length which precedes the bytes of each entry. */
+    private static final int LENGTH_SIZE = 4;
+    
+    /** The fewest bytes of removed entries which are held before the slabs are compacted. */
+    static final long MIN_COMPACTION_THRESHOLD = 1L << 20;
+    
+    private final int slabSize;
+    
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    
+    /** The slab number and offset of each entry, by ordinal. Only the first {@link #ordinalCount} are in use. */
+    private long[] positions = new long[INITIAL_CAPACITY];
+    
+    private int ordinalCount;
+    
+    /** The ordinals of the entries which have been removed. */
+    private BitSet tombstones = new BitSet();
+    private int    tombstoneCount;
+    
+    /** The bytes taken up by the entries, and by those which have been removed, including their lengths. */
+    private long liveBytes;
+    private long deadBytes;
+    
+    OffHeapEntryStore(int slabSize) {
+        if (slabSize <= LENGTH_SIZE) { throw new IllegalArgumentException("Illegal slab size: " + slabSize); }
+        this.slabSize = slabSize;
+    }
+    
+    int size() { return ordinalCount - tombstoneCount; }
+    
+    /** Gets the number of ordinals which have been given out, including those of removed entries. */
+    int ordinalCount() { return this.ordinalCount; }
+    
+    /** Gets the first ordinal, not before the provided one, of an entry which has not been removed. */
+    int nextOrdinal(int fromOrdinal) { return tombstones.nextClearBit(fromOrdinal); }
+    
+    boolean isRemoved(int ordinal) { return ordinal >= ordinalCount || tombstones.get(ordinal); }
+    
+    /** Gets the number of bytes which have been allocated for slabs. */
+    long allocatedBytes() { return (long) slabs.size() * slabSize; }
+    
+    /**
+     * Appends the provided bytes of an entry, after all the existing entries, with the next ordinal.
+     *
+     * @return the ordinal of the entry.
+     * @throws IllegalArgumentException if the entry is too big to fit in a slab.
+     */
+    int append(byte[] bytes, int length) {
+        final int recordLength = LENGTH_SIZE + length;
+        if (recordLength > slabSize) {
+            throw new IllegalArgumentException("Cannot hold an entry of " + length + " bytes in slabs of " + slabSize + " bytes.");
+        }
+        
+        ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+        if (slab == null || slab.remaining() < recordLength) {
+            slab = ByteBuffer.allocateDirect(slabSize);
+            slabs.add(slab);
+        }
+        
+        if (ordinalCount == positions.length) {
+            positions = Arrays.copyOf(positions, positions.length + (positions.length >> 1));
+        }
+        final int ordinal = ordinalCount++;
+        positions[ordinal] = ((long) (slabs.size() - 1) << 32) | slab.position();
+        slab.putInt(length);
+        slab.put(bytes, 0, length);
+        liveBytes += recordLength;
+        return ordinal;
+    }
+    
+    /** Gets a stream of the bytes of the entry with the provided ordinal, which must not have been removed. */
+    InputStream read(int ordinal) {
+        final ByteBuffer slab = slabs.get((int) (positions[ordinal] >>> 32)).duplicate();
+        final int offset = (int) positions[ordinal];
+        slab.limit(offset + LENGTH_SIZE + slab.getInt(offset));
+        slab.position(offset + LENGTH_SIZE);
+        return new BufferInputStream(slab);
+    }
+    
+    /** Removes the entry with the provided ordinal, leaving its bytes in place until the slabs are compacted. */
+    void remove(int ordinal) {
+        final int recordLength = LENGTH_SIZE + slabs.get((int) (positions[ordinal] >>> 32)).getInt((int) positions[ordinal]);
+        tombstones.set(ordinal);
+        tombstoneCount++;
+        liveBytes -= recordLength;
+        deadBytes += recordLength;
+    }
+    
+    /** Have enough entries been removed that their bytes take up as much space as those of the others? */
+    boolean isDueForCompaction() { return deadBytes >= Math.max(MIN_COMPACTION_THRESHOLD, liveBytes); }
+    
+    /**
+     * Copies the remaining entries into new slabs, and gives them new ordinals, in the same order as before.
+     *
+     * @return the new ordinal of each entry, by its old ordinal, or -1 for those which had been removed.
+     */
+    int[] compact() {
+        final int[] newOrdinals = new int[ordinalCount];
+        Arrays.fill(newOrdinals, -1);
+        
+        final List<ByteBuffer> oldSlabs = new ArrayList<>(slabs);
+        final long[] oldPositions = positions;
+        final int oldOrdinalCount = ordinalCount;
+        final BitSet oldTombstones = tombstones;
+        final int size = size();
+        clear();
+        this.positions = new long[Math.max(INITIAL_CAPACITY, size)];
+        
+        byte[] bytes = new byte[256];
+        for (int ordinal = oldTombstones.nextClearBit(0); ordinal < oldOrdinalCount; ordinal = oldTombstones.nextClearBit(ordinal + 1)) {
+            final ByteBuffer slab = oldSlabs.get((int) (oldPositions[ordinal] >>> 32)).duplicate();
+            final int offset = (int) oldPositions[ordinal];
+            final int length = slab.getInt(offset);
+            if (length > bytes.length) { bytes = new byte[Math.max(length, 2 * bytes.length)]; }
+            
+            slab.position(offset + LENGTH_SIZE);
+            slab.get(bytes, 0, length);
+            newOrdinals[ordinal] = append(bytes, length);
+        }
+        return newOrdinals;
+    }
+    
+    /** Removes all the entries, and lets go of the slabs. */
+    void clear() {
+        slabs.clear();
+        this.positions      = new long[INITIAL_CAPACITY];
+        this.ordinalCount   = 0;
+        this.tombstones     = new BitSet();
+        this.tombstoneCount = 0;
+        this.liveBytes      = 0L;
+        this.deadBytes      = 0L;
+    }
+    
+    /** An {@code InputStream} over the remaining bytes of a buffer, which it reads directly, without copying them. */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        
+        BufferInputStream(ByteBuffer buffer) { this.buffer = buffer; }
+        
+        @Override public int read() { return buffer.hasRemaining() ? buffer.get() & 0xFF : -1; }
+        
+        @Override public int read(byte[] b, int off, int length) {
+            if (length == 0)             { return 0; }
+            if ( !buffer.hasRemaining()) { return -1; }
+            
+            final int count = Math.min(length, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+        
+        @Override public long skip(long n) {
+            final int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+        
+        @Override public int available() { return buffer.remaining(); }
+    }
+}
@@ -0,0 +1,415 @@
+package org.neil.fluff.collections;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+import org.neil.fluff.collections.Index.KeyRange;
+import org.neil.fluff.collections.IndexedCollection.IndexType;
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+import org.neil.fluff.collections.PrimitiveIndex.KeyKind;
+
+/**
+ * An index of an {@link OffHeapIndexedCollection}, which holds the keys of the entries on the heap, sorted, in an
+ * array alongside a parallel array of the entries' ordinals in the {@link OffHeapEntryStore}. So a query binary
+ * searches the keys without decoding any entries, and then decodes just those which it finds. Entries with equal
+ * keys are held in insertion order.
+ * <p/>
+ * As in a {@link PrimitiveIndex}, the keys of a {@link IndexType#PRIMITIVE primitive} index are encoded into a
+ * {@code long[]}, so they take up 8 bytes each and are invisible to the garbage collector, and the ordinals of the
+ * entries with {@code null} keys are held separately, in insertion order. Any other index holds its keys as objects,
+ * and is held sorted whatever its type, so its keys must be {@link Comparable} unless its field has a comparator.
+ * Like those of an {@link IndexedCollection}, {@link IndexType#HASH hash} indexes do not support range queries.
+ *
+ * @param <T> the type of entries in the index.
+ *
+ * @author Neil Mc Erlean
+ */
+final class OffHeapIndex<T> {
+    private static final int INITIAL_CAPACITY = 16;
+    
+    private static final int[] NO_ORDINALS = new int[0];
+    
+    private final IndexedField<T> indexedField;
+    
+    private final boolean isPrimitive;
+    
+    /** The kind of the encoded keys of a primitive index, which is not known until it has held a non-null key. */
+    private KeyKind keyKind;
+    
+    /** The encoded non-null keys of a primitive index, or the keys of any other, sorted. */
+    private long[]   encodedKeys;
+    private Object[] keys;
+    
+    /** The ordinals of the entries, in the same order as their keys. Only the first {@link #size} are in use. */
+    private int[] ordinals = new int[INITIAL_CAPACITY];
+    
+    private int size;
+    
+    /** The ordinals of the entries of a primitive index whose keys are {@code null}, in insertion order. */
+    private int[] nullKeyOrdinals = NO_ORDINALS;
+    private int   nullKeyCount;
+    
+    /**
+     * @throws IllegalArgumentException if the field has a primitive index but is not in natural order.
+     */
+    OffHeapIndex(IndexedField<T> indexedField) {
+        this.indexedField = indexedField;
+        this.isPrimitive  = indexedField.getIndexType() == IndexType.PRIMITIVE;
+        if (isPrimitive && !indexedField.isNaturallyOrdered()) {
+            throw new IllegalArgumentException("Cannot create a " + indexedField.getIndexType() + " index for '" +
+                                               indexedField.getFieldName() + "' as it is not in natural order.");
+        }
+        
+        if (isPrimitive) { this.encodedKeys = new long[INITIAL_CAPACITY]; }
+        else             { this.keys        = new Object[INITIAL_CAPACITY]; }
+    }
+    
+    IndexedField<T> getIndexedField() { return this.indexedField; }
+    
+    /**
+     * Gets the key of the provided entry, ensuring that this index can hold it, without regard to any uniqueness
+     * constraint.
+     *
+     * @throws IllegalArgumentException if the index cannot be applied to the entry.
+     * @throws ClassCastException if the entry's key is of a type this index cannot hold.
+     */
+    Object keyOf(T entry) {
+        indexedField.validate(entry);
+        
+        final Object key = indexedField.getKey(entry);
+        if (isPrimitive && key != null) { PrimitiveIndex.encodeQueryKey(key, keyKind, indexedField); }
+        return key;
+    }
+    
+    /**
+     * Ensures that the provided entry, whose key is provided, would not violate the uniqueness constraint (if any)
+     * of this index.
+     *
+     * @throws IllegalArgumentException if it would.
+     */
+    void validateUniqueness(T entry, Object key) {
+        if (indexedField.isValueUnique() && containsKey(key)) { throw uniquenessViolation(entry, key); }
+    }
+    
+    /**
+     * Ensures that a batch of entries, whose keys are provided in the same order, would neither violate the
+     * uniqueness constraint (if any) of this index among themselves nor against the existing entries, and that
+     * their keys are all of the same kind.
+     *
+     * @throws IllegalArgumentException if they would violate the uniqueness constraint.
+     * @throws ClassCastException if the keys of a primitive index are not all of the same kind.
+     */
+    void validateBatch(List<T> batch, Object[] batchKeys) {
+        KeyKind batchKeyKind = keyKind;
+        if (isPrimitive) {
+            for (int i = 0; i < batchKeys.length; i++) {
+                if (batchKeys[i] == null) { continue; }
+                
+                PrimitiveIndex.encodeQueryKey(batchKeys[i], batchKeyKind, indexedField);
+                batchKeyKind = KeyKind.of(batchKeys[i]);
+            }
+        }
+        if ( !indexedField.isValueUnique()) { return; }
+        
+        final int[] order = sortedOrder(batchKeys);
+        for (int i = 0; i < order.length; i++) {
+            final Object key = batchKeys[order[i]];
+            if (i > 0 && compare(batchKeys[order[i - 1]], key) == 0) {
+                throw uniquenessViolationInBatch(batch.get(order[i]), batch.get(order[i - 1]), key);
+            }
+            validateUniqueness(batch.get(order[i]), key);
+        }
+    }
+    
+    /** Compares two keys of this index, with {@code null} keys first. */
+    private int compare(Object key1, Object key2) {
+        if ( !isPrimitive)                { return indexedField.compareKeys(key1, key2); }
+        if (key1 == null || key2 == null) { return key1 == null ? (key2 == null ? 0 : -1) : 1; }
+        
+        return Long.compare(KeyKind.of(key1).encode((Number) key1), KeyKind.of(key2).encode((Number) key2));
+    }
+    
+    /** Gets the positions of the provided keys in key order, with those of equal keys in their original order. */
+    private int[] sortedOrder(Object[] batchKeys) {
+        final Integer[] order = new Integer[batchKeys.length];
+        Arrays.setAll(order, i -> i);
+        final Comparator<Integer> byKey = (i, j) -> compare(batchKeys[i], batchKeys[j]);
+        if (order.length < Index.MIN_PARALLEL_BATCH_SIZE) { Arrays.sort(order, byKey); }
+        else                                              { Arrays.parallelSort(order, byKey); }
+        
+        return Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+    
+    private IllegalArgumentException uniquenessViolation(T entry, Object key) {
+        return new IllegalArgumentException("Cannot add element " + entry + " as there is already an entry with " +
+                                            indexedField.getFieldName() + " = " + key);
+    }
+    
+    private IllegalArgumentException uniquenessViolationInBatch(T entry, T otherEntry, Object key) {
+        return new IllegalArgumentException("Cannot add element " + entry + " as element " + otherEntry +
+                                            " in the same batch has " + indexedField.getFieldName() + " = " + key);
+    }
+    
+    /** Does this index contain any entry with the provided key? */
+    boolean containsKey(Object key) {
+        if (isPrimitive && key == null) { return nullKeyCount > 0; }
+        
+        final int from = search(key, false);
+        return from < size && compareAt(from, key) == 0;
+    }
+    
+    /** Adds the entry with the provided ordinal, which must be greater than those of all the other entries. */
+    void add(int ordinal, Object key) {
+        if (isPrimitive && key == null) {
+            if (nullKeyCount == nullKeyOrdinals.length) {
+                nullKeyOrdinals = Arrays.copyOf(nullKeyOrdinals, Math.max(INITIAL_CAPACITY, 2 * nullKeyCount));
+            }
+            nullKeyOrdinals[nullKeyCount++] = ordinal;
+            return;
+        }
+        
+        final int position = search(key, true);
+        ensureCapacity(size + 1);
+        System.arraycopy(ordinals, position, ordinals, position + 1, size - position);
+        ordinals[position] = ordinal;
+        if (isPrimitive) {
+            if (keyKind == null) { keyKind = KeyKind.of(key); }
+            System.arraycopy(encodedKeys, position, encodedKeys, position + 1, size - position);
+            encodedKeys[position] = keyKind.encode((Number) key);
+        }
+        else {
+            System.arraycopy(keys, position, keys, position + 1, size - position);
+            keys[position] = key;
+        }
+        size++;
+    }
+    
+    /**
+     * Adds a batch of entries, which have been {@link #validateBatch(List, Object[]) validated}, with consecutive
+     * ordinals from the provided one, which must be greater than those of all the other entries. The batch is
+     * sorted, and then merged with the existing keys in a single pass.
+     */
+    void addAll(int firstOrdinal, Object[] batchKeys) {
+        final int[] order = sortedOrder(batchKeys);
+        
+        int firstKeyed = 0;
+        if (isPrimitive) {
+            // The null keys sort first in the batch.
+            while (firstKeyed < order.length && batchKeys[order[firstKeyed]] == null) { firstKeyed++; }
+            
+            final int newNullKeyCount = nullKeyCount + firstKeyed;
+            if (newNullKeyCount > nullKeyOrdinals.length) { nullKeyOrdinals = Arrays.copyOf(nullKeyOrdinals, newNullKeyCount); }
+            for (int i = 0; i < firstKeyed; i++) {
+                nullKeyOrdinals[nullKeyCount++] = firstOrdinal + order[i];
+            }
+            if (keyKind == null && firstKeyed < order.length) { keyKind = KeyKind.of(batchKeys[order[firstKeyed]]); }
+        }
+        
+        final int batchSize = order.length - firstKeyed;
+        final int[]    oldOrdinals    = ordinals;
+        final long[]   oldEncodedKeys = encodedKeys;
+        final Object[] oldKeys        = keys;
+        final int newSize = size + batchSize;
+        this.ordinals = new int[Math.max(INITIAL_CAPACITY, newSize)];
+        if (isPrimitive) { this.encodedKeys = new long[ordinals.length]; }
+        else             { this.keys        = new Object[ordinals.length]; }
+        
+        // The existing entries come before the batch's when their keys are equal, as their ordinals are lower.
+        int existing = 0;
+        int batch    = firstKeyed;
+        for (int position = 0; position < newSize; position++) {
+            final boolean isExisting;
+            if      (batch == order.length) { isExisting = true; }
+            else if (existing == size)      { isExisting = false; }
+            else if (isPrimitive)           { isExisting = oldEncodedKeys[existing] <= keyKind.encode((Number) batchKeys[order[batch]]); }
+            else                            { isExisting = indexedField.compareKeys(oldKeys[existing], batchKeys[order[batch]]) <= 0; }
+            
+            if (isExisting) {
+                ordinals[position] = oldOrdinals[existing];
+                if (isPrimitive) { encodedKeys[position] = oldEncodedKeys[existing]; }
+                else             { keys[position]        = oldKeys[existing]; }
+                existing++;
+            }
+            else {
+                final Object key = batchKeys[order[batch]];
+                ordinals[position] = firstOrdinal + order[batch];
+                if (isPrimitive) { encodedKeys[position] = keyKind.encode((Number) key); }
+                else             { keys[position]        = key; }
+                batch++;
+            }
+        }
+        this.size = newSize;
+    }
+    
+    /** Removes the entry with the provided ordinal, whose key is provided. */
+    void remove(int ordinal, Object key) {
+        if (isPrimitive && key == null) {
+            for (int i = 0; i < nullKeyCount; i++) {
+                if (nullKeyOrdinals[i] == ordinal) {
+                    System.arraycopy(nullKeyOrdinals, i + 1, nullKeyOrdinals, i, --nullKeyCount - i);
+                    return;
+                }
+            }
+            return;
+        }
+        
+        for (int position = search(key, false); position < size && compareAt(position, key) == 0; position++) {
+            if (ordinals[position] == ordinal) {
+                System.arraycopy(ordinals, position + 1, ordinals, position, size - position - 1);
+                if (isPrimitive) { System.arraycopy(encodedKeys, position + 1, encodedKeys, position, size - position - 1); }
+                else             {
+                    System.arraycopy(keys, position + 1, keys, position, size - position - 1);
+                    keys[size - 1] = null;
+                }
+                size--;
+                return;
+            }
+        }
+    }
+    
+    /** Removes all the entries whose ordinals are in the provided set, in a single pass. */
+    void removeAll(BitSet removedOrdinals) {
+        int kept = 0;
+        for (int i = 0; i < nullKeyCount; i++) {
+            if ( !removedOrdinals.get(nullKeyOrdinals[i])) { nullKeyOrdinals[kept++] = nullKeyOrdinals[i]; }
+        }
+        nullKeyCount = kept;
+        
+        kept = 0;
+        for (int position = 0; position < size; position++) {
+            if (removedOrdinals.get(ordinals[position])) { continue; }
+            
+            ordinals[kept] = ordinals[position];
+            if (isPrimitive) { encodedKeys[kept] = encodedKeys[position]; }
+            else             { keys[kept]        = keys[position]; }
+            kept++;
+        }
+        if ( !isPrimitive) { Arrays.fill(keys, kept, size, null); }
+        size = kept;
+    }
+    
+    /**
+     * Gives each entry the new ordinal it was given by {@link OffHeapEntryStore#compact() compaction}. As the order
+     * of the entries is unchanged, so is the order of those with equal keys.
+     */
+    void renumber(int[] newOrdinals) {
+        for (int i = 0; i < nullKeyCount; i++) {
+            nullKeyOrdinals[i] = newOrdinals[nullKeyOrdinals[i]];
+        }
+        for (int position = 0; position < size; position++) {
+            ordinals[position] = newOrdinals[ordinals[position]];
+        }
+    }
+    
+    void clear() {
+        this.keyKind         = null;
+        this.ordinals        = new int[INITIAL_CAPACITY];
+        this.size            = 0;
+        this.nullKeyOrdinals = NO_ORDINALS;
+        this.nullKeyCount    = 0;
+        if (isPrimitive) { this.encodedKeys = new long[INITIAL_CAPACITY]; }
+        else             { this.keys        = new Object[INITIAL_CAPACITY]; }
+    }
+    
+    /** Gets the ordinals of all the entries with the provided key, in insertion order. */
+    int[] find(Object key) { return ordinalsIn(KeyRange.equalTo(key)); }
+    
+    /**
+     * Gets the ordinals of all the entries whose keys are in the provided range, in key order.
+     *
+     * @throws IllegalArgumentException if this is a hash index, which does not support range queries.
+     */
+    int[] findRange(KeyRange range) {
+        if (indexedField.getIndexType() == IndexType.HASH) {
+            throw new IllegalArgumentException("Cannot query a range of '" + indexedField.getFieldName() +
+                                               "' as it has a " + indexedField.getIndexType() + " index.");
+        }
+        return ordinalsIn(range);
+    }
+    
+    private int[] ordinalsIn(KeyRange range) {
+        if ( !isPrimitive) {
+            // Skip over any null keys, which sort first, unless the range is bounded below.
+            final int from = range.hasLowerBound() ? search(range.getLowerBound(), !range.isLowerBoundInclusive()) :
+                                                     search(null, true);
+            final int to   = range.hasUpperBound() ? search(range.getUpperBound(), range.isUpperBoundInclusive()) : size;
+            return from >= to ? NO_ORDINALS : Arrays.copyOfRange(ordinals, from, to);
+        }
+        
+        boolean includesNullKeys = false;
+        int from = 0;
+        if (range.hasLowerBound()) {
+            if (range.getLowerBound() == null) { includesNullKeys = range.isLowerBoundInclusive(); }
+            else                               { from = search(range.getLowerBound(), !range.isLowerBoundInclusive()); }
+        }
+        
+        int to = size;
+        if (range.hasUpperBound()) {
+            if (range.getUpperBound() == null) {
+                includesNullKeys &= range.isUpperBoundInclusive();
+                to = 0;
+            }
+            else {
+                to = search(range.getUpperBound(), range.isUpperBoundInclusive());
+            }
+        }
+        
+        // The null keys come just before the lowest of the others.
+        final int nullKeys = includesNullKeys ? nullKeyCount : 0;
+        final int[] found = new int[nullKeys + Math.max(0, to - from)];
+        System.arraycopy(nullKeyOrdinals, 0, found, 0, nullKeys);
+        if (to > from) { System.arraycopy(ordinals, from, found, nullKeys, to - from); }
+        return found;
+    }
+    
+    /** Gets the ordinals of all the entries in key order. */
+    int[] sortedOrdinals() {
+        if (indexedField.getIndexType() == IndexType.HASH) {
+            throw new IllegalArgumentException("Cannot get an iterator sorted by '" + indexedField.getFieldName() +
+                                               "' as it has a " + indexedField.getIndexType() + " index.");
+        }
+        final int[] sorted = new int[nullKeyCount + size];
+        System.arraycopy(nullKeyOrdinals, 0, sorted, 0, nullKeyCount);
+        System.arraycopy(ordinals, 0, sorted, nullKeyCount, size);
+        return sorted;
+    }
+    
+    /**
+     * Finds the position of the first key which is greater than the provided (non-null, for a primitive index) key,
+     * or is not less than it if {@code isAfterEqualKeys} is {@code false}.
+     *
+     * @return that position, or the number of keys if there is none.
+     * @throws ClassCastException if the key is not of the same kind as the keys of a primitive index.
+     */
+    private int search(Object key, boolean isAfterEqualKeys) {
+        final long encodedKey = isPrimitive ? PrimitiveIndex.encodeQueryKey(key, keyKind, indexedField) : 0L;
+        
+        int low  = 0;
+        int high = size;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = isPrimitive ? Long.compare(encodedKeys[middle], encodedKey) :
+                                                 indexedField.compareKeys(keys[middle], key);
+            if (comparison < 0 || (isAfterEqualKeys && comparison == 0)) { low  = middle + 1; }
+            else                                                         { high = middle; }
+        }
+        return low;
+    }
+    
+    /** Compares the key at the provided position with the provided (non-null, for a primitive index) key. */
+    private int compareAt(int position, Object key) {
+        return isPrimitive ? Long.compare(encodedKeys[position], PrimitiveIndex.encodeQueryKey(key, keyKind, indexedField)) :
+                             indexedField.compareKeys(keys[position], key);
+    }
+    
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ordinals.length) { return; }
+        
+        final int newCapacity = Math.max(capacity, ordinals.length + (ordinals.length >> 1));
+        ordinals = Arrays.copyOf(ordinals, newCapacity);
+        if (isPrimitive) { encodedKeys = Arrays.copyOf(encodedKeys, newCapacity); }
+        else             { keys        = Arrays.copyOf(keys, newCapacity); }
+    }
+}
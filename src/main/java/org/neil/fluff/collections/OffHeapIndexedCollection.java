@@ -0,0 +1,521 @@
+package org.neil.fluff.collections;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.Predicate;
+
+import org.neil.fluff.collections.IndexedCollection.IndexType;
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * A variant of {@link IndexedCollection} for very large data sets, whose entries are held outside the Java heap.
+ * Each entry is encoded by an {@link EntryCodec} when it is added, into direct buffers of a fixed size, and decoded
+ * again whenever it is got from the results of a query, or from an iterator. So the entries take up no heap between
+ * queries, but those got by different queries are equal, rather than the same, objects.
+ * <p/>
+ * All that is held on the heap for each entry is its position in the buffers, its hash code, and its key and
+ * position in each index. The keys of {@link IndexType#PRIMITIVE primitive} indexes are held as primitives, so an
+ * entry whose indexes are all primitive takes up about 32 bytes of heap, plus 12 for each index, in a handful of
+ * large arrays whatever the number of entries. The garbage collector never has to look inside those arrays, so
+ * neither the size of the heap nor the length of its pauses grows with the amount of data. The buffers are limited
+ * by {@code -XX:MaxDirectMemorySize} instead.
+ * <p/>
+ * Queries binary search the keys in an index without decoding any entries, and then decode those which they find.
+ * Equal entries are found by hash code, so {@link #contains(Object) contains} and {@link #remove(Object) remove}
+ * decode only the entries whose hash codes match. Removed entries leave holes in the buffers, which are reclaimed
+ * by {@link #compact() compaction} once they take up as much space as the remaining entries.
+ * <p/>
+ * Like an {@link IndexedCollection}, an off-heap collection is not thread-safe, and its entries must not change
+ * while they are in it, which they cannot anyway.
+ *
+ * @param <T> the type of entries in this collection.
+ *
+ * @author Neil Mc Erlean
+ */
+public class OffHeapIndexedCollection<T> extends AbstractCollection<T> {
+    /** The default size of the direct buffers in which the entries are held, each of which is allocated in full. */
+    public static final int DEFAULT_SLAB_SIZE = 64 << 20;
+    
+    private static final int INITIAL_CAPACITY = 16;
+    
+    /** The values of the {@link #hashTable} slots which hold no ordinal, or held one which has been removed. */
+    private static final int EMPTY   = 0;
+    private static final int REMOVED = -1;
+    
+    private final EntryCodec<T>     codec;
+    private final OffHeapEntryStore store;
+    
+    /** The configured indexes, by field name, in configuration order. */
+    private final Map<String, OffHeapIndex<T>> indexes = new LinkedHashMap<>();
+    
+    /** The hash code of each entry, by ordinal. */
+    private int[] hashCodes = new int[INITIAL_CAPACITY];
+    
+    /**
+     * An open-addressing hash table, with linear probing, of the ordinals of the entries by their hash codes. Each
+     * slot holds one more than an ordinal, or {@link #EMPTY} or {@link #REMOVED}.
+     */
+    private int[] hashTable = new int[2 * INITIAL_CAPACITY];
+    private int   usedSlots;
+    
+    /** The buffer into which each entry is encoded before it is copied into the store. */
+    private final EncodingBuffer   encodingBuffer = new EncodingBuffer();
+    private final DataOutputStream encodingOut    = new DataOutputStream(encodingBuffer);
+    
+    /** The number of times this collection has been changed, so that its iterators can fail fast. */
+    private int modCount;
+    
+    /** A {@code ByteArrayOutputStream} whose bytes can be read without copying them. */
+    private static final class EncodingBuffer extends ByteArrayOutputStream {
+        byte[] bytes() { return this.buf; }
+    }
+    
+    @SafeVarargs
+    public OffHeapIndexedCollection(EntryCodec<T> codec, IndexedField<T>... indexedFields) {
+        this(codec, DEFAULT_SLAB_SIZE, indexedFields);
+    }
+    
+    /**
+     * @param slabSize the size of each of the direct buffers in which the entries are held, which limits the size of
+     *                 an encoded entry.
+     * @throws IllegalArgumentException if two indexes have the same name, or a primitive index is not in natural order.
+     */
+    @SafeVarargs
+    public OffHeapIndexedCollection(EntryCodec<T> codec, int slabSize, IndexedField<T>... indexedFields) {
+        this.codec = Objects.requireNonNull(codec, "codec");
+        this.store = new OffHeapEntryStore(slabSize);
+        for (IndexedField<T> indexedField : indexedFields) {
+            if (indexes.containsKey(indexedField.getFieldName())) {
+                throw new IllegalArgumentException("There is already an index called " + indexedField.getFieldName());
+            }
+            indexes.put(indexedField.getFieldName(), new OffHeapIndex<>(indexedField));
+        }
+    }
+    
+    /** @see IndexedCollection#findOne(String, Object) */
+    public T findOne(String fieldName, Object fieldValue) {
+        final int[] ordinals = getIndex(fieldName).find(fieldValue);
+        
+        return ordinals.length == 0 ? null : decode(ordinals[0]);
+    }
+    
+    /**
+     * Finds all entries with the specified key, in insertion order.
+     *
+     * @return An unmodifiable list of those entries, each of which has already been decoded.
+     * @see IndexedCollection#find(String, Object)
+     */
+    public List<T> find(String fieldName, Object fieldValue) {
+        return decodeAll(getIndex(fieldName).find(fieldValue));
+    }
+    
+    /** @see IndexedCollection#findRange(String, Object, boolean, Object, boolean) */
+    public List<T> findRange(String fieldName, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        return decodeAll(getIndex(fieldName).findRange(Index.KeyRange.between(from, fromInclusive, to, toInclusive)));
+    }
+    
+    /** @see IndexedCollection#findGreaterThan(String, Object, boolean) */
+    public List<T> findGreaterThan(String fieldName, Object from, boolean inclusive) {
+        return decodeAll(getIndex(fieldName).findRange(Index.KeyRange.greaterThan(from, inclusive)));
+    }
+    
+    /** @see IndexedCollection#findLessThan(String, Object, boolean) */
+    public List<T> findLessThan(String fieldName, Object to, boolean inclusive) {
+        return decodeAll(getIndex(fieldName).findRange(Index.KeyRange.lessThan(to, inclusive)));
+    }
+    
+    /** @see IndexedCollection#findByPrefix(String, String) */
+    public List<T> findByPrefix(String fieldName, String prefix) {
+        final OffHeapIndex<T> index = getIndex(fieldName);
+        if ( !index.getIndexedField().isNaturallyOrdered()) {
+            throw new IllegalArgumentException("Cannot query '" + fieldName + "' by prefix as it is not in natural order.");
+        }
+        return decodeAll(index.findRange(Index.KeyRange.startingWith(prefix)));
+    }
+    
+    /**
+     * Gets an iterator over the entries sorted by the specified field, which decodes each in turn.
+     *
+     * @see IndexedCollection#iteratorSortedBy(String)
+     */
+    public Iterator<T> iteratorSortedBy(String fieldName) {
+        final OffHeapIndex<T> index = indexes.get(fieldName);
+        if (index == null) { throw new IllegalArgumentException("Cannot get an iterator sorted by '" +
+                                                                fieldName + "' as it is not indexed."); }
+        
+        final int[] ordinals = index.sortedOrdinals();
+        final int expectedModCount = modCount;
+        return new Iterator<T>() {
+            private int next;
+            
+            @Override public boolean hasNext() { return next < ordinals.length; }
+            
+            @Override public T next() {
+                if ( !hasNext())                 { throw new NoSuchElementException(); }
+                if (modCount != expectedModCount) { throw new ConcurrentModificationException(); }
+                
+                return decode(ordinals[next++]);
+            }
+        };
+    }
+    
+    private OffHeapIndex<T> getIndex(String fieldName) {
+        final OffHeapIndex<T> index = this.indexes.get(fieldName);
+        
+        if (index == null) { throw new IllegalArgumentException("No indexer defined for a field called " + fieldName); }
+        return index;
+    }
+    
+    /** Gets the number of bytes of direct memory which have been allocated to hold the entries. */
+    public long getOffHeapSize() { return store.allocatedBytes(); }
+    
+    /** {@inheritDoc} */
+    @Override public int size() { return store.size(); }
+    
+    /** Is there an entry equal to the provided object? This decodes only the entries with the same hash code. */
+    @Override public boolean contains(Object o) { return o != null && firstEqualOrdinal(o) >= 0; }
+    
+    /**
+     * Gets an iterator over the entries in insertion order, which decodes each in turn. It does not support
+     * {@link Iterator#remove()}, which would leave the indexes out of step with the entries.
+     */
+    @Override public Iterator<T> iterator() {
+        final int expectedModCount = modCount;
+        return new Iterator<T>() {
+            private int next = store.nextOrdinal(0);
+            
+            @Override public boolean hasNext() { return next < store.ordinalCount(); }
+            
+            @Override public T next() {
+                if ( !hasNext())                 { throw new NoSuchElementException(); }
+                if (modCount != expectedModCount) { throw new ConcurrentModificationException(); }
+                
+                final T entry = decode(next);
+                next = store.nextOrdinal(next + 1);
+                return entry;
+            }
+        };
+    }
+    
+    /**
+     * Encodes the provided entry into the off-heap store, and adds it to the indexes.
+     *
+     * @throws NullPointerException if the entry is {@code null}.
+     * @throws IllegalArgumentException if any indexer cannot be applied, or the entry violates any uniqueness
+     *                                  constraint, or it is too big to fit in a slab.
+     * @throws ClassCastException if any index operates on a field which does not implement Comparable.
+     * @throws UncheckedIOException if the entry cannot be encoded.
+     */
+    @Override public boolean add(T item) {
+        Objects.requireNonNull(item, "Cannot add a null entry to an OffHeapIndexedCollection.");
+        
+        final Object[] keys = new Object[indexes.size()];
+        int i = 0;
+        for (OffHeapIndex<T> index : indexes.values()) {
+            keys[i++] = index.keyOf(item);
+        }
+        i = 0;
+        for (OffHeapIndex<T> index : indexes.values()) {
+            index.validateUniqueness(item, keys[i++]);
+        }
+        
+        final int ordinal = append(item);
+        i = 0;
+        for (OffHeapIndex<T> index : indexes.values()) {
+            index.add(ordinal, keys[i++]);
+        }
+        addToHashTable(ordinal, item.hashCode());
+        modCount++;
+        return true;
+    }
+    
+    /**
+     * Adds all of the provided items to this collection as a single bulk load. The whole batch is validated before
+     * any of it is added, so if any item is invalid, the collection is left unchanged.
+     *
+     * @throws IllegalArgumentException if any indexer cannot be applied to any of the items.
+     * @throws IllegalArgumentException if any of the items would violate any uniqueness constraint.
+     * @throws UncheckedIOException if any of the items cannot be encoded.
+     */
+    @Override public boolean addAll(Collection<? extends T> c) {
+        final List<T> batch = new ArrayList<>(c);
+        if (batch.isEmpty()) { return false; }
+        
+        final List<Object[]> keysByIndex = new ArrayList<>(indexes.size());
+        for (OffHeapIndex<T> index : indexes.values()) {
+            final Object[] keys = new Object[batch.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = index.keyOf(Objects.requireNonNull(batch.get(i), "Cannot add a null entry to an OffHeapIndexedCollection."));
+            }
+            index.validateBatch(batch, keys);
+            keysByIndex.add(keys);
+        }
+        
+        // Any entry may fail to be encoded, in which case those already appended are removed again.
+        final int firstOrdinal = store.ordinalCount();
+        try {
+            for (T item : batch) {
+                append(item);
+            }
+        }
+        catch (RuntimeException e) {
+            for (int ordinal = firstOrdinal; ordinal < store.ordinalCount(); ordinal++) {
+                store.remove(ordinal);
+            }
+            throw e;
+        }
+        
+        int i = 0;
+        for (OffHeapIndex<T> index : indexes.values()) {
+            index.addAll(firstOrdinal, keysByIndex.get(i++));
+        }
+        for (int offset = 0; offset < batch.size(); offset++) {
+            addToHashTable(firstOrdinal + offset, batch.get(offset).hashCode());
+        }
+        modCount++;
+        return true;
+    }
+    
+    /** Encodes the provided entry, and appends it to the store. */
+    private int append(T item) {
+        encodingBuffer.reset();
+        try {
+            codec.encode(item, encodingOut);
+            encodingOut.flush();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Cannot encode element " + item, e);
+        }
+        return store.append(encodingBuffer.bytes(), encodingBuffer.size());
+    }
+    
+    /**
+     * Removes the earliest entry which is equal to the provided object, just as {@link IndexedCollection#remove(Object)}
+     * does. This decodes only the entries with the same hash code.
+     */
+    @Override public boolean remove(Object o) {
+        if (o == null) { return false; }
+        
+        final int ordinal = firstEqualOrdinal(o);
+        if (ordinal < 0) { return false; }
+        
+        final T entry = decode(ordinal);
+        for (OffHeapIndex<T> index : indexes.values()) {
+            index.remove(ordinal, index.getIndexedField().getKey(entry));
+        }
+        removeFromHashTable(ordinal);
+        store.remove(ordinal);
+        modCount++;
+        compactIfDue();
+        return true;
+    }
+    
+    /** Removes every entry which is equal to any of the provided objects, in a single pass over each index. */
+    @Override public boolean removeAll(Collection<?> c) {
+        final BitSet removedOrdinals = new BitSet();
+        for (Object o : c) {
+            if (o == null) { continue; }
+            
+            forEachEqualOrdinal(o, removedOrdinals::set);
+        }
+        return removeOrdinals(removedOrdinals);
+    }
+    
+    /** {@inheritDoc} This decodes every entry. */
+    @Override public boolean retainAll(Collection<?> c) {
+        Objects.requireNonNull(c);
+        return removeIf(entry -> !c.contains(entry));
+    }
+    
+    /**
+     * Removes every entry which matches the provided filter, in a single pass over each index. This decodes every
+     * entry, and if the filter throws an exception, nothing is removed.
+     */
+    @Override public boolean removeIf(Predicate<? super T> filter) {
+        Objects.requireNonNull(filter);
+        
+        final BitSet removedOrdinals = new BitSet();
+        for (int ordinal = store.nextOrdinal(0); ordinal < store.ordinalCount(); ordinal = store.nextOrdinal(ordinal + 1)) {
+            if (filter.test(decode(ordinal))) { removedOrdinals.set(ordinal); }
+        }
+        return removeOrdinals(removedOrdinals);
+    }
+    
+    private boolean removeOrdinals(BitSet removedOrdinals) {
+        if (removedOrdinals.isEmpty()) { return false; }
+        
+        for (OffHeapIndex<T> index : indexes.values()) {
+            index.removeAll(removedOrdinals);
+        }
+        for (int ordinal = removedOrdinals.nextSetBit(0); ordinal >= 0; ordinal = removedOrdinals.nextSetBit(ordinal + 1)) {
+            removeFromHashTable(ordinal);
+            store.remove(ordinal);
+        }
+        modCount++;
+        compactIfDue();
+        return true;
+    }
+    
+    /** Removes all the entries, and frees the direct buffers which held them once they are garbage collected. */
+    @Override public void clear() {
+        store.clear();
+        for (OffHeapIndex<T> index : indexes.values()) {
+            index.clear();
+        }
+        this.hashCodes = new int[INITIAL_CAPACITY];
+        this.hashTable = new int[2 * INITIAL_CAPACITY];
+        this.usedSlots = 0;
+        modCount++;
+    }
+    
+    /**
+     * Reclaims the space of the entries which have been removed, by copying the remaining entries into new direct
+     * buffers. This happens automatically once removed entries take up as much space as the remaining entries.
+     */
+    public void compact() {
+        final int[] newOrdinals = store.compact();
+        for (OffHeapIndex<T> index : indexes.values()) {
+            index.renumber(newOrdinals);
+        }
+        
+        final int[] oldHashCodes = hashCodes;
+        this.hashCodes = new int[Math.max(INITIAL_CAPACITY, store.size())];
+        for (int oldOrdinal = 0; oldOrdinal < newOrdinals.length; oldOrdinal++) {
+            if (newOrdinals[oldOrdinal] >= 0) { hashCodes[newOrdinals[oldOrdinal]] = oldHashCodes[oldOrdinal]; }
+        }
+        rebuildHashTable(store.ordinalCount());
+        modCount++;
+    }
+    
+    private void compactIfDue() {
+        if (store.isDueForCompaction()) { compact(); }
+    }
+    
+    /** Decodes the entry with the provided ordinal. */
+    private T decode(int ordinal) {
+        try {
+            return codec.decode(new DataInputStream(store.read(ordinal)));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Cannot decode the entry at ordinal " + ordinal, e);
+        }
+    }
+    
+    /** Decodes the entries with the provided ordinals, in the same order. */
+    private List<T> decodeAll(int[] ordinals) {
+        if (ordinals.length == 0) { return Collections.emptyList(); }
+        
+        final Object[] decoded = new Object[ordinals.length];
+        for (int i = 0; i < ordinals.length; i++) {
+            decoded[i] = decode(ordinals[i]);
+        }
+        return new DecodedList<>(decoded);
+    }
+    
+    /** An unmodifiable list of decoded entries, which unlike {@code Arrays.asList} does not allow them to be set. */
+    private static final class DecodedList<T> extends AbstractList<T> implements RandomAccess {
+        private final Object[] entries;
+        
+        DecodedList(Object[] entries) { this.entries = entries; }
+        
+        @Override public int size() { return entries.length; }
+        
+        @SuppressWarnings("unchecked")
+        @Override public T get(int index) { return (T) entries[index]; }
+    }
+    
+    /** Gets the lowest ordinal of an entry equal to the provided object, or -1 if there is none. */
+    private int firstEqualOrdinal(Object o) {
+        final int[] first = { -1 };
+        forEachEqualOrdinal(o, ordinal -> {
+            if (first[0] < 0 || ordinal < first[0]) { first[0] = ordinal; }
+        });
+        return first[0];
+    }
+    
+    /** A callback for the ordinals found in the {@link #hashTable}. */
+    private interface OrdinalConsumer {
+        void accept(int ordinal);
+    }
+    
+    /** Passes the ordinal of each entry equal to the provided (non-null) object to the consumer, in no particular order. */
+    private void forEachEqualOrdinal(Object o, OrdinalConsumer consumer) {
+        final int hashCode = o.hashCode();
+        final int mask = hashTable.length - 1;
+        for (int slot = spread(hashCode) & mask; hashTable[slot] != EMPTY; slot = (slot + 1) & mask) {
+            final int ordinal = hashTable[slot] - 1;
+            if (hashTable[slot] != REMOVED && hashCodes[ordinal] == hashCode && o.equals(decode(ordinal))) {
+                consumer.accept(ordinal);
+            }
+        }
+    }
+    
+    /** Spreads the higher bits of a hash code into the lower ones, which choose its slot. */
+    private static int spread(int hashCode) { return hashCode ^ (hashCode >>> 16); }
+    
+    private void addToHashTable(int ordinal, int hashCode) {
+        if (ordinal >= hashCodes.length) {
+            hashCodes = Arrays.copyOf(hashCodes, Math.max(ordinal + 1, hashCodes.length + (hashCodes.length >> 1)));
+        }
+        hashCodes[ordinal] = hashCode;
+        
+        // Keep the table no more than half full, counting the slots of removed entries, which end probes no sooner.
+        if (2 * (usedSlots + 1) > hashTable.length) {
+            rebuildHashTable(ordinal);
+        }
+        insertIntoHashTable(ordinal);
+    }
+    
+    private void insertIntoHashTable(int ordinal) {
+        final int mask = hashTable.length - 1;
+        int slot = spread(hashCodes[ordinal]) & mask;
+        while (hashTable[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        hashTable[slot] = ordinal + 1;
+        usedSlots++;
+    }
+    
+    /**
+     * Rebuilds the hash table from the hash codes of the remaining entries before the provided ordinal, discarding
+     * the slots of removed ones.
+     */
+    private void rebuildHashTable(int ordinalLimit) {
+        int capacity = 2 * INITIAL_CAPACITY;
+        while (capacity < 4 * (store.size() + 1)) { capacity <<= 1; }
+        
+        this.hashTable = new int[capacity];
+        this.usedSlots = 0;
+        for (int ordinal = store.nextOrdinal(0); ordinal < ordinalLimit; ordinal = store.nextOrdinal(ordinal + 1)) {
+            insertIntoHashTable(ordinal);
+        }
+    }
+    
+    private void removeFromHashTable(int ordinal) {
+        final int mask = hashTable.length - 1;
+        for (int slot = spread(hashCodes[ordinal]) & mask; hashTable[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (hashTable[slot] == ordinal + 1) {
+                hashTable[slot] = REMOVED;
+                return;
+            }
+        }
+    }
+}
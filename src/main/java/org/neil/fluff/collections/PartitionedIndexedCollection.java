@@ -0,0 +1,482 @@
+package org.neil.fluff.collections;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * A thread-safe variant of {@link IndexedCollection} for write-heavy use, which spreads its entries across a number
+ * of independent partitions by the hash of a partition key. Each partition is a {@link ConcurrentIndexedCollection}
+ * with its own lock and its own indexes, so writers to different partitions do not contend with each other.
+ * <p/>
+ * Equality queries on the partition key are routed to a single partition. All other queries are sent to every
+ * partition and their results gathered together. Results which are sorted by key (and
+ * {@link #iteratorSortedBy(String) sorted iteration}) are merged from the sorted results of the partitions, so
+ * they are in the same order as those of an {@code IndexedCollection}. Otherwise, entries from different
+ * partitions are in no particular order relative to each other.
+ * <p/>
+ * Partition keys are matched by {@code equals} and {@code hashCode}, like those of a
+ * {@link IndexedCollection.IndexType#HASH hash} index. So equality queries on the partition key must use a value of
+ * the same type as the keys: for example a {@code Long} will not find entries whose key is the {@code Integer} with
+ * the same value.
+ * <p/>
+ * A uniqueness constraint can only be enforced on the partition key, as entries with equal values of any other key
+ * could be in different partitions. Queries see a consistent state of each partition, but partitions may change
+ * between being queried. Of the bulk changes, only {@link #addAll(Collection)} is atomic across partitions.
+ *
+ * @param <T> the type of entries in this collection.
+ *
+ * @author Neil Mc Erlean
+ */
+public class PartitionedIndexedCollection<T extends Serializable>
+                                         implements Collection<T>, Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final IndexedField<T> partitionKey;
+    
+    /**
+     * The configured indexes, including that of the partition key, by field name. This is replaced rather than
+     * changed when an index is added or dropped, so it can be read without locking.
+     */
+    private volatile Map<String, IndexedField<T>> indexedFields;
+    
+    private final List<ConcurrentIndexedCollection<T>> partitions;
+    
+    /**
+     * Constructs a new, empty collection.
+     *
+     * @param partitionCount the number of partitions, which would usually be at least the number of writing threads.
+     * @param partitionKey the key by which entries are partitioned, which is indexed as well.
+     * @param indexedFields the other indexes.
+     * @throws IllegalArgumentException if any index other than that of the partition key has a uniqueness constraint.
+     */
+    @SafeVarargs
+    public PartitionedIndexedCollection(int partitionCount, IndexedField<T> partitionKey, IndexedField<T>... indexedFields) {
+        if (partitionCount < 1) { throw new IllegalArgumentException("Illegal number of partitions: " + partitionCount); }
+        
+        this.partitionKey = partitionKey;
+        final Map<String, IndexedField<T>> allIndexedFieldsByName = new LinkedHashMap<>();
+        allIndexedFieldsByName.put(partitionKey.getFieldName(), partitionKey);
+        for (IndexedField<T> indexedField : indexedFields) {
+            if ( !isPartitionKey(indexedField.getFieldName())) { checkIsNotUnique(indexedField); }
+            allIndexedFieldsByName.putIfAbsent(indexedField.getFieldName(), indexedField);
+        }
+        this.indexedFields = allIndexedFieldsByName;
+        
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        final IndexedField<T>[] allIndexedFields = allIndexedFieldsByName.values().toArray(new IndexedField[0]);
+        final List<ConcurrentIndexedCollection<T>> partitions = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            partitions.add(new ConcurrentIndexedCollection<>(allIndexedFields));
+        }
+        this.partitions = Collections.unmodifiableList(partitions);
+    }
+    
+    private static void checkIsNotUnique(IndexedField<?> indexedField) {
+        if (indexedField.isValueUnique()) {
+            throw new IllegalArgumentException("Cannot enforce the uniqueness of '" + indexedField.getFieldName() +
+                                               "' as it is not the partition key.");
+        }
+    }
+    
+    /** Gets the number of partitions into which this collection is divided. */
+    public int getPartitionCount() { return partitions.size(); }
+    
+    /** Gets the index of the partition which holds any entries with the provided partition key. */
+    private int partitionIndexOf(Object key) {
+        // Spread the higher bits of the hash downwards, as HashMap does, so that they affect the partition too.
+        final int hash = Objects.hashCode(key);
+        return Math.floorMod(hash ^ (hash >>> 16), partitions.size());
+    }
+    
+    private ConcurrentIndexedCollection<T> partitionOf(T entry) {
+        return partitions.get(partitionIndexOf(partitionKey.getKey(entry)));
+    }
+    
+    private boolean isPartitionKey(String fieldName) { return partitionKey.getFieldName().equals(fieldName); }
+    
+    private Comparator<T> comparatorOf(String fieldName) {
+        final IndexedField<T> indexedField = indexedFields.get(fieldName);
+        if (indexedField == null) { throw new IllegalArgumentException("No indexer defined for a field called " + fieldName); }
+        
+        return indexedField::compare;
+    }
+    
+    /** @see IndexedCollection#findOne(String, Object) */
+    public T findOne(String fieldName, Object fieldValue) {
+        if (isPartitionKey(fieldName)) {
+            return partitions.get(partitionIndexOf(fieldValue)).findOne(fieldName, fieldValue);
+        }
+        
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            final T entry = partition.findOne(fieldName, fieldValue);
+            if (entry != null) { return entry; }
+        }
+        return null;
+    }
+    
+    /**
+     * Finds all entries with the specified key. Equality queries on the partition key go to a single partition, in
+     * which the entries are in insertion order. Otherwise the entries of each partition are in insertion order, but
+     * those of different partitions are in no particular order relative to each other.
+     *
+     * @see IndexedCollection#find(String, Object)
+     */
+    public List<T> find(String fieldName, Object fieldValue) {
+        if (isPartitionKey(fieldName)) {
+            return partitions.get(partitionIndexOf(fieldValue)).find(fieldName, fieldValue);
+        }
+        
+        final List<T> result = new ArrayList<>();
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            result.addAll(partition.find(fieldName, fieldValue));
+        }
+        return Collections.unmodifiableList(result);
+    }
+    
+    /** @see IndexedCollection#findRange(String, Object, boolean, Object, boolean) */
+    public List<T> findRange(String fieldName, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        final List<List<T>> results = new ArrayList<>(partitions.size());
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            results.add(partition.findRange(fieldName, from, fromInclusive, to, toInclusive));
+        }
+        return merge(results, fieldName);
+    }
+    
+    /** @see IndexedCollection#findGreaterThan(String, Object, boolean) */
+    public List<T> findGreaterThan(String fieldName, Object from, boolean inclusive) {
+        final List<List<T>> results = new ArrayList<>(partitions.size());
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            results.add(partition.findGreaterThan(fieldName, from, inclusive));
+        }
+        return merge(results, fieldName);
+    }
+    
+    /** @see IndexedCollection#findLessThan(String, Object, boolean) */
+    public List<T> findLessThan(String fieldName, Object to, boolean inclusive) {
+        final List<List<T>> results = new ArrayList<>(partitions.size());
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            results.add(partition.findLessThan(fieldName, to, inclusive));
+        }
+        return merge(results, fieldName);
+    }
+    
+    /** @see IndexedCollection#findByPrefix(String, String) */
+    public List<T> findByPrefix(String fieldName, String prefix) {
+        final List<List<T>> results = new ArrayList<>(partitions.size());
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            results.add(partition.findByPrefix(fieldName, prefix));
+        }
+        return merge(results, fieldName);
+    }
+    
+    /** Merges the sorted results from each partition into a single sorted list. */
+    private List<T> merge(List<List<T>> sortedResults, String fieldName) {
+        int size = 0;
+        for (List<T> sortedResult : sortedResults) {
+            size += sortedResult.size();
+        }
+        if (size == 0) { return Collections.<T>emptyList(); }
+        
+        final List<T> result = new ArrayList<>(size);
+        final List<Iterator<T>> iterators = new ArrayList<>(sortedResults.size());
+        for (List<T> sortedResult : sortedResults) {
+            iterators.add(sortedResult.iterator());
+        }
+        new MergingIterator<>(iterators, comparatorOf(fieldName)).forEachRemaining(result::add);
+        return Collections.unmodifiableList(result);
+    }
+    
+    /**
+     * Gets an iterator over the values in this collection, sorted by the values of the specified field name. This
+     * merges the sorted entries of each partition, each of which is copied in turn, so the iteration reflects the
+     * state of each partition at a slightly different time.
+     *
+     * @see IndexedCollection#iteratorSortedBy(String)
+     */
+    public Iterator<T> iteratorSortedBy(String fieldName) {
+        final List<Iterator<T>> iterators = new ArrayList<>(partitions.size());
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            iterators.add(partition.iteratorSortedBy(fieldName));
+        }
+        return new MergingIterator<>(iterators, comparatorOf(fieldName));
+    }
+    
+    /**
+     * An iterator which merges several sorted iterators into one (a k-way merge), using a heap of the next entry of
+     * each. Equal entries from different iterators are returned in the order of those iterators.
+     */
+    private static final class MergingIterator<E> implements Iterator<E> {
+        /** The next entry of an iterator, along with that iterator and its position in the list of iterators. */
+        private static final class Head<E> {
+            final E           entry;
+            final Iterator<E> iterator;
+            final int         iteratorIndex;
+            
+            Head(E entry, Iterator<E> iterator, int iteratorIndex) {
+                this.entry         = entry;
+                this.iterator      = iterator;
+                this.iteratorIndex = iteratorIndex;
+            }
+        }
+        
+        private final PriorityQueue<Head<E>> heads;
+        
+        MergingIterator(List<Iterator<E>> iterators, Comparator<? super E> comparator) {
+            final Comparator<Head<E>> headComparator = (head1, head2) -> {
+                final int comparison = comparator.compare(head1.entry, head2.entry);
+                return comparison != 0 ? comparison : Integer.compare(head1.iteratorIndex, head2.iteratorIndex);
+            };
+            this.heads = new PriorityQueue<>(Math.max(1, iterators.size()), headComparator);
+            
+            for (int i = 0; i < iterators.size(); i++) {
+                final Iterator<E> iterator = iterators.get(i);
+                if (iterator.hasNext()) { heads.add(new Head<>(iterator.next(), iterator, i)); }
+            }
+        }
+        
+        @Override public boolean hasNext() { return !heads.isEmpty(); }
+        
+        @Override public E next() {
+            final Head<E> head = heads.poll();
+            if (head == null) { throw new NoSuchElementException(); }
+            
+            if (head.iterator.hasNext()) {
+                heads.add(new Head<>(head.iterator.next(), head.iterator, head.iteratorIndex));
+            }
+            return head.entry;
+        }
+    }
+    
+    /** {@inheritDoc} */
+    @Override public int size() {
+        int size = 0;
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+    
+    /** {@inheritDoc} */
+    @Override public boolean isEmpty() {
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            if ( !partition.isEmpty()) { return false; }
+        }
+        return true;
+    }
+    
+    /** {@inheritDoc} */
+    @Override public boolean contains(Object o) {
+        // An entry which is equal to the provided object need not have the same partition key, so we check them all.
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            if (partition.contains(o)) { return true; }
+        }
+        return false;
+    }
+    
+    /** Gets an iterator over a copy of the values in this collection, partition by partition. */
+    @Override public Iterator<T> iterator() { return copyOfEntries().iterator(); }
+    
+    private List<T> copyOfEntries() {
+        final List<T> entries = new ArrayList<>();
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            partition.forEach(entries::add);
+        }
+        return Collections.unmodifiableList(entries);
+    }
+    
+    /** {@inheritDoc} */
+    @Override public Object[] toArray()        { return copyOfEntries().toArray(); }
+    
+    /** {@inheritDoc} */
+    @Override public <AT> AT[] toArray(AT[] a) { return copyOfEntries().toArray(a); }
+    
+    /** {@inheritDoc} */
+    @Override public boolean containsAll(Collection<?> items) {
+        for (Object item : items) {
+            if ( !this.contains(item)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /** Adds the provided item to its partition, locking only that partition. */
+    @Override public boolean add(T item) { return partitionOf(item).add(item); }
+    
+    /** {@inheritDoc} */
+    @Override public boolean remove(Object o) {
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            if (partition.remove(o)) { return true; }
+        }
+        return false;
+    }
+    
+    /**
+     * Adds all of the provided items to this collection as a single bulk load. The batch is divided between the
+     * partitions, all of which are locked while the whole batch is validated, so if this method throws an exception,
+     * none of the items will have been added to any partition.
+     *
+     * @see IndexedCollection#addAll(Collection)
+     */
+    @Override public boolean addAll(Collection<? extends T> c) {
+        if (c.isEmpty()) { return false; }
+        
+        final Map<Integer, List<T>> batches = new TreeMap<>();
+        for (T item : c) {
+            batches.computeIfAbsent(partitionIndexOf(partitionKey.getKey(item)), i -> new ArrayList<>()).add(item);
+        }
+        
+        // The partitions are always locked in the same order, so that concurrent bulk loads cannot deadlock.
+        final Map<Integer, Long> stamps = new LinkedHashMap<>();
+        try {
+            final List<Runnable> partitionUpdates = new ArrayList<>(batches.size());
+            for (Map.Entry<Integer, List<T>> batch : batches.entrySet()) {
+                final ConcurrentIndexedCollection<T> partition = partitions.get(batch.getKey());
+                stamps.put(batch.getKey(), partition.writeLock());
+                partitionUpdates.add(partition.prepareAddAll(batch.getValue()));
+            }
+            
+            // Every partition's batch is valid, so now we can add them.
+            for (Runnable partitionUpdate : partitionUpdates) {
+                partitionUpdate.run();
+            }
+        }
+        finally {
+            for (Map.Entry<Integer, Long> stamp : stamps.entrySet()) {
+                partitions.get(stamp.getKey()).unlockWrite(stamp.getValue());
+            }
+        }
+        return true;
+    }
+    
+    /** {@inheritDoc} */
+    @Override public boolean removeAll(Collection<?> c) {
+        boolean result = false;
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            if (partition.removeAll(c)) { result = true; }
+        }
+        return result;
+    }
+    
+    /** {@inheritDoc} */
+    @Override public boolean retainAll(Collection<?> c) {
+        // Hash the argument once, rather than once for each partition.
+        final Collection<?> toRetain = c instanceof Set ? c : new HashSet<>(c);
+        
+        boolean result = false;
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            if (partition.retainAll(toRetain)) { result = true; }
+        }
+        return result;
+    }
+    
+    /** {@inheritDoc} */
+    @Override public boolean removeIf(Predicate<? super T> filter) {
+        boolean result = false;
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            if (partition.removeIf(filter)) { result = true; }
+        }
+        return result;
+    }
+    
+    /**
+     * Adds an index to every partition, each of which builds it in the background while writes carry on. If any
+     * partition cannot build it, it is dropped from all of them, and the returned future completes exceptionally.
+     *
+     * @return a future which completes when the index is ready to be queried in every partition.
+     * @throws IllegalArgumentException if there is already an index with the same name, or the index has a
+     *                                  uniqueness constraint.
+     * @see ConcurrentIndexedCollection#addIndex(IndexedField)
+     */
+    public synchronized CompletableFuture<Void> addIndex(IndexedField<T> indexedField) {
+        if (indexedFields.containsKey(indexedField.getFieldName())) {
+            throw new IllegalArgumentException("There is already an index called " + indexedField.getFieldName());
+        }
+        checkIsNotUnique(indexedField);
+        
+        final Map<String, IndexedField<T>> newIndexedFields = new LinkedHashMap<>(indexedFields);
+        newIndexedFields.put(indexedField.getFieldName(), indexedField);
+        this.indexedFields = newIndexedFields;
+        
+        final List<CompletableFuture<Void>> partitionsBuilt = new ArrayList<>(partitions.size());
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            partitionsBuilt.add(partition.addIndex(indexedField));
+        }
+        // If any partition cannot build the index, drop it from the others too.
+        return CompletableFuture.allOf(partitionsBuilt.toArray(new CompletableFuture<?>[0]))
+                                .whenComplete((ignored, failure) -> {
+                                    if (failure != null) { dropIndex(indexedField.getFieldName()); }
+                                });
+    }
+    
+    /**
+     * Removes the named index from every partition.
+     *
+     * @return {@code true} if there was such an index, else {@code false}.
+     * @throws IllegalArgumentException if the index is that of the partition key, which is needed to route queries.
+     * @see ConcurrentIndexedCollection#dropIndex(String)
+     */
+    public synchronized boolean dropIndex(String fieldName) {
+        if (isPartitionKey(fieldName)) {
+            throw new IllegalArgumentException("Cannot drop the index of the partition key '" + fieldName + "'.");
+        }
+        if ( !indexedFields.containsKey(fieldName)) { return false; }
+        
+        final Map<String, IndexedField<T>> newIndexedFields = new LinkedHashMap<>(indexedFields);
+        newIndexedFields.remove(fieldName);
+        this.indexedFields = newIndexedFields;
+        
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            partition.dropIndex(fieldName);
+        }
+        return true;
+    }
+    
+    /**
+     * Rebuilds the stale lazy indexes of each partition in turn.
+     *
+     * @see IndexedCollection#buildStaleIndexes()
+     */
+    public void buildStaleIndexes() {
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            partition.buildStaleIndexes();
+        }
+    }
+    
+    /**
+     * Gets the total number of times that each lazy index has been built, across all the partitions.
+     *
+     * @see IndexedCollection#getIndexBuildCounts()
+     */
+    public Map<String, Long> getIndexBuildCounts() {
+        final Map<String, Long> buildCounts = new LinkedHashMap<>();
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            partition.getIndexBuildCounts().forEach((fieldName, count) -> buildCounts.merge(fieldName, count, Long::sum));
+        }
+        return buildCounts;
+    }
+    
+    /** {@inheritDoc} */
+    @Override public void clear() {
+        for (ConcurrentIndexedCollection<T> partition : partitions) {
+            partition.clear();
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package org.neil.fluff.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * An {@link Index} for keys which are {@code int}, {@code long} or {@code double} values (or their boxed equivalents).
+ * Like a {@link SortedIndex}, it holds the entries sorted by key, but the keys themselves are held in a sorted
+ * {@code long[]} alongside a parallel array of the entries. So a binary search runs over a contiguous array of
+ * primitives and never has to read, or unbox, the key of any entry. The values of {@code int}, {@code long} and
+ * {@code double} fields are read without boxing them, too.
+ * <p/>
+ * {@code double} keys are encoded as longs whose signed order is that of {@link Double#compare(double, double)}.
+ * Integral and floating point keys cannot be mixed in the same index. Entries with {@code null} keys, which sort
+ * before all other keys, are held separately in insertion order.
+ *
+ * @param <T> the type of entries in the index.
+ *
+ * @author Neil Mc Erlean
+ */
+class PrimitiveIndex<T> extends Index<T> {
+    private static final long serialVersionUID = 1L;
+    
+    private static final int INITIAL_CAPACITY = 16;
+    
+    /** The kinds of key which can be held in a {@code PrimitiveIndex}. */
+    enum KeyKind {
+        INTEGRAL("integral") {
+            @Override long encode(Number key) { return key.longValue(); }
+        },
+        FLOATING_POINT("floating point") {
+            @Override long encode(Number key) { return encodeDouble(key.doubleValue()); }
+        };
+        
+        private final String description;
+        
+        private KeyKind(String description) { this.description = description; }
+        
+        /** Encodes the provided key as a long whose signed order is the natural order of the keys. */
+        abstract long encode(Number key);
+        
+        /**
+         * Gets the kind of the provided (non-null) key.
+         *
+         * @throws ClassCastException if the key is not an int, long or double value (or a smaller equivalent).
+         */
+        static KeyKind of(Object key) {
+            if (key instanceof Integer || key instanceof Long || key instanceof Short || key instanceof Byte) {
+                return INTEGRAL;
+            }
+            else if (key instanceof Double || key instanceof Float) {
+                return FLOATING_POINT;
+            }
+            throw new ClassCastException("Key " + key + " is not an int, long or double value.");
+        }
+    }
+    
+    /** The kind of the keys in this index, which is not known until it has held a non-null key. */
+    private KeyKind keyKind;
+    
+    /** The encoded non-null keys of the entries, sorted. Only the first {@link #size} elements are in use. */
+    private long[] keys = new long[INITIAL_CAPACITY];
+    
+    /** The same object references that are stored in the collection, in the same order as their {@link #keys}. */
+    private Object[] entries = new Object[INITIAL_CAPACITY];
+    
+    private int size;
+    
+    /** The entries whose keys are {@code null}, in insertion order. */
+    private final List<T> nullKeyEntries = new ArrayList<>();
+    
+    PrimitiveIndex(IndexedField<T> indexedField) { super(indexedField); }
+    
+    /**
+     * Encodes a double as a long whose signed order is that of {@link Double#compare(double, double)}. The bits of
+     * a positive double are already in order, but those of a negative one are in reverse order, so we flip them.
+     */
+    static long encodeDouble(double value) {
+        final long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+    
+    /** Gets the kind of the provided entry's key, or {@code null} if its key is {@code null}. */
+    private KeyKind keyKindOf(T entry) {
+        if (indexedField.isFieldBased()) {
+            final FieldAccessor accessor = FieldAccessor.of(entry, indexedField.getFieldName());
+            if      (accessor.isIntegral())      { return KeyKind.INTEGRAL; }
+            else if (accessor.isFloatingPoint()) { return KeyKind.FLOATING_POINT; }
+        }
+        final Object key = indexedField.getKey(entry);
+        return key == null ? null : KeyKind.of(key);
+    }
+    
+    /** Gets the encoded key of the provided entry, whose key must be of the provided kind. */
+    private long encodedKeyOf(T entry, KeyKind kind) {
+        if (indexedField.isFieldBased()) {
+            // Primitive fields can be read without boxing their values.
+            final FieldAccessor accessor = FieldAccessor.of(entry, indexedField.getFieldName());
+            if      (accessor.isIntegral())      { return accessor.getLong(entry); }
+            else if (accessor.isFloatingPoint()) { return encodeDouble(accessor.getDouble(entry)); }
+        }
+        return kind.encode((Number) indexedField.getKey(entry));
+    }
+    
+    /**
+     * Encodes a (non-null) key provided in a query.
+     *
+     * @throws ClassCastException if the key is not of the same kind as the keys in this index.
+     */
+    private long encodeQueryKey(Object key) { return encodeQueryKey(key, keyKind, indexedField); }
+    
+    /**
+     * Encodes a (non-null) key provided in a query of an index whose keys are of the provided kind, or of
+     * no kind yet if that is {@code null}.
+     *
+     * @throws ClassCastException if the key is not of the same kind as the keys in the index.
+     */
+    static long encodeQueryKey(Object key, KeyKind keyKind, IndexedField<?> indexedField) {
+        final KeyKind kind = KeyKind.of(key);
+        if (keyKind != null && kind != keyKind) {
+            throw new ClassCastException("Cannot compare " + key + " with the " + keyKind.description +
+                                         " keys of '" + indexedField.getFieldName() + "'.");
+        }
+        return kind.encode((Number) key);
+    }
+    
+    @Override void validate(T entry) {
+        super.validate(entry);
+        
+        final KeyKind kind = keyKindOf(entry);
+        if (kind != null && keyKind != null && kind != keyKind) { throw mixedKeyKinds(entry, keyKind); }
+    }
+    
+    private ClassCastException mixedKeyKinds(T entry, KeyKind kind) {
+        return new ClassCastException("Cannot add element " + entry + " as the keys of '" + indexedField.getFieldName() +
+                                      "' are " + kind.description + " values.");
+    }
+    
+    @Override List<T> find(Object key) { return findRange(KeyRange.equalTo(key)); }
+    
+    /** Finds the first and last entries in the range with a binary search of the keys for each. */
+    @Override List<T> findRange(KeyRange range) {
+        boolean includesNullKeys = false;
+        int fromIndex = 0;
+        if (range.hasLowerBound()) {
+            if (range.getLowerBound() == null) {
+                includesNullKeys = range.isLowerBoundInclusive();
+            }
+            else {
+                final long from = encodeQueryKey(range.getLowerBound());
+                fromIndex = range.isLowerBoundInclusive() ? lowerBound(from, 0) : upperBound(from, 0);
+            }
+        }
+        
+        int toIndex = size;
+        if (range.hasUpperBound()) {
+            if (range.getUpperBound() == null) {
+                includesNullKeys &= range.isUpperBoundInclusive();
+                toIndex = 0;
+            }
+            else {
+                final long to = encodeQueryKey(range.getUpperBound());
+                toIndex = range.isUpperBoundInclusive() ? upperBound(to, fromIndex) : lowerBound(to, fromIndex);
+            }
+        }
+        
+        return entriesBetween(includesNullKeys, fromIndex, toIndex);
+    }
+    
+    /** Gets an unmodifiable copy of the entries between the specified indexes, preceded by any with {@code null} keys. */
+    @SuppressWarnings("unchecked")
+    private List<T> entriesBetween(boolean includesNullKeys, int fromIndex, int toIndex) {
+        final int nullKeyCount = includesNullKeys ? nullKeyEntries.size() : 0;
+        final int count = nullKeyCount + Math.max(0, toIndex - fromIndex);
+        if (count == 0) { return Collections.<T>emptyList(); }
+        
+        final List<T> result = new ArrayList<>(count);
+        if (includesNullKeys) {
+            result.addAll(nullKeyEntries);
+        }
+        for (int i = fromIndex; i < toIndex; i++) {
+            result.add((T) entries[i]);
+        }
+        return Collections.unmodifiableList(result);
+    }
+    
+    @Override boolean containsKey(Object key) {
+        if (key == null) { return !nullKeyEntries.isEmpty(); }
+        
+        final long encodedKey = encodeQueryKey(key);
+        final int indexOfFirstMatch = lowerBound(encodedKey, 0);
+        return indexOfFirstMatch < size && keys[indexOfFirstMatch] == encodedKey;
+    }
+    
+    /** Entries which are loaded in key order are added as a batch, whose keys are then sorted already. */
+    @Override boolean isSorted() { return true; }
+    
+    /**
+     * Inserts the provided entry and its key into the arrays at the correct position. Equal keys are inserted
+     * after any existing equal keys, so that the index retains insertion order within each key.
+     */
+    @Override void add(T entry) {
+        final KeyKind kind = keyKindOf(entry);
+        if (kind == null) {
+            nullKeyEntries.add(entry);
+            return;
+        }
+        this.keyKind = kind;
+        
+        final long key = encodedKeyOf(entry, kind);
+        final int insertionPoint = upperBound(key, 0);
+        ensureCapacity(size + 1);
+        System.arraycopy(keys,    insertionPoint, keys,    insertionPoint + 1, size - insertionPoint);
+        System.arraycopy(entries, insertionPoint, entries, insertionPoint + 1, size - insertionPoint);
+        keys[insertionPoint]    = key;
+        entries[insertionPoint] = entry;
+        size++;
+    }
+    
+    private void ensureCapacity(int capacity) {
+        if (capacity > keys.length) {
+            final int newCapacity = Math.max(capacity, keys.length + (keys.length >> 1));
+            keys    = Arrays.copyOf(keys,    newCapacity);
+            entries = Arrays.copyOf(entries, newCapacity);
+        }
+    }
+    
+    /**
+     * Encodes and sorts the keys of the batch, checking the uniqueness constraints if there are any, and returns
+     * an action which will merge it into the existing arrays. A batch which is already sorted by key is recognised
+     * as such and costs only a linear pass.
+     */
+    @Override Runnable prepareAddAll(List<T> batch) {
+        final List<T> nullKeyBatch = new ArrayList<>();
+        final long[] batchKeys = new long[batch.size()];
+        final Object[] batchEntries = new Object[batch.size()];
+        int batchSize = 0;
+        
+        KeyKind batchKeyKind = this.keyKind;
+        for (T entry : batch) {
+            final KeyKind kind = keyKindOf(entry);
+            if (kind == null) {
+                nullKeyBatch.add(entry);
+                continue;
+            }
+            
+            if (batchKeyKind == null)      { batchKeyKind = kind; }
+            else if (kind != batchKeyKind) { throw mixedKeyKinds(entry, batchKeyKind); }
+            
+            batchKeys[batchSize]    = encodedKeyOf(entry, kind);
+            batchEntries[batchSize] = entry;
+            batchSize++;
+        }
+        sortByKey(batchKeys, batchEntries, batchSize);
+        
+        if (indexedField.isValueUnique()) {
+            validateUniqueness(nullKeyBatch, batchKeys, batchEntries, batchSize);
+        }
+        
+        final KeyKind newKeyKind = batchKeyKind;
+        final int sortedBatchSize = batchSize;
+        return () -> {
+            this.keyKind = newKeyKind;
+            this.nullKeyEntries.addAll(nullKeyBatch);
+            mergeIntoArrays(batchKeys, batchEntries, sortedBatchSize);
+        };
+    }
+    
+    /**
+     * Ensures that a sorted batch of entries has no duplicate keys, either within the batch itself or with
+     * any entry already in the index.
+     *
+     * @throws IllegalArgumentException if there is any duplicate key.
+     */
+    @SuppressWarnings("unchecked")
+    private void validateUniqueness(List<T> nullKeyBatch, long[] batchKeys, Object[] batchEntries, int batchSize) {
+        if ( !nullKeyBatch.isEmpty()) {
+            if ( !nullKeyEntries.isEmpty()) { throw uniquenessViolation(nullKeyBatch.get(0), null); }
+            if (nullKeyBatch.size() > 1)    { throw uniquenessViolationInBatch(nullKeyBatch.get(1), nullKeyBatch.get(0), null); }
+        }
+        
+        for (int i = 0; i < batchSize; i++) {
+            final T entry = (T) batchEntries[i];
+            
+            if (i > 0 && batchKeys[i - 1] == batchKeys[i]) {
+                throw uniquenessViolationInBatch(entry, (T) batchEntries[i - 1], indexedField.getKey(entry));
+            }
+            
+            final int indexOfFirstMatch = lowerBound(batchKeys[i], 0);
+            if (indexOfFirstMatch < size && keys[indexOfFirstMatch] == batchKeys[i]) {
+                throw uniquenessViolation(entry, indexedField.getKey(entry));
+            }
+        }
+    }
+    
+    /**
+     * Merges a sorted batch of keys and entries into the arrays. Equal keys go after the existing ones, just as
+     * they would if the entries were added one at a time.
+     */
+    private void mergeIntoArrays(long[] batchKeys, Object[] batchEntries, int batchSize) {
+        final int mergedSize = size + batchSize;
+        final long[] mergedKeys = new long[Math.max(INITIAL_CAPACITY, mergedSize)];
+        final Object[] mergedEntries = new Object[mergedKeys.length];
+        
+        int existingIndex = 0;
+        int batchIndex = 0;
+        for (int i = 0; i < mergedSize; i++) {
+            if (batchIndex == batchSize || (existingIndex < size && keys[existingIndex] <= batchKeys[batchIndex])) {
+                mergedKeys[i]    = keys[existingIndex];
+                mergedEntries[i] = entries[existingIndex];
+                existingIndex++;
+            }
+            else {
+                mergedKeys[i]    = batchKeys[batchIndex];
+                mergedEntries[i] = batchEntries[batchIndex];
+                batchIndex++;
+            }
+        }
+        
+        this.keys    = mergedKeys;
+        this.entries = mergedEntries;
+        this.size    = mergedSize;
+    }
+    
+    /**
+     * Sorts the first {@code length} keys, and the entries alongside them, with a stable merge sort. A
+     * {@link #MIN_PARALLEL_BATCH_SIZE large} array is sorted in parallel on the common {@link ForkJoinPool}.
+     */
+    static void sortByKey(long[] keys, Object[] entries, int length) {
+        boolean isSorted = true;
+        for (int i = 1; i < length && isSorted; i++) {
+            isSorted = keys[i - 1] <= keys[i];
+        }
+        if (isSorted) { return; }
+        
+        final long[] sourceKeys = Arrays.copyOf(keys, length);
+        final Object[] sourceEntries = Arrays.copyOf(entries, length);
+        if (length < MIN_PARALLEL_BATCH_SIZE) {
+            mergeSort(sourceKeys, sourceEntries, keys, entries, 0, length);
+        }
+        else {
+            ForkJoinPool.commonPool().invoke(new ParallelMergeSort(sourceKeys, sourceEntries, keys, entries, 0, length));
+        }
+    }
+    
+    /**
+     * Sorts the specified range of the source arrays into the destination arrays. The source and destination
+     * arrays must start out with the same contents, as each level of the recursion swaps their roles.
+     */
+    private static void mergeSort(long[] sourceKeys, Object[] sourceEntries,
+                                  long[] destinationKeys, Object[] destinationEntries, int fromIndex, int toIndex) {
+        if (toIndex - fromIndex < 2) { return; }
+        
+        final int middle = (fromIndex + toIndex) >>> 1;
+        mergeSort(destinationKeys, destinationEntries, sourceKeys, sourceEntries, fromIndex, middle);
+        mergeSort(destinationKeys, destinationEntries, sourceKeys, sourceEntries, middle, toIndex);
+        merge(sourceKeys, sourceEntries, destinationKeys, destinationEntries, fromIndex, middle, toIndex);
+    }
+    
+    /** Merges the two sorted halves of the specified range of the source arrays into the destination arrays. */
+    private static void merge(long[] sourceKeys, Object[] sourceEntries,
+                              long[] destinationKeys, Object[] destinationEntries, int fromIndex, int middle, int toIndex) {
+        // Taking from the left half when keys are equal keeps the sort stable.
+        int left = fromIndex;
+        int right = middle;
+        for (int i = fromIndex; i < toIndex; i++) {
+            if (right == toIndex || (left < middle && sourceKeys[left] <= sourceKeys[right])) {
+                destinationKeys[i]    = sourceKeys[left];
+                destinationEntries[i] = sourceEntries[left];
+                left++;
+            }
+            else {
+                destinationKeys[i]    = sourceKeys[right];
+                destinationEntries[i] = sourceEntries[right];
+                right++;
+            }
+        }
+    }
+    
+    /**
+     * The {@link #mergeSort(long[], Object[], long[], Object[], int, int) merge sort}, with the two halves of each
+     * range sorted in parallel until they are too small to be worth splitting.
+     */
+    private static final class ParallelMergeSort extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final long[]   sourceKeys;
+        private final Object[] sourceEntries;
+        private final long[]   destinationKeys;
+        private final Object[] destinationEntries;
+        private final int      fromIndex;
+        private final int      toIndex;
+        
+        ParallelMergeSort(long[] sourceKeys, Object[] sourceEntries, long[] destinationKeys, Object[] destinationEntries,
+                          int fromIndex, int toIndex) {
+            this.sourceKeys         = sourceKeys;
+            this.sourceEntries      = sourceEntries;
+            this.destinationKeys    = destinationKeys;
+            this.destinationEntries = destinationEntries;
+            this.fromIndex          = fromIndex;
+            this.toIndex            = toIndex;
+        }
+        
+        @Override protected void compute() {
+            if (toIndex - fromIndex < MIN_PARALLEL_BATCH_SIZE) {
+                mergeSort(sourceKeys, sourceEntries, destinationKeys, destinationEntries, fromIndex, toIndex);
+                return;
+            }
+            
+            final int middle = (fromIndex + toIndex) >>> 1;
+            invokeAll(new ParallelMergeSort(destinationKeys, destinationEntries, sourceKeys, sourceEntries, fromIndex, middle),
+                      new ParallelMergeSort(destinationKeys, destinationEntries, sourceKeys, sourceEntries, middle, toIndex));
+            merge(sourceKeys, sourceEntries, destinationKeys, destinationEntries, fromIndex, middle, toIndex);
+        }
+    }
+    
+    @Override boolean remove(T entry) {
+        final KeyKind kind = keyKindOf(entry);
+        if (kind == null) {
+            if (removeNullKeyEntry(entry)) { return true; }
+        }
+        else if (kind == keyKind) {
+            final long key = encodedKeyOf(entry, kind);
+            final int upperBound = upperBound(key, 0);
+            for (int i = lowerBound(key, 0); i < upperBound; i++) {
+                if (entries[i] == entry) {
+                    removeAt(i);
+                    return true;
+                }
+            }
+        }
+        
+        // The entry may have been mutated since it was added, in which case it is no longer where its
+        // current key says it should be. We'll have to look for it the hard way.
+        for (int i = 0; i < size; i++) {
+            if (entries[i] == entry) {
+                removeAt(i);
+                return true;
+            }
+        }
+        return removeNullKeyEntry(entry);
+    }
+    
+    private boolean removeNullKeyEntry(T entry) {
+        for (Iterator<T> iter = nullKeyEntries.iterator(); iter.hasNext(); ) {
+            if (iter.next() == entry) {
+                iter.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void removeAt(int index) {
+        System.arraycopy(keys,    index + 1, keys,    index, size - index - 1);
+        System.arraycopy(entries, index + 1, entries, index, size - index - 1);
+        entries[--size] = null;
+    }
+    
+    /** Compacts the arrays in a single pass, which retains their order, so they need not be sorted again. */
+    @Override void removeAll(Set<T> removedEntries) {
+        int retainedCount = 0;
+        for (int i = 0; i < size; i++) {
+            if ( !removedEntries.contains(entries[i])) {
+                keys[retainedCount]    = keys[i];
+                entries[retainedCount] = entries[i];
+                retainedCount++;
+            }
+        }
+        Arrays.fill(entries, retainedCount, size, null);
+        this.size = retainedCount;
+        
+        nullKeyEntries.removeIf(removedEntries::contains);
+    }
+    
+    @Override void clear() {
+        this.keyKind = null;
+        this.keys    = new long[INITIAL_CAPACITY];
+        this.entries = new Object[INITIAL_CAPACITY];
+        this.size    = 0;
+        this.nullKeyEntries.clear();
+    }
+    
+    @Override PrimitiveIndex<T> copy() {
+        final PrimitiveIndex<T> copy = new PrimitiveIndex<>(indexedField);
+        copy.keyKind = this.keyKind;
+        copy.keys    = Arrays.copyOf(keys,    Math.max(INITIAL_CAPACITY, size));
+        copy.entries = Arrays.copyOf(entries, Math.max(INITIAL_CAPACITY, size));
+        copy.size    = this.size;
+        copy.nullKeyEntries.addAll(nullKeyEntries);
+        return copy;
+    }
+    
+    /** Freezes the encoded keys, so that they can still be searched without reading any entry. */
+    @Override FrozenIndex<T> freeze() { return FrozenIndex.ofEncodedKeys(indexedField, keyKind, nullKeyEntries, keys, entries, size); }
+    
+    /** Gets an iterator over a copy of the entries, as the arrays are updated in place. */
+    @Override Iterator<T> sortedIterator() { return entriesBetween(true, 0, size).iterator(); }
+    
+    /**
+     * Gets the index of the first key which is not less than the provided key,
+     * searching only from the specified index onwards.
+     */
+    private int lowerBound(long key, int fromIndex) {
+        int lowLimit = fromIndex;
+        int highLimit = size;
+        while (lowLimit < highLimit) {
+            int middle = (lowLimit + highLimit) >>> 1;
+            if (keys[middle] < key) {
+                lowLimit = middle + 1;
+            }
+            else {
+                highLimit = middle;
+            }
+        }
+        return lowLimit;
+    }
+    
+    /**
+     * Gets the index of the first key which is greater than the provided key,
+     * searching only from the specified index onwards.
+     */
+    private int upperBound(long key, int fromIndex) {
+        int lowLimit = fromIndex;
+        int highLimit = size;
+        while (lowLimit < highLimit) {
+            int middle = (lowLimit + highLimit) >>> 1;
+            if (keys[middle] <= key) {
+                lowLimit = middle + 1;
+            }
+            else {
+                highLimit = middle;
+            }
+        }
+        return lowLimit;
+    }
+}
@@ -0,0 +1,367 @@
+package org.neil.fluff.collections;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * A {@link ConcurrentIndexedCollection} in which {@link #add(Serializable) add} and {@link #remove(Object) remove}
+ * are applied by a single, dedicated writer thread. Callers enqueue their changes onto a lock-free queue, from which
+ * the writer thread takes them in batches. Each batch is applied under a single acquisition of the write lock, and
+ * each run of consecutive adds within it is applied as a single bulk load, which sorts and merges it into each
+ * index just once. So the cost of maintaining the indexes is shared by all the changes in a batch, and the threads
+ * making those changes never contend for the write lock.
+ * <p/>
+ * {@link #addAsync(Serializable)} and {@link #removeAsync(Object)} return a future which completes when the change
+ * is visible to queries, whereas {@code add} and {@code remove} wait for that. All other changes, such as
+ * {@link #addAll(java.util.Collection) addAll}, bypass the queue and are applied directly by the calling thread.
+ * <p/>
+ * If the collection is {@link #openJournaled(Path, IndexedField...) journaled}, the writer thread appends the
+ * records of a whole batch to the journal under the write lock, and forces them to disk together once it has
+ * released it, so a batch costs a single force of the journal, however many changes it holds.
+ * <p/>
+ * The writer thread is started by the first queued change, and runs until the collection is {@link #close() closed}.
+ * It holds a reference to the collection, so a collection whose changes have been queued must be closed, or
+ * neither it nor its writer thread will ever be garbage collected.
+ *
+ * @param <T> the type of entries in this collection.
+ *
+ * @author Neil Mc Erlean
+ */
+public class SingleWriterIndexedCollection<T extends Serializable> extends ConcurrentIndexedCollection<T>
+                                                                 implements AutoCloseable {
+    private static final long serialVersionUID = 1L;
+    
+    public static final int DEFAULT_QUEUE_CAPACITY = 1 << 16;
+    
+    /** A change which is waiting to be applied by the writer thread. */
+    private static final class Mutation<T> {
+        final boolean                    isAdd;
+        final Object                     value;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        
+        /** The journal record of the change, which is encoded by the thread which enqueues it. */
+        final byte[]                     record;
+        
+        /** The outcome of the change, which is recorded under the write lock and reported after it is released. */
+        boolean          result;
+        RuntimeException failure;
+        
+        Mutation(boolean isAdd, Object value, byte[] record) {
+            this.isAdd  = isAdd;
+            this.value  = value;
+            this.record = record;
+        }
+        
+        @SuppressWarnings("unchecked")
+        T entry() { return (T) value; }
+        
+        void complete() {
+            if (failure == null) { future.complete(result); }
+            else                 { future.completeExceptionally(failure); }
+        }
+    }
+    
+    private final int queueCapacity;
+    
+    private transient MpscRingBuffer<Mutation<T>> queue;
+    
+    /** The writer thread, which is {@code null} until the first change is queued. */
+    private transient volatile Thread writerThread;
+    
+    /** Is the writer thread parked, waiting for a change? */
+    private transient volatile boolean isWriterParked;
+    
+    private transient volatile boolean isClosed;
+    
+    /** The number of threads which are enqueueing a change, which must all finish before the writer thread stops. */
+    private transient AtomicInteger activeProducers;
+    
+    @SafeVarargs
+    public SingleWriterIndexedCollection(IndexedField<T>... indexedFields) {
+        this(DEFAULT_QUEUE_CAPACITY, indexedFields);
+    }
+    
+    /**
+     * @param queueCapacity the maximum number of changes which can be waiting for the writer thread, beyond
+     *                      which producers must wait. This is also the maximum size of a batch.
+     */
+    @SafeVarargs
+    public SingleWriterIndexedCollection(int queueCapacity, IndexedField<T>... indexedFields) {
+        super(indexedFields);
+        this.queueCapacity = queueCapacity;
+        initQueue();
+    }
+    
+    private SingleWriterIndexedCollection(int queueCapacity, IndexedCollection<T> collection, Journal journal) {
+        super(collection, journal);
+        this.queueCapacity = queueCapacity;
+        initQueue();
+    }
+    
+    /**
+     * Opens a collection whose changes are journaled in the specified directory, with the default queue capacity,
+     * commit window and maximum journal length.
+     *
+     * @see ConcurrentIndexedCollection#openJournaled(Path, long, long, IndexedField...)
+     */
+    @SafeVarargs
+    public static <T extends Serializable> SingleWriterIndexedCollection<T> openJournaled(Path directory, IndexedField<T>... indexedFields)
+                                                                                         throws IOException, ClassNotFoundException {
+        return openJournaled(directory, DEFAULT_QUEUE_CAPACITY, DEFAULT_COMMIT_WINDOW_NANOS, DEFAULT_MAX_JOURNAL_LENGTH,
+                             indexedFields);
+    }
+    
+    /**
+     * Opens a collection whose changes are journaled in the specified directory.
+     *
+     * @see ConcurrentIndexedCollection#openJournaled(Path, long, long, IndexedField...)
+     */
+    @SafeVarargs
+    public static <T extends Serializable> SingleWriterIndexedCollection<T> openJournaled(Path directory, int queueCapacity,
+                                                                                         long commitWindowNanos,
+                                                                                         long maxJournalLength,
+                                                                                         IndexedField<T>... indexedFields)
+                                                                                         throws IOException, ClassNotFoundException {
+        final IndexedCollection<T> collection = Journal.recover(directory, indexedFields);
+        return new SingleWriterIndexedCollection<>(queueCapacity, collection,
+                                                   Journal.open(directory, commitWindowNanos, maxJournalLength));
+    }
+    
+    private void initQueue() {
+        this.queue           = new MpscRingBuffer<>(queueCapacity);
+        this.activeProducers = new AtomicInteger();
+    }
+    
+    /** Starts the writer thread, unless it has already been started. */
+    private synchronized void startWriter() {
+        if (isClosed) { throw new IllegalStateException("Cannot change a closed " + getClass().getSimpleName()); }
+        if (writerThread == null) {
+            final Thread thread = new Thread(this::runWriter, "IndexedCollection-writer");
+            thread.setDaemon(true);
+            thread.start();
+            this.writerThread = thread;
+        }
+    }
+    
+    /**
+     * Enqueues the provided item to be added to this collection by the writer thread.
+     *
+     * @return a future which completes when the item is visible to queries, and durable if this collection is
+     *         journaled or, if it cannot be added, completes exceptionally with the exception which
+     *         {@link IndexedCollection#add(Serializable)} would have thrown.
+     * @throws IllegalStateException if this collection has been closed.
+     * @throws UncheckedIOException if this collection is journaled, and the item cannot be serialized.
+     */
+    public CompletableFuture<Boolean> addAsync(T item) {
+        return enqueue(new Mutation<T>(true, item, recordOf(Journal.Op.ADD, Collections.singletonList(item))));
+    }
+    
+    /**
+     * Enqueues the provided item to be removed from this collection by the writer thread.
+     *
+     * @return a future which completes, with {@code true} if the item was removed, when the removal is visible.
+     * @throws IllegalStateException if this collection has been closed.
+     * @throws UncheckedIOException if this collection is journaled, and the item cannot be serialized.
+     */
+    public CompletableFuture<Boolean> removeAsync(Object o) {
+        return enqueue(new Mutation<T>(false, o, recordOf(Journal.Op.REMOVE, Collections.singletonList(o))));
+    }
+    
+    /** Adds the provided item via the writer thread, waiting until it is visible to queries. */
+    @Override public boolean add(T item) { return await(addAsync(item)); }
+    
+    /** Removes the provided item via the writer thread, waiting until the removal is visible to queries. */
+    @Override public boolean remove(Object o) { return await(removeAsync(o)); }
+    
+    private static boolean await(CompletableFuture<Boolean> future) {
+        try {
+            return future.join();
+        }
+        catch (CompletionException e) {
+            // Rethrow the exception just as the change would have thrown it if applied by this thread.
+            if (e.getCause() instanceof RuntimeException) { throw (RuntimeException) e.getCause(); }
+            throw e;
+        }
+    }
+    
+    private CompletableFuture<Boolean> enqueue(Mutation<T> mutation) {
+        activeProducers.incrementAndGet();
+        try {
+            if (isClosed) { throw new IllegalStateException("Cannot change a closed " + getClass().getSimpleName()); }
+            if (writerThread == null) { startWriter(); }
+            
+            // If the queue is full, we must wait for the writer thread to make room.
+            while ( !queue.offer(mutation)) {
+                Thread.yield();
+            }
+        }
+        finally {
+            activeProducers.decrementAndGet();
+        }
+        
+        if (isWriterParked) { LockSupport.unpark(writerThread); }
+        return mutation.future;
+    }
+    
+    private void runWriter() {
+        final List<Mutation<T>> batch = new ArrayList<>();
+        while (true) {
+            batch.clear();
+            queue.drain(batch::add, queue.capacity());
+            
+            if ( !batch.isEmpty()) {
+                try {
+                    apply(batch);
+                }
+                catch (RuntimeException | Error e) {
+                    // The writer thread must survive any failure, or every later change would wait for it forever.
+                    for (Mutation<T> mutation : batch) {
+                        mutation.future.completeExceptionally(e);
+                    }
+                }
+            }
+            else if (isClosed && activeProducers.get() == 0 && queue.isEmpty()) {
+                return;
+            }
+            else {
+                // Recheck the queue after announcing that we're parked, in case a producer missed the announcement.
+                // Either we see its change, or it sees the announcement and wakes us, so we can park indefinitely.
+                isWriterParked = true;
+                if (queue.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                isWriterParked = false;
+            }
+        }
+    }
+    
+    /**
+     * Applies a batch of changes in order, under a single acquisition of the write lock. Each run of consecutive
+     * adds is applied as a single bulk load if it can be, which it can unless one of them is invalid.
+     * The records of the changes which succeed are appended to the journal, if there is one, and the futures are
+     * completed once the lock has been released and the journal forced.
+     */
+    private void apply(List<Mutation<T>> batch) {
+        final long journalPosition = applyUnderWriteLock(collection -> {
+            try {
+                checkJournalIsOpen();
+            }
+            catch (IllegalStateException e) {
+                for (Mutation<T> mutation : batch) {
+                    mutation.failure = e;
+                }
+                return 0L;
+            }
+            
+            int runStart = 0;
+            while (runStart < batch.size()) {
+                int runEnd = runStart + 1;
+                if (batch.get(runStart).isAdd) {
+                    while (runEnd < batch.size() && batch.get(runEnd).isAdd) { runEnd++; }
+                    applyAdds(collection, batch.subList(runStart, runEnd));
+                }
+                else {
+                    applyRemove(collection, batch.get(runStart));
+                }
+                runStart = runEnd;
+            }
+            
+            long position = 0L;
+            for (Mutation<T> mutation : batch) {
+                if (mutation.failure == null && mutation.result) { position = appendToJournal(mutation.record); }
+            }
+            return position;
+        });
+        
+        try {
+            awaitJournal(journalPosition);
+        }
+        catch (UncheckedIOException e) {
+            for (Mutation<T> mutation : batch) {
+                if (mutation.failure == null) { mutation.failure = e; }
+            }
+        }
+        
+        for (Mutation<T> mutation : batch) {
+            mutation.complete();
+        }
+    }
+    
+    private void applyAdds(IndexedCollection<T> collection, List<Mutation<T>> adds) {
+        final List<T> items = new ArrayList<>(adds.size());
+        for (Mutation<T> add : adds) {
+            items.add(add.entry());
+        }
+        
+        try {
+            collection.prepareAddAll(items).run();
+            for (Mutation<T> add : adds) {
+                add.result = true;
+            }
+        }
+        catch (RuntimeException e) {
+            // At least one of the items is invalid, and a failed bulk load changes nothing,
+            // so we'll add them one at a time to find out which.
+            for (Mutation<T> add : adds) {
+                try {
+                    add.result = collection.add(add.entry());
+                }
+                catch (RuntimeException addFailure) {
+                    add.failure = addFailure;
+                }
+            }
+        }
+    }
+    
+    private void applyRemove(IndexedCollection<T> collection, Mutation<T> remove) {
+        try {
+            remove.result = collection.remove(remove.value);
+        }
+        catch (RuntimeException e) {
+            remove.failure = e;
+        }
+    }
+    
+    /** Has the writer thread been started, by the first queued change? */
+    boolean isWriterStarted() { return writerThread != null; }
+    
+    /**
+     * Stops accepting queued changes and waits for the writer thread to apply those which are already queued.
+     * The collection can still be queried, and changed by those methods which do not use the queue.
+     * If the calling thread is interrupted while waiting, it stops waiting and its interrupt status is set again.
+     */
+    @Override public void close() {
+        final Thread thread;
+        synchronized (this) {
+            isClosed = true;
+            thread   = writerThread;
+        }
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /** A deserialized collection starts its own writer thread, like a new one, when its first change is queued. */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        initQueue();
+    }
+}
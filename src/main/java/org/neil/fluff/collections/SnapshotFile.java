@@ -0,0 +1,471 @@
+package org.neil.fluff.collections;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.neil.fluff.collections.IndexedCollection.IndexType;
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+import org.neil.fluff.collections.PrimitiveIndex.KeyKind;
+
+/**
+ * The binary snapshot format of an {@link IndexedCollection}, which is far more compact and quicker to load than
+ * its Java serialized form. The entries are written just once, in insertion order, so each has an <em>ordinal</em>
+ * which is its position in that order. Each {@link Index#isSorted() sorted} index is then written as a permutation
+ * of those ordinals, in key order, so that loading it is a single pass which checks that order, rather than a sort.
+ * Other indexes, which do not need sorting, are simply rebuilt.
+ * <p/>
+ * The file is made up of:
+ * <ol>
+ * <li>a fixed-size header: a magic number, the format version, flags, the number of entries, the length of the
+ *     entries section and the number of indexes;</li>
+ * <li>the entries, as a single Java serialization stream, so that the class descriptors are written just once and
+ *     an entry which was added more than once is still the same object when it is read;</li>
+ * <li>for each sorted index, its name and its permutation of ordinals, as raw {@code int}s.</li>
+ * </ol>
+ * Everything but the entries is read and written in bulk through a {@link FileChannel}, in large buffers.
+ * <p/>
+ * A <em>mappable</em> snapshot is laid out so that it can be {@link #map(Path, IndexedField[]) mapped} into memory
+ * and queried in place, without reading it all first. Each entry is serialized as a separate record, which can be
+ * decoded on its own, and the records are followed by a table of their positions in the file. The permutation of
+ * each index is followed by its keys, if they are primitive: the number of entries with {@code null} keys, which
+ * come first, the {@link KeyKind kind} of the others and their encoded keys, as raw {@code long}s. As each record
+ * stands alone, an entry which was added more than once is read as several equal objects.
+ *
+ * @author Neil Mc Erlean
+ */
+final class SnapshotFile {
+    private static final int MAGIC   = 0x464C5546; // "FLUF"
+    private static final int VERSION = 1;
+    
+    private static final int FROZEN_FLAG   = 1;
+    private static final int MAPPABLE_FLAG = 2;
+    
+    /** Written in place of a null key count, or a key kind, when an index has no keys. */
+    private static final int NO_KEYS = -1;
+    
+    /** The size of the header: magic, version, flags, entry count, entries length (a long) and index count. */
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 4;
+    
+    private static final int BUFFER_SIZE = 1 << 20;
+    
+    private SnapshotFile() { }
+    
+    /** Writes the provided collection, which must not change meanwhile, to the specified file. */
+    static <T extends Serializable> void write(IndexedCollection<T> collection, Path path, boolean isMappable) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            // The same entry can be in the collection more than once, in which case any of its ordinals will do.
+            final Map<Object, Integer> ordinals = new IdentityHashMap<>(collection.size());
+            
+            channel.position(HEADER_SIZE);
+            if (isMappable) {
+                writeRecords(collection, channel, ordinals);
+            }
+            else {
+                final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                                                                                               BUFFER_SIZE));
+                int ordinal = 0;
+                for (T entry : collection) {
+                    ordinals.putIfAbsent(entry, ordinal++);
+                    out.writeObject(entry);
+                }
+                // Flush, but do not close, the stream, which would close the channel.
+                out.flush();
+            }
+            final long entriesLength = channel.position() - HEADER_SIZE;
+            
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            int indexCount = 0;
+            for (Map.Entry<String, Index<T>> index : collection.getIndexes().entrySet()) {
+                if ( !index.getValue().isSorted()) { continue; }
+                
+                final byte[] name = index.getKey().getBytes(StandardCharsets.UTF_8);
+                ensureRemaining(channel, buffer, 4 + name.length + 4);
+                buffer.putInt(name.length).put(name).putInt(collection.size());
+                for (Iterator<T> iter = index.getValue().sortedIterator(); iter.hasNext(); ) {
+                    ensureRemaining(channel, buffer, 4);
+                    buffer.putInt(ordinals.get(iter.next()));
+                }
+                if (isMappable) { writeKeys(index.getValue(), channel, buffer); }
+                indexCount++;
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+            
+            buffer.clear();
+            buffer.putInt(MAGIC).putInt(VERSION)
+                  .putInt((collection.isFrozen() ? FROZEN_FLAG : 0) | (isMappable ? MAPPABLE_FLAG : 0))
+                  .putInt(collection.size()).putLong(entriesLength).putInt(indexCount).flip();
+            channel.position(0);
+            writeFully(channel, buffer);
+        }
+    }
+    
+    /**
+     * Writes each of the entries as a separate record, followed by a table of the position of each record and of
+     * the end of the last one, so that the length of any record is the difference between two neighbouring positions.
+     */
+    private static <T> void writeRecords(Collection<T> entries, FileChannel channel, Map<Object, Integer> ordinals)
+                                                                                              throws IOException {
+        final long[] positions = new long[entries.size() + 1];
+        final OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        long position = channel.position();
+        int ordinal = 0;
+        for (T entry : entries) {
+            ordinals.putIfAbsent(entry, ordinal);
+            positions[ordinal++] = position;
+            
+            record.reset();
+            try (ObjectOutputStream recordOut = new ObjectOutputStream(record)) {
+                recordOut.writeObject(entry);
+            }
+            record.writeTo(out);
+            position += record.size();
+        }
+        positions[ordinal] = position;
+        // Flush, but do not close, the stream, which would close the channel.
+        out.flush();
+        
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        for (long recordPosition : positions) {
+            ensureRemaining(channel, buffer, 8);
+            buffer.putLong(recordPosition);
+        }
+        buffer.flip();
+        writeFully(channel, buffer);
+    }
+    
+    /**
+     * Writes the keys of the provided index, in the same order as its ordinals, if it is a
+     * {@link IndexType#PRIMITIVE primitive} index. Otherwise it has no keys, which is written as a null key count
+     * of {@link #NO_KEYS}.
+     */
+    private static <T> void writeKeys(Index<T> index, FileChannel channel, ByteBuffer buffer) throws IOException {
+        final IndexedField<T> indexedField = index.getIndexedField();
+        ensureRemaining(channel, buffer, 8);
+        if (indexedField.getIndexType() != IndexType.PRIMITIVE) {
+            buffer.putInt(NO_KEYS);
+            return;
+        }
+        
+        // The entries with null keys come first, and the first non-null key gives the kind of all the others.
+        final Iterator<T> iter = index.sortedIterator();
+        int nullKeyCount = 0;
+        Object key = null;
+        while (iter.hasNext() && (key = indexedField.getKey(iter.next())) == null) {
+            nullKeyCount++;
+        }
+        final KeyKind keyKind = key == null ? null : KeyKind.of(key);
+        buffer.putInt(nullKeyCount).putInt(keyKind == null ? NO_KEYS : keyKind.ordinal());
+        if (keyKind == null) { return; }
+        
+        ensureRemaining(channel, buffer, 8);
+        buffer.putLong(PrimitiveIndex.encodeQueryKey(key, keyKind, indexedField));
+        while (iter.hasNext()) {
+            ensureRemaining(channel, buffer, 8);
+            buffer.putLong(PrimitiveIndex.encodeQueryKey(indexedField.getKey(iter.next()), keyKind, indexedField));
+        }
+    }
+    
+    /** Writes out the buffer if it has less than the specified number of bytes remaining. */
+    private static void ensureRemaining(FileChannel channel, ByteBuffer buffer, int byteCount) throws IOException {
+        if (buffer.remaining() < byteCount) {
+            buffer.flip();
+            writeFully(channel, buffer);
+            buffer.clear();
+        }
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    /**
+     * Reads a collection with the provided indexes from the specified file. An index whose permutation is in the
+     * file is loaded from it, and any other is built from the entries.
+     *
+     * @throws StreamCorruptedException if the file is not a snapshot, or is corrupt.
+     */
+    static <T extends Serializable> IndexedCollection<T> read(Path path, IndexedField<T>[] indexedFields)
+                                                                   throws IOException, ClassNotFoundException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.limit(HEADER_SIZE);
+            readFully(channel, buffer);
+            if (buffer.getInt() != MAGIC)   { throw new StreamCorruptedException(path + " is not an IndexedCollection snapshot."); }
+            if (buffer.getInt() != VERSION) { throw new StreamCorruptedException(path + " has an unsupported snapshot version."); }
+            final int     flags         = buffer.getInt();
+            final boolean isFrozen      = (flags & FROZEN_FLAG) != 0;
+            final boolean isMappable    = (flags & MAPPABLE_FLAG) != 0;
+            final int     entryCount    = buffer.getInt();
+            final long    entriesLength = buffer.getLong();
+            final int     indexCount    = buffer.getInt();
+            if (entryCount < 0 || entriesLength < 0 || indexCount < 0) { throw corrupt(path); }
+            
+            final List<T> entries = isMappable ? new ArrayList<>(mapEntries(MappedFile.map(path), entryCount, entriesLength)) :
+                                                 readEntries(channel, entryCount);
+            
+            channel.position(HEADER_SIZE + entriesLength);
+            buffer.clear().flip();
+            final Map<String, int[]> permutations = new HashMap<>();
+            for (int i = 0; i < indexCount; i++) {
+                ensureAvailable(channel, buffer, 4);
+                final int nameLength = buffer.getInt();
+                if (nameLength < 0 || nameLength > BUFFER_SIZE - 4) { throw corrupt(path); }
+                
+                ensureAvailable(channel, buffer, nameLength + 4);
+                final byte[] name = new byte[nameLength];
+                buffer.get(name);
+                if (buffer.getInt() != entryCount) { throw corrupt(path); }
+                
+                final int[] ordinals = new int[entryCount];
+                for (int position = 0; position < ordinals.length; ) {
+                    ensureAvailable(channel, buffer, 4);
+                    final int count = Math.min(ordinals.length - position, buffer.remaining() / 4);
+                    buffer.asIntBuffer().get(ordinals, position, count);
+                    buffer.position(buffer.position() + count * 4);
+                    position += count;
+                }
+                if (isMappable) { skipKeys(channel, buffer, entryCount, path); }
+                permutations.put(new String(name, StandardCharsets.UTF_8), ordinals);
+            }
+            
+            final Map<String, Index<T>> indexes = new LinkedHashMap<>();
+            for (IndexedField<T> indexedField : indexedFields) {
+                final Index<T> index = Index.create(indexedField);
+                final int[] ordinals = permutations.get(indexedField.getFieldName());
+                if (ordinals != null && index.isSorted()) { index.loadSorted(entriesOf(ordinals, entries, path)); }
+                else                                      { index.prepareAddAll(entries).run(); }
+                indexes.put(indexedField.getFieldName(), index);
+            }
+            
+            final IndexedCollection<T> collection = new IndexedCollection<>(entries, indexes);
+            return isFrozen ? collection.freeze() : collection;
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> readEntries(FileChannel channel, int entryCount) throws IOException, ClassNotFoundException {
+        channel.position(HEADER_SIZE);
+        // Closing this stream would close the channel, which is closed by the caller anyway.
+        final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+        final Object[] entries = new Object[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            entries[i] = in.readObject();
+        }
+        return (List<T>) Arrays.asList(entries);
+    }
+    
+    /** Skips over the keys which follow the ordinals of an index in a mappable snapshot. */
+    private static void skipKeys(FileChannel channel, ByteBuffer buffer, int entryCount, Path path) throws IOException {
+        ensureAvailable(channel, buffer, 4);
+        final int nullKeyCount = buffer.getInt();
+        if (nullKeyCount == NO_KEYS) { return; }
+        if (nullKeyCount < 0 || nullKeyCount > entryCount) { throw corrupt(path); }
+        
+        ensureAvailable(channel, buffer, 4);
+        buffer.getInt();
+        final long keysLength = 8L * (entryCount - nullKeyCount);
+        final int buffered = (int) Math.min(keysLength, buffer.remaining());
+        buffer.position(buffer.position() + buffered);
+        channel.position(channel.position() + keysLength - buffered);
+    }
+    
+    /** Gets the entries with the provided ordinals, in the same order. */
+    private static <T> List<T> entriesOf(int[] ordinals, List<T> entries, Path path) throws StreamCorruptedException {
+        final List<T> result = new ArrayList<>(ordinals.length);
+        for (int ordinal : ordinals) {
+            if (ordinal < 0 || ordinal >= entries.size()) { throw corrupt(path); }
+            result.add(entries.get(ordinal));
+        }
+        return result;
+    }
+    
+    /**
+     * Maps a mappable snapshot into memory, with the provided indexes, each of which must have been written to it.
+     * Only the header and the name of each index are read, however many entries there are, and nothing is decoded
+     * until it is queried.
+     *
+     * @throws StreamCorruptedException if the file is not a snapshot, or is corrupt.
+     * @throws IllegalArgumentException if the file is not a mappable snapshot, or any of the indexes is not in it.
+     */
+    static <T extends Serializable> MappedIndexedCollection<T> map(Path path, IndexedField<T>[] indexedFields) throws IOException {
+        final MappedFile file = MappedFile.map(path);
+        try {
+            if (file.size() < HEADER_SIZE || file.getInt(0) != MAGIC) {
+                throw new StreamCorruptedException(path + " is not an IndexedCollection snapshot.");
+            }
+            if (file.getInt(4) != VERSION) { throw new StreamCorruptedException(path + " has an unsupported snapshot version."); }
+            if ((file.getInt(8) & MAPPABLE_FLAG) == 0) {
+                throw new IllegalArgumentException(path + " is not a mappable snapshot, and must be read in full.");
+            }
+            final int  entryCount    = file.getInt(12);
+            final long entriesLength = file.getLong(16);
+            final int  indexCount    = file.getInt(24);
+            if (entryCount < 0 || indexCount < 0) { throw corrupt(path); }
+            
+            final MappedEntries<T> entries = mapEntries(file, entryCount, entriesLength);
+            
+            // Each index is found by skipping over those before it, whose lengths follow from their headers.
+            final Map<String, Long> ordinalsPositions = new HashMap<>();
+            long position = HEADER_SIZE + entriesLength;
+            for (int i = 0; i < indexCount; i++) {
+                final int nameLength = file.getInt(position);
+                if (nameLength < 0 || nameLength > file.size() - position) { throw corrupt(path); }
+                
+                final String name = new String(file.getBytes(position + 4, nameLength), StandardCharsets.UTF_8);
+                position += 4 + nameLength;
+                if (file.getInt(position) != entryCount) { throw corrupt(path); }
+                
+                ordinalsPositions.put(name, position + 4);
+                position += 4 + 4L * entryCount;
+                final int nullKeyCount = file.getInt(position);
+                if (nullKeyCount != NO_KEYS && (nullKeyCount < 0 || nullKeyCount > entryCount)) { throw corrupt(path); }
+                
+                position += nullKeyCount == NO_KEYS ? 4 : 4 + 4 + 8L * (entryCount - nullKeyCount);
+            }
+            if (position > file.size()) { throw corrupt(path); }
+            
+            final Map<String, MappedIndex<T>> indexes = new LinkedHashMap<>();
+            for (IndexedField<T> indexedField : indexedFields) {
+                final Long ordinalsPosition = ordinalsPositions.get(indexedField.getFieldName());
+                if (ordinalsPosition == null) {
+                    throw new IllegalArgumentException("Cannot map the index '" + indexedField.getFieldName() +
+                                                       "' as it is not in " + path + ".");
+                }
+                indexes.put(indexedField.getFieldName(), mapIndex(indexedField, entries, ordinalsPosition));
+            }
+            return new MappedIndexedCollection<>(entries, indexes);
+        }
+        catch (IndexOutOfBoundsException e) {
+            // The file ends before something which it should hold.
+            throw corrupt(path);
+        }
+    }
+    
+    private static <T> MappedEntries<T> mapEntries(MappedFile file, int entryCount, long entriesLength)
+                                                                              throws StreamCorruptedException {
+        final long positionsLength = 8L * (entryCount + 1);
+        if (entriesLength < positionsLength || entriesLength > file.size() - HEADER_SIZE) { throw corrupt(file.getPath()); }
+        
+        return new MappedEntries<>(file, HEADER_SIZE + entriesLength - positionsLength, entryCount);
+    }
+    
+    private static <T> MappedIndex<T> mapIndex(IndexedField<T> indexedField, MappedEntries<T> entries, long ordinalsPosition)
+                                                                                           throws StreamCorruptedException {
+        final MappedFile file = entries.getFile();
+        final long keysHeaderPosition = ordinalsPosition + 4L * entries.size();
+        final int nullKeyCount = file.getInt(keysHeaderPosition);
+        if (nullKeyCount == NO_KEYS) { return new MappedIndex<>(indexedField, entries, ordinalsPosition); }
+        
+        final int keyKindOrdinal = file.getInt(keysHeaderPosition + 4);
+        if (keyKindOrdinal == NO_KEYS ? nullKeyCount != entries.size() :
+                                        keyKindOrdinal < 0 || keyKindOrdinal >= KeyKind.values().length) {
+            throw corrupt(file.getPath());
+        }
+        final KeyKind keyKind = keyKindOrdinal == NO_KEYS ? null : KeyKind.values()[keyKindOrdinal];
+        return new MappedIndex<>(indexedField, entries, ordinalsPosition, keysHeaderPosition + 8, nullKeyCount, keyKind);
+    }
+    
+    /**
+     * The entries of a mappable snapshot, in order, each of which is decoded from its record in the mapped file every
+     * time it is got. So no entry takes up any memory until it is got, and none is held on to afterwards, but each
+     * entry which is got is a new object.
+     */
+    static final class MappedEntries<T> extends AbstractList<T> implements RandomAccess {
+        private final MappedFile file;
+        private final long       positionsPosition;
+        private final int        size;
+        
+        private MappedEntries(MappedFile file, long positionsPosition, int size) {
+            this.file              = file;
+            this.positionsPosition = positionsPosition;
+            this.size              = size;
+        }
+        
+        MappedFile getFile() { return this.file; }
+        
+        @Override public int size() { return this.size; }
+        
+        /**
+         * Decodes the entry with the specified ordinal.
+         *
+         * @throws UncheckedIOException if it cannot be decoded, as the file is corrupt.
+         * @throws IllegalStateException if the class of the entry cannot be found.
+         */
+        @SuppressWarnings("unchecked")
+        @Override public T get(int ordinal) {
+            if (ordinal < 0 || ordinal >= size) { throw new IndexOutOfBoundsException("Ordinal " + ordinal + ", size " + size); }
+            
+            final long position = file.getLong(positionsPosition + 8L * ordinal);
+            final long end      = file.getLong(positionsPosition + 8L * ordinal + 8);
+            if (position < HEADER_SIZE || end < position || end > positionsPosition) {
+                throw new UncheckedIOException(corrupt(file.getPath()));
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(file.getBytes(position, (int) (end - position))))) {
+                return (T) in.readObject();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Cannot decode entry " + ordinal + " of " + file.getPath(), e);
+            }
+            catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Cannot decode entry " + ordinal + " of " + file.getPath(), e);
+            }
+        }
+    }
+    
+    private static StreamCorruptedException corrupt(Path path) {
+        return new StreamCorruptedException(path + " is a corrupt IndexedCollection snapshot.");
+    }
+    
+    /**
+     * Reads more of the channel into the buffer if it has less than the specified number of bytes available,
+     * which must be no more than its capacity.
+     */
+    private static void ensureAvailable(FileChannel channel, ByteBuffer buffer, int byteCount) throws IOException {
+        if (buffer.remaining() < byteCount) {
+            buffer.compact();
+            while (buffer.position() < byteCount) {
+                if (channel.read(buffer) < 0) { throw new EOFException(); }
+            }
+            buffer.flip();
+        }
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) { throw new EOFException(); }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,211 @@
+package org.neil.fluff.collections;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * An {@link Index} which holds a view of the entries sorted by their keys. Equality queries are answered by binary
+ * search and the view can be iterated in key order. Entries with equal keys are held in insertion order, just as a
+ * stable sort of the entries would hold them.
+ *
+ * @param <T> the type of entries in the index.
+ *
+ * @author Neil Mc Erlean
+ */
+class SortedIndex<T> extends Index<T> {
+    private static final long serialVersionUID = 1L;
+    
+    /** The same object references that are stored in the collection, sorted by their keys. */
+    private List<T> sortedView = new ArrayList<>();
+    
+    SortedIndex(IndexedField<T> indexedField) { super(indexedField); }
+    
+    @Override List<T> find(Object key) { return findRange(KeyRange.equalTo(key)); }
+    
+    /** Finds the first and last entries in the range with a binary search for each. */
+    @Override List<T> findRange(KeyRange range) {
+        final int fromIndex;
+        if (range.hasLowerBound()) {
+            fromIndex = range.isLowerBoundInclusive() ? lowerBound(range.getLowerBound(), 0) :
+                                                        upperBound(range.getLowerBound(), 0);
+        }
+        else {
+            // Skip over any null keys, which sort first.
+            fromIndex = upperBound(null, 0);
+        }
+        
+        final int toIndex;
+        if (range.hasUpperBound()) {
+            toIndex = range.isUpperBoundInclusive() ? upperBound(range.getUpperBound(), fromIndex) :
+                                                      lowerBound(range.getUpperBound(), fromIndex);
+        }
+        else {
+            toIndex = sortedView.size();
+        }
+        
+        return fromIndex >= toIndex ? Collections.<T>emptyList() :
+                                      Collections.unmodifiableList(sortedView.subList(fromIndex, toIndex));
+    }
+    
+    @Override boolean containsKey(Object key) {
+        final int indexOfFirstMatch = lowerBound(key, 0);
+        return indexOfFirstMatch < sortedView.size() &&
+               indexedField.compareKeyTo(sortedView.get(indexOfFirstMatch), key) == 0;
+    }
+    
+    /**
+     * Splices the provided item into the sorted view at the correct position. Equal values are inserted
+     * after any existing equal values, so that the view retains insertion order within each value.
+     */
+    @Override void add(T item) {
+        final int insertionPoint = upperBound(indexedField.getKey(item), 0);
+        sortedView.add(insertionPoint, item);
+    }
+    
+    /**
+     * Sorts the batch by key, checking the uniqueness constraints if there are any, and returns an action which
+     * will merge it into the existing sorted view. A batch which is already sorted by key is recognised as such
+     * by the (stable) sort and costs only a linear pass.
+     */
+    @Override Runnable prepareAddAll(List<T> batch) {
+        final List<T> sortedBatch = sortedByKey(batch);
+        
+        if (indexedField.isValueUnique()) {
+            validateUniqueness(sortedBatch);
+        }
+        return () -> this.sortedView = mergeIntoView(sortedBatch);
+    }
+    
+    /**
+     * Ensures that a sorted batch of items has no duplicate keys, either within the batch itself or with
+     * any entry already in the sorted view.
+     *
+     * @throws IllegalArgumentException if there is any duplicate key.
+     */
+    private void validateUniqueness(List<T> sortedBatch) {
+        T previousItem = null;
+        for (T item : sortedBatch) {
+            final Object fieldValue = indexedField.getKey(item);
+            
+            if (previousItem != null && indexedField.compare(previousItem, item) == 0) {
+                throw uniquenessViolationInBatch(item, previousItem, fieldValue);
+            }
+            
+            final int insertionPoint = upperBound(fieldValue, 0);
+            if (insertionPoint > 0 && indexedField.compareKeyTo(sortedView.get(insertionPoint - 1), fieldValue) == 0) {
+                throw uniquenessViolation(item, fieldValue);
+            }
+            previousItem = item;
+        }
+    }
+    
+    /**
+     * Merges a sorted batch of items into the sorted view. Rather than comparing every pair of entries, this
+     * binary searches for the position of each item in the batch and copies across the runs of existing entries
+     * between those positions.
+     *
+     * @return a new sorted view containing all the entries from the current view and the batch.
+     */
+    private List<T> mergeIntoView(List<T> sortedBatch) {
+        final List<T> mergedView = new ArrayList<>(sortedView.size() + sortedBatch.size());
+        
+        int copiedUpTo = 0;
+        for (T item : sortedBatch) {
+            // Equal values go after the existing ones, just as they would if the items were added one at a time.
+            final int insertionPoint = upperBound(indexedField.getKey(item), copiedUpTo);
+            mergedView.addAll(sortedView.subList(copiedUpTo, insertionPoint));
+            mergedView.add(item);
+            copiedUpTo = insertionPoint;
+        }
+        mergedView.addAll(sortedView.subList(copiedUpTo, sortedView.size()));
+        
+        return mergedView;
+    }
+    
+    @Override boolean isSorted() { return true; }
+    
+    @Override void loadSorted(List<T> sortedEntries) {
+        if (isInKeyOrder(sortedEntries)) { this.sortedView = new ArrayList<>(sortedEntries); }
+        else                             { super.loadSorted(sortedEntries); }
+    }
+    
+    @Override boolean remove(T item) {
+        final Object fieldValue = indexedField.getKey(item);
+        final int upperBound = upperBound(fieldValue, 0);
+        
+        for (int i = lowerBound(fieldValue, 0); i < upperBound; i++) {
+            if (sortedView.get(i) == item) {
+                sortedView.remove(i);
+                return true;
+            }
+        }
+        
+        // The entry may have been mutated since it was added, in which case it is no longer where its
+        // current field value says it should be. We'll have to look for it the hard way.
+        for (Iterator<T> iter = sortedView.iterator(); iter.hasNext(); ) {
+            if (iter.next() == item) {
+                iter.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /** Filters the sorted view in a single pass, which retains its order, so it need not be sorted again. */
+    @Override void removeAll(Set<T> removedEntries) { sortedView.removeIf(removedEntries::contains); }
+    
+    @Override void clear() { sortedView.clear(); }
+    
+    @Override SortedIndex<T> copy() {
+        final SortedIndex<T> copy = new SortedIndex<>(indexedField);
+        copy.sortedView = new ArrayList<>(sortedView);
+        return copy;
+    }
+    
+    @Override FrozenIndex<T> freeze() { return FrozenIndex.of(indexedField, sortedView); }
+    
+    @Override Iterator<T> sortedIterator() { return Collections.unmodifiableList(sortedView).iterator(); }
+    
+    /**
+     * Gets the index of the first entry in the sorted view whose key is not less than the provided value,
+     * searching only from the specified index onwards.
+     */
+    private int lowerBound(Object fieldValue, int fromIndex) {
+        int lowLimit = fromIndex;
+        int highLimit = sortedView.size();
+        while (lowLimit < highLimit) {
+            int middle = (lowLimit + highLimit) >>> 1;
+            if (indexedField.compareKeyTo(sortedView.get(middle), fieldValue) < 0) {
+                lowLimit = middle + 1;
+            }
+            else {
+                highLimit = middle;
+            }
+        }
+        return lowLimit;
+    }
+    
+    /**
+     * Gets the index of the first entry in the sorted view whose key is greater than the provided value,
+     * searching only from the specified index onwards.
+     */
+    private int upperBound(Object fieldValue, int fromIndex) {
+        int lowLimit = fromIndex;
+        int highLimit = sortedView.size();
+        while (lowLimit < highLimit) {
+            int middle = (lowLimit + highLimit) >>> 1;
+            if (indexedField.compareKeyTo(sortedView.get(middle), fieldValue) <= 0) {
+                lowLimit = middle + 1;
+            }
+            else {
+                highLimit = middle;
+            }
+        }
+        return lowLimit;
+    }
+}
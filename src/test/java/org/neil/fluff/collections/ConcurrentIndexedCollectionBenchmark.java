@@ -0,0 +1,236 @@
+package org.neil.fluff.collections;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * A simple, self-timed benchmark comparing {@link ConcurrentIndexedCollection}, {@link SingleWriterIndexedCollection}
+ * and {@link PartitionedIndexedCollection} with an {@link IndexedCollection} behind a single global lock, for a mix
+ * of reads and writes from several threads. It then measures the throughput of durable writes to a
+ * {@link ConcurrentIndexedCollection#openJournaled(Path, IndexedField...) journaled} collection, and the time taken
+ * to recover one, in the directory given as its argument, which should be on the disk under test. Like
+ * {@link IndexedCollectionBenchmark}, it is not run as part of the build and its numbers are only indicative.
+ *
+ * @author Neil Mc Erlean
+ */
+public class ConcurrentIndexedCollectionBenchmark {
+    private static final int[]    THREAD_COUNTS   = { 1, 8, 32 };
+    private static final double[] WRITE_FRACTIONS = { 0.01, 0.10, 1.00 };
+    
+    private static final int  COLLECTION_SIZE = 100_000;
+    private static final long RUN_MILLIS      = 2_000;
+    private static final int  PARTITIONS      = 32;
+    
+    private static final long[] COMMIT_WINDOW_MICROS  = { 0, 100, 1_000 };
+    private static final int[]  RECOVERY_RECORD_COUNTS = { 10_000, 100_000 };
+    
+    /** The operations under test, so that both collections can be driven by the same code. */
+    private interface Target {
+        List<Item> find(Integer key);
+        void add(Item item);
+        void remove(Item item);
+    }
+    
+    public static void main(String[] args) throws Exception {
+        System.out.println("Throughput of a mix of finds and writes on a collection holding " + COLLECTION_SIZE + " entries.");
+        System.out.printf("%8s %8s %24s %24s %24s %24s%n", "threads", "writes", "global lock (ops/s)", "concurrent (ops/s)",
+                          "single writer (ops/s)", "partitioned (ops/s)");
+        
+        for (double writeFraction : WRITE_FRACTIONS) {
+            for (int threadCount : THREAD_COUNTS) {
+                final double singleWriterThroughput;
+                try (SingleWriterIndexedCollection<Item> swic = new SingleWriterIndexedCollection<>(new IndexedField<Item>("integer", false),
+                                                                                                    new IndexedField<Item>("string", false))) {
+                    singleWriterThroughput = throughput(singleWriter(swic), threadCount, writeFraction);
+                }
+                System.out.printf("%8d %7.0f%% %24.0f %24.0f %24.0f %24.0f%n", threadCount, writeFraction * 100,
+                                  throughput(globallyLocked(), threadCount, writeFraction),
+                                  throughput(concurrent(), threadCount, writeFraction),
+                                  singleWriterThroughput,
+                                  throughput(partitioned(), threadCount, writeFraction));
+            }
+        }
+        
+        final Path directory = args.length > 0 ? Paths.get(args[0]) : Files.createTempDirectory("journal");
+        System.out.println();
+        System.out.println("Throughput of adds to a journaled collection in " + directory + ", each waiting until it is durable.");
+        System.out.printf("%8s %16s %24s %24s %24s%n", "threads", "window (us)", "durable adds (ops/s)", "forces (/s)",
+                          "adds per force");
+        for (long commitWindowMicros : COMMIT_WINDOW_MICROS) {
+            for (int threadCount : THREAD_COUNTS) {
+                deleteContents(directory);
+                final ConcurrentIndexedCollection<Item> cic = ConcurrentIndexedCollection.openJournaled(
+                        directory, TimeUnit.MICROSECONDS.toNanos(commitWindowMicros),
+                        ConcurrentIndexedCollection.DEFAULT_MAX_JOURNAL_LENGTH, new IndexedField<Item>("integer", false));
+                final long startNanos = System.nanoTime();
+                final double addThroughput = throughput(journaled(cic), threadCount, 1.00);
+                final double forceThroughput = cic.getJournal().getForceCount() * 1_000_000_000.0 / (System.nanoTime() - startNanos);
+                cic.closeJournal();
+                System.out.printf("%8d %16d %24.0f %24.0f %24.1f%n", threadCount, commitWindowMicros, addThroughput,
+                                  forceThroughput, addThroughput / forceThroughput);
+            }
+        }
+        
+        System.out.println();
+        System.out.println("Time to recover a journaled collection by replaying its journal.");
+        System.out.printf("%16s %16s %16s%n", "records", "journal (MB)", "recovery (ms)");
+        for (int recordCount : RECOVERY_RECORD_COUNTS) {
+            deleteContents(directory);
+            final ConcurrentIndexedCollection<Item> cic = ConcurrentIndexedCollection.openJournaled(directory, 0L, Long.MAX_VALUE,
+                                                                                                   new IndexedField<Item>("integer", false));
+            for (Item item : randomItems(recordCount, 42)) {
+                cic.add(item);
+            }
+            cic.closeJournal();
+            final long journalLength = Files.size(directory.resolve("journal-0.log"));
+            
+            final long startNanos = System.nanoTime();
+            ConcurrentIndexedCollection.openJournaled(directory, new IndexedField<Item>("integer", false)).closeJournal();
+            System.out.printf("%16d %16.1f %16d%n", recordCount, journalLength / 1_048_576.0,
+                              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+        deleteContents(directory);
+    }
+    
+    private static void deleteContents(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+    
+    private static List<Item> randomItems(int count, long seed) {
+        final Random random = new Random(seed);
+        final List<Item> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(new Item(random.nextInt(COLLECTION_SIZE), Integer.toString(random.nextInt(), 36)));
+        }
+        return items;
+    }
+    
+    private static Target globallyLocked() {
+        final IndexedCollection<Item> ic = new IndexedCollection<>(new IndexedField<Item>("integer", false),
+                                                                  new IndexedField<Item>("string", false));
+        ic.addAll(randomItems(COLLECTION_SIZE, 42));
+        
+        return new Target() {
+            // The returned list is a view, so it has to be copied under the lock too.
+            @Override public List<Item> find(Integer key) { synchronized (ic) { return new ArrayList<>(ic.find("integer", key)); } }
+            @Override public void add(Item item)          { synchronized (ic) { ic.add(item); } }
+            @Override public void remove(Item item)       { synchronized (ic) { ic.remove(item); } }
+        };
+    }
+    
+    private static Target concurrent() {
+        final ConcurrentIndexedCollection<Item> cic = new ConcurrentIndexedCollection<>(new IndexedField<Item>("integer", false),
+                                                                                       new IndexedField<Item>("string", false));
+        cic.addAll(randomItems(COLLECTION_SIZE, 42));
+        
+        return new Target() {
+            @Override public List<Item> find(Integer key) { return cic.find("integer", key); }
+            @Override public void add(Item item)          { cic.add(item); }
+            @Override public void remove(Item item)       { cic.remove(item); }
+        };
+    }
+    
+    private static Target singleWriter(SingleWriterIndexedCollection<Item> swic) {
+        swic.addAll(randomItems(COLLECTION_SIZE, 42));
+        
+        return new Target() {
+            @Override public List<Item> find(Integer key) { return swic.find("integer", key); }
+            @Override public void add(Item item)          { swic.add(item); }
+            @Override public void remove(Item item)       { swic.remove(item); }
+        };
+    }
+    
+    private static Target partitioned() {
+        final PartitionedIndexedCollection<Item> pic = new PartitionedIndexedCollection<>(PARTITIONS,
+                                                                                          new IndexedField<Item>("integer", false),
+                                                                                          new IndexedField<Item>("string", false));
+        pic.addAll(randomItems(COLLECTION_SIZE, 42));
+        
+        return new Target() {
+            @Override public List<Item> find(Integer key) { return pic.find("integer", key); }
+            @Override public void add(Item item)          { pic.add(item); }
+            @Override public void remove(Item item)       { pic.remove(item); }
+        };
+    }
+    
+    private static Target journaled(ConcurrentIndexedCollection<Item> cic) {
+        return new Target() {
+            @Override public List<Item> find(Integer key) { return cic.find("integer", key); }
+            @Override public void add(Item item)          { cic.add(item); }
+            @Override public void remove(Item item)       { cic.remove(item); }
+        };
+    }
+    
+    /**
+     * Runs the specified number of threads against the target, each of which writes (alternately adding and
+     * removing its own entries) for the specified fraction of its operations and otherwise finds entries by key.
+     */
+    private static double throughput(Target target, int threadCount, double writeFraction) throws InterruptedException {
+        final LongAdder operations = new LongAdder();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        
+        for (int t = 0; t < threadCount; t++) {
+            final List<Item> itemsToAdd = randomItems(10_000, t);
+            final Thread thread = new Thread(() -> {
+                final Random random = new Random();
+                final List<Item> added = new ArrayList<>();
+                int nextItem = 0;
+                try {
+                    started.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                
+                long count = 0;
+                while ( !stopped.get()) {
+                    if (random.nextDouble() < writeFraction) {
+                        if (added.isEmpty() || random.nextBoolean()) {
+                            final Item item = itemsToAdd.get(nextItem++ % itemsToAdd.size());
+                            target.add(item);
+                            added.add(item);
+                        }
+                        else {
+                            target.remove(added.remove(added.size() - 1));
+                        }
+                    }
+                    else {
+                        target.find(random.nextInt(COLLECTION_SIZE));
+                    }
+                    count++;
+                }
+                operations.add(count);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        
+        final long start = System.nanoTime();
+        started.countDown();
+        Thread.sleep(RUN_MILLIS);
+        stopped.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return operations.sum() * 1_000_000_000.0 / (System.nanoTime() - start);
+    }
+}
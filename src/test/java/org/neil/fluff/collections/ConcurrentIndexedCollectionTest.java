@@ -0,0 +1,394 @@
+package org.neil.fluff.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.neil.fluff.collections.ItemFixtures.toList;
+import static org.neil.fluff.misc.ExceptionUtils.intercept;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neil.fluff.collections.IndexedCollection.IndexType;
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * Tests for {@link ConcurrentIndexedCollection}.
+ *
+ * @author Neil Mc Erlean
+ */
+public class ConcurrentIndexedCollectionTest {
+    @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+    
+    @Test public void queriesBehaveAsForAnIndexedCollection() {
+        ConcurrentIndexedCollection<Item> cic = new ConcurrentIndexedCollection<Item>(new IndexedField<Item>("integer", true),
+                                                                                      new IndexedField<Item>("string", false));
+        cic.addAll(Arrays.asList(new Item[] { new Item(3, "c"), new Item(1, "a"), new Item(2, "a") }));
+        cic.add(new Item(4, "ab"));
+        
+        assertEquals(new Item(2, "a"), cic.findOne("integer", 2));
+        assertEquals(Arrays.asList(new Item[] { new Item(1, "a"), new Item(2, "a") }), cic.find("string", "a"));
+        assertEquals(Arrays.asList(new Item[] { new Item(2, "a"), new Item(3, "c") }), cic.findRange("integer", 1, false, 3, true));
+        assertEquals(Arrays.asList(new Item[] { new Item(1, "a"), new Item(2, "a"), new Item(4, "ab") }), cic.findByPrefix("string", "a"));
+        assertEquals(new Item(1, "a"), cic.iteratorSortedBy("integer").next());
+        assertEquals(new Item(3, "c"), cic.iterator().next());
+        assertEquals(4, cic.size());
+        
+        intercept(IllegalArgumentException.class, () -> cic.add(new Item(1, "duplicate")));
+        intercept(IllegalArgumentException.class, () -> cic.find("nonexistent", 1));
+        
+        assertTrue(cic.remove(new Item(1, "a")));
+        assertNull(cic.findOne("integer", 1));
+        assertFalse(cic.contains(new Item(1, "a")));
+    }
+    
+    @Test public void resultsAreUnaffectedByLaterWrites() {
+        ConcurrentIndexedCollection<Item> cic = new ConcurrentIndexedCollection<Item>(new IndexedField<Item>("string", false));
+        cic.add(new Item(1, "a"));
+        
+        final List<Item> found = cic.find("string", "a");
+        final Iterator<Item> iterator = cic.iteratorSortedBy("string");
+        cic.add(new Item(2, "a"));
+        cic.add(new Item(0, "0"));
+        
+        assertEquals(Arrays.asList(new Item(1, "a")), found);
+        assertEquals(new Item(1, "a"), iterator.next());
+        assertFalse(iterator.hasNext());
+    }
+    
+    @Test public void snapshotsCanBeReadWhileWritesContinue() throws Exception {
+        ConcurrentIndexedCollection<Item> cic = new ConcurrentIndexedCollection<Item>(new IndexedField<Item>("integer", false));
+        for (int i = 0; i < 1_000; i++) {
+            cic.add(new Item(i % 10, Integer.toString(i)));
+        }
+        final IndexedCollection<Item> snapshot = cic.snapshot();
+        
+        final Thread writer = new Thread(() -> {
+            for (int i = 0; i < 1_000; i++) {
+                cic.add(new Item(i % 10, "new"));
+            }
+        });
+        writer.start();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(100, snapshot.find("integer", i % 10).size());
+        }
+        writer.join();
+        
+        assertEquals(1_000, snapshot.size());
+        assertEquals(2_000, cic.size());
+    }
+    
+    @Test public void serialization() throws Exception {
+        ConcurrentIndexedCollection<Item> cic = new ConcurrentIndexedCollection<Item>(new IndexedField<Item>("integer", true));
+        cic.add(new Item(1, "a"));
+        
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(cic);
+        }
+        
+        @SuppressWarnings("unchecked")
+        final ConcurrentIndexedCollection<Item> copy = (ConcurrentIndexedCollection<Item>)
+                new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(new Item(1, "a"), copy.findOne("integer", 1));
+        copy.add(new Item(2, "b"));
+        assertEquals(2, copy.size());
+    }
+    
+    /**
+     * An index is added while a writer adds and removes entries, and readers query it. The readers should wait for
+     * the index, and it should then agree with one which was there all along.
+     */
+    @Test public void indexesCanBeAddedWhileWritesContinue() throws Exception {
+        final ConcurrentIndexedCollection<Item> cic = new ConcurrentIndexedCollection<Item>(new IndexedField<Item>("integer", false));
+        final Random random = new Random(20);
+        final List<Item> added = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            added.add(new Item(random.nextInt(1_000), Integer.toString(random.nextInt(1_000))));
+        }
+        cic.addAll(added);
+        
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final Future<?> writer = executor.submit(() -> {
+            while ( !stopped.get()) {
+                if (random.nextBoolean()) {
+                    final Item item = new Item(random.nextInt(1_000), Integer.toString(random.nextInt(1_000)));
+                    cic.add(item);
+                    added.add(item);
+                }
+                else {
+                    cic.remove(added.remove(random.nextInt(added.size())));
+                }
+            }
+        });
+        
+        final Future<?> isBuilt = cic.addIndex(IndexedField.of("copy", Item::getInteger));
+        final Future<List<Item>> found = executor.submit(() -> cic.find("copy", 7));
+        intercept(IllegalArgumentException.class, () -> cic.addIndex(IndexedField.of("copy", Item::getInteger)));
+        isBuilt.get(10, TimeUnit.SECONDS);
+        for (Item item : found.get(10, TimeUnit.SECONDS)) {
+            assertEquals(7, (int) item.getInteger());
+        }
+        
+        Thread.sleep(100);
+        stopped.set(true);
+        writer.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+        assertEquals(toList(cic.iteratorSortedBy("integer")), toList(cic.iteratorSortedBy("copy")));
+        
+        // An index which cannot be built is dropped.
+        final CompletableFuture<Void> isNotBuilt = cic.addIndex(IndexedField.of("unique", Item::getInteger).unique());
+        intercept(CompletionException.class, isNotBuilt::join);
+        assertTrue(cic.dropIndex("copy"));
+        intercept(IllegalArgumentException.class, () -> cic.find("copy", 7));
+        intercept(IllegalArgumentException.class, () -> cic.find("unique", 7));
+    }
+    
+    /**
+     * Readers run queries while writers add and remove entries. Every query should see a consistent state of the
+     * collection and none should throw an exception.
+     */
+    @Test public void concurrentReadersAndWriters() throws Exception {
+        final ConcurrentIndexedCollection<Item> cic = new ConcurrentIndexedCollection<Item>(new IndexedField<Item>("integer", false),
+                                                                                            new IndexedField<Item>("string", false, IndexType.HASH),
+                                                                                            IndexedField.of("primitive", Item::getInteger)
+                                                                                                        .withType(IndexType.PRIMITIVE),
+                                                                                            IndexedField.of("lazy", Item::getInteger).lazy());
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final ExecutorService executor = Executors.newFixedThreadPool(6);
+        final List<Future<?>> futures = new ArrayList<>();
+        
+        for (int w = 0; w < 2; w++) {
+            final int seed = w;
+            futures.add(executor.submit(() -> {
+                final Random random = new Random(seed);
+                final List<Item> added = new ArrayList<>();
+                while ( !stopped.get()) {
+                    if (added.size() < 200 && random.nextBoolean()) {
+                        final int key = random.nextInt(50);
+                        final Item item = new Item(key, Integer.toString(key));
+                        cic.add(item);
+                        added.add(item);
+                    }
+                    else if ( !added.isEmpty()) {
+                        cic.remove(added.remove(random.nextInt(added.size())));
+                    }
+                }
+            }));
+        }
+        
+        for (int r = 0; r < 4; r++) {
+            final int seed = 100 + r;
+            futures.add(executor.submit(() -> {
+                final Random random = new Random(seed);
+                while ( !stopped.get()) {
+                    final int key = random.nextInt(50);
+                    for (Item item : cic.find("integer", key)) {
+                        assertEquals(key, (int) item.getInteger());
+                    }
+                    for (Item item : cic.find("string", Integer.toString(key))) {
+                        assertEquals(key, (int) item.getInteger());
+                    }
+                    for (Item item : cic.find("lazy", key)) {
+                        assertEquals(key, (int) item.getInteger());
+                    }
+                    
+                    final List<Item> range = cic.findRange("primitive", key, true, key + 10, false);
+                    for (int i = 0; i < range.size(); i++) {
+                        assertTrue(range.get(i).getInteger() >= key && range.get(i).getInteger() < key + 10);
+                        assertTrue(i == 0 || range.get(i - 1).getInteger() <= range.get(i).getInteger());
+                    }
+                }
+            }));
+        }
+        
+        Thread.sleep(1_000);
+        stopped.set(true);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        
+        // Rethrows any assertion failure or exception from the readers and writers.
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        assertEquals(toList(cic.iteratorSortedBy("integer")), toList(cic.iteratorSortedBy("lazy")));
+    }
+    
+    @Test public void changesAreRecoveredFromTheJournal() throws Exception {
+        final Path directory = tempFolder.newFolder().toPath();
+        final IndexedField<Item> integerField = new IndexedField<Item>("integer", false);
+        final ConcurrentIndexedCollection<Item> cic = ConcurrentIndexedCollection.openJournaled(directory, integerField);
+        assertTrue(cic.isJournaled());
+        
+        cic.addAll(Arrays.asList(new Item(1, "a"), new Item(2, "b"), new Item(3, "c"), new Item(4, "d"), new Item(4, "d")));
+        cic.add(new Item(5, "e"));
+        assertTrue(cic.remove(new Item(1, "a")));
+        assertFalse(cic.remove(new Item(1, "a")));
+        cic.removeIf(item -> item.getInteger() == 2);
+        cic.retainAll(Arrays.asList(new Item(3, "c"), new Item(4, "d"), new Item(5, "e")));
+        cic.removeAll(Arrays.asList(new Item(4, "d")));
+        cic.add(new Item(4, "again"));
+        final List<Item> expected = new ArrayList<>(cic);
+        
+        cic.closeJournal();
+        intercept(IllegalStateException.class, () -> cic.add(new Item(6, "f")));
+        intercept(IllegalStateException.class, () -> { cic.clear(); return null; });
+        assertEquals(expected, new ArrayList<>(cic));
+        
+        // A crash while a record was being written leaves it incomplete, and recovery discards it.
+        Files.write(directory.resolve("journal-0.log"), new byte[] { 0, 0, 1, 0, 42 }, StandardOpenOption.APPEND);
+        final ConcurrentIndexedCollection<Item> recovered = ConcurrentIndexedCollection.openJournaled(directory, integerField);
+        assertEquals(expected, new ArrayList<>(recovered));
+        assertEquals(new Item(4, "again"), recovered.findOne("integer", 4));
+        
+        // A checkpoint replaces the journal so far with a snapshot.
+        recovered.add(new Item(6, "f"));
+        recovered.checkpoint();
+        recovered.add(new Item(7, "g"));
+        recovered.closeJournal();
+        assertEquals(new TreeSet<>(Arrays.asList("journal-1.log", "snapshot-1.bin")), fileNamesIn(directory));
+        
+        final ConcurrentIndexedCollection<Item> checkpointed = ConcurrentIndexedCollection.openJournaled(directory, integerField);
+        expected.add(new Item(6, "f"));
+        expected.add(new Item(7, "g"));
+        assertEquals(expected, new ArrayList<>(checkpointed));
+        checkpointed.clear();
+        checkpointed.closeJournal();
+        assertTrue(ConcurrentIndexedCollection.openJournaled(directory, integerField).isEmpty());
+        
+        try {
+            new ConcurrentIndexedCollection<Item>(integerField).checkpoint();
+            fail("A collection which is not journaled should not be checkpointed.");
+        }
+        catch (IllegalStateException notJournaled) { }
+    }
+    
+    @Test public void aTailOfZerosIsDiscardedOnRecovery() throws Exception {
+        final IndexedField<Item> integerField = new IndexedField<Item>("integer", false);
+        
+        // A crash can leave a journal holding nothing but zeros, which look like a record with an empty body.
+        final Path emptyDirectory = tempFolder.newFolder().toPath();
+        Files.write(emptyDirectory.resolve("journal-0.log"), new byte[8]);
+        final ConcurrentIndexedCollection<Item> empty = ConcurrentIndexedCollection.openJournaled(emptyDirectory, integerField);
+        assertTrue(empty.isEmpty());
+        assertEquals(0L, Files.size(emptyDirectory.resolve("journal-0.log")));
+        empty.closeJournal();
+        
+        final Path directory = tempFolder.newFolder().toPath();
+        final ConcurrentIndexedCollection<Item> cic = ConcurrentIndexedCollection.openJournaled(directory, integerField);
+        cic.addAll(Arrays.asList(new Item(1, "a"), new Item(2, "b")));
+        cic.remove(new Item(1, "a"));
+        cic.closeJournal();
+        final Path journal = directory.resolve("journal-0.log");
+        final long journalSize = Files.size(journal);
+        
+        Files.write(journal, new byte[4_096], StandardOpenOption.APPEND);
+        final ConcurrentIndexedCollection<Item> recovered = ConcurrentIndexedCollection.openJournaled(directory, integerField);
+        assertEquals(Arrays.asList(new Item(2, "b")), new ArrayList<>(recovered));
+        assertEquals(journalSize, Files.size(journal));
+        
+        // Later records follow on from the last complete one.
+        recovered.add(new Item(3, "c"));
+        recovered.closeJournal();
+        assertEquals(Arrays.asList(new Item(2, "b"), new Item(3, "c")),
+                     new ArrayList<>(ConcurrentIndexedCollection.openJournaled(directory, integerField)));
+    }
+    
+    /**
+     * Random changes, many of them to equal entries, are made to a journaled collection, which is checkpointed part
+     * way through. Recovery folds together the changes in the journal, which should leave the same entries, in the
+     * same order, as making them one at a time.
+     */
+    @Test public void recoveryAgreesWithTheChangesInOrder() throws Exception {
+        final Path directory = tempFolder.newFolder().toPath();
+        final IndexedField<Item> integerField = new IndexedField<Item>("integer", false);
+        final ConcurrentIndexedCollection<Item> cic = ConcurrentIndexedCollection.openJournaled(directory, integerField);
+        final Random random = new Random(24);
+        for (int i = 0; i < 20_000; i++) {
+            if (i == 5_000) { cic.checkpoint(); }
+            
+            final Item item = new Item(random.nextInt(100), Integer.toString(random.nextInt(3)));
+            final int choice = random.nextInt(1_000);
+            if      (choice < 600) { cic.add(item); }
+            else if (choice < 630) { cic.addAll(Arrays.asList(item, new Item(item.getInteger(), "batch"), item)); }
+            else if (choice < 900) { cic.remove(item); }
+            else if (choice < 950) { cic.removeIf(entry -> entry.getInteger().equals(item.getInteger())); }
+            else if (choice < 999) { cic.removeAll(Arrays.asList(item, new Item(item.getInteger(), "batch"))); }
+            else                   { cic.clear(); }
+        }
+        final List<Item> expected = new ArrayList<>(cic);
+        cic.closeJournal();
+        
+        final ConcurrentIndexedCollection<Item> recovered = ConcurrentIndexedCollection.openJournaled(directory, integerField);
+        assertEquals(expected, new ArrayList<>(recovered));
+        assertEquals(toList(cic.iteratorSortedBy("integer")), toList(recovered.iteratorSortedBy("integer")));
+    }
+    
+    /**
+     * Writers add entries concurrently to a journaled collection, whose journal is small enough to be checkpointed
+     * many times along the way. The writers should share forces of the journal, and every entry should be recovered.
+     */
+    @Test public void concurrentWritersShareForcesOfTheJournal() throws Exception {
+        final Path directory = tempFolder.newFolder().toPath();
+        final IndexedField<Item> integerField = new IndexedField<Item>("integer", true);
+        final ConcurrentIndexedCollection<Item> cic = ConcurrentIndexedCollection.openJournaled(directory, TimeUnit.MILLISECONDS.toNanos(1),
+                                                                                                16 << 10, integerField);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < 8; w++) {
+            final int writer = w;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 250; i++) {
+                    cic.add(new Item(writer * 1_000 + i, "journaled"));
+                }
+            }));
+        }
+        executor.shutdown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        assertEquals(2_000, cic.getJournal().getRecordCount());
+        assertTrue(cic.getJournal().getForceCount() < cic.getJournal().getRecordCount());
+        
+        // Waits for any checkpoint in the background to finish.
+        cic.checkpoint();
+        cic.closeJournal();
+        assertEquals(2, fileNamesIn(directory).size());
+        
+        final ConcurrentIndexedCollection<Item> recovered = ConcurrentIndexedCollection.openJournaled(directory, integerField);
+        assertEquals(toList(cic.iteratorSortedBy("integer")), toList(recovered.iteratorSortedBy("integer")));
+    }
+    
+    private static TreeSet<String> fileNamesIn(Path directory) throws Exception {
+        final TreeSet<String> names = new TreeSet<>();
+        try (Stream<Path> paths = Files.list(directory)) {
+            paths.forEach(path -> names.add(path.getFileName().toString()));
+        }
+        return names;
+    }
+}
@@ -0,0 +1,58 @@
+package org.neil.fluff.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link FieldAccessor}.
+ * 
+ * @author Neil Mc Erlean
+ */
+public class FieldAccessorTest {
+    private final Measurement small = new Measurement(1, 10L, 0.5, "small");
+    private final Measurement large = new Measurement(2, 20L, 1.5, null);
+    
+    @Test public void readingFieldValues() {
+        assertEquals(1,       FieldAccessor.of(small, "count").get(small));
+        assertEquals(10L,     FieldAccessor.of(small, "total").get(small));
+        assertEquals(0.5,     FieldAccessor.of(small, "mean").get(small));
+        assertEquals("small", FieldAccessor.of(small, "name").get(small));
+    }
+    
+    @Test public void comparingFieldValues() {
+        for (String fieldName : new String[] { "count", "total", "mean" }) {
+            final FieldAccessor accessor = FieldAccessor.of(Measurement.class, fieldName);
+            
+            assertTrue(accessor.compare(small, large) < 0);
+            assertTrue(accessor.compare(large, small) > 0);
+            assertEquals(0, accessor.compare(small, small));
+            assertEquals(0, accessor.compareTo(large, accessor.get(large)));
+        }
+        assertEquals(0, FieldAccessor.of(small, "count").compareTo(small, 1));
+        assertTrue(FieldAccessor.of(small, "total").compareTo(small, 11L) < 0);
+        assertTrue(FieldAccessor.of(small, "mean").compareTo(small, 0.25) > 0);
+    }
+    
+    @Test public void nullValuesSortFirst() {
+        final FieldAccessor accessor = FieldAccessor.of(Measurement.class, "name");
+        
+        assertTrue(accessor.compare(large, small) < 0);
+        assertTrue(accessor.compareTo(small, null) > 0);
+        assertEquals(0, accessor.compareTo(large, null));
+    }
+    
+    @Test public void accessorsAreCached() {
+        assertSame(FieldAccessor.of(small, "count"), FieldAccessor.of(Measurement.class, "count"));
+    }
+    
+    @Test(expected=IllegalArgumentException.class) public void accessingANonexistentField() {
+        FieldAccessor.of(Measurement.class, "noSuchField");
+    }
+    
+    @Test(expected=ClassCastException.class) public void accessingANonComparableField() {
+        FieldAccessor.of(Measurement.class, "notComparable");
+    }
+}
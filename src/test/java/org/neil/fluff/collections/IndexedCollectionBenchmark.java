@@ -0,0 +1,350 @@
+package org.neil.fluff.collections;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.neil.fluff.collections.IndexedCollection.IndexType;
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * A simple, self-timed benchmark for {@link IndexedCollection}. It is not a unit test and is not run as part of
+ * the build - run its {@link #main(String[]) main method} directly. The numbers it prints are only indicative:
+ * there is no fork or warmup control here of the kind a harness such as JMH would give you.
+ *
+ * @author Neil Mc Erlean
+ */
+public class IndexedCollectionBenchmark {
+    private static final int[] COLLECTION_SIZES = { 10_000, 100_000, 1_000_000 };
+    
+    /** The number of inserts timed against a collection which already holds each of the {@link #COLLECTION_SIZES}. */
+    private static final int TIMED_INSERTS = 1_000;
+    
+    private static final int TIMED_LOOKUPS = 1_000_000;
+    
+    /** The number of inserts and removals timed against a collection which already holds each of the {@link #COLLECTION_SIZES}. */
+    private static final int TIMED_CHURN = 100_000;
+    
+    /** The reindex-per-insert baseline is so slow at larger sizes that we stop timing it after this long. */
+    private static final long BASELINE_TIME_LIMIT_NANOS = 5_000_000_000L;
+    
+    /** The number of full GCs run before measuring the heap, which also times them. */
+    private static final int GC_ROUNDS = 3;
+    
+    public static void main(String[] args) throws Exception {
+        System.out.println("Insert throughput into a collection with 2 indexes, already holding N entries.");
+        System.out.printf("%12s %24s %24s%n", "N", "incremental (ops/s)", "reindex-per-insert (ops/s)");
+        
+        for (int size : COLLECTION_SIZES) {
+            System.out.printf("%12d %24.0f %24.2f%n", size, incrementalInsertThroughput(size), reindexingInsertThroughput(size));
+        }
+        
+        System.out.println();
+        System.out.println("Loading N entries into an empty collection with 2 indexes.");
+        System.out.printf("%12s %24s %24s%n", "N", "addAll (ms)", "add per entry (ms)");
+        
+        for (int size : COLLECTION_SIZES) {
+            System.out.printf("%12d %24d %24d%n", size, bulkLoadMillis(size, true), bulkLoadMillis(size, false));
+        }
+        
+        System.out.println();
+        System.out.println("Reading a collection of N entries with 2 indexes from a file.");
+        System.out.printf("%12s %24s %24s %24s%n", "N", "Java serialization (ms)", "readSnapshot (ms)", "mapped, first query (ms)");
+        
+        for (int size : COLLECTION_SIZES) {
+            System.out.printf("%12d %24d %24d %24d%n", size, readMillis(size, false), readMillis(size, true), mapMillis(size));
+        }
+        
+        System.out.println();
+        System.out.println("Equality lookups on an Integer field of a collection holding N entries.");
+        System.out.printf("%12s %24s %24s %24s %24s%n", "N", "SORTED (ns/op)", "PRIMITIVE (ns/op)",
+                          "frozen SORTED (ns/op)", "frozen PRIMITIVE (ns/op)");
+        
+        for (int size : COLLECTION_SIZES) {
+            System.out.printf("%12d %24.0f %24.0f %24.0f %24.0f%n", size,
+                              lookupNanos(size, IndexType.SORTED, false), lookupNanos(size, IndexType.PRIMITIVE, false),
+                              lookupNanos(size, IndexType.SORTED, true),  lookupNanos(size, IndexType.PRIMITIVE, true));
+        }
+        
+        System.out.println();
+        System.out.println("Alternating inserts and removals on an Integer field of a collection holding N entries.");
+        System.out.printf("%12s %24s %24s%n", "N", "SORTED (ops/s)", "LOG_STRUCTURED (ops/s)");
+        
+        for (int size : COLLECTION_SIZES) {
+            System.out.printf("%12d %24.0f %24.0f%n", size, churnThroughput(size, IndexType.SORTED),
+                              churnThroughput(size, IndexType.LOG_STRUCTURED));
+        }
+        
+        System.out.println();
+        System.out.println("Memory taken up by a collection of N entries with a PRIMITIVE index, and the time of a full GC while it is live.");
+        System.out.printf("%12s %24s %24s %24s %24s %24s%n", "N", "on-heap, heap (MB)", "off-heap, heap (MB)",
+                          "off-heap, direct (MB)", "on-heap, full GC (ms)", "off-heap, full GC (ms)");
+        
+        for (int size : COLLECTION_SIZES) {
+            final double[] onHeap  = memoryAndGcTime(size, false);
+            final double[] offHeap = memoryAndGcTime(size, true);
+            System.out.printf("%12d %24.1f %24.1f %24.1f %24.0f %24.0f%n", size, onHeap[0], offHeap[0], offHeap[1],
+                              onHeap[2], offHeap[2]);
+        }
+    }
+    
+    /**
+     * Loads a collection of the specified size, either on or off the heap.
+     *
+     * @return the heap it retains and the direct memory it allocates, in megabytes, and the time of a full GC, in
+     *         milliseconds, while it is still live.
+     */
+    private static double[] memoryAndGcTime(int size, boolean isOffHeap) {
+        final IndexedField<Item> integerIndexedField = IndexedField.<Item, Integer>of("integer", Item::getInteger)
+                                                                   .withType(IndexType.PRIMITIVE);
+        final long heapBefore = usedHeapAfterGc();
+        final Collection<Item> collection = isOffHeap ? new OffHeapIndexedCollection<>(ITEM_CODEC, integerIndexedField) :
+                                                        new IndexedCollection<>(integerIndexedField);
+        collection.addAll(randomItems(size, 42));
+        
+        final long start = System.nanoTime();
+        final long heapAfter = usedHeapAfterGc();
+        final double gcMillis = (System.nanoTime() - start) / 1_000_000.0 / GC_ROUNDS;
+        
+        final long directBytes = isOffHeap ? ((OffHeapIndexedCollection<Item>) collection).getOffHeapSize() : 0L;
+        if (collection.size() != size) { throw new IllegalStateException("Lost entries from " + collection); }
+        return new double[] { (heapAfter - heapBefore) / 1_048_576.0, directBytes / 1_048_576.0, gcMillis };
+    }
+    
+    private static long usedHeapAfterGc() {
+        for (int i = 0; i < GC_ROUNDS; i++) {
+            System.gc();
+        }
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+    
+    /** Encodes just the fields of the {@link Item}s in this benchmark, neither of which is ever {@code null}. */
+    private static final EntryCodec<Item> ITEM_CODEC = new EntryCodec<Item>() {
+        @Override public void encode(Item item, DataOutput out) throws IOException {
+            out.writeInt(item.getInteger());
+            out.writeUTF(item.getString());
+        }
+        
+        @Override public Item decode(DataInput in) throws IOException { return new Item(in.readInt(), in.readUTF()); }
+    };
+    
+    private static double churnThroughput(int size, IndexType indexType) {
+        final IndexedCollection<Item> ic = new IndexedCollection<>(new IndexedField<Item>("integer", false, indexType));
+        final List<Item> items = randomItems(size, 42);
+        ic.addAll(items);
+        
+        // Each insert is followed by the removal of an older entry, so the size of the collection stays the same.
+        final List<Item> itemsToInsert = randomItems(TIMED_CHURN, 43);
+        final long start = System.nanoTime();
+        for (int i = 0; i < TIMED_CHURN; i++) {
+            ic.add(itemsToInsert.get(i));
+            ic.remove(items.get(i % size));
+        }
+        return opsPerSecond(2 * TIMED_CHURN, System.nanoTime() - start);
+    }
+    
+    private static double lookupNanos(int size, IndexType indexType, boolean isFrozen) {
+        final IndexedCollection<Item> source = new IndexedCollection<>(new IndexedField<Item>("integer", false, indexType));
+        final List<Item> items = randomItems(size, 42);
+        source.addAll(items);
+        final IndexedCollection<Item> ic = isFrozen ? source.freeze() : source;
+        
+        // Look up keys which are present, in a random order, so that most searches miss the CPU caches.
+        final Random random = new Random(44);
+        final Integer[] keys = new Integer[TIMED_LOOKUPS];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = items.get(random.nextInt(size)).getInteger();
+        }
+        
+        // A warmup round, then the timed one.
+        findAll(ic, keys);
+        final long start = System.nanoTime();
+        findAll(ic, keys);
+        return (System.nanoTime() - start) / (double) TIMED_LOOKUPS;
+    }
+    
+    private static int findAll(IndexedCollection<Item> ic, Integer[] keys) {
+        int found = 0;
+        for (Integer key : keys) {
+            found += ic.find("integer", key).size();
+        }
+        return found;
+    }
+    
+    private static long bulkLoadMillis(int size, boolean useAddAll) {
+        final IndexedCollection<Item> ic = new IndexedCollection<>(new IndexedField<Item>("integer", false),
+                                                                  new IndexedField<Item>("string", false));
+        final List<Item> items = randomItems(size, 42);
+        
+        final long start = System.nanoTime();
+        if (useAddAll) {
+            ic.addAll(items);
+        }
+        else {
+            for (Item item : items) {
+                ic.add(item);
+            }
+        }
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+    
+    private static long readMillis(int size, boolean useSnapshotFile) throws IOException, ClassNotFoundException {
+        final IndexedField<Item> integerIndexedField = new IndexedField<Item>("integer", false);
+        final IndexedField<Item> stringIndexedField  = new IndexedField<Item>("string", false);
+        final IndexedCollection<Item> ic = new IndexedCollection<>(integerIndexedField, stringIndexedField);
+        ic.addAll(randomItems(size, 42));
+        
+        final Path path = Files.createTempFile("benchmark", ".bin");
+        try {
+            if (useSnapshotFile) {
+                ic.writeSnapshot(path);
+            }
+            else {
+                try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+                    out.writeObject(ic);
+                }
+            }
+            
+            final long start = System.nanoTime();
+            final IndexedCollection<?> read;
+            if (useSnapshotFile) {
+                read = IndexedCollection.readSnapshot(path, integerIndexedField, stringIndexedField);
+            }
+            else {
+                try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                    read = (IndexedCollection<?>) in.readObject();
+                }
+            }
+            final long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            
+            if (read.size() != size) { throw new IllegalStateException("Read " + read.size() + " entries, not " + size); }
+            return elapsedMillis;
+        }
+        finally {
+            Files.delete(path);
+        }
+    }
+    
+    /** Times mapping a file of the specified number of entries and then querying each of its indexes once. */
+    private static long mapMillis(int size) throws IOException {
+        final IndexedField<Item> integerIndexedField = new IndexedField<Item>("integer", false, IndexType.PRIMITIVE);
+        final IndexedField<Item> stringIndexedField  = new IndexedField<Item>("string", false);
+        final IndexedCollection<Item> ic = new IndexedCollection<>(integerIndexedField, stringIndexedField);
+        final List<Item> items = randomItems(size, 42);
+        ic.addAll(items);
+        
+        final Path path = Files.createTempFile("benchmark", ".bin");
+        try {
+            ic.writeMappableSnapshot(path);
+            
+            final long start = System.nanoTime();
+            final MappedIndexedCollection<Item> mapped = MappedIndexedCollection.open(path, integerIndexedField, stringIndexedField);
+            final Item item = items.get(size / 2);
+            final boolean isFound = mapped.find("integer", item.getInteger()).contains(item) &&
+                                    mapped.find("string", item.getString()).contains(item);
+            final long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            
+            if ( !isFound) { throw new IllegalStateException("Could not find " + item); }
+            return elapsedMillis;
+        }
+        finally {
+            Files.delete(path);
+        }
+    }
+    
+    private static List<Item> randomItems(int count, long seed) {
+        final Random random = new Random(seed);
+        final List<Item> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(new Item(random.nextInt(), Integer.toString(random.nextInt(), 36)));
+        }
+        return items;
+    }
+    
+    private static double incrementalInsertThroughput(int size) {
+        final IndexedCollection<Item> ic = new IndexedCollection<>(new IndexedField<Item>("integer", false),
+                                                                  new IndexedField<Item>("string", false));
+        ic.addAll(randomItems(size, 42));
+        
+        final List<Item> itemsToInsert = randomItems(TIMED_INSERTS, 43);
+        final long start = System.nanoTime();
+        for (Item item : itemsToInsert) {
+            ic.add(item);
+        }
+        return opsPerSecond(TIMED_INSERTS, System.nanoTime() - start);
+    }
+    
+    /**
+     * This reproduces the previous behaviour of {@link IndexedCollection#add(java.io.Serializable)}, where every
+     * insert cleared every sorted view and re-sorted all the entries with a reflective comparator.
+     */
+    private static double reindexingInsertThroughput(int size) {
+        final String[] fieldNames = { "integer", "string" };
+        final List<Item> entries = new ArrayList<>(randomItems(size, 42));
+        final List<List<Item>> views = new ArrayList<>();
+        for (String fieldName : fieldNames) {
+            final List<Item> view = new ArrayList<>(entries);
+            Collections.sort(view, new ReflectiveComparator(fieldName));
+            views.add(view);
+        }
+        
+        final List<Item> itemsToInsert = randomItems(TIMED_INSERTS, 43);
+        int inserts = 0;
+        final long start = System.nanoTime();
+        for (Item item : itemsToInsert) {
+            entries.add(item);
+            for (int i = 0; i < fieldNames.length; i++) {
+                final List<Item> view = views.get(i);
+                view.clear();
+                view.addAll(entries);
+                Collections.sort(view, new ReflectiveComparator(fieldNames[i]));
+            }
+            inserts++;
+            if (System.nanoTime() - start > BASELINE_TIME_LIMIT_NANOS) { break; }
+        }
+        return opsPerSecond(inserts, System.nanoTime() - start);
+    }
+    
+    private static double opsPerSecond(int ops, long elapsedNanos) { return ops * 1_000_000_000.0 / elapsedNanos; }
+    
+    /** A comparator which, like the original, looks up the field reflectively on every comparison. */
+    private static class ReflectiveComparator implements Comparator<Item> {
+        private final String fieldName;
+        
+        ReflectiveComparator(String fieldName) { this.fieldName = fieldName; }
+        
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        @Override public int compare(Item o1, Item o2) {
+            final Comparable fieldValue1 = getFieldValue(o1);
+            final Comparable fieldValue2 = getFieldValue(o2);
+            if (fieldValue1 == null) { return fieldValue2 == null ? 0 : -1; }
+            if (fieldValue2 == null) { return 1; }
+            return fieldValue1.compareTo(fieldValue2);
+        }
+        
+        @SuppressWarnings("rawtypes")
+        private Comparable getFieldValue(Item item) {
+            try {
+                final Field field = item.getClass().getDeclaredField(fieldName);
+                field.setAccessible(true);
+                return (Comparable) field.get(item);
+            }
+            catch (NoSuchFieldException | IllegalAccessException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+}
@@ -1,15 +1,27 @@
 package org.neil.fluff.collections;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.neil.fluff.collections.ItemFixtures.toList;
+import static org.neil.fluff.misc.ExceptionUtils.intercept;
 
-import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
 
 import org.junit.Test;
+import org.neil.fluff.collections.IndexedCollection.IndexType;
 import org.neil.fluff.collections.IndexedCollection.IndexedField;
 
 /**
@@ -54,6 +66,140 @@ public class IndexedCollectionTest {
         assertEquals(Arrays.asList(new Item[] { new Item(5, "d"), new Item(5, "d") }), ic.find("string", "d"));
     }
     
+    @Test public void removingEntriesUpdatesTheIndexes() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField, stringIndexedField);
+        List<Item> shuffledCollection = new ArrayList<>(ITEMS_TO_SEARCH_IN);
+        Collections.shuffle(shuffledCollection);
+        ic.addAll(shuffledCollection);
+        
+        assertTrue(ic.remove(new Item(4, "b")));
+        assertFalse(ic.remove(new Item(4, "b")));
+        assertTrue(ic.remove(new Item(5, "d")));
+        
+        assertEquals(ITEMS_TO_SEARCH_IN.size() - 2, ic.size());
+        assertNull(ic.findOne("string", "b"));
+        assertEquals(Arrays.asList(new Item[] { new Item(5, "d") }), ic.find("integer", 5));
+        assertEquals(Arrays.asList(new Item[] { new Item(5, "d") }), ic.find("string", "d"));
+        assertEquals(Arrays.asList(-2, 0, 1, 2, 3, 5, 9), integersSortedBy(ic, "integer"));
+    }
+    
+    @Test public void removingEqualEntriesRemovesTheEarliestFirst() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField);
+        final Item first = new Item(1, "a"), second = new Item(2, "b"), third = new Item(1, "a"), fourth = new Item(1, "a");
+        ic.addAll(Arrays.asList(first, second, third, fourth));
+        
+        assertTrue(ic.contains(new Item(1, "a")));
+        assertTrue(ic.remove(new Item(1, "a")));
+        assertTrue(ic.remove(new Item(1, "a")));
+        
+        // The remaining entries are the very objects which were added last, still in insertion order.
+        final List<Item> remaining = toList(ic.iterator());
+        assertEquals(2, remaining.size());
+        assertTrue(remaining.get(0) == second);
+        assertTrue(remaining.get(1) == fourth);
+        assertTrue(ic.find("integer", 1).get(0) == fourth);
+        
+        assertTrue(ic.remove(new Item(1, "a")));
+        assertFalse(ic.contains(new Item(1, "a")));
+        assertFalse(ic.remove(new Item(1, "a")));
+        
+        ic.add(first);
+        assertEquals(Arrays.asList(second, first), toList(ic.iterator()));
+        assertTrue(ic.retainAll(Collections.singleton(first)));
+        assertEquals(Collections.singletonList(first), toList(ic.iterator()));
+    }
+    
+    @Test public void bulkRemovalUpdatesEveryTypeOfIndex() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField,
+                                                                 new IndexedField<Item>("string", false, IndexType.HASH),
+                                                                 IndexedField.<Item, Integer>of("primitive", Item::getInteger)
+                                                                             .withType(IndexType.PRIMITIVE));
+        // Some of these entries will be changed, so they must not be the shared ones.
+        for (Item item : ITEMS_TO_SEARCH_IN) {
+            ic.add(new Item(item.getInteger(), item.getString()));
+        }
+        
+        // Every entry equal to any of those provided is removed, not just one for each.
+        assertTrue(ic.removeAll(Arrays.asList(new Item(5, "d"), new Item(1, "a"), new Item(42, "absent"))));
+        assertFalse(ic.removeAll(Arrays.asList(new Item(5, "d"))));
+        assertEquals(ITEMS_TO_SEARCH_IN.size() - 3, ic.size());
+        assertEquals(Arrays.asList(-2, 0, 2, 3, 4, 9), integersSortedBy(ic, "integer"));
+        assertEquals(Arrays.asList(-2, 0, 2, 3, 4, 9), integersSortedBy(ic, "primitive"));
+        assertTrue(ic.find("string", "d").isEmpty());
+        
+        assertTrue(ic.retainAll(Arrays.asList(new Item(0, null), new Item(3, "a"), new Item(4, "b"), new Item(9, "z"))));
+        assertFalse(ic.retainAll(new ArrayList<>(ic)));
+        assertEquals(Arrays.asList(0, 3, 4, 9), integersSortedBy(ic, "primitive"));
+        assertEquals(Arrays.asList(new Item(3, "a")), ic.find("string", "a"));
+        
+        // An entry which has changed since it was added is still removed from the entries and the indexes.
+        ic.findOne("integer", 4).setInteger(100);
+        assertTrue(ic.removeIf(item -> "b".equals(item.getString())));
+        assertEquals(3, ic.size());
+        assertEquals(Arrays.asList(0, 3, 9), integersSortedBy(ic, "integer"));
+        assertEquals(Arrays.asList(0, 3, 9), integersSortedBy(ic, "primitive"));
+        assertTrue(ic.find("string", "b").isEmpty());
+        
+        // A predicate which fails part way through removes nothing.
+        intercept(IllegalStateException.class, () -> ic.removeIf(item -> {
+            if (item.getInteger() == 9) { throw new IllegalStateException(); }
+            return true;
+        }));
+        assertEquals(3, ic.size());
+        assertEquals(Arrays.asList(0, 3, 9), integersSortedBy(ic, "integer"));
+    }
+    
+    @Test public void bulkRemovalRemovesEveryOccurrenceOfAReferenceAddedTwice() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField,
+                                                                 IndexedField.<Item, Integer>of("primitive", Item::getInteger)
+                                                                             .withType(IndexType.PRIMITIVE),
+                                                                 IndexedField.<Item, Integer>of("hash", Item::getInteger)
+                                                                             .withType(IndexType.HASH),
+                                                                 IndexedField.<Item, Integer>of("log", Item::getInteger)
+                                                                             .withType(IndexType.LOG_STRUCTURED));
+        // Enough entries to go straight into the base of the log-structured index, one of them twice over,
+        // so that removing a few of them takes the path which removes each individually.
+        final List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            items.add(new Item(i, "item" + i));
+        }
+        final Item addedTwice = items.get(42), alsoAddedTwice = items.get(7), loadedTwice = items.get(99);
+        final List<Item> batch = new ArrayList<>(items);
+        batch.add(loadedTwice);
+        ic.addAll(batch);
+        ic.add(addedTwice);
+        ic.add(alsoAddedTwice);
+        assertEquals(2_003, ic.size());
+        
+        assertTrue(ic.removeAll(Arrays.asList(addedTwice, loadedTwice)));
+        assertTrue(ic.removeIf(item -> item == alsoAddedTwice));
+        assertEquals(1_997, ic.size());
+        for (String fieldName : Arrays.asList("integer", "primitive", "hash", "log")) {
+            assertTrue(ic.find(fieldName, 42).isEmpty());
+            assertTrue(ic.find(fieldName, 7).isEmpty());
+            assertTrue(ic.find(fieldName, 99).isEmpty());
+            assertEquals(Arrays.asList(items.get(43)), ic.find(fieldName, 43));
+        }
+        assertEquals(1_997, toList(ic.iteratorSortedBy("log")).size());
+    }
+    
+    @Test public void sortedViewsRetainInsertionOrderForEqualValues() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField, stringIndexedField);
+        ic.addAll(ITEMS_TO_SEARCH_IN);
+        
+        assertEquals(Arrays.asList(new Item[] { new Item(1, "a"), new Item(2, "a"), new Item(3, "a") }),
+                     ic.find("string", "a"));
+        assertEquals(Arrays.asList(0, -2, 1, 2, 3, 4, 5, 5, 9), integersSortedBy(ic, "string"));
+    }
+    
+    private static List<Integer> integersSortedBy(IndexedCollection<Item> ic, String fieldName) {
+        List<Integer> result = new ArrayList<>();
+        for (Iterator<Item> iter = ic.iteratorSortedBy(fieldName); iter.hasNext(); ) {
+            result.add(iter.next().getInteger());
+        }
+        return result;
+    }
+    
     @Test(expected=IllegalArgumentException.class)
     public void cannotInsertValueTwiceViolatingUniquenessConstraint() {
         IndexedCollection<Item> ic = new IndexedCollection<Item>(new IndexedField<Item>("integer", true));
@@ -64,6 +210,624 @@ public class IndexedCollectionTest {
         ic.add(item2);
     }
     
+    @Test public void bulkLoadingIntoAPopulatedCollection() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField, stringIndexedField);
+        ic.addAll(ITEMS_TO_SEARCH_IN.subList(0, 4));
+        ic.addAll(ITEMS_TO_SEARCH_IN.subList(4, ITEMS_TO_SEARCH_IN.size()));
+        
+        assertEquals(ITEMS_TO_SEARCH_IN.size(), ic.size());
+        assertEquals(Arrays.asList(-2, 0, 1, 2, 3, 4, 5, 5, 9), integersSortedBy(ic, "integer"));
+        assertEquals(Arrays.asList(0, -2, 1, 2, 3, 4, 5, 5, 9), integersSortedBy(ic, "string"));
+        assertEquals(Arrays.asList(new Item[] { new Item(5, "d"), new Item(5, "d") }), ic.find("string", "d"));
+    }
+    
+    @Test public void bulkLoadingIsAllOrNothing() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(new IndexedField<Item>("integer", true), stringIndexedField);
+        ic.add(new Item(100, "hello"));
+        
+        // A uniqueness violation within the batch...
+        intercept(IllegalArgumentException.class,
+                  () -> ic.addAll(Arrays.asList(new Item[] { new Item(1, "a"), new Item(2, "b"), new Item(1, "c") })));
+        // ...and against an existing entry.
+        intercept(IllegalArgumentException.class,
+                  () -> ic.addAll(Arrays.asList(new Item[] { new Item(1, "a"), new Item(100, "goodbye") })));
+        
+        assertEquals(1, ic.size());
+        assertNull(ic.findOne("integer", 1));
+        assertNull(ic.findOne("string", "a"));
+    }
+    
+    @Test public void largeBulkLoadsAgreeWithSmallOnes() {
+        final List<Item> items = new ArrayList<>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 3 * Index.MIN_PARALLEL_BATCH_SIZE; i++) {
+            items.add(new Item(random.nextInt(10) == 0 ? null : random.nextInt(5_000), "item" + random.nextInt(5_000)));
+        }
+        
+        // A large batch is sorted, and its indexes are prepared, in parallel, whereas small batches are not.
+        final List<IndexedCollection<Item>> collections = new ArrayList<>();
+        for (int batchSize : new int[] { items.size(), 1_000 }) {
+            IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField, stringIndexedField,
+                                                                     IndexedField.of("primitive", Item::getInteger).withType(IndexType.PRIMITIVE),
+                                                                     IndexedField.of("logStructured", Item::getInteger).withType(IndexType.LOG_STRUCTURED),
+                                                                     IndexedField.of("hash", Item::getString).withType(IndexType.HASH));
+            for (int i = 0; i < items.size(); i += batchSize) {
+                ic.addAll(items.subList(i, Math.min(i + batchSize, items.size())));
+            }
+            collections.add(ic);
+        }
+        for (String fieldName : Arrays.asList("integer", "string", "primitive", "logStructured")) {
+            assertEquals(toList(collections.get(1).iteratorSortedBy(fieldName)), toList(collections.get(0).iteratorSortedBy(fieldName)));
+        }
+        assertEquals(items, toList(collections.get(0).iterator()));
+        assertEquals(collections.get(1).find("hash", "item42"), collections.get(0).find("hash", "item42"));
+        
+        // A large batch which violates both of two uniqueness constraints fails on the first of them, just as
+        // a small one does, and changes nothing.
+        IndexedCollection<Item> unique = new IndexedCollection<Item>(new IndexedField<Item>("integer", true),
+                                                                     new IndexedField<Item>("string", true, IndexType.HASH));
+        final List<Item> uniqueItems = new ArrayList<>();
+        for (int i = 0; i < 2 * Index.MIN_PARALLEL_BATCH_SIZE; i++) {
+            uniqueItems.add(new Item(i, "item" + i));
+        }
+        uniqueItems.add(new Item(1, "item1"));
+        final IllegalArgumentException e = intercept(IllegalArgumentException.class, () -> unique.addAll(uniqueItems));
+        assertTrue(e.getMessage(), e.getMessage().contains("integer = 1"));
+        assertTrue(unique.isEmpty());
+    }
+    
+    @Test public void indexingPrimitiveFields() {
+        IndexedCollection<Measurement> ic = new IndexedCollection<Measurement>(new IndexedField<Measurement>("count", true),
+                                                                               new IndexedField<Measurement>("total", false),
+                                                                               new IndexedField<Measurement>("mean", false));
+        final Measurement m1 = new Measurement(3, 30L, 1.5, "m1");
+        final Measurement m2 = new Measurement(1, 30L, 0.5, "m2");
+        final Measurement m3 = new Measurement(2, 10L, 2.5, "m3");
+        ic.addAll(Arrays.asList(m1, m2, m3));
+        
+        assertEquals(m3, ic.findOne("count", 2));
+        assertEquals(Arrays.asList(m1, m2), ic.find("total", 30L));
+        assertEquals(m2, ic.findOne("mean", 0.5));
+        assertEquals(m3, ic.iteratorSortedBy("total").next());
+        
+        intercept(IllegalArgumentException.class, () -> ic.add(new Measurement(3, 0L, 0.0, "duplicate")));
+    }
+    
+    @Test public void primitiveIndexesAgreeWithSortedIndexes() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField,
+                                                                 IndexedField.of("primitive", Item::getInteger).withType(IndexType.PRIMITIVE));
+        final Random random = new Random(42);
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            items.add(new Item(random.nextInt(10) == 0 ? null : random.nextInt(200) - 100, Integer.toString(i)));
+        }
+        ic.addAll(items.subList(0, 500));
+        for (Item item : items.subList(500, 1_000)) {
+            ic.add(item);
+        }
+        for (int i = 0; i < 1_000; i += 3) {
+            ic.remove(items.get(i));
+        }
+        
+        assertEquals(stringsOf(ic.iteratorSortedBy("integer")), stringsOf(ic.iteratorSortedBy("primitive")));
+        for (int key = -101; key <= 100; key += 7) {
+            assertEquals(ic.find("integer", key), ic.find("primitive", key));
+            assertEquals(ic.findRange("integer", key, true, key + 20, false), ic.findRange("primitive", key, true, key + 20, false));
+            assertEquals(ic.findGreaterThan("integer", key, false), ic.findGreaterThan("primitive", key, false));
+            assertEquals(ic.findLessThan("integer", key, true), ic.findLessThan("primitive", key, true));
+        }
+        assertEquals(ic.find("integer", null), ic.find("primitive", null));
+        assertEquals(ic.findRange("integer", null, true, 0, true), ic.findRange("primitive", null, true, 0, true));
+        
+        // Integral keys can be queried with any integral type, but can't be mixed with floating point values.
+        assertEquals(ic.find("integer", 7), ic.find("primitive", 7L));
+        intercept(ClassCastException.class, () -> ic.find("primitive", 7.0));
+        intercept(ClassCastException.class, () -> ic.findByPrefix("primitive", "7"));
+    }
+    
+    @Test public void logStructuredIndexesAgreeWithSortedIndexes() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField,
+                                                                 IndexedField.of("logStructured", Item::getInteger).withType(IndexType.LOG_STRUCTURED));
+        final Random random = new Random(42);
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            items.add(new Item(random.nextInt(10) == 0 ? null : random.nextInt(2_000) - 1_000, Integer.toString(i)));
+        }
+        
+        // Enough changes, one at a time and in bulk, to merge the delta into the base several times.
+        ic.addAll(items.subList(0, 2_000));
+        for (Item item : items.subList(2_000, 6_000)) {
+            ic.add(item);
+        }
+        for (int i = 0; i < 6_000; i += 3) {
+            ic.remove(items.get(i));
+        }
+        ic.addAll(items.subList(6_000, 6_500));
+        ic.snapshot();
+        for (Item item : items.subList(6_500, 10_000)) {
+            ic.add(item);
+        }
+        ic.removeAll(items.subList(7_000, 7_100));
+        ic.removeAll(items.subList(1_000, 6_000));
+        
+        assertEquals(stringsOf(ic.iteratorSortedBy("integer")), stringsOf(ic.iteratorSortedBy("logStructured")));
+        for (int key = -1_001; key <= 1_000; key += 37) {
+            assertEquals(ic.find("integer", key), ic.find("logStructured", key));
+            assertEquals(ic.findRange("integer", key, true, key + 50, false), ic.findRange("logStructured", key, true, key + 50, false));
+            assertEquals(ic.findGreaterThan("integer", key, false), ic.findGreaterThan("logStructured", key, false));
+            assertEquals(ic.findLessThan("integer", key, true), ic.findLessThan("logStructured", key, true));
+        }
+        assertEquals(ic.find("integer", null), ic.find("logStructured", null));
+        assertEquals(ic.findRange("integer", null, true, 0, true), ic.findRange("logStructured", null, true, 0, true));
+        
+        IndexedCollection<Item> unique = new IndexedCollection<Item>(new IndexedField<Item>("integer", true, IndexType.LOG_STRUCTURED));
+        unique.add(new Item(1, "a"));
+        intercept(IllegalArgumentException.class, () -> unique.add(new Item(1, "b")));
+        intercept(IllegalArgumentException.class, () -> unique.addAll(Arrays.asList(new Item(2, "a"), new Item(2, "b"))));
+        assertTrue(unique.remove(new Item(1, "a")));
+        assertTrue(unique.add(new Item(1, "b")));
+    }
+    
+    @Test public void frozenCollectionsAgreeWithTheirSources() {
+        // Several sizes, so that the Eytzinger layouts include both complete and incomplete trees.
+        for (int size : new int[] { 0, 1, 2, 7, 8, 1_000 }) {
+            IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField, stringIndexedField,
+                                                                     IndexedField.of("primitive", Item::getInteger).withType(IndexType.PRIMITIVE),
+                                                                     IndexedField.of("logStructured", Item::getInteger).withType(IndexType.LOG_STRUCTURED),
+                                                                     IndexedField.<Item>composite("composite", "string", "integer"));
+            final Random random = new Random(size);
+            for (int i = 0; i < size; i++) {
+                ic.add(new Item(random.nextInt(10) == 0 ? null : random.nextInt(200) - 100,
+                                random.nextInt(10) == 0 ? null : Integer.toString(random.nextInt(50))));
+            }
+            
+            final IndexedCollection<Item> frozen = ic.freeze();
+            assertTrue(frozen.isFrozen());
+            assertTrue(frozen.isSnapshot());
+            assertTrue(frozen.freeze() == frozen);
+            assertEquals(size, frozen.size());
+            for (String fieldName : Arrays.asList("integer", "string", "primitive", "logStructured", "composite")) {
+                assertEquals(toList(ic.iteratorSortedBy(fieldName)), toList(frozen.iteratorSortedBy(fieldName)));
+            }
+            
+            for (int key = -102; key <= 102; key += 3) {
+                for (String fieldName : Arrays.asList("integer", "primitive", "logStructured")) {
+                    assertEquals(ic.find(fieldName, key), frozen.find(fieldName, key));
+                    assertEquals(ic.findRange(fieldName, key, true, key + 20, false), frozen.findRange(fieldName, key, true, key + 20, false));
+                    assertEquals(ic.findRange(fieldName, key, false, key + 20, true), frozen.findRange(fieldName, key, false, key + 20, true));
+                    assertEquals(ic.findGreaterThan(fieldName, key, false), frozen.findGreaterThan(fieldName, key, false));
+                    assertEquals(ic.findLessThan(fieldName, key, true), frozen.findLessThan(fieldName, key, true));
+                }
+                final String string = Integer.toString(Math.abs(key) % 50);
+                assertEquals(ic.find("string", string), frozen.find("string", string));
+                assertEquals(ic.findByPrefix("string", string), frozen.findByPrefix("string", string));
+                assertEquals(ic.find("composite", Arrays.asList(string, key)), frozen.find("composite", Arrays.asList(string, key)));
+                assertEquals(ic.find("composite", Arrays.asList(string)), frozen.find("composite", Arrays.asList(string)));
+            }
+            for (String fieldName : Arrays.asList("integer", "string", "primitive", "logStructured")) {
+                assertEquals(ic.find(fieldName, null), frozen.find(fieldName, null));
+                assertEquals(ic.findRange(fieldName, null, true, null, true), frozen.findRange(fieldName, null, true, null, true));
+                assertEquals(ic.findGreaterThan(fieldName, null, true), frozen.findGreaterThan(fieldName, null, true));
+            }
+            assertEquals(ic.findRange("integer", null, true, 0, true), frozen.findRange("integer", null, true, 0, true));
+            assertEquals(ic.findRange("primitive", null, true, 0, true), frozen.findRange("primitive", null, true, 0, true));
+            
+            // The frozen copy is unaffected by later changes to its source, and cannot be changed itself.
+            ic.add(new Item(0, "0"));
+            assertEquals(size, frozen.size());
+            assertEquals(ic.find("integer", 0).size() - 1, frozen.find("integer", 0).size());
+            intercept(UnsupportedOperationException.class, () -> frozen.add(new Item(1, "a")));
+        }
+    }
+    
+    @Test public void frozenPrimitiveIndexes() {
+        IndexedCollection<Measurement> ic = new IndexedCollection<Measurement>(new IndexedField<Measurement>("count", true, IndexType.PRIMITIVE),
+                                                                               new IndexedField<Measurement>("mean", false, IndexType.PRIMITIVE));
+        final Measurement m1 = new Measurement(3, 30L, 1.5, "m1");
+        final Measurement m2 = new Measurement(1, 30L, -0.5, "m2");
+        final Measurement m3 = new Measurement(2, 10L, Double.NaN, "m3");
+        final Measurement m4 = new Measurement(-4, 10L, -0.0, "m4");
+        ic.addAll(Arrays.asList(m1, m2, m3, m4));
+        final IndexedCollection<Measurement> frozen = ic.freeze();
+        
+        assertEquals(m3, frozen.findOne("count", 2));
+        assertNull(frozen.findOne("count", 0));
+        assertEquals(Arrays.asList(m4, m2, m3, m1), toList(frozen.iteratorSortedBy("count")));
+        assertEquals(Arrays.asList(m2, m4),         frozen.findRange("mean", -1.0, true, 0.0, true));
+        assertEquals(Arrays.asList(m1, m3),         frozen.findGreaterThan("mean", 0.0, false));
+        
+        // Integral and floating point keys still cannot be mixed.
+        intercept(ClassCastException.class, () -> frozen.find("count", 2.0));
+    }
+    
+    @Test public void lazyIndexesAreBuiltOnlyWhenQueried() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField,
+                                                                 IndexedField.of("lazy", Item::getInteger).lazy(),
+                                                                 IndexedField.of("lazyHash", Item::getString).withType(IndexType.HASH).lazy());
+        assertEquals(Arrays.asList("lazy", "lazyHash"), new ArrayList<>(ic.getIndexBuildCounts().keySet()));
+        
+        // A burst of changes does not build the index, however long it is.
+        final Random random = new Random(19);
+        for (int i = 0; i < 500; i++) {
+            ic.add(new Item(random.nextInt(100), Integer.toString(random.nextInt(10))));
+            if (i % 3 == 0) { ic.remove(ic.iterator().next()); }
+        }
+        assertEquals(0L, (long) ic.getIndexBuildCounts().get("lazy"));
+        
+        // The first query builds it, and later queries use what was built.
+        for (int key = 0; key < 100; key += 7) {
+            assertEquals(ic.find("integer", key), ic.find("lazy", key));
+            assertEquals(ic.findRange("integer", key, true, key + 10, false), ic.findRange("lazy", key, true, key + 10, false));
+        }
+        assertEquals(toList(ic.iteratorSortedBy("integer")), toList(ic.iteratorSortedBy("lazy")));
+        assertEquals(1L, (long) ic.getIndexBuildCounts().get("lazy"));
+        assertEquals(0L, (long) ic.getIndexBuildCounts().get("lazyHash"));
+        
+        // A snapshot shares the built index until it goes stale, and then builds its own from its own entries.
+        ic.add(new Item(1_000, "new"));
+        final IndexedCollection<Item> snapshot = ic.snapshot();
+        ic.add(new Item(1_001, "newer"));
+        assertEquals(1, snapshot.find("lazyHash", "new").size());
+        assertTrue(snapshot.find("lazyHash", "newer").isEmpty());
+        assertEquals(1, ic.find("lazyHash", "newer").size());
+        assertEquals(2L, (long) ic.getIndexBuildCounts().get("lazyHash"));
+        
+        ic.buildStaleIndexes();
+        assertEquals(2L, (long) ic.getIndexBuildCounts().get("lazy"));
+        ic.buildStaleIndexes();
+        assertEquals(2L, (long) ic.getIndexBuildCounts().get("lazy"));
+        
+        // Freezing builds a stale index first.
+        ic.clear();
+        ic.add(new Item(1, "a"));
+        assertEquals(Arrays.asList(new Item(1, "a")), ic.freeze().find("lazy", 1));
+        
+        // Uniqueness must be checked on every change, so a lazy index cannot be unique.
+        intercept(IllegalArgumentException.class,
+                  () -> new IndexedCollection<Item>(new IndexedField<Item>("integer", true).lazy()));
+    }
+    
+    @Test public void addingAndDroppingIndexes() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(stringIndexedField);
+        ic.addAll(ITEMS_TO_SEARCH_IN);
+        final IndexedCollection<Item> snapshot = ic.snapshot();
+        
+        ic.addIndex(integerIndexedField);
+        assertEquals(Arrays.asList(new Item(5, "d"), new Item(5, "d")), ic.find("integer", 5));
+        assertEquals(integersOf(ITEMS_TO_SEARCH_IN), integersSortedBy(ic, "integer"));
+        intercept(IllegalArgumentException.class, () -> snapshot.find("integer", 5));
+        intercept(UnsupportedOperationException.class, () -> { snapshot.addIndex(IndexedField.of("other", Item::getInteger)); return null; });
+        
+        // An index which cannot be added leaves the collection as it was.
+        intercept(IllegalArgumentException.class, () -> { ic.addIndex(integerIndexedField); return null; });
+        intercept(IllegalArgumentException.class, () -> { ic.addIndex(new IndexedField<Item>("string", true).withType(IndexType.HASH)); return null; });
+        intercept(IllegalArgumentException.class, () -> { ic.addIndex(new IndexedField<Item>("nonexistent", false)); return null; });
+        assertEquals(Arrays.asList(new Item(1, "a"), new Item(2, "a"), new Item(3, "a")), ic.find("string", "a"));
+        
+        // The new index is maintained like any other.
+        ic.add(new Item(5, "e"));
+        ic.remove(new Item(5, "d"));
+        assertEquals(Arrays.asList(new Item(5, "d"), new Item(5, "e")), ic.find("integer", 5));
+        
+        assertTrue(ic.dropIndex("string"));
+        assertFalse(ic.dropIndex("string"));
+        intercept(IllegalArgumentException.class, () -> ic.find("string", "a"));
+        assertEquals(3, snapshot.find("string", "a").size());
+    }
+    
+    @Test public void binarySnapshotsAgreeWithTheirSources() throws Exception {
+        final IndexedField<Item> primitiveIndexedField = IndexedField.<Item, Integer>of("primitive", Item::getInteger).withType(IndexType.PRIMITIVE);
+        final IndexedField<Item> hashIndexedField = new IndexedField<Item>("string", false, IndexType.HASH);
+        final IndexedField<Item> compositeIndexedField = IndexedField.<Item>composite("composite", "string", "integer")
+                                                                     .withType(IndexType.LOG_STRUCTURED);
+        final IndexedField<Item> lazyIndexedField = IndexedField.<Item, Integer>of("lazy", Item::getInteger).lazy();
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField, primitiveIndexedField, hashIndexedField,
+                                                                 compositeIndexedField, lazyIndexedField);
+        final Random random = new Random(21);
+        for (int i = 0; i < 2_000; i++) {
+            ic.add(new Item(random.nextInt(10) == 0 ? null : random.nextInt(200),
+                            random.nextInt(10) == 0 ? null : Integer.toString(random.nextInt(50))));
+        }
+        ic.removeIf(item -> item.getInteger() != null && item.getInteger() % 7 == 0);
+        final Item addedTwice = ic.iterator().next();
+        ic.add(addedTwice);
+        ic.add(new Item(-1, "after the entry added twice"));
+        
+        final Path path = Files.createTempFile("snapshot", ".bin");
+        try {
+            ic.writeSnapshot(path);
+            final IndexedCollection<Item> read = IndexedCollection.readSnapshot(path, integerIndexedField, primitiveIndexedField,
+                                                                                hashIndexedField, compositeIndexedField,
+                                                                                lazyIndexedField, IndexedField.of("new", Item::getString));
+            assertFalse(read.isFrozen());
+            assertEquals(new ArrayList<>(ic), new ArrayList<>(read));
+            for (String fieldName : Arrays.asList("integer", "primitive", "composite", "lazy")) {
+                assertEquals(toList(ic.iteratorSortedBy(fieldName)), toList(read.iteratorSortedBy(fieldName)));
+            }
+            assertEquals(ic.find("string", "7"), read.find("string", "7"));
+            assertEquals(ic.find("string", "7"), read.find("new", "7"));
+            
+            // An entry which was added twice is read as a single object, which is in the collection twice.
+            final List<Item> readTwice = read.find("integer", addedTwice.getInteger());
+            assertTrue(readTwice.get(readTwice.size() - 1) == read.iterator().next());
+            
+            // Frozen collections are read frozen.
+            ic.freeze().writeSnapshot(path);
+            final IndexedCollection<Item> readFrozen = IndexedCollection.readSnapshot(path, integerIndexedField, primitiveIndexedField);
+            assertTrue(readFrozen.isFrozen());
+            assertEquals(toList(ic.iteratorSortedBy("primitive")), toList(readFrozen.iteratorSortedBy("primitive")));
+            
+            Files.write(path, new byte[64]);
+            try {
+                IndexedCollection.readSnapshot(path, integerIndexedField);
+                fail("A file which is not a snapshot should not be read.");
+            }
+            catch (StreamCorruptedException expected) { }
+        }
+        finally {
+            Files.delete(path);
+        }
+    }
+    
+    @Test public void primitiveIndexesOfPrimitiveFields() {
+        IndexedCollection<Measurement> ic = new IndexedCollection<Measurement>(new IndexedField<Measurement>("count", true, IndexType.PRIMITIVE),
+                                                                               new IndexedField<Measurement>("mean", false, IndexType.PRIMITIVE));
+        final Measurement m1 = new Measurement(3, 30L, 1.5, "m1");
+        final Measurement m2 = new Measurement(1, 30L, -0.5, "m2");
+        final Measurement m3 = new Measurement(2, 10L, Double.NaN, "m3");
+        final Measurement m4 = new Measurement(-4, 10L, -0.0, "m4");
+        final Measurement m5 = new Measurement(5, 10L, Double.NEGATIVE_INFINITY, "m5");
+        ic.addAll(Arrays.asList(m1, m2, m3));
+        ic.add(m4);
+        ic.add(m5);
+        
+        assertEquals(m3, ic.findOne("count", 2));
+        assertEquals(Arrays.asList(m4, m2, m3, m1, m5), toList(ic.iteratorSortedBy("count")));
+        
+        // Doubles are in the order of Double.compare.
+        assertEquals(Arrays.asList(m5, m2, m4, m1, m3), toList(ic.iteratorSortedBy("mean")));
+        assertEquals(Arrays.asList(m2, m4),             ic.findRange("mean", -1.0, true, 0.0, true));
+        assertEquals(m3, ic.findOne("mean", Double.NaN));
+        
+        intercept(IllegalArgumentException.class, () -> ic.add(new Measurement(3, 0L, 0.0, "duplicate")));
+        intercept(IllegalArgumentException.class,
+                  () -> ic.addAll(Arrays.asList(new Measurement(6, 0L, 0.0, "a"), new Measurement(6, 0L, 0.0, "b"))));
+        intercept(IllegalArgumentException.class,
+                  () -> new IndexedCollection<Measurement>(IndexedField.of("name", (Measurement m) -> m.toString(), Comparator.reverseOrder())
+                                                                       .withType(IndexType.PRIMITIVE)));
+        assertEquals(5, ic.size());
+        
+        assertTrue(ic.remove(m2));
+        assertEquals(Arrays.asList(m5, m4, m1, m3), toList(ic.iteratorSortedBy("mean")));
+    }
+    
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Test public void primitiveIndexesCannotMixIntegralAndFloatingPointKeys() {
+        final Function<Item, Object> numberOf = i -> i.getInteger() < 0 ? (Object) 0.5 : i.getInteger();
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(IndexedField.of("number", (Function) numberOf)
+                                                                             .withType(IndexType.PRIMITIVE));
+        ic.add(new Item(1, "a"));
+        
+        intercept(ClassCastException.class, () -> ic.add(new Item(-1, "b")));
+        intercept(ClassCastException.class, () -> ic.addAll(Arrays.asList(new Item(2, "c"), new Item(-2, "d"))));
+        assertEquals(1, ic.size());
+    }
+    
+    @Test public void removingNothingDoesNotCopyWhatIsSharedWithASnapshot() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField, stringIndexedField);
+        ic.addAll(ITEMS_TO_SEARCH_IN);
+        final IndexedCollection<Item> snapshot = ic.snapshot();
+        assertTrue(ic.isSharedWithSnapshot());
+        
+        assertFalse(ic.remove(new Item(-1, "absent")));
+        assertFalse(ic.removeAll(Arrays.asList(new Item(-1, "absent"), new Item(-2, "absent"))));
+        assertFalse(ic.removeIf(item -> item.getInteger() > 100));
+        assertFalse(ic.retainAll(ITEMS_TO_SEARCH_IN));
+        assertTrue(ic.isSharedWithSnapshot());
+        
+        assertTrue(ic.removeAll(Arrays.asList(new Item(-1, "absent"), new Item(9, "z"))));
+        assertFalse(ic.isSharedWithSnapshot());
+        assertEquals(ITEMS_TO_SEARCH_IN.size() - 1, ic.size());
+        assertEquals(new Item(9, "z"), snapshot.findOne("integer", 9));
+    }
+    
+    @Test public void clearingWhatIsSharedWithASnapshotInstallsEmptyIndexes() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField,
+                                                                 stringIndexedField.withType(IndexType.HASH),
+                                                                 IndexedField.of("primitive", Item::getInteger).withType(IndexType.PRIMITIVE),
+                                                                 IndexedField.of("log", Item::getInteger).withType(IndexType.LOG_STRUCTURED),
+                                                                 IndexedField.of("lazy", Item::getString).lazy());
+        ic.addAll(ITEMS_TO_SEARCH_IN);
+        final IndexedField<Item> buildingField = IndexedField.of("building", Item::getInteger);
+        final BuildingIndex<Item> buildingIndex = ic.startBuildingIndex(buildingField);
+        final List<Item> entriesToIndex = new ArrayList<>(ic);
+        final IndexedCollection<Item> snapshot = ic.snapshot();
+        
+        ic.clear();
+        assertFalse(ic.isSharedWithSnapshot());
+        assertTrue(ic.isEmpty());
+        for (String fieldName : new String[] { "integer", "primitive", "log" }) {
+            assertTrue(ic.find(fieldName, 5).isEmpty());
+        }
+        assertTrue(ic.find("string", "d").isEmpty());
+        assertTrue(ic.find("lazy", "d").isEmpty());
+        assertEquals(ITEMS_TO_SEARCH_IN.size(), snapshot.size());
+        assertEquals(Arrays.asList(5, 5), integersOf(snapshot.find("log", 5)));
+        
+        // The cleared indexes go on working, and the index being built is cleared once it has been built.
+        ic.addAll(Arrays.asList(new Item(5, "d"), new Item(6, "e")));
+        ic.finishBuildingIndex(buildingIndex, Index.build(buildingField, entriesToIndex));
+        for (String fieldName : new String[] { "integer", "primitive", "log", "building" }) {
+            assertEquals(Arrays.asList(5), integersOf(ic.find(fieldName, 5)));
+        }
+        assertEquals(Arrays.asList(5), integersOf(ic.find("string", "d")));
+        assertEquals(Arrays.asList(6), integersOf(ic.find("lazy", "e")));
+        assertEquals(Arrays.asList(5, 5), integersOf(snapshot.find("integer", 5)));
+    }
+    
+    @Test public void snapshotsAreUnaffectedByLaterChanges() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField,
+                                                                 stringIndexedField.withType(IndexType.HASH),
+                                                                 IndexedField.of("primitive", Item::getInteger).withType(IndexType.PRIMITIVE));
+        ic.addAll(ITEMS_TO_SEARCH_IN);
+        
+        final IndexedCollection<Item> snapshot = ic.snapshot();
+        final List<Item> found = snapshot.find("integer", 5);
+        assertTrue(snapshot.isSnapshot());
+        assertFalse(ic.isSnapshot());
+        
+        ic.add(new Item(5, "e"));
+        ic.remove(new Item(9, "z"));
+        ic.addAll(Arrays.asList(new Item(5, "f"), new Item(6, "d")));
+        
+        assertEquals(Arrays.asList(5, 5, 5, 5), integersOf(ic.find("integer", 5)));
+        assertEquals(Arrays.asList(5, 5),       integersOf(found));
+        assertEquals(Arrays.asList(5, 5),       integersOf(snapshot.find("primitive", 5)));
+        assertEquals(Arrays.asList(5, 5),       integersOf(snapshot.find("string", "d")));
+        assertEquals(new Item(9, "z"),          snapshot.findOne("integer", 9));
+        assertEquals(ITEMS_TO_SEARCH_IN.size(), snapshot.size());
+        
+        // A second snapshot sees the changes so far, but not those which follow.
+        final IndexedCollection<Item> secondSnapshot = ic.snapshot();
+        ic.clear();
+        assertTrue(ic.isEmpty());
+        assertEquals(ITEMS_TO_SEARCH_IN.size() + 2, secondSnapshot.size());
+        assertEquals(Arrays.asList(5, 5, 5, 5),    integersOf(secondSnapshot.find("primitive", 5)));
+        assertEquals(ITEMS_TO_SEARCH_IN.size(),    snapshot.size());
+        assertTrue(snapshot.snapshot() == snapshot);
+        
+        intercept(UnsupportedOperationException.class, () -> snapshot.add(new Item(10, "a")));
+        intercept(UnsupportedOperationException.class, () -> snapshot.remove(new Item(1, "a")));
+        intercept(UnsupportedOperationException.class, () -> snapshot.addAll(ITEMS_TO_SEARCH_IN));
+        intercept(UnsupportedOperationException.class, () -> snapshot.retainAll(ITEMS_TO_SEARCH_IN));
+        intercept(UnsupportedOperationException.class, () -> {
+            snapshot.clear();
+            return null;
+        });
+        intercept(UnsupportedOperationException.class, () -> {
+            final Iterator<Item> iterator = snapshot.iterator();
+            iterator.next();
+            iterator.remove();
+            return null;
+        });
+        assertEquals(ITEMS_TO_SEARCH_IN.size(), snapshot.size());
+    }
+    
+    private static List<String> stringsOf(Iterator<Item> iterator) {
+        List<String> result = new ArrayList<>();
+        iterator.forEachRemaining(item -> result.add(item.getString()));
+        return result;
+    }
+    
+    @Test public void indexingByKeyExtractorFunctions() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(IndexedField.of("integer", Item::getInteger).unique(),
+                                                                 IndexedField.of("parity", (Item i) -> Math.abs(i.getInteger() % 2)),
+                                                                 IndexedField.of("reversed", Item::getString, Comparator.reverseOrder()));
+        ic.addAll(ITEMS_TO_SEARCH_IN.subList(0, 7));
+        
+        assertEquals(new Item(4, "b"), ic.findOne("integer", 4));
+        assertEquals(Arrays.asList(1, 3, 5), integersSortedBy(ic, "parity").subList(4, 7));
+        
+        // Null keys sort first, even for a provided Comparator.
+        assertEquals(Arrays.asList(0, 5, 4, 1, 2, 3, -2), integersSortedBy(ic, "reversed"));
+        
+        intercept(IllegalArgumentException.class, () -> ic.add(new Item(4, "duplicate")));
+    }
+    
+    @Test public void hashIndexesSupportEqualityQueriesAndUniqueness() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(new IndexedField<Item>("integer", true, IndexType.HASH),
+                                                                 stringIndexedField.withType(IndexType.HASH));
+        ic.addAll(ITEMS_TO_SEARCH_IN.subList(0, 7));
+        ic.add(new Item(6, "d"));
+        
+        assertEquals(new Item(4, "b"), ic.findOne("integer", 4));
+        assertEquals(new Item(0, null), ic.findOne("string", null));
+        assertEquals(Arrays.asList(new Item[] { new Item(5, "d"), new Item(6, "d") }), ic.find("string", "d"));
+        
+        assertTrue(ic.remove(new Item(5, "d")));
+        assertNull(ic.findOne("integer", 5));
+        assertEquals(Arrays.asList(new Item[] { new Item(6, "d") }), ic.find("string", "d"));
+        
+        intercept(IllegalArgumentException.class, () -> ic.add(new Item(4, "duplicate")));
+        intercept(IllegalArgumentException.class,
+                  () -> ic.addAll(Arrays.asList(new Item[] { new Item(7, "a"), new Item(7, "b") })));
+        intercept(IllegalArgumentException.class, () -> ic.iteratorSortedBy("integer"));
+        intercept(IllegalArgumentException.class, () -> ic.findGreaterThan("integer", 1, true));
+        assertEquals(7, ic.size());
+    }
+    
+    @Test public void rangeQueries() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField, stringIndexedField);
+        ic.addAll(ITEMS_TO_SEARCH_IN);
+        
+        assertEquals(Arrays.asList(1, 2, 3, 4),    integersOf(ic.findRange("integer", 1, true, 4, true)));
+        assertEquals(Arrays.asList(2, 3),          integersOf(ic.findRange("integer", 1, false, 4, false)));
+        assertEquals(Arrays.asList(4, 5, 5, 9),    integersOf(ic.findRange("integer", 3, false, 100, false)));
+        assertEquals(Arrays.asList(),              integersOf(ic.findRange("integer", 6, true, 8, true)));
+        assertEquals(Arrays.asList(),              integersOf(ic.findRange("integer", 4, true, 1, true)));
+        assertEquals(Arrays.asList(5, 5, 9),       integersOf(ic.findGreaterThan("integer", 5, true)));
+        assertEquals(Arrays.asList(9),             integersOf(ic.findGreaterThan("integer", 5, false)));
+        assertEquals(Arrays.asList(-2, 0),         integersOf(ic.findLessThan("integer", 1, false)));
+        
+        // Null values are excluded from open-ended ranges.
+        assertEquals(Arrays.asList(-2, 1, 2, 3),   integersOf(ic.findLessThan("string", "a", true)));
+        assertEquals(Arrays.asList(0, -2, 1, 2, 3), integersOf(ic.findRange("string", null, true, "a", true)));
+    }
+    
+    @Test public void prefixQueries() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(stringIndexedField,
+                                                                 IndexedField.of("reversed", Item::getString, Comparator.reverseOrder()));
+        ic.addAll(Arrays.asList(new Item[] { new Item(1, "apple"),  new Item(2, "apricot"), new Item(3, "banana"),
+                                             new Item(4, "ap"),     new Item(5, "a"),       new Item(6, null),
+                                             new Item(7, "ap\uffff"), new Item(8, "aq") }));
+        
+        assertEquals(Arrays.asList(4, 1, 2, 7),          integersOf(ic.findByPrefix("string", "ap")));
+        assertEquals(Arrays.asList(7),                   integersOf(ic.findByPrefix("string", "ap\uffff")));
+        assertEquals(Arrays.asList(5, 4, 1, 2, 7, 8, 3), integersOf(ic.findByPrefix("string", "")));
+        assertEquals(Arrays.asList(),                    integersOf(ic.findByPrefix("string", "c")));
+        
+        intercept(IllegalArgumentException.class, () -> ic.findByPrefix("reversed", "ap"));
+    }
+    
+    @Test public void compositeIndexes() {
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(IndexedField.composite("stringThenInteger", "string", "integer"),
+                                                                 IndexedField.composite("parityThenString",
+                                                                                        IndexedField.of("parity", (Item i) -> i.getInteger() % 2),
+                                                                                        stringIndexedField));
+        ic.addAll(Arrays.asList(new Item[] { new Item(4, "b"), new Item(1, "a"), new Item(5, "a"),
+                                             new Item(2, "b"), new Item(6, null), new Item(3, "a") }));
+        
+        assertEquals(Arrays.asList(6, 1, 3, 5, 2, 4), integersSortedBy(ic, "stringThenInteger"));
+        assertEquals(Arrays.asList(6, 4, 2, 1, 5, 3), integersSortedBy(ic, "parityThenString"));
+        
+        // Equality on the full key, or on a leading prefix of it.
+        assertEquals(new Item(4, "b"),         ic.findOne("stringThenInteger", Arrays.asList("b", 4)));
+        assertNull(ic.findOne("stringThenInteger", Arrays.asList("b", 5)));
+        assertEquals(Arrays.asList(1, 3, 5),   integersOf(ic.find("stringThenInteger", Arrays.asList("a"))));
+        assertEquals(Arrays.asList(6),         integersOf(ic.find("stringThenInteger", Arrays.asList((Object) null))));
+        assertEquals(Arrays.asList(1, 5, 3),   integersOf(ic.find("parityThenString", Arrays.asList(1, "a"))));
+        
+        // Range on the component after the prefix.
+        assertEquals(Arrays.asList(3),         integersOf(ic.findRange("stringThenInteger", Arrays.asList("a", 2), true,
+                                                                                         Arrays.asList("a", 5), false)));
+        assertEquals(Arrays.asList(3, 5, 2, 4), integersOf(ic.findGreaterThan("stringThenInteger", Arrays.asList("a", 1), false)));
+        
+        assertTrue(ic.remove(new Item(3, "a")));
+        assertEquals(Arrays.asList(1, 5),      integersOf(ic.find("stringThenInteger", Arrays.asList("a"))));
+        
+        intercept(IllegalArgumentException.class, () -> ic.find("stringThenInteger", "a"));
+        intercept(IllegalArgumentException.class, () -> ic.find("stringThenInteger", Arrays.asList("a", 1, 2)));
+        intercept(IllegalArgumentException.class, () -> ic.findByPrefix("stringThenInteger", "a"));
+    }
+    
+    private static List<Integer> integersOf(List<Item> items) {
+        List<Integer> result = new ArrayList<>();
+        for (Item item : items) {
+            result.add(item.getInteger());
+        }
+        return result;
+    }
+    
     @Test(expected=IllegalArgumentException.class) public void getIteratorByNonExistentField() {
         NO_INDEXES_COLLECTION.iteratorSortedBy("hello");
     }
@@ -84,36 +848,3 @@ public class IndexedCollectionTest {
         NO_INDEXES_COLLECTION.findOne("noSuchField", 42);
      }
 }
-
-/** A simple mutable POJO to test the Map. */
-class Item implements Serializable {
-    private static final long serialVersionUID = 1L;
-    
-    private Integer integer;
-    private String  string;
-    
-    public Item(Integer i, String s) {
-        this.integer = i;
-        this.string  = s;
-    }
-    
-    public Integer getInteger()                { return integer; }
-    public void    setInteger(Integer integer) { this.integer = integer; }
-    
-    public String getString()              { return string; }
-    public void   setString(String string) { this.string = string; }
-    
-    @Override public boolean equals(Object thatObject) {
-        boolean result = false;
-        
-        if (thatObject instanceof Item) {
-            Item that = (Item) thatObject;
-            result = this.integer == that.integer && this.string.equals(that.string);
-        }
-        return result;
-    }
-    
-    @Override public int hashCode() { return integer.hashCode() + 7 * string.hashCode(); }
-    
-    @Override public String toString() { return this.integer + ":" + this.string; }
-}
\ No newline at end of file
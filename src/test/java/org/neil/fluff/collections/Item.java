@@ -0,0 +1,41 @@
+package org.neil.fluff.collections;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A simple mutable POJO to test the Map.
+ *
+ * @author Neil Mc Erlean
+ */
+class Item implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private Integer integer;
+    private String  string;
+    
+    public Item(Integer i, String s) {
+        this.integer = i;
+        this.string  = s;
+    }
+    
+    public Integer getInteger()                { return integer; }
+    public void    setInteger(Integer integer) { this.integer = integer; }
+    
+    public String getString()              { return string; }
+    public void   setString(String string) { this.string = string; }
+    
+    @Override public boolean equals(Object thatObject) {
+        boolean result = false;
+        
+        if (thatObject instanceof Item) {
+            Item that = (Item) thatObject;
+            result = Objects.equals(this.integer, that.integer) && Objects.equals(this.string, that.string);
+        }
+        return result;
+    }
+    
+    @Override public int hashCode() { return Objects.hashCode(integer) + 7 * Objects.hashCode(string); }
+    
+    @Override public String toString() { return this.integer + ":" + this.string; }
+}
@@ -0,0 +1,47 @@
+package org.neil.fluff.collections;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.neil.fluff.collections.IndexedCollection.IndexType;
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * Indexes of, and random data for, the {@link Item}s which the tests of the various collections hold.
+ *
+ * @author Neil Mc Erlean
+ */
+final class ItemFixtures {
+    static final IndexedField<Item> integerIndexedField   = new IndexedField<Item>("integer", false);
+    static final IndexedField<Item> primitiveIndexedField = IndexedField.<Item, Integer>of("primitive", Item::getInteger)
+                                                                        .withType(IndexType.PRIMITIVE);
+    static final IndexedField<Item> stringIndexedField    = IndexedField.<Item, String>of("string", Item::getString)
+                                                                        .withType(IndexType.LOG_STRUCTURED);
+    static final IndexedField<Item> compositeIndexedField = IndexedField.<Item>composite("composite", "string", "integer");
+    static final IndexedField<Item> hashIndexedField      = IndexedField.<Item, Integer>of("hash", Item::getInteger)
+                                                                        .withType(IndexType.HASH);
+    
+    private ItemFixtures() { }
+    
+    /**
+     * Generates items with random integers and strings, about a tenth of which are {@code null}. There are about
+     * four items for each integer, and ten for each string, so that equality queries find several of them.
+     */
+    static List<Item> randomItems(int count, long seed) {
+        final Random random = new Random(seed);
+        final List<Item> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(new Item(random.nextInt(10) == 0 ? null : random.nextInt(count / 4),
+                               random.nextInt(10) == 0 ? null : Integer.toString(random.nextInt(count / 10), 36)));
+        }
+        return items;
+    }
+    
+    static <E> List<E> toList(Iterator<E> iterator) {
+        final List<E> result = new ArrayList<>();
+        iterator.forEachRemaining(result::add);
+        return result;
+    }
+}
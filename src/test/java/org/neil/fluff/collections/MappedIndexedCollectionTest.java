@@ -0,0 +1,128 @@
+package org.neil.fluff.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.neil.fluff.collections.ItemFixtures.compositeIndexedField;
+import static org.neil.fluff.collections.ItemFixtures.hashIndexedField;
+import static org.neil.fluff.collections.ItemFixtures.integerIndexedField;
+import static org.neil.fluff.collections.ItemFixtures.primitiveIndexedField;
+import static org.neil.fluff.collections.ItemFixtures.randomItems;
+import static org.neil.fluff.collections.ItemFixtures.stringIndexedField;
+import static org.neil.fluff.collections.ItemFixtures.toList;
+import static org.neil.fluff.misc.ExceptionUtils.intercept;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * Tests for {@link MappedIndexedCollection}.
+ *
+ * @author Neil Mc Erlean
+ */
+public class MappedIndexedCollectionTest {
+    private Path path;
+    
+    @Before public void createFile() throws Exception { this.path = Files.createTempFile("mapped", ".bin"); }
+    
+    @After public void deleteFile() throws Exception { Files.delete(path); }
+    
+    private static IndexedCollection<Item> randomCollection(int count, long seed) {
+        final IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField, primitiveIndexedField,
+                                                                       stringIndexedField, compositeIndexedField,
+                                                                       hashIndexedField);
+        randomItems(count, seed).forEach(ic::add);
+        return ic;
+    }
+    
+    @Test public void queriesAgreeWithTheWrittenCollection() throws Exception {
+        final IndexedCollection<Item> ic = randomCollection(5_000, 22);
+        final Item addedTwice = ic.iterator().next();
+        ic.add(addedTwice);
+        ic.writeMappableSnapshot(path);
+        
+        final MappedIndexedCollection<Item> mapped = MappedIndexedCollection.open(path, integerIndexedField, primitiveIndexedField,
+                                                                                  stringIndexedField, compositeIndexedField);
+        assertEquals(ic.size(), mapped.size());
+        assertEquals(new ArrayList<>(ic), new ArrayList<>(mapped));
+        for (String fieldName : Arrays.asList("integer", "primitive", "string", "composite")) {
+            assertEquals(toList(ic.iteratorSortedBy(fieldName)), toList(mapped.iteratorSortedBy(fieldName)));
+        }
+        
+        for (String fieldName : Arrays.asList("integer", "primitive")) {
+            for (Integer key : Arrays.asList(null, -1, 0, 7, 100, 1_249, 1_250)) {
+                assertEquals(ic.find(fieldName, key),                              mapped.find(fieldName, key));
+                assertEquals(ic.findGreaterThan(fieldName, key, false),            mapped.findGreaterThan(fieldName, key, false));
+                assertEquals(ic.findLessThan(fieldName, key, true),                mapped.findLessThan(fieldName, key, true));
+                assertEquals(ic.findRange(fieldName, key, true, 300, false),       mapped.findRange(fieldName, key, true, 300, false));
+            }
+            assertEquals(ic.findRange(fieldName, null, true, null, true), mapped.findRange(fieldName, null, true, null, true));
+        }
+        assertEquals(ic.findByPrefix("string", "1"),                      mapped.findByPrefix("string", "1"));
+        assertEquals(ic.find("string", null),                             mapped.find("string", null));
+        assertEquals(ic.find("composite", Arrays.asList("a", 42)),        mapped.find("composite", Arrays.asList("a", 42)));
+        assertEquals(ic.findGreaterThan("composite", Arrays.asList("z"), true),
+                     mapped.findGreaterThan("composite", Arrays.asList("z"), true));
+        
+        // Entries are decoded every time they are got, so they are equal, but not the same.
+        final Item found = mapped.findOne("integer", addedTwice.getInteger());
+        assertTrue(mapped.contains(addedTwice));
+        assertEquals(found, mapped.findOne("integer", addedTwice.getInteger()));
+        assertFalse(found == mapped.findOne("integer", addedTwice.getInteger()));
+        assertNull(mapped.findOne("primitive", -1));
+        
+        // A mappable snapshot can still be read in full.
+        final IndexedCollection<Item> read = IndexedCollection.readSnapshot(path, integerIndexedField, primitiveIndexedField);
+        assertEquals(new ArrayList<>(ic), new ArrayList<>(read));
+        assertEquals(toList(ic.iteratorSortedBy("primitive")), toList(read.iteratorSortedBy("primitive")));
+    }
+    
+    @Test public void mappedCollectionsCannotBeChanged() throws Exception {
+        randomCollection(100, 23).writeMappableSnapshot(path);
+        final MappedIndexedCollection<Item> mapped = MappedIndexedCollection.open(path, integerIndexedField);
+        
+        intercept(UnsupportedOperationException.class, () -> mapped.add(new Item(1, "a")));
+        intercept(UnsupportedOperationException.class, () -> mapped.removeIf(item -> true));
+        intercept(UnsupportedOperationException.class, () -> { mapped.clear(); return null; });
+        intercept(UnsupportedOperationException.class, () -> mapped.find("integer", 1).add(new Item(1, "a")));
+        intercept(IllegalArgumentException.class, () -> mapped.find("primitive", 1));
+        assertEquals(100, mapped.size());
+    }
+    
+    @Test public void onlyMappableSnapshotsOfSortedIndexesCanBeMapped() throws Exception {
+        final IndexedCollection<Item> ic = randomCollection(100, 24);
+        ic.writeMappableSnapshot(path);
+        intercept(IllegalArgumentException.class, () -> openQuietly(hashIndexedField));
+        
+        ic.writeSnapshot(path);
+        intercept(IllegalArgumentException.class, () -> openQuietly(integerIndexedField));
+        
+        Files.write(path, new byte[64]);
+        try {
+            MappedIndexedCollection.open(path, integerIndexedField);
+            fail("A file which is not a snapshot should not be mapped.");
+        }
+        catch (StreamCorruptedException expected) { }
+    }
+    
+    private MappedIndexedCollection<Item> openQuietly(IndexedField<Item> indexedField) {
+        try {
+            return MappedIndexedCollection.open(path, indexedField);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.neil.fluff.collections;
+
+import java.io.Serializable;
+
+/**
+ * A simple POJO with a mix of primitive and reference fields.
+ *
+ * @author Neil Mc Erlean
+ */
+class Measurement implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final int    count;
+    private final long   total;
+    private final double mean;
+    private final String name;
+    private final Object notComparable = new Object();
+    
+    public Measurement(int count, long total, double mean, String name) {
+        this.count = count;
+        this.total = total;
+        this.mean  = mean;
+        this.name  = name;
+    }
+    
+    @Override public String toString() { return name + ":" + count + ":" + total + ":" + mean + ":" + notComparable; }
+}
@@ -0,0 +1,185 @@
+package org.neil.fluff.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.neil.fluff.collections.ItemFixtures.compositeIndexedField;
+import static org.neil.fluff.collections.ItemFixtures.hashIndexedField;
+import static org.neil.fluff.collections.ItemFixtures.integerIndexedField;
+import static org.neil.fluff.collections.ItemFixtures.primitiveIndexedField;
+import static org.neil.fluff.collections.ItemFixtures.randomItems;
+import static org.neil.fluff.collections.ItemFixtures.stringIndexedField;
+import static org.neil.fluff.collections.ItemFixtures.toList;
+import static org.neil.fluff.misc.ExceptionUtils.intercept;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link OffHeapIndexedCollection}.
+ *
+ * @author Neil Mc Erlean
+ */
+public class OffHeapIndexedCollectionTest {
+    /** A codec which writes just the fields of an {@link Item}, each preceded by whether it is {@code null}. */
+    private static final EntryCodec<Item> ITEM_CODEC = new EntryCodec<Item>() {
+        @Override public void encode(Item item, DataOutput out) throws IOException {
+            out.writeBoolean(item.getInteger() != null);
+            if (item.getInteger() != null) { out.writeInt(item.getInteger()); }
+            out.writeBoolean(item.getString() != null);
+            if (item.getString() != null)  { out.writeUTF(item.getString()); }
+        }
+        
+        @Override public Item decode(DataInput in) throws IOException {
+            final Integer integer = in.readBoolean() ? in.readInt() : null;
+            return new Item(integer, in.readBoolean() ? in.readUTF() : null);
+        }
+    };
+    
+    private static void assertSameQueries(IndexedCollection<Item> ic, OffHeapIndexedCollection<Item> offHeap) {
+        assertEquals(ic.size(), offHeap.size());
+        assertEquals(new ArrayList<>(ic), new ArrayList<>(offHeap));
+        for (String fieldName : Arrays.asList("integer", "primitive", "string", "composite")) {
+            assertEquals(toList(ic.iteratorSortedBy(fieldName)), toList(offHeap.iteratorSortedBy(fieldName)));
+        }
+        
+        for (String fieldName : Arrays.asList("integer", "primitive")) {
+            for (Integer key : Arrays.asList(null, -1, 0, 7, 100, 1_249, 1_250)) {
+                assertEquals(ic.find(fieldName, key),                        offHeap.find(fieldName, key));
+                assertEquals(ic.findGreaterThan(fieldName, key, false),      offHeap.findGreaterThan(fieldName, key, false));
+                assertEquals(ic.findLessThan(fieldName, key, true),          offHeap.findLessThan(fieldName, key, true));
+                assertEquals(ic.findRange(fieldName, key, true, 300, false), offHeap.findRange(fieldName, key, true, 300, false));
+            }
+            assertEquals(ic.findRange(fieldName, null, true, null, true), offHeap.findRange(fieldName, null, true, null, true));
+        }
+        assertEquals(ic.findByPrefix("string", "1"),               offHeap.findByPrefix("string", "1"));
+        assertEquals(ic.find("string", null),                      offHeap.find("string", null));
+        assertEquals(ic.find("hash", 7),                           offHeap.find("hash", 7));
+        assertEquals(ic.find("composite", Arrays.asList("a", 42)), offHeap.find("composite", Arrays.asList("a", 42)));
+        assertEquals(ic.findGreaterThan("composite", Arrays.asList("z"), true),
+                     offHeap.findGreaterThan("composite", Arrays.asList("z"), true));
+    }
+    
+    @Test public void queriesAgreeWithAnIndexedCollection() throws Exception {
+        final IndexedCollection<Item> ic = new IndexedCollection<Item>(integerIndexedField, primitiveIndexedField,
+                                                                       stringIndexedField, compositeIndexedField,
+                                                                       hashIndexedField);
+        // Small slabs, so that the entries are spread over many of them.
+        final OffHeapIndexedCollection<Item> offHeap = new OffHeapIndexedCollection<Item>(ITEM_CODEC, 4_096, integerIndexedField,
+                                                                                          primitiveIndexedField, stringIndexedField,
+                                                                                          compositeIndexedField, hashIndexedField);
+        final List<Item> items = randomItems(5_000, 31);
+        for (Item item : items.subList(0, 1_000)) {
+            ic.add(item);
+            offHeap.add(item);
+        }
+        ic.addAll(items.subList(1_000, 5_000));
+        offHeap.addAll(items.subList(1_000, 5_000));
+        assertSameQueries(ic, offHeap);
+        assertTrue(offHeap.getOffHeapSize() > 4_096);
+        
+        // Entries are decoded every time they are got, so they are equal, but not the same.
+        final Item first = items.get(0);
+        assertTrue(offHeap.contains(first));
+        assertFalse(offHeap.contains(new Item(-1, "missing")));
+        assertEquals(first, offHeap.findOne("integer", first.getInteger()));
+        assertFalse(offHeap.findOne("integer", first.getInteger()) == offHeap.findOne("integer", first.getInteger()));
+        assertNull(offHeap.findOne("primitive", -1));
+        intercept(UnsupportedOperationException.class, () -> offHeap.find("integer", first.getInteger()).add(first));
+        intercept(IllegalArgumentException.class, () -> offHeap.findRange("hash", 1, true, 2, true));
+        intercept(IllegalArgumentException.class, () -> offHeap.find("noSuchField", 1));
+        
+        // Removing an entry which was added twice removes the earlier of the two, as it does from an IndexedCollection.
+        final Item firstAgain = new Item(first.getInteger(), first.getString());
+        ic.add(firstAgain);
+        offHeap.add(firstAgain);
+        for (Collection<Item> c : Arrays.<Collection<Item>>asList(ic, offHeap)) {
+            assertTrue(c.remove(first));
+            assertTrue(c.removeAll(items.subList(10, 500)));
+            assertTrue(c.removeIf(item -> item.getString() == null));
+        }
+        assertSameQueries(ic, offHeap);
+        assertTrue(offHeap.contains(first));
+        
+        offHeap.compact();
+        assertSameQueries(ic, offHeap);
+        
+        ic.addAll(items.subList(0, 100));
+        offHeap.addAll(items.subList(0, 100));
+        assertSameQueries(ic, offHeap);
+        
+        ic.clear();
+        offHeap.clear();
+        assertSameQueries(ic, offHeap);
+        assertEquals(0, offHeap.getOffHeapSize());
+    }
+    
+    @Test public void invalidEntriesLeaveTheCollectionUnchanged() throws Exception {
+        final OffHeapIndexedCollection<Item> offHeap = new OffHeapIndexedCollection<Item>(EntryCodec.serializing(), 1_024,
+                                                                                          integerIndexedField.unique());
+        offHeap.add(new Item(1, "one"));
+        offHeap.add(new Item(2, "two"));
+        
+        intercept(IllegalArgumentException.class, () -> offHeap.add(new Item(1, "uno")));
+        intercept(IllegalArgumentException.class, () -> offHeap.addAll(Arrays.asList(new Item(3, "three"), new Item(1, "uno"))));
+        intercept(IllegalArgumentException.class, () -> offHeap.addAll(Arrays.asList(new Item(3, "three"), new Item(3, "tres"))));
+        intercept(IllegalArgumentException.class, () -> offHeap.add(new Item(3, new String(new char[2_000]))));
+        intercept(IllegalArgumentException.class, () -> offHeap.addAll(Arrays.asList(new Item(3, "three"),
+                                                                                     new Item(4, new String(new char[2_000])))));
+        intercept(NullPointerException.class, () -> offHeap.add(null));
+        assertEquals(Arrays.asList(new Item(1, "one"), new Item(2, "two")), new ArrayList<>(offHeap));
+        assertEquals(Arrays.asList(new Item(1, "one")), offHeap.find("integer", 1));
+        assertTrue(offHeap.find("integer", 3).isEmpty());
+        
+        // A failure to encode an entry is reported as an UncheckedIOException.
+        final OffHeapIndexedCollection<Item> failing = new OffHeapIndexedCollection<Item>(new EntryCodec<Item>() {
+            @Override public void encode(Item item, DataOutput out) throws IOException {
+                if (item.getString() == null) { throw new IOException("Cannot encode " + item); }
+                ITEM_CODEC.encode(item, out);
+            }
+            
+            @Override public Item decode(DataInput in) throws IOException { return ITEM_CODEC.decode(in); }
+        }, integerIndexedField);
+        failing.add(new Item(1, "one"));
+        intercept(UncheckedIOException.class, () -> failing.addAll(Arrays.asList(new Item(2, "two"), new Item(3, null))));
+        assertEquals(Arrays.asList(new Item(1, "one")), new ArrayList<>(failing));
+        assertTrue(failing.find("integer", 2).isEmpty());
+        
+        final Iterator<Item> iter = offHeap.iterator();
+        iter.next();
+        offHeap.remove(new Item(2, "two"));
+        intercept(ConcurrentModificationException.class, () -> iter.next());
+    }
+    
+    @Test public void theSpaceOfRemovedEntriesIsReclaimed() {
+        final OffHeapIndexedCollection<Item> offHeap = new OffHeapIndexedCollection<Item>(ITEM_CODEC, 65_536,
+                                                                                          primitiveIndexedField);
+        final List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            items.add(new Item(i, Integer.toString(i, 36)));
+        }
+        offHeap.addAll(items);
+        final long fullSize = offHeap.getOffHeapSize();
+        
+        // Removing most of the entries leaves more space unused than used, so the slabs are compacted.
+        offHeap.removeIf(item -> item.getInteger() % 10 != 0);
+        assertEquals(10_000, offHeap.size());
+        assertTrue(offHeap.getOffHeapSize() < fullSize / 5);
+        assertEquals(new Item(500, Integer.toString(500, 36)), offHeap.findOne("primitive", 500));
+        assertEquals(Arrays.asList(new Item(99_990, Integer.toString(99_990, 36))), offHeap.findGreaterThan("primitive", 99_980, false));
+        assertTrue(offHeap.remove(new Item(0, "0")));
+        assertFalse(offHeap.contains(new Item(0, "0")));
+        assertTrue(offHeap.contains(new Item(10, "a")));
+    }
+}
@@ -0,0 +1,154 @@
+package org.neil.fluff.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.neil.fluff.collections.ItemFixtures.randomItems;
+import static org.neil.fluff.misc.ExceptionUtils.intercept;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+import org.neil.fluff.collections.IndexedCollection.IndexType;
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * Tests for {@link PartitionedIndexedCollection}.
+ *
+ * @author Neil Mc Erlean
+ */
+public class PartitionedIndexedCollectionTest {
+    private static List<Integer> integersOf(Iterator<Item> items) {
+        final List<Integer> result = new ArrayList<>();
+        items.forEachRemaining(item -> result.add(item.getInteger()));
+        return result;
+    }
+    
+    private static List<String> stringsOf(List<Item> items) {
+        final List<String> result = new ArrayList<>();
+        for (Item item : items) {
+            result.add(item.getString());
+        }
+        return result;
+    }
+    
+    @Test public void queriesAgreeWithAnUnpartitionedCollection() {
+        PartitionedIndexedCollection<Item> pic = new PartitionedIndexedCollection<Item>(8, new IndexedField<Item>("string", false),
+                                                                                        new IndexedField<Item>("integer", false, IndexType.PRIMITIVE));
+        IndexedCollection<Item> ic = new IndexedCollection<Item>(new IndexedField<Item>("string", false),
+                                                                 new IndexedField<Item>("integer", false, IndexType.PRIMITIVE));
+        final List<Item> items = randomItems(1_000, 42);
+        pic.addAll(items.subList(0, 500));
+        ic.addAll(items.subList(0, 500));
+        for (Item item : items.subList(500, 1_000)) {
+            pic.add(item);
+            ic.add(item);
+        }
+        
+        assertEquals(1_000, pic.size());
+        assertEquals(8, pic.getPartitionCount());
+        
+        // Sorted results are in the same order of keys, even if entries with equal keys are in a different order.
+        assertEquals(integersOf(ic.iteratorSortedBy("integer")), integersOf(pic.iteratorSortedBy("integer")));
+        assertEquals(stringsOf(ic.findRange("string", "1", true, "5", false)), stringsOf(pic.findRange("string", "1", true, "5", false)));
+        assertEquals(stringsOf(ic.findByPrefix("string", "2")), stringsOf(pic.findByPrefix("string", "2")));
+        assertEquals(integersOf(ic.findGreaterThan("integer", 225, true).iterator()),
+                     integersOf(pic.findGreaterThan("integer", 225, true).iterator()));
+        assertEquals(integersOf(ic.findLessThan("integer", 25, false).iterator()),
+                     integersOf(pic.findLessThan("integer", 25, false).iterator()));
+        
+        // Equality queries on the partition key keep insertion order, as they only go to a single partition.
+        for (String key : new String[] { null, "0", "1", "a", "2r" }) {
+            assertEquals(ic.find("string", key), pic.find("string", key));
+        }
+        
+        final List<Item> expected = new ArrayList<>(ic.find("integer", 100));
+        final List<Item> actual = new ArrayList<>(pic.find("integer", 100));
+        Collections.sort(expected, Comparator.comparing(Item::getString, Comparator.nullsFirst(Comparator.naturalOrder())));
+        Collections.sort(actual, Comparator.comparing(Item::getString, Comparator.nullsFirst(Comparator.naturalOrder())));
+        assertEquals(expected, actual);
+        
+        final Item removedItem = items.get(0);
+        assertTrue(pic.remove(removedItem));
+        assertEquals(ic.find("integer", removedItem.getInteger()).size() - 1, pic.find("integer", removedItem.getInteger()).size());
+        assertEquals(999, pic.size());
+        assertFalse(pic.remove(new Item(-1, "absent")));
+        
+        intercept(IllegalArgumentException.class, () -> pic.find("nonexistent", 1));
+        intercept(IllegalArgumentException.class, () -> pic.iteratorSortedBy("nonexistent"));
+    }
+    
+    @Test public void uniquenessCanOnlyBeEnforcedOnThePartitionKey() {
+        PartitionedIndexedCollection<Item> pic = new PartitionedIndexedCollection<Item>(4, new IndexedField<Item>("integer", true),
+                                                                                        new IndexedField<Item>("string", false));
+        pic.addAll(Arrays.asList(new Item(1, "a"), new Item(2, "a"), new Item(3, "b")));
+        
+        assertEquals(new Item(2, "a"), pic.findOne("integer", 2));
+        assertNull(pic.findOne("integer", 4));
+        intercept(IllegalArgumentException.class, () -> pic.add(new Item(1, "duplicate")));
+        
+        // A batch which fails in one partition is not added to any of them.
+        intercept(IllegalArgumentException.class,
+                  () -> pic.addAll(Arrays.asList(new Item(4, "c"), new Item(5, "c"), new Item(6, "c"), new Item(3, "c"))));
+        assertEquals(3, pic.size());
+        assertTrue(pic.find("string", "c").isEmpty());
+        
+        intercept(IllegalArgumentException.class,
+                  () -> new PartitionedIndexedCollection<Item>(4, new IndexedField<Item>("integer", false),
+                                                               new IndexedField<Item>("string", true)));
+        intercept(IllegalArgumentException.class,
+                  () -> new PartitionedIndexedCollection<Item>(0, new IndexedField<Item>("integer", false)));
+    }
+    
+    @Test public void indexesCanBeAddedAndDropped() {
+        PartitionedIndexedCollection<Item> pic = new PartitionedIndexedCollection<Item>(4, new IndexedField<Item>("string", false));
+        final List<Item> items = randomItems(1_000, 20);
+        pic.addAll(items);
+        
+        pic.addIndex(new IndexedField<Item>("integer", false)).join();
+        final List<Integer> integers = new ArrayList<>();
+        items.forEach(item -> integers.add(item.getInteger()));
+        Collections.sort(integers, Comparator.nullsFirst(Comparator.naturalOrder()));
+        assertEquals(integers, integersOf(pic.iteratorSortedBy("integer")));
+        
+        intercept(IllegalArgumentException.class, () -> pic.addIndex(new IndexedField<Item>("integer", false)));
+        intercept(IllegalArgumentException.class, () -> pic.addIndex(new IndexedField<Item>("other", true)));
+        intercept(IllegalArgumentException.class, () -> pic.dropIndex("string"));
+        
+        assertTrue(pic.dropIndex("integer"));
+        assertFalse(pic.dropIndex("integer"));
+        intercept(IllegalArgumentException.class, () -> pic.find("integer", 1));
+    }
+    
+    @Test public void concurrentWriters() throws InterruptedException {
+        final PartitionedIndexedCollection<Item> pic = new PartitionedIndexedCollection<Item>(4, new IndexedField<Item>("integer", true));
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int firstKey = t * 1_000;
+            threads.add(new Thread(() -> {
+                for (int key = firstKey; key < firstKey + 1_000; key++) {
+                    if (key % 2 == 0) {
+                        pic.add(new Item(key, "single"));
+                    }
+                    else {
+                        pic.addAll(Arrays.asList(new Item(key, "batch"), new Item(key + 10_000, "batch")));
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) { thread.start(); }
+        for (Thread thread : threads) { thread.join(); }
+        
+        assertEquals(6_000, pic.size());
+        final List<Integer> sortedKeys = integersOf(pic.iteratorSortedBy("integer"));
+        for (int i = 1; i < sortedKeys.size(); i++) {
+            assertTrue(sortedKeys.get(i - 1) < sortedKeys.get(i));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package org.neil.fluff.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.neil.fluff.misc.ExceptionUtils.intercept;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neil.fluff.collections.IndexedCollection.IndexedField;
+
+/**
+ * Tests for {@link SingleWriterIndexedCollection}.
+ *
+ * @author Neil Mc Erlean
+ */
+public class SingleWriterIndexedCollectionTest {
+    @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+    
+    @Test public void changesAreVisibleWhenTheirFuturesComplete() throws Exception {
+        try (SingleWriterIndexedCollection<Item> swic = new SingleWriterIndexedCollection<Item>(new IndexedField<Item>("integer", true),
+                                                                                                new IndexedField<Item>("string", false))) {
+            final CompletableFuture<Boolean> added = swic.addAsync(new Item(1, "a"));
+            assertTrue(added.get());
+            assertEquals(new Item(1, "a"), swic.findOne("integer", 1));
+            
+            assertTrue(swic.add(new Item(2, "b")));
+            assertEquals(new Item(2, "b"), swic.findOne("string", "b"));
+            
+            assertTrue(swic.removeAsync(new Item(1, "a")).get());
+            assertNull(swic.findOne("integer", 1));
+            assertFalse(swic.remove(new Item(1, "a")));
+            
+            // Invalid changes fail just as they would if they were applied directly.
+            intercept(IllegalArgumentException.class, () -> swic.add(new Item(2, "duplicate")));
+            assertEquals(1, swic.size());
+        }
+    }
+    
+    @Test public void theWriterThreadIsStartedByTheFirstQueuedChange() throws Exception {
+        final SingleWriterIndexedCollection<Item> swic = new SingleWriterIndexedCollection<Item>(new IndexedField<Item>("integer", true));
+        swic.addAll(Arrays.asList(new Item(1, "a"), new Item(2, "b")));
+        assertFalse(swic.isWriterStarted());
+        
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(swic);
+        }
+        @SuppressWarnings("unchecked")
+        final SingleWriterIndexedCollection<Item> copy = (SingleWriterIndexedCollection<Item>)
+                new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertFalse(copy.isWriterStarted());
+        
+        try (SingleWriterIndexedCollection<Item> c = copy) {
+            assertTrue(c.add(new Item(3, "c")));
+            assertTrue(c.isWriterStarted());
+            assertEquals(3, c.size());
+        }
+        
+        // A collection which was never changed via the queue has no writer thread to stop.
+        swic.close();
+        intercept(IllegalStateException.class, () -> swic.addAsync(new Item(4, "d")));
+        assertFalse(swic.isWriterStarted());
+    }
+    
+    @Test public void anInterruptedCloseStopsWaitingAndKeepsTheInterrupt() throws Exception {
+        final SingleWriterIndexedCollection<Item> swic = new SingleWriterIndexedCollection<Item>(new IndexedField<Item>("integer", true));
+        assertTrue(swic.add(new Item(1, "a")));
+        assertTrue(swic.isWriterStarted());
+        
+        Thread.currentThread().interrupt();
+        swic.close();
+        assertTrue(Thread.interrupted());
+        intercept(IllegalStateException.class, () -> swic.addAsync(new Item(2, "b")));
+        
+        // Closing again, uninterrupted, waits for the writer thread as usual.
+        swic.close();
+        assertEquals(1, swic.size());
+    }
+    
+    /**
+     * Many producers enqueue their changes onto a small queue, so that some of them have to wait for room and
+     * some of their batches include invalid entries.
+     */
+    @Test public void concurrentProducers() throws Exception {
+        final SingleWriterIndexedCollection<Item> swic = new SingleWriterIndexedCollection<Item>(8, new IndexedField<Item>("integer", true));
+        final List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        final List<Thread> producers = new ArrayList<>();
+        
+        for (int p = 0; p < 8; p++) {
+            final int firstKey = p * 1_000;
+            final List<CompletableFuture<Boolean>> producerFutures = new ArrayList<>();
+            producers.add(new Thread(() -> {
+                for (int key = firstKey; key < firstKey + 1_000; key++) {
+                    producerFutures.add(swic.addAsync(new Item(key, "original")));
+                    // Every tenth item is added again, which will fail.
+                    if (key % 10 == 0) { producerFutures.add(swic.addAsync(new Item(key, "duplicate"))); }
+                }
+                synchronized (futures) {
+                    futures.addAll(producerFutures);
+                }
+            }));
+        }
+        for (Thread producer : producers) { producer.start(); }
+        for (Thread producer : producers) { producer.join(); }
+        
+        int failures = 0;
+        for (CompletableFuture<Boolean> future : futures) {
+            try {
+                assertTrue(future.join());
+            }
+            catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+                failures++;
+            }
+        }
+        assertEquals(800, failures);
+        assertEquals(8_000, swic.size());
+        
+        final Iterator<Item> sorted = swic.iteratorSortedBy("integer");
+        for (int key = 0; key < 8_000; key++) {
+            assertEquals(new Item(key, "original"), sorted.next());
+        }
+        
+        swic.close();
+        intercept(IllegalStateException.class, () -> swic.addAsync(new Item(-1, "closed")));
+        assertEquals(8_000, swic.size());
+    }
+    
+    @Test public void eachBatchIsJournaledWithASingleForce() throws Exception {
+        final Path directory = tempFolder.newFolder().toPath();
+        final IndexedField<Item> integerField = new IndexedField<Item>("integer", true);
+        final SingleWriterIndexedCollection<Item> swic = SingleWriterIndexedCollection.openJournaled(directory, integerField);
+        
+        final List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int key = 0; key < 5_000; key++) {
+            futures.add(swic.addAsync(new Item(key, "journaled")));
+        }
+        futures.add(swic.addAsync(new Item(0, "duplicate")));
+        futures.add(swic.removeAsync(new Item(1, "journaled")));
+        for (CompletableFuture<Boolean> future : futures.subList(0, 5_000)) {
+            assertTrue(future.join());
+        }
+        intercept(CompletionException.class, () -> futures.get(5_000).join());
+        assertTrue(futures.get(5_001).join());
+        
+        // Only the changes which succeeded are journaled.
+        assertEquals(5_001, swic.getJournal().getRecordCount());
+        assertTrue(swic.getJournal().getForceCount() < 5_001);
+        
+        swic.close();
+        swic.closeJournal();
+        final SingleWriterIndexedCollection<Item> recovered = SingleWriterIndexedCollection.openJournaled(directory, integerField);
+        assertEquals(4_999, recovered.size());
+        assertNull(recovered.findOne("integer", 1));
+        assertEquals(new Item(0, "journaled"), recovered.findOne("integer", 0));
+        recovered.close();
+    }
+    
+    @Test public void aFailedJournalFailsQueuedChangesWithoutStoppingTheWriter() throws Exception {
+        final IndexedField<Item> integerField = new IndexedField<Item>("integer", false);
+        // A long commit window, so that the queued change waits behind the force of the bulk load, which fails.
+        final SingleWriterIndexedCollection<Item> swic = SingleWriterIndexedCollection.openJournaled(
+                tempFolder.newFolder().toPath(), SingleWriterIndexedCollection.DEFAULT_QUEUE_CAPACITY,
+                TimeUnit.MILLISECONDS.toNanos(200), SingleWriterIndexedCollection.DEFAULT_MAX_JOURNAL_LENGTH, integerField);
+        closeChannelOf(swic.getJournal());
+        
+        final CompletableFuture<Boolean> bulkLoad = CompletableFuture.supplyAsync(
+                () -> swic.addAll(Arrays.asList(new Item(1, "bulk"), new Item(2, "bulk"))));
+        Thread.sleep(50);
+        final CompletableFuture<Boolean> queued = swic.addAsync(new Item(3, "queued"));
+        
+        try {
+            bulkLoad.get(10, TimeUnit.SECONDS);
+            fail("The bulk load should not have been made durable.");
+        }
+        catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof UncheckedIOException);
+        }
+        try {
+            queued.get(10, TimeUnit.SECONDS);
+            fail("The queued change should not have been made durable.");
+        }
+        catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RuntimeException);
+        }
+        
+        // The writer thread is still running, and fails each later change straight away.
+        intercept(IllegalStateException.class, () -> swic.add(new Item(4, "later")));
+        intercept(IllegalStateException.class, () -> swic.remove(new Item(1, "bulk")));
+        swic.close();
+    }
+    
+    /** Closes the channel of a journal behind its back, so that the next attempt to force it fails. */
+    private static void closeChannelOf(Journal journal) throws Exception {
+        final Field channel = Journal.class.getDeclaredField("channel");
+        channel.setAccessible(true);
+        ((FileChannel) channel.get(journal)).close();
+    }
+}